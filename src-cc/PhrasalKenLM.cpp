@@ -0,0 +1,102 @@
+// JNI binding of com.princekr.nlp.mt.lm.KenLM. Built by compile_JNI.sh.
+//
+// Context state and words are passed through a direct buffer in native byte
+// order; see KenLM.java for the layout. A call scores a whole phrase.
+
+#include <jni.h>
+
+#include <cstring>
+#include <exception>
+#include <string>
+
+#include "lm/model.hh"
+#include "lm/state.hh"
+#include "lm/virtual_interface.hh"
+
+namespace {
+
+void ThrowIOException(JNIEnv *env, const char *message) {
+  jclass exception = env->FindClass("java/io/IOException");
+  if (exception) env->ThrowNew(exception, message);
+}
+
+inline float GetFloat(const jint *buffer, int i) {
+  float value;
+  std::memcpy(&value, buffer + i, sizeof(value));
+  return value;
+}
+
+inline void PutFloat(jint *buffer, int i, float value) {
+  std::memcpy(buffer + i, &value, sizeof(value));
+}
+
+} // namespace
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL Java_com_princekr_nlp_mt_lm_KenLM_construct(JNIEnv *env, jclass, jstring filename) {
+  const char *path = env->GetStringUTFChars(filename, NULL);
+  if (!path) return 0;
+  lm::base::Model *model = NULL;
+  try {
+    lm::ngram::Config config;
+    config.messages = NULL;
+    model = lm::ngram::LoadVirtual(path, config);
+  } catch (const std::exception &e) {
+    const std::string message = std::string("KenLM could not load ") + path + ": " + e.what();
+    env->ReleaseStringUTFChars(filename, path);
+    ThrowIOException(env, message.c_str());
+    return 0;
+  }
+  env->ReleaseStringUTFChars(filename, path);
+  return reinterpret_cast<jlong>(model);
+}
+
+JNIEXPORT void JNICALL Java_com_princekr_nlp_mt_lm_KenLM_destroy(JNIEnv *, jclass, jlong handle) {
+  delete reinterpret_cast<lm::base::Model *>(handle);
+}
+
+JNIEXPORT jint JNICALL Java_com_princekr_nlp_mt_lm_KenLM_order(JNIEnv *, jclass, jlong handle) {
+  return reinterpret_cast<const lm::base::Model *>(handle)->Order();
+}
+
+JNIEXPORT jint JNICALL Java_com_princekr_nlp_mt_lm_KenLM_index(JNIEnv *env, jclass, jlong handle, jbyteArray utf8) {
+  const lm::base::Model *model = reinterpret_cast<const lm::base::Model *>(handle);
+  const jsize length = env->GetArrayLength(utf8);
+  std::string word(length, '\0');
+  env->GetByteArrayRegion(utf8, 0, length, reinterpret_cast<jbyte *>(&word[0]));
+  return model->BaseVocabulary().Index(StringPiece(word.data(), word.size()));
+}
+
+JNIEXPORT void JNICALL Java_com_princekr_nlp_mt_lm_KenLM_scorePhrase(JNIEnv *env, jclass, jlong handle,
+                                                                     jobject buffer, jint numWords) {
+  const lm::base::Model *model = reinterpret_cast<const lm::base::Model *>(handle);
+  jint *ints = static_cast<jint *>(env->GetDirectBufferAddress(buffer));
+  const int stateLength = model->Order() - 1;
+  const int wordsOffset = 1;
+  const int backoffsOffset = 1 + stateLength;
+  jint *phrase = ints + 1 + 2 * stateLength;
+
+  lm::ngram::State states[2];
+  lm::ngram::State *in = &states[0];
+  lm::ngram::State *out = &states[1];
+  in->length = static_cast<unsigned char>(ints[0]);
+  for (int i = 0; i < in->length; ++i) {
+    in->words[i] = ints[wordsOffset + i];
+    in->backoff[i] = GetFloat(ints, backoffsOffset + i);
+  }
+  for (int i = 0; i < numWords; ++i) {
+    const lm::WordIndex word = phrase[i];
+    PutFloat(phrase, i, model->BaseScore(in, word, out));
+    lm::ngram::State *tmp = in;
+    in = out;
+    out = tmp;
+  }
+  ints[0] = in->length;
+  for (int i = 0; i < in->length; ++i) {
+    ints[wordsOffset + i] = in->words[i];
+    PutFloat(ints, backoffsOffset + i, in->backoff[i]);
+  }
+}
+
+} // extern "C"
@@ -0,0 +1,30 @@
+#!/bin/bash
+#
+# Builds libPhrasalKenLM, the JNI binding of com.princekr.nlp.mt.lm.KenLM,
+# against a KenLM checkout in src-cc/kenlm (or $KENLM). The library is
+# written to src-cc, which the build puts on java.library.path.
+#
+# Models of orders above MAX_ORDER (default 7) need a rebuild.
+#
+set -e
+cd "$(dirname "$0")"
+
+KENLM=${KENLM:-kenlm}
+MAX_ORDER=${MAX_ORDER:-7}
+if [ -z "$JAVA_HOME" ]; then
+  JAVA_HOME=$(dirname "$(dirname "$(readlink -f "$(which javac)")")")
+fi
+
+case "$(uname)" in
+  Darwin) OS=darwin; LIBRARY=libPhrasalKenLM.dylib; LIBS="-lz" ;;
+  *)      OS=linux;  LIBRARY=libPhrasalKenLM.so;    LIBS="-lz -lpthread -lrt" ;;
+esac
+
+SOURCES=$(find "$KENLM/lm" "$KENLM/util" -maxdepth 1 -name '*.cc' \
+            ! -name '*main.cc' ! -name '*test.cc')
+SOURCES="$SOURCES $(ls "$KENLM"/util/double-conversion/*.cc)"
+
+g++ -O3 -DNDEBUG -DHAVE_ZLIB -DKENLM_MAX_ORDER=$MAX_ORDER -std=c++11 -fPIC -shared \
+    -I"$KENLM" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/$OS" \
+    PhrasalKenLM.cpp $SOURCES -o $LIBRARY $LIBS
+echo "Built src-cc/$LIBRARY"
@@ -0,0 +1,102 @@
+package com.princekr.nlp.mt.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies with four buckets per power of two of
+ * microseconds, so that percentiles are within 25% of the true value.
+ * Threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    // Up to 2^40 microseconds
+    private static final int NUM_BUCKETS = 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos a latency
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(0L, nanos / 1000L);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int log = 63 - Long.numberOfLeadingZeros(micros);
+        // The two bits after the leading one
+        final int sub = (int) (micros >>> (log - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(NUM_BUCKETS - 1, (log - 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * @param bucket
+     * @return the smallest latency in microseconds above the bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket + 1;
+        final int log = bucket / SUB_BUCKETS + 1;
+        final int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (log - 2);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @param p in [0, 1]
+     * @return an upper bound of the p-th quantile in milliseconds, or 0 if
+     * nothing was recorded.
+     */
+    public double percentile(double p) {
+        final long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0L;
+        for (int b = 0; b < NUM_BUCKETS; ++b) total += snapshot[b] = counts.get(b);
+        if (total == 0L) return 0.0;
+        final long rank = Math.max(1L, (long) Math.ceil(p * total));
+        long seen = 0L;
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            seen += snapshot[b];
+            if (seen >= rank) return Math.min(upperBound(b), maxMicros.get()) / 1000.0;
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @return the count, mean, percentiles and maximum in milliseconds, and
+     * the counts of the non-empty buckets keyed by their upper bound.
+     */
+    public Map<String, Object> summary() {
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        final long n = count();
+        summary.put("count", n);
+        summary.put("mean", n == 0L ? 0.0 : totalMicros.sum() / 1000.0 / n);
+        summary.put("p50", percentile(0.5));
+        summary.put("p90", percentile(0.9));
+        summary.put("p99", percentile(0.99));
+        summary.put("p999", percentile(0.999));
+        summary.put("max", maxMicros.get() / 1000.0);
+        final Map<String, Long> buckets = new LinkedHashMap<>();
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            final long c = counts.get(b);
+            if (c > 0L) buckets.put(String.valueOf(upperBound(b) / 1000.0), c);
+        }
+        summary.put("buckets", buckets);
+        return summary;
+    }
+}
@@ -0,0 +1,121 @@
+package com.princekr.nlp.mt.service;
+
+import com.princekr.nlp.mt.Phrasal;
+import edu.stanford.nlp.util.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Embedded HTTP/JSON translation service. POST {"text": ..., "deadlineMs": ...}
+ * to /t for a translation; GET /stats for the counters and latency
+ * histograms.
+ * <p>
+ * Decoder options are those of Phrasal, given on the command line; the
+ * number of threads is the number of decoding threads.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class PhrasalService {
+
+    private static final Logger logger = LogManager.getLogger(PhrasalService.class);
+
+    public static final String PORT_OPT = "port";
+    public static final String BATCH_SIZE_OPT = "batch-size";
+    public static final String BATCH_DELAY_OPT = "batch-delay-us";
+    public static final String QUEUE_CAPACITY_OPT = "queue-capacity";
+    public static final String DEADLINE_OPT = "deadline-ms";
+    public static final String MAX_DEADLINE_OPT = "max-deadline-ms";
+
+    public static final int DEFAULT_PORT = 8017;
+    public static final long DEFAULT_DEADLINE_MS = 1000;
+    public static final long DEFAULT_MAX_DEADLINE_MS = 30000;
+
+    private static String usage() {
+        final StringBuilder sb = new StringBuilder();
+        final String nl = System.getProperty("line.separator");
+        sb.append("Usage: java ").append(PhrasalService.class.getName()).append(" OPTS").append(nl).append(nl)
+                .append("  -").append(PORT_OPT).append(" num : Port (default: ").append(DEFAULT_PORT).append(")").append(nl)
+                .append("  -").append(BATCH_SIZE_OPT).append(" num : Maximum requests per batch (default: ")
+                .append(TranslationBatcher.DEFAULT_MAX_BATCH_SIZE).append(")").append(nl)
+                .append("  -").append(BATCH_DELAY_OPT).append(" num : Time a request waits for others to batch with, in microseconds (default: ")
+                .append(TranslationBatcher.DEFAULT_MAX_BATCH_DELAY_MICROS).append(")").append(nl)
+                .append("  -").append(QUEUE_CAPACITY_OPT).append(" num : Requests waiting for a batch, and batched texts waiting for a decoding thread, before rejecting (default: ")
+                .append(TranslationBatcher.DEFAULT_QUEUE_CAPACITY).append(")").append(nl)
+                .append("  -").append(DEADLINE_OPT).append(" num : Budget of requests without a deadline (default: ")
+                .append(DEFAULT_DEADLINE_MS).append(")").append(nl)
+                .append("  -").append(MAX_DEADLINE_OPT).append(" num : Upper bound of request budgets (default: ")
+                .append(DEFAULT_MAX_DEADLINE_MS).append(")").append(nl)
+                .append("  Phrasal options, e.g. -").append(Phrasal.TRANSLATION_TABLE_OPT).append(" -")
+                .append(Phrasal.LANGUAGE_MODEL_OPT).append(" -").append(Phrasal.WEIGHTS_FILE).append(" -")
+                .append(Phrasal.NUM_THREADS);
+        return sb.toString();
+    }
+
+    private static String remove(Properties options, String key, Object defaultValue) {
+        final Object value = options.remove(key);
+        return value == null ? defaultValue.toString() : value.toString();
+    }
+
+    /**
+     * Run the service until the process is killed.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        final Properties options = StringUtils.argsToProperties(args);
+        if (options.containsKey("help") || options.containsKey("h")
+                || !options.containsKey(Phrasal.TRANSLATION_TABLE_OPT)) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int port = Integer.parseInt(remove(options, PORT_OPT, DEFAULT_PORT));
+        final int batchSize = Integer.parseInt(remove(options, BATCH_SIZE_OPT,
+                TranslationBatcher.DEFAULT_MAX_BATCH_SIZE));
+        final long batchDelay = Long.parseLong(remove(options, BATCH_DELAY_OPT,
+                TranslationBatcher.DEFAULT_MAX_BATCH_DELAY_MICROS));
+        final int queueCapacity = Integer.parseInt(remove(options, QUEUE_CAPACITY_OPT,
+                TranslationBatcher.DEFAULT_QUEUE_CAPACITY));
+        final long deadline = Long.parseLong(remove(options, DEADLINE_OPT, DEFAULT_DEADLINE_MS));
+        final long maxDeadline = Long.parseLong(remove(options, MAX_DEADLINE_OPT, DEFAULT_MAX_DEADLINE_MS));
+        options.remove("");
+
+        final Map<String, List<String>> config = new HashMap<>();
+        options.forEach((k, v) -> config.put(k.toString(), Arrays.asList(v.toString().split("\\s+"))));
+        Phrasal.initStaticMembers(config);
+        final Phrasal phrasal = new Phrasal(config);
+
+        final TranslationBatcher batcher = new TranslationBatcher(phrasal, batchSize, batchDelay, queueCapacity);
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        final ServletHolder translation = new ServletHolder(new TranslationServlet(batcher, deadline, maxDeadline));
+        translation.setAsyncSupported(true);
+        context.addServlet(translation, "/t");
+        context.addServlet(new ServletHolder(new StatsServlet(batcher)), "/stats");
+
+        final Server server = new Server(port);
+        server.setHandler(context);
+        server.start();
+        logger.info("Serving translations on port {} with {} decoding threads", port,
+                Math.max(1, phrasal.getNumThreads()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Fail the queued requests first, so that the server can drain
+            batcher.shutdown();
+            try {
+                server.stop();
+            } catch (Exception e) {
+                logger.error("Could not stop the server", e);
+            }
+        }));
+        server.join();
+    }
+}
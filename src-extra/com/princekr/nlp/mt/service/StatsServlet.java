@@ -0,0 +1,30 @@
+package com.princekr.nlp.mt.service;
+
+import com.google.gson.GsonBuilder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the counters and latency histograms of a TranslationBatcher as
+ * JSON.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class StatsServlet extends HttpServlet {
+
+    private final TranslationBatcher batcher;
+
+    public StatsServlet(TranslationBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        new GsonBuilder().setPrettyPrinting().create().toJson(batcher.stats(), resp.getWriter());
+    }
+}
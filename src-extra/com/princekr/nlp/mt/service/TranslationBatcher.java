@@ -0,0 +1,407 @@
+package com.princekr.nlp.mt.service;
+
+import com.princekr.nlp.mt.Phrasal;
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
+import com.princekr.nlp.mt.decoder.util.TimeBudget;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.IStrings;
+import com.princekr.nlp.mt.util.RichTranslation;
+import com.princekr.nlp.mt.util.Sequence;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Translates concurrent requests in micro-batches. A batcher thread
+ * collects the requests that arrive within a short delay of each other;
+ * requests with the same text share one rule lookup and one search, and
+ * the distinct texts are translated by a pool of decoding threads.
+ * <p>
+ * Both the requests waiting for the batcher and the groups waiting for a
+ * decoding thread are bounded; past either bound, requests fail at once.
+ * Each request has a deadline, at which it fails if it has no reply yet.
+ * The first beams of a search are sized so that it is expected to end
+ * within the time left, from a running estimate of the search time per
+ * source word and beam slot, and the decoder shrinks the beams left if the
+ * search runs late. Threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class TranslationBatcher {
+
+    private static final Logger logger = LogManager.getLogger(TranslationBatcher.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MICROS = 2000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // Fraction of the time left that a search is planned to take
+    private static final double TIME_BUDGET_FRACTION = 0.5;
+    // Weight of the last search in the estimate of the search time
+    private static final double ESTIMATE_DECAY = 0.05;
+    // Initial search time per source word and beam slot
+    private static final double INITIAL_NANOS_PER_WORD_BEAM = 2500.0;
+
+    private final Phrasal phrasal;
+    private final int numThreads;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final BlockingQueue<Request> queue;
+    private final ThreadPoolExecutor decoders;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Thread batcher;
+    private final ThreadLocal<Integer> threadId = new ThreadLocal<>();
+    private final AtomicInteger numRequests = new AtomicInteger();
+
+    // Bits of the search time per source word and beam slot, a double
+    private final AtomicLong nanosPerWordBeam =
+            new AtomicLong(Double.doubleToRawLongBits(INITIAL_NANOS_PER_WORD_BEAM));
+
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final LongAdder numBatches = new LongAdder();
+    private final LongAdder numShared = new LongAdder();
+    private final LongAdder numDegraded = new LongAdder();
+    private final LongAdder numPartial = new LongAdder();
+    private final LongAdder numExpired = new LongAdder();
+    private final LongAdder numRejected = new LongAdder();
+
+    /**
+     * A request waiting for its translation.
+     */
+    private static final class Request {
+        final String text;
+        final long arrival;
+        final long deadline;
+        final CompletableFuture<TranslationReply> reply = new CompletableFuture<>();
+
+        Request(String text, long arrival, long deadline) {
+            this.text = text;
+            this.arrival = arrival;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param phrasal            a loaded decoder, with one inferer per
+     *                           decoding thread
+     * @param maxBatchSize
+     * @param maxBatchDelayMicros time the first request of a batch waits
+     *                           for others
+     * @param queueCapacity      requests waiting for the batcher, and
+     *                           groups waiting for a decoding thread,
+     *                           beyond this are rejected
+     */
+    public TranslationBatcher(Phrasal phrasal, int maxBatchSize, long maxBatchDelayMicros, int queueCapacity) {
+        this.phrasal = phrasal;
+        this.numThreads = Math.max(1, phrasal.getNumThreads());
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        // Ids of the inferers not held by a live decoding thread. The pool
+        // starts the replacement of a dead thread before the dead one has
+        // exited, so the replacement waits for the id to come back.
+        final BlockingQueue<Integer> freeIds = new ArrayBlockingQueue<>(numThreads);
+        for (int id = 0; id < numThreads; ++id) freeIds.add(id);
+        final ThreadFactory decoderFactory = r -> {
+            final Thread thread = new Thread(() -> {
+                final int id = takeUninterruptibly(freeIds);
+                threadId.set(id);
+                Thread.currentThread().setName("phrasal-decoder-" + id);
+                try {
+                    r.run();
+                } finally {
+                    freeIds.add(id);
+                }
+            }, "phrasal-decoder");
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.decoders = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), decoderFactory);
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "phrasal-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most requests are answered before their deadline
+        timer.setRemoveOnCancelPolicy(true);
+        this.batcher = new Thread(this::batchLoop, "phrasal-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    private static int takeUninterruptibly(BlockingQueue<Integer> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a translation request.
+     *
+     * @param text
+     * @param budgetMillis time until the deadline
+     * @return the reply, completed by the decoding threads, or with an
+     * error at the deadline at the latest.
+     */
+    public CompletableFuture<TranslationReply> submit(String text, long budgetMillis) {
+        final long now = System.nanoTime();
+        final Request request = new Request(text, now, now + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+        if (!queue.offer(request)) {
+            numRejected.increment();
+            request.reply.complete(TranslationReply.error(503, "Too many pending requests"));
+            return request.reply;
+        }
+        final ScheduledFuture<?> timeout;
+        try {
+            timeout = timer.schedule(() -> expire(request, System.nanoTime()), request.deadline - now,
+                    TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            queue.remove(request);
+            request.reply.complete(TranslationReply.error(503, "Service shutting down"));
+            return request.reply;
+        }
+        request.reply.whenComplete((reply, e) -> timeout.cancel(false));
+        return request.reply;
+    }
+
+    private void batchLoop() {
+        final List<Request> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                final long batchEnd = System.nanoTime() + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    final long wait = batchEnd - System.nanoTime();
+                    final Request request = wait > 0L ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (request == null) break;
+                    batch.add(request);
+                }
+                dispatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Group a batch by text and hand the groups to the decoding threads.
+     */
+    private void dispatch(List<Request> batch) {
+        numBatches.increment();
+        final Map<String, List<Request>> groups = new LinkedHashMap<>();
+        for (Request request : batch) groups.computeIfAbsent(request.text, t -> new ArrayList<>(1)).add(request);
+        numShared.add(batch.size() - groups.size());
+        for (List<Request> group : groups.values()) {
+            try {
+                decoders.execute(() -> {
+                    try {
+                        translate(group);
+                    } catch (RuntimeException e) {
+                        logger.error("Translation failure", e);
+                        for (Request request : group) {
+                            request.reply.complete(TranslationReply.error(500, "Translation failure"));
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                final String error = decoders.isShutdown() ? "Service shutting down" : "Too many pending requests";
+                numRejected.add(group.size());
+                for (Request request : group) request.reply.complete(TranslationReply.error(503, error));
+            }
+        }
+    }
+
+    /**
+     * Translate a group of requests with the same text, under the earliest
+     * of their deadlines.
+     */
+    private void translate(List<Request> group) {
+        final long start = System.nanoTime();
+        final List<Request> live = new ArrayList<>(group.size());
+        for (Request request : group) {
+            queueLatency.record(start - request.arrival);
+            if (start >= request.deadline) {
+                expire(request, start);
+            } else if (!request.reply.isDone()) {
+                live.add(request);
+            }
+        }
+        if (live.isEmpty()) return;
+        long deadline = Long.MAX_VALUE;
+        for (Request request : live) deadline = Math.min(deadline, request.deadline);
+
+        final int id = threadId.get();
+        final int sourceInputId = numRequests.getAndIncrement();
+        final Sequence<IString> source = phrasal.getPreprocessor() == null ? IStrings.tokenize(live.get(0).text) :
+                phrasal.getPreprocessor().process(live.get(0).text);
+        final RuleGrid grid = phrasal.lookupRules(source, id);
+        final long lookupEnd = System.nanoTime();
+        lookupLatency.record(lookupEnd - start);
+        if (grid == null) {
+            complete(live, TranslationReply.error(400, "Input length out of range"), lookupEnd);
+            return;
+        }
+        if (lookupEnd >= deadline) {
+            for (Request request : live) expire(request, lookupEnd);
+            return;
+        }
+
+        // Size the first beams to the time left; the decoder shrinks the
+        // others if the search runs late
+        final int maxBeamSize = phrasal.getBeamSize();
+        final int sourceLength = Math.max(1, source.size());
+        final double affordable = TIME_BUDGET_FRACTION * (deadline - lookupEnd)
+                / (sourceLength * nanosPerWordBeam());
+        final int beamSize = (int) Math.max(1.0, Math.min(maxBeamSize, affordable));
+        final TimeBudget budget = new TimeBudget(beamSize, deadline);
+        final List<RichTranslation<IString, String>> translations = phrasal.decode(source, grid, budget,
+                sourceInputId, id);
+        final long end = System.nanoTime();
+        decodeLatency.record(end - lookupEnd);
+        if (!budget.isDegraded()) {
+            // Per derivation actually kept, which short sentences do not fill
+            long numDerivations = 0L;
+            for (int k = 1; k <= source.size(); ++k) numDerivations += budget.beamFill(k);
+            if (numDerivations > 0L) updateEstimate((double) (end - lookupEnd) / numDerivations);
+        }
+        if (translations.isEmpty()) {
+            complete(live, TranslationReply.error(500, "Decoding failure"), end);
+            return;
+        }
+
+        final RichTranslation<IString, String> best = translations.get(0);
+        final Sequence<IString> translation = phrasal.getPostprocessor() == null ? best.translation :
+                phrasal.getPostprocessor().process(best.translation);
+        final TranslationReply reply = new TranslationReply();
+        reply.translation = translation.toString();
+        reply.alignment = best.alignmentString();
+        reply.score = best.score;
+        reply.beamSize = budget.beamSize();
+        reply.degraded = budget.beamSize() < maxBeamSize || budget.isPartial();
+        if (reply.degraded) {
+            numDegraded.add(live.size());
+            logger.debug("Input {}: beam {} of {} to meet the deadline", sourceInputId, budget.beamSize(),
+                    maxBeamSize);
+        }
+        // The decoder logs partial translations
+        if (budget.isPartial()) numPartial.add(live.size());
+        complete(live, reply, end);
+    }
+
+    private double nanosPerWordBeam() {
+        return Double.longBitsToDouble(nanosPerWordBeam.get());
+    }
+
+    /**
+     * Move the estimate of the search time per source word and beam slot
+     * towards the time of a search, without losing concurrent updates.
+     */
+    private void updateEstimate(double nanos) {
+        long bits;
+        long newBits;
+        do {
+            bits = nanosPerWordBeam.get();
+            final double estimate = Double.longBitsToDouble(bits);
+            newBits = Double.doubleToRawLongBits(estimate + ESTIMATE_DECAY * (nanos - estimate));
+        } while (!nanosPerWordBeam.compareAndSet(bits, newBits));
+    }
+
+    /**
+     * Fail a request that has no reply yet.
+     */
+    private void expire(Request request, long now) {
+        final TranslationReply reply = TranslationReply.error(503, "Deadline exceeded");
+        reply.latencyMs = (now - request.arrival) / 1e6;
+        if (request.reply.complete(reply)) {
+            numExpired.increment();
+            totalLatency.record(now - request.arrival);
+        }
+    }
+
+    /**
+     * Complete requests with copies of a reply that carry their own
+     * latencies, unless they have expired meanwhile.
+     */
+    private void complete(List<Request> requests, TranslationReply reply, long now) {
+        for (Request request : requests) {
+            final TranslationReply copy = new TranslationReply();
+            copy.translation = reply.translation;
+            copy.alignment = reply.alignment;
+            copy.score = reply.score;
+            copy.beamSize = reply.beamSize;
+            copy.degraded = reply.degraded;
+            copy.error = reply.error;
+            copy.status = reply.status;
+            copy.latencyMs = (now - request.arrival) / 1e6;
+            if (request.reply.complete(copy)) totalLatency.record(now - request.arrival);
+        }
+    }
+
+    /**
+     * @return the counters and latency histograms of the service.
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", totalLatency.count());
+        stats.put("batches", numBatches.sum());
+        stats.put("sharedLookups", numShared.sum());
+        stats.put("degraded", numDegraded.sum());
+        stats.put("partial", numPartial.sum());
+        stats.put("deadlineExceeded", numExpired.sum());
+        stats.put("rejected", numRejected.sum());
+        stats.put("pending", queue.size());
+        stats.put("pendingGroups", decoders.getQueue().size());
+        stats.put("nanosPerWordBeam", nanosPerWordBeam());
+        stats.put("queueLatency", queueLatency.summary());
+        stats.put("lookupLatency", lookupLatency.summary());
+        stats.put("decodeLatency", decodeLatency.summary());
+        stats.put("totalLatency", totalLatency.summary());
+        return stats;
+    }
+
+    /**
+     * Stop the batcher and the decoding threads. Requests still queued
+     * fail; the groups already handed to the decoding threads are
+     * translated.
+     */
+    public void shutdown() {
+        batcher.interrupt();
+        decoders.shutdown();
+        timer.shutdown();
+        final List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (Request request : pending) {
+            request.reply.complete(TranslationReply.error(503, "Service shutting down"));
+        }
+    }
+}
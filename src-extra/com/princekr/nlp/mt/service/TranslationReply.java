@@ -0,0 +1,31 @@
+package com.princekr.nlp.mt.service;
+
+/**
+ * JSON body of a translation reply. On failure only the error is set.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class TranslationReply {
+
+    public String translation;
+    // "source-target" pairs
+    public String alignment;
+    public double score;
+    // Size of the last beam of the search
+    public int beamSize;
+    // Whether the beam was shrunk to meet the deadline, or source words
+    // were left untranslated
+    public boolean degraded;
+    public double latencyMs;
+    public String error;
+
+    // HTTP status, not serialized
+    transient int status = 200;
+
+    static TranslationReply error(int status, String error) {
+        final TranslationReply reply = new TranslationReply();
+        reply.status = status;
+        reply.error = error;
+        return reply;
+    }
+}
@@ -0,0 +1,15 @@
+package com.princekr.nlp.mt.service;
+
+/**
+ * JSON body of a translation request.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class TranslationRequest {
+
+    // Source text
+    public String text;
+
+    // Time budget in milliseconds; 0 for the default of the service
+    public long deadlineMs;
+}
@@ -0,0 +1,102 @@
+package com.princekr.nlp.mt.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Translates the JSON request in the body of a POST. The request waits in
+ * asynchronous mode, so that no server thread is held while it is queued
+ * or decoded.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class TranslationServlet extends HttpServlet {
+
+    private static final Gson gson = new Gson();
+
+    // Time past the deadline before the container gives up on the batcher
+    private static final long ASYNC_TIMEOUT_MARGIN_MS = 1000;
+
+    private final TranslationBatcher batcher;
+    private final long defaultDeadlineMs;
+    private final long maxDeadlineMs;
+
+    /**
+     * @param batcher
+     * @param defaultDeadlineMs budget of requests without a deadline
+     * @param maxDeadlineMs     upper bound of the budget of a request
+     */
+    public TranslationServlet(TranslationBatcher batcher, long defaultDeadlineMs, long maxDeadlineMs) {
+        this.batcher = batcher;
+        this.defaultDeadlineMs = defaultDeadlineMs;
+        this.maxDeadlineMs = maxDeadlineMs;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final TranslationRequest request;
+        try {
+            request = gson.fromJson(req.getReader(), TranslationRequest.class);
+        } catch (JsonParseException e) {
+            write(resp, TranslationReply.error(400, "Invalid JSON: " + e.getMessage()));
+            return;
+        }
+        if (request == null || request.text == null) {
+            write(resp, TranslationReply.error(400, "Missing text"));
+            return;
+        }
+        final long budget = request.deadlineMs > 0L ? Math.min(request.deadlineMs, maxDeadlineMs) :
+                defaultDeadlineMs;
+        final AsyncContext context = req.startAsync();
+        final CompletableFuture<TranslationReply> future = batcher.submit(request.text, budget);
+        // The batcher fails requests at their deadline; this is a safeguard
+        context.setTimeout(budget + ASYNC_TIMEOUT_MARGIN_MS);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                future.complete(TranslationReply.error(503, "Deadline exceeded"));
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        future.whenComplete((reply, ex) -> {
+            try {
+                write((HttpServletResponse) context.getResponse(), ex == null ? reply :
+                        TranslationReply.error(500, "Translation failure"));
+            } catch (IOException e) {
+                log("Could not write reply", e);
+            } finally {
+                context.complete();
+            }
+        });
+    }
+
+    private static void write(HttpServletResponse resp, TranslationReply reply) throws IOException {
+        resp.setStatus(reply.status);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        final PrintWriter writer = resp.getWriter();
+        gson.toJson(reply, writer);
+        writer.flush();
+    }
+}
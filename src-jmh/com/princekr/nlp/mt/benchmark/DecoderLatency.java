@@ -0,0 +1,162 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.decoder.CubePruningDecoder;
+import com.princekr.nlp.mt.decoder.feat.base.LinearFutureCostFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.NGramLanguageModelFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.UnknownWordFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.WordPenaltyFeaturizer;
+import com.princekr.nlp.mt.decoder.util.DenseScorer;
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
+import com.princekr.nlp.mt.decoder.util.TimeBudget;
+import com.princekr.nlp.mt.lm.ARPALanguageModel;
+import com.princekr.nlp.mt.tm.DynamicTranslationModel;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.ParallelSuffixArray;
+import com.princekr.nlp.mt.util.Sequence;
+import edu.stanford.nlp.stats.ClassicCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the search for one long sentence with the beams of the cube
+ * pruning decoder expanded on a fork/join pool of 1 to 8 threads, against
+ * the decoding thread alone. Rules are looked up in setup, so only the
+ * search is timed.
+ * <p>
+ * Run <code>main()</code> to measure every pool size and print the mean
+ * milliseconds per sentence and the speedup over no pool. The speedup is
+ * bounded by the number of processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-XX:MaxDirectMemorySize=8g"})
+public class DecoderLatency {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_INPUTS = 16;
+    private static final String[] POOL_THREADS = {"0", "1", "2", "4", "8"};
+
+    @Param({"50000"})
+    public int numSentences;
+
+    @Param({"150"})
+    public int sourceLength;
+
+    @Param({"200"})
+    public int beamSize;
+
+    // Threads of the fork/join pool; 0 to search on the calling thread only
+    @Param({"0", "1", "2", "4", "8"})
+    public int poolThreads;
+
+    private CubePruningDecoder decoder;
+    private ForkJoinPool pool;
+    private Sequence<IString>[] inputs;
+    private RuleGrid[] grids;
+    private int input;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        final Random random = new Random(SyntheticData.SEED);
+        final DynamicTranslationModel<String> tm = new DynamicTranslationModel<>(
+                new ParallelSuffixArray(DynamicTMQuery.bitext(numSentences, random)));
+        final Path arpa = Files.createTempFile("lm", ".arpa");
+        final ARPALanguageModel lm;
+        try {
+            SyntheticData.writeArpa(arpa, SyntheticData.corpus(numSentences, 20, VOCABULARY_SIZE, random), 5,
+                    random);
+            lm = new ARPALanguageModel(arpa.toString());
+        } finally {
+            Files.delete(arpa);
+        }
+        final ClassicCounter<String> weights = new ClassicCounter<>();
+        for (String feature : DynamicTranslationModel.FEATURE_NAMES) weights.setCount(feature, 0.2);
+        weights.setCount(NGramLanguageModelFeaturizer.DEFAULT_FEATURE_NAME, 0.5);
+        weights.setCount(WordPenaltyFeaturizer.FEATURE_NAME, -0.2);
+        weights.setCount(LinearFutureCostFeaturizer.FEATURE_NAME, 0.3);
+        weights.setCount(UnknownWordFeaturizer.FEATURE_NAME, -1.0);
+        decoder = new CubePruningDecoder(tm, lm, new DenseScorer(weights));
+        decoder.setBeamSize(beamSize);
+        if (poolThreads > 0) {
+            pool = new ForkJoinPool(poolThreads);
+            decoder.setParallelExpansion(pool, CubePruningDecoder.DEFAULT_MIN_PARALLEL_LENGTH);
+        }
+
+        // Inputs of exactly sourceLength words: consecutive corpus sentences
+        final int[][] sentences = SyntheticData.corpus(NUM_INPUTS * sourceLength, 20, VOCABULARY_SIZE, random);
+        inputs = new Sequence[NUM_INPUTS];
+        grids = new RuleGrid[NUM_INPUTS];
+        int sentence = 0;
+        for (int i = 0; i < NUM_INPUTS; ++i) {
+            final int[] ids = new int[sourceLength];
+            for (int j = 0; j < sourceLength; ) {
+                final int[] words = sentences[sentence++];
+                final int n = Math.min(words.length, sourceLength - j);
+                System.arraycopy(words, 0, ids, j, n);
+                j += n;
+            }
+            inputs[i] = new ArraySequence(ids);
+            grids[i] = decoder.lookupRules(inputs[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    /**
+     * Search for the best translation of one sentence.
+     */
+    @Benchmark
+    public double translate() {
+        final int i = input;
+        input = (input + 1) % NUM_INPUTS;
+        return decoder.translate(inputs[i], grids[i], new TimeBudget(beamSize, TimeBudget.NO_DEADLINE)).score;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final StringBuilder report = new StringBuilder(
+                String.format("%12s %12s %8s%n", "poolThreads", "ms/sentence", "speedup"));
+        double baseline = 0.0;
+        for (String threads : POOL_THREADS) {
+            final Options options = new OptionsBuilder()
+                    .include(DecoderLatency.class.getName() + ".translate")
+                    .param("poolThreads", threads)
+                    .build();
+            final RunResult result = new Runner(options).runSingle();
+            final double score = result.getPrimaryResult().getScore();
+            if (baseline == 0.0) baseline = score;
+            report.append(String.format("%12s %12.2f %8.2f%n", threads, score, baseline / score));
+        }
+        System.out.print(report);
+        System.out.printf("Available processors: %d%n", Runtime.getRuntime().availableProcessors());
+    }
+}
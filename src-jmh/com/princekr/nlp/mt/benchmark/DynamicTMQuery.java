@@ -0,0 +1,92 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.tm.DynamicTranslationModel;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.ParallelSuffixArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query-time rule extraction from a synthetic suffix-array bitext. Setup
+ * also reports the suffix array build time in the log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class DynamicTMQuery {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_QUERIES = 256;
+
+    @Param({"1000000"})
+    public int numSentences;
+
+    @Param({"100"})
+    public int sampleSize;
+
+    private DynamicTranslationModel<String> tm;
+    private int[][] queries;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SyntheticData.SEED);
+        tm = new DynamicTranslationModel<>(new ParallelSuffixArray(bitext(numSentences, random)));
+        tm.setSampleSize(sampleSize);
+        queries = SyntheticData.corpus(NUM_QUERIES, 25, VOCABULARY_SIZE, random);
+    }
+
+    /**
+     * Sentence pairs with a roughly monotone alignment and some unaligned
+     * words.
+     */
+    static ParallelCorpus bitext(int numSentences, Random random) {
+        final int[][] source = SyntheticData.corpus(numSentences, 25, VOCABULARY_SIZE, random);
+        final int[][] target = SyntheticData.corpus(numSentences, 25, VOCABULARY_SIZE, random);
+        final ParallelCorpus corpus = new ParallelCorpus(numSentences);
+        final int[] links = new int[ParallelCorpus.MAX_SENTENCE_LENGTH];
+        for (int s = 0; s < numSentences; ++s) {
+            final int n = source[s].length;
+            final int m = target[s].length;
+            int numLinks = 0;
+            for (int i = 0; i < n; ++i) {
+                if (random.nextInt(8) == 0) continue;
+                final int j = Math.max(0, Math.min(m - 1, i * m / n + random.nextInt(3) - 1));
+                links[numLinks++] = ParallelCorpus.link(i, j);
+            }
+            final int[] alignment = new int[numLinks];
+            System.arraycopy(links, 0, alignment, 0, numLinks);
+            corpus.add(source[s], target[s], alignment);
+        }
+        return corpus;
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+    }
+
+    /**
+     * Extract the rules for all spans of one sentence.
+     */
+    @Benchmark
+    public int querySentence(Cursor cursor) {
+        final int[] query = queries[cursor.query];
+        cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        return tm.getRules(query).size();
+    }
+}
@@ -0,0 +1,103 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.tm.DynamicTranslationModel;
+import com.princekr.nlp.mt.util.ParallelSuffixArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scaling of dynamic TM queries with the number of threads. All threads
+ * query one shared model, each with its own stream of sentences.
+ * <p>
+ * Run <code>main()</code> to measure 1 to 64 threads (or up to the
+ * number given as the first argument) and print queries/sec, speedup and
+ * parallel efficiency per thread count. The benchmark method can also be
+ * run directly with <code>-t N</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class DynamicTMThreading {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_QUERIES = 4096;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"200000"})
+    public int numSentences;
+
+    @Param({"100"})
+    public int sampleSize;
+
+    private DynamicTranslationModel<String> tm;
+    private int[][] queries;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SyntheticData.SEED);
+        tm = new DynamicTranslationModel<>(new ParallelSuffixArray(DynamicTMQuery.bitext(numSentences, random)));
+        tm.setSampleSize(sampleSize);
+        queries = SyntheticData.corpus(NUM_QUERIES, 25, VOCABULARY_SIZE, random);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query = -1;
+    }
+
+    /**
+     * Extract the rules for all spans of one sentence. Each thread starts
+     * at a different query so that threads do not run in lockstep.
+     */
+    @Benchmark
+    public int querySentence(Cursor cursor) {
+        if (cursor.query < 0) cursor.query = nextThread.getAndIncrement() * 97 % NUM_QUERIES;
+        final int[] query = queries[cursor.query];
+        cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        return tm.getRules(query).size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : THREADS[THREADS.length - 1];
+        final StringBuilder report = new StringBuilder(
+                String.format("%8s %14s %8s %11s%n", "threads", "queries/sec", "speedup", "efficiency"));
+        double baseline = 0.0;
+        for (int threads : THREADS) {
+            if (threads > maxThreads) break;
+            final Options options = new OptionsBuilder()
+                    .include(DynamicTMThreading.class.getName() + ".querySentence")
+                    .threads(threads)
+                    .build();
+            final RunResult result = new Runner(options).runSingle();
+            final double score = result.getPrimaryResult().getScore();
+            if (threads == 1) baseline = score;
+            final double speedup = baseline > 0.0 ? score / baseline : Double.NaN;
+            report.append(String.format("%8d %14.1f %8.2f %10.0f%%%n", threads, score, speedup,
+                    100.0 * speedup / threads));
+        }
+        System.out.print(report);
+        System.out.printf("Available processors: %d%n", Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,73 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Word histogram over a Zipfian token stream, which is dominated by system
+ * vocabulary lookups. Run with <code>-t N</code> to measure how lookups
+ * scale with threads.
+ *
+ * Created by prince on 2017/10/29.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistogramTest {
+
+    private static final int VOCABULARY_SIZE = 200000;
+    private static final int NUM_TOKENS = 1 << 16;
+
+    private String[] tokens;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SyntheticData.SEED);
+        final SyntheticData.Zipf zipf = new SyntheticData.Zipf(VOCABULARY_SIZE, 1.0);
+        SyntheticData.systemIds(VOCABULARY_SIZE);
+        tokens = new String[NUM_TOKENS];
+        for (int i = 0; i < NUM_TOKENS; ++i) {
+            tokens[i] = SyntheticData.word(zipf.sample(random));
+            tokens[i].hashCode();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Counts {
+        final int[] counts = new int[VOCABULARY_SIZE];
+        int position;
+    }
+
+    /**
+     * Count one token. Operations are single lookups so that
+     * ops/us is directly the lookup rate.
+     */
+    @Benchmark
+    public int countToken(Counts state) {
+        final int id = Vocabulary.systemIndexOf(tokens[state.position]);
+        state.position = (state.position + 1) & (NUM_TOKENS - 1);
+        return ++state.counts[id % VOCABULARY_SIZE];
+    }
+
+    @Benchmark
+    public String reverseLookup(Counts state) {
+        final int id = state.position;
+        state.position = (state.position + 1) % VOCABULARY_SIZE;
+        return Vocabulary.systemGet(id);
+    }
+}
@@ -0,0 +1,169 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.lm.ARPALanguageModel;
+import com.princekr.nlp.mt.lm.CachingLanguageModel;
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * N-gram language model lookups on a synthetic ARPA model that contains
+ * every n-gram of a Zipfian corpus. Queries are drawn from the same
+ * distribution, so most of them match long n-grams. Setup reports load
+ * time and off-heap size in the log; with a cache, teardown prints its hit
+ * rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-XX:MaxDirectMemorySize=8g"})
+public class LanguageModelQuery {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_QUERIES = 4096;
+    private static final int PHRASE_LENGTH = 4;
+
+    @Param({"50000"})
+    public int numSentences;
+
+    @Param({"5"})
+    public int order;
+
+    @Param({"8", "16"})
+    public int quantizationBits;
+
+    // Entries per thread of a CachingLanguageModel; 0 for none
+    @Param({"0", "65536"})
+    public int cacheSize;
+
+    private LanguageModel<IString> lm;
+    private Sequence<IString>[] queries;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        final Random random = new Random(SyntheticData.SEED);
+        final Path arpa = Files.createTempFile("lm", ".arpa");
+        try {
+            SyntheticData.writeArpa(arpa, SyntheticData.corpus(numSentences, 20, VOCABULARY_SIZE, random), order,
+                    random);
+            lm = new ARPALanguageModel(arpa.toString(), quantizationBits, quantizationBits);
+            if (cacheSize > 0) lm = new CachingLanguageModel(lm, cacheSize);
+        } finally {
+            Files.delete(arpa);
+        }
+        final int[][] sentences = SyntheticData.corpus(NUM_QUERIES, 20, VOCABULARY_SIZE, random);
+        queries = new Sequence[NUM_QUERIES];
+        for (int i = 0; i < NUM_QUERIES; ++i) {
+            final int[] ids = new int[sentences[i].length + 2];
+            ids[0] = TokenUtils.START_TOKEN.id;
+            System.arraycopy(sentences[i], 0, ids, 1, sentences[i].length);
+            ids[ids.length - 1] = TokenUtils.END_TOKEN.id;
+            queries[i] = new ArraySequence(ids);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (lm instanceof CachingLanguageModel) System.out.println(lm);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+        int position = 1;
+        LMState state;
+        final float[] scores = new float[PHRASE_LENGTH];
+    }
+
+    /**
+     * Score a whole sentence, as for rescoring or perplexity.
+     */
+    @Benchmark
+    public double scoreSentence(Cursor cursor) {
+        final Sequence<IString> query = queries[cursor.query];
+        cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        return lm.score(query, 1, null).getScore();
+    }
+
+    /**
+     * Extend a state by one word, as the decoder does for each hypothesis
+     * extension.
+     */
+    @Benchmark
+    public double scoreWord(Cursor cursor) {
+        final Sequence<IString> query = queries[cursor.query];
+        if (cursor.position == 1) cursor.state = lm.score(query.subsequence(0, 1), 1, null);
+        final LMState state = lm.score(query.subsequence(cursor.position, cursor.position + 1), 0, cursor.state);
+        cursor.state = state;
+        if (++cursor.position == query.size()) {
+            cursor.position = 1;
+            cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        }
+        return state.getScore();
+    }
+
+    /**
+     * Extend a state by a target phrase of up to PHRASE_LENGTH words in one
+     * batched call.
+     */
+    @Benchmark
+    public double scorePhrase(Cursor cursor) {
+        final Sequence<IString> query = queries[cursor.query];
+        if (cursor.position == 1) cursor.state = lm.score(query.subsequence(0, 1), 1, null);
+        final int end = Math.min(query.size(), cursor.position + PHRASE_LENGTH);
+        final LMState state = lm.scorePhrase(query, cursor.position, end, cursor.state, cursor.scores, 0);
+        return advance(cursor, query, state, end);
+    }
+
+    /**
+     * The same phrases as <code>scorePhrase</code>, one call per word.
+     */
+    @Benchmark
+    public double scorePhraseByWord(Cursor cursor) {
+        final Sequence<IString> query = queries[cursor.query];
+        if (cursor.position == 1) cursor.state = lm.score(query.subsequence(0, 1), 1, null);
+        final int end = Math.min(query.size(), cursor.position + PHRASE_LENGTH);
+        LMState state = cursor.state;
+        double score = 0.0;
+        for (int i = cursor.position; i < end; ++i) {
+            state = lm.score(query.subsequence(i, i + 1), 0, state);
+            score += state.getScore();
+        }
+        advance(cursor, query, state, end);
+        return score;
+    }
+
+    private static double advance(Cursor cursor, Sequence<IString> query, LMState state, int end) {
+        cursor.state = state;
+        cursor.position = end;
+        if (cursor.position == query.size()) {
+            cursor.position = 1;
+            cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        }
+        return state.getScore();
+    }
+}
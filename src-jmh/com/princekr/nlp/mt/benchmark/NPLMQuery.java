@@ -0,0 +1,102 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.NPLM;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NPLM queries on a random 5-gram network of the usual shape (150-dim
+ * embeddings, 750 hidden units). Sentences are Zipfian, so contexts repeat
+ * as they do across the hypotheses of a beam.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class NPLMQuery {
+
+    private static final int VOCABULARY_SIZE = 10000;
+    private static final int NUM_QUERIES = 1024;
+
+    @Param({"5"})
+    public int order;
+
+    // Contexts cached per thread; 0 for none
+    @Param({"0", "16384"})
+    public int cacheSize;
+
+    @Param({"false", "true"})
+    public boolean normalize;
+
+    private NPLM lm;
+    private Sequence<IString>[] queries;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        final Random random = new Random(SyntheticData.SEED);
+        final Path file = Files.createTempFile("lm", ".nplm");
+        try {
+            SyntheticData.writeNPLM(file, VOCABULARY_SIZE, order, 150, 750, random);
+            lm = new NPLM(file.toString(), normalize, cacheSize, NPLM.DEFAULT_PRECOMPUTED_WORDS);
+        } finally {
+            Files.delete(file);
+        }
+        final int[][] sentences = SyntheticData.corpus(NUM_QUERIES, 20, VOCABULARY_SIZE, random);
+        queries = new Sequence[NUM_QUERIES];
+        for (int i = 0; i < NUM_QUERIES; ++i) {
+            final int[] ids = new int[sentences[i].length + 2];
+            ids[0] = TokenUtils.START_TOKEN.id;
+            System.arraycopy(sentences[i], 0, ids, 1, sentences[i].length);
+            ids[ids.length - 1] = TokenUtils.END_TOKEN.id;
+            queries[i] = new ArraySequence(ids);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+        int position = 1;
+        LMState state;
+        final float[] scores = new float[1];
+    }
+
+    /**
+     * Extend a state by one word.
+     */
+    @Benchmark
+    public double scoreWord(Cursor cursor) {
+        final Sequence<IString> query = queries[cursor.query];
+        if (cursor.position == 1) cursor.state = lm.score(query.subsequence(0, 1), 1, null);
+        final LMState state = lm.scorePhrase(query, cursor.position, cursor.position + 1, cursor.state,
+                cursor.scores, 0);
+        cursor.state = state;
+        if (++cursor.position == query.size()) {
+            cursor.position = 1;
+            cursor.query = (cursor.query + 1) % NUM_QUERIES;
+        }
+        return state.getScore();
+    }
+}
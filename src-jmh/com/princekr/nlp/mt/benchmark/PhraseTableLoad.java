@@ -0,0 +1,63 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.ProbingIntegerArrayIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parallel insertion of rule keys into a shared
+ * <code>ProbingIntegerArrayIndex</code>. Run with <code>-t N</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PhraseTableLoad {
+
+    private static final int NUM_KEYS = 1 << 20;
+
+    private int[][] keys;
+    private ProbingIntegerArrayIndex index;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        final Random random = new Random(SyntheticData.SEED);
+        final SyntheticData.Zipf zipf = new SyntheticData.Zipf(50000, 1.0);
+        keys = new int[NUM_KEYS][];
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            keys[i] = new int[1 + random.nextInt(5)];
+            for (int j = 0; j < keys[i].length; ++j) keys[i][j] = zipf.sample(random);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        index = new ProbingIntegerArrayIndex();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int position = new Random().nextInt(NUM_KEYS);
+    }
+
+    @Benchmark
+    public int add(Cursor cursor) {
+        final int id = index.add(keys[cursor.position]);
+        cursor.position = (cursor.position + 1) & (NUM_KEYS - 1);
+        return id;
+    }
+}
@@ -0,0 +1,108 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.DynamicIntegerArrayIndex;
+import com.princekr.nlp.mt.util.IntegerArrayIndex;
+import com.princekr.nlp.mt.util.ProbingIntegerArrayIndex;
+import com.princekr.nlp.mt.util.TrieIntegerArrayIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phrase-table source lookups: every span of a sentence up to the maximum
+ * phrase length is queried against an index of synthetic rule sources.
+ * <code>trieSentence</code> answers the same queries with one prefix walk
+ * per start position.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PhraseTableQuery {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int NUM_SENTENCES = 256;
+    private static final int MAX_PHRASE_LENGTH = 7;
+
+    @Param({"1000000"})
+    public int numRules;
+
+    @Param({"probing", "dynamic", "trie"})
+    public String indexType;
+
+    private IntegerArrayIndex index;
+    private TrieIntegerArrayIndex trie;
+    private int[][] sentences;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SyntheticData.SEED);
+        sentences = SyntheticData.corpus(NUM_SENTENCES, 25, VOCABULARY_SIZE, random);
+        index = "probing".equals(indexType) ? new ProbingIntegerArrayIndex(numRules)
+                : new DynamicIntegerArrayIndex(numRules);
+        // Rule sources are spans of a synthetic training corpus
+        final int[][] corpus = SyntheticData.corpus(numRules / 10, 25, VOCABULARY_SIZE, random);
+        for (int[] s : corpus) {
+            for (int i = 0; i < s.length && index.size() < numRules; ++i) {
+                for (int j = i + 1; j <= Math.min(s.length, i + MAX_PHRASE_LENGTH); ++j) {
+                    index.add(s, i, j);
+                }
+            }
+        }
+        trie = new TrieIntegerArrayIndex(index);
+        if ("trie".equals(indexType)) index = trie;
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int sentence;
+        TrieIntegerArrayIndex.PrefixIterator prefixes;
+    }
+
+    /**
+     * Lookup all spans of one sentence.
+     */
+    @Benchmark
+    public int querySentence(Cursor cursor) {
+        final int[] s = sentences[cursor.sentence];
+        cursor.sentence = (cursor.sentence + 1) % NUM_SENTENCES;
+        int found = 0;
+        for (int i = 0; i < s.length; ++i) {
+            for (int j = i + 1; j <= Math.min(s.length, i + MAX_PHRASE_LENGTH); ++j) {
+                if (index.indexOf(s, i, j) >= 0) ++found;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Lookup all spans of one sentence by walking the trie from each start
+     * position.
+     */
+    @Benchmark
+    public int trieSentence(Cursor cursor) {
+        if (cursor.prefixes == null) cursor.prefixes = trie.prefixIterator();
+        final TrieIntegerArrayIndex.PrefixIterator prefixes = cursor.prefixes;
+        final int[] s = sentences[cursor.sentence];
+        cursor.sentence = (cursor.sentence + 1) % NUM_SENTENCES;
+        int found = 0;
+        for (int i = 0; i < s.length; ++i) {
+            prefixes.reset(s, i, Math.min(s.length, i + MAX_PHRASE_LENGTH));
+            while (prefixes.next()) ++found;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,126 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.Sequences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building target sequences the way hypothesis extension does.
+ * Run with <code>-prof gc</code> to see allocation per operation.
+ *
+ * Created by prince on 2017/10/29.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SequenceConcat {
+
+    private static final int NUM_PHRASES = 64;
+    private static final long SEED = 42L;
+
+    /**
+     * Number of phrases in a complete hypothesis.
+     */
+    @Param({"10", "30"})
+    public int hypothesisLength;
+
+    @Param({"1", "3", "7"})
+    public int phraseLength;
+
+    private ArraySequence[] phrases;
+    private List<List<IString>> boxedPhrases;
+    private ArraySequence prefix;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SEED);
+        phrases = new ArraySequence[NUM_PHRASES];
+        boxedPhrases = new ArrayList<>(NUM_PHRASES);
+        for (int i = 0; i < NUM_PHRASES; ++i) {
+            final int[] ids = new int[phraseLength];
+            final List<IString> boxed = new ArrayList<>(phraseLength);
+            for (int j = 0; j < phraseLength; ++j) {
+                ids[j] = new IString("w" + random.nextInt(10000)).id;
+                boxed.add(new IString(ids[j]));
+            }
+            phrases[i] = new ArraySequence(ids);
+            boxedPhrases.add(boxed);
+        }
+        Sequence<IString> p = Sequences.emptySequence();
+        for (int i = 0; i < hypothesisLength; ++i) {
+            p = p.concat(phrases[i % NUM_PHRASES]);
+        }
+        prefix = (ArraySequence) p;
+    }
+
+    /**
+     * Left-to-right growth of a single hypothesis. Each extension claims the
+     * spare capacity of its predecessor's backing array.
+     */
+    @Benchmark
+    public Sequence<IString> growHypothesis() {
+        Sequence<IString> target = Sequences.emptySequence();
+        for (int i = 0; i < hypothesisLength; ++i) {
+            target = target.concat(phrases[i % NUM_PHRASES]);
+        }
+        return target;
+    }
+
+    /**
+     * Many extensions of one antecedent, as in cube pruning. Only the first
+     * can extend in place.
+     */
+    @Benchmark
+    public long branchHypothesis() {
+        long h = 0;
+        for (int i = 0; i < NUM_PHRASES; ++i) {
+            h ^= prefix.concat(phrases[i]).longHashCode();
+        }
+        return h;
+    }
+
+    @Benchmark
+    public long subsequenceHash() {
+        long h = 0;
+        final int size = prefix.size();
+        for (int i = 0; i + phraseLength <= size; ++i) {
+            h ^= prefix.subsequence(i, i + phraseLength).longHashCode();
+        }
+        return h;
+    }
+
+    /**
+     * Baseline: boxed list concatenation.
+     */
+    @Benchmark
+    public List<IString> growBoxedList() {
+        List<IString> target = new ArrayList<>();
+        for (int i = 0; i < hypothesisLength; ++i) {
+            final List<IString> next = new ArrayList<>(target.size() + phraseLength);
+            next.addAll(target);
+            next.addAll(boxedPhrases.get(i % NUM_PHRASES));
+            target = next;
+        }
+        return target;
+    }
+}
@@ -0,0 +1,231 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.IntegerArrayIndex;
+import com.princekr.nlp.mt.util.ProbingIntegerArrayIndex;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic fixtures for the benchmarks, so that no model
+ * files are needed. Word frequencies follow a Zipf distribution, which is
+ * close enough to natural text for hashing and cache behavior.
+ */
+public final class SyntheticData {
+
+    private SyntheticData() {
+    }
+
+    public static final long SEED = 42L;
+
+    /**
+     * Sampler of word ranks with P(rank r) proportional to 1 / (r + 1)^exponent.
+     */
+    public static final class Zipf {
+        private final double[] cdf;
+
+        public Zipf(int vocabularySize, double exponent) {
+            cdf = new double[vocabularySize];
+            double sum = 0.0;
+            for (int r = 0; r < vocabularySize; ++r) {
+                sum += 1.0 / Math.pow(r + 1, exponent);
+                cdf[r] = sum;
+            }
+            for (int r = 0; r < vocabularySize; ++r) {
+                cdf[r] /= sum;
+            }
+        }
+
+        public int sample(Random random) {
+            final double u = random.nextDouble();
+            int lo = 0;
+            int hi = cdf.length - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Surface form of the word with the given rank.
+     */
+    public static String word(int rank) {
+        return "w" + rank;
+    }
+
+    /**
+     * Intern the words of a vocabulary in the system vocabulary.
+     *
+     * @return system ids indexed by rank.
+     */
+    public static int[] systemIds(int vocabularySize) {
+        final int[] ids = new int[vocabularySize];
+        for (int r = 0; r < vocabularySize; ++r) {
+            ids[r] = Vocabulary.systemAdd(word(r));
+        }
+        return ids;
+    }
+
+    /**
+     * Generate sentences of system vocabulary ids.
+     *
+     * @param numSentences
+     * @param meanLength
+     * @param vocabularySize
+     * @param random
+     * @return
+     */
+    public static int[][] corpus(int numSentences, int meanLength, int vocabularySize, Random random) {
+        final Zipf zipf = new Zipf(vocabularySize, 1.0);
+        final int[] ids = systemIds(vocabularySize);
+        final int[][] corpus = new int[numSentences][];
+        for (int i = 0; i < numSentences; ++i) {
+            final int length = 1 + random.nextInt(2 * meanLength);
+            corpus[i] = new int[length];
+            for (int j = 0; j < length; ++j) {
+                corpus[i][j] = ids[zipf.sample(random)];
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Write an ARPA language model with every n-gram of a corpus, sentences
+     * wrapped in &lt;s&gt; and &lt;/s&gt;. Probabilities are maximum
+     * likelihood estimates and backoffs are random, a quarter of them zero,
+     * so the model is consistent but not normalized.
+     *
+     * @param file
+     * @param corpus system vocabulary ids
+     * @param order
+     * @param random
+     * @throws IOException
+     */
+    public static void writeArpa(Path file, int[][] corpus, int order, Random random) throws IOException {
+        final IntegerArrayIndex[] ngrams = new IntegerArrayIndex[order];
+        final int[][] counts = new int[order][];
+        // Occurrences followed by another token
+        final int[][] contexts = new int[order][];
+        long numTokens = 0;
+        for (int n = 0; n < order; ++n) {
+            ngrams[n] = new ProbingIntegerArrayIndex();
+            counts[n] = new int[1024];
+            contexts[n] = new int[1024];
+        }
+        for (int[] sentence : corpus) {
+            final int[] tokens = new int[sentence.length + 2];
+            tokens[0] = TokenUtils.START_TOKEN.id;
+            System.arraycopy(sentence, 0, tokens, 1, sentence.length);
+            tokens[tokens.length - 1] = TokenUtils.END_TOKEN.id;
+            numTokens += tokens.length - 1;
+            for (int i = 0; i < tokens.length; ++i) {
+                for (int n = 1; n <= order && i + n <= tokens.length; ++n) {
+                    final int id = ngrams[n - 1].add(tokens, i, i + n);
+                    if (id == counts[n - 1].length) {
+                        counts[n - 1] = Arrays.copyOf(counts[n - 1], 2 * id);
+                        contexts[n - 1] = Arrays.copyOf(contexts[n - 1], 2 * id);
+                    }
+                    ++counts[n - 1][id];
+                    if (i + n < tokens.length) ++contexts[n - 1][id];
+                }
+            }
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("\\data\\\n");
+            for (int n = 1; n <= order; ++n) {
+                writer.write(String.format("ngram %d=%d%n", n, ngrams[n - 1].size()));
+            }
+            for (int n = 1; n <= order; ++n) {
+                writer.write(String.format("%n\\%d-grams:%n", n));
+                final IntegerArrayIndex index = ngrams[n - 1];
+                for (int id = 0; id < index.size(); ++id) {
+                    final int[] ngram = index.get(id);
+                    final double context = n == 1 ? numTokens :
+                            contexts[n - 2][ngrams[n - 2].indexOf(ngram, 0, n - 1)];
+                    // <s> is context only
+                    final double prob = n == 1 && ngram[0] == TokenUtils.START_TOKEN.id ? -99.0 :
+                            Math.log10(counts[n - 1][id] / context);
+                    final StringBuilder line = new StringBuilder(String.format("%.6f\t", prob));
+                    for (int k = 0; k < n; ++k) {
+                        if (k > 0) line.append(' ');
+                        line.append(Vocabulary.systemGet(ngram[k]));
+                    }
+                    if (n < order && ngram[n - 1] != TokenUtils.END_TOKEN.id) {
+                        line.append(String.format("\t%.6f", random.nextInt(4) == 0 ? 0.0 : -random.nextDouble()));
+                    }
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+            writer.write("\n\\end\\\n");
+        }
+    }
+
+    /**
+     * Write a random NPLM with the words of a Zipfian vocabulary, by rank,
+     * plus &lt;s&gt;, &lt;/s&gt;, &lt;unk&gt; and &lt;null&gt;. Weights are
+     * uniform in [-0.1, 0.1) and the activation is the rectifier.
+     *
+     * @param file
+     * @param vocabularySize  input and output words
+     * @param order
+     * @param embeddingSize   input and output embedding dimension
+     * @param numHidden       units of the first hidden layer; 0 for one layer
+     * @param random
+     * @throws IOException
+     */
+    public static void writeNPLM(Path file, int vocabularySize, int order, int embeddingSize, int numHidden,
+                                 Random random) throws IOException {
+        final String[] special = {TokenUtils.UNK_TOKEN.toString(), TokenUtils.START_TOKEN.toString(),
+                TokenUtils.END_TOKEN.toString(), "<null>"};
+        final int size = vocabularySize + special.length;
+        final int hidden1 = numHidden > 0 ? numHidden : embeddingSize;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(String.format("\\config%nversion 1%nngram_size %d%ninput_vocab_size %d%n"
+                            + "output_vocab_size %d%ninput_embedding_dimension %d%nnum_hidden %d%n"
+                            + "output_embedding_dimension %d%nactivation_function rectifier%n%n", order, size, size,
+                    embeddingSize, numHidden, embeddingSize));
+            for (String section : new String[]{"input_vocab", "output_vocab"}) {
+                writer.write("\\" + section + "\n");
+                for (String word : special) writer.write(word + "\n");
+                for (int r = 0; r < vocabularySize; ++r) writer.write(word(r) + "\n");
+                writer.newLine();
+            }
+            writeMatrix(writer, "input_embeddings", size, embeddingSize, random);
+            writeMatrix(writer, "hidden_weights 1", hidden1, (order - 1) * embeddingSize, random);
+            writeMatrix(writer, "hidden_biases 1", hidden1, 1, random);
+            if (numHidden > 0) {
+                writeMatrix(writer, "hidden_weights 2", embeddingSize, numHidden, random);
+                writeMatrix(writer, "hidden_biases 2", embeddingSize, 1, random);
+            }
+            writeMatrix(writer, "output_weights", size, embeddingSize, random);
+            writeMatrix(writer, "output_biases", size, 1, random);
+            writer.write("\\end\n");
+        }
+    }
+
+    private static void writeMatrix(BufferedWriter writer, String section, int rows, int cols, Random random)
+            throws IOException {
+        writer.write("\\" + section + "\n");
+        for (int r = 0; r < rows; ++r) {
+            final StringBuilder line = new StringBuilder();
+            for (int c = 0; c < cols; ++c) {
+                if (c > 0) line.append('\t');
+                line.append(String.format("%.5f", 0.2 * random.nextDouble() - 0.1));
+            }
+            writer.write(line.toString());
+            writer.newLine();
+        }
+        writer.newLine();
+    }
+}
@@ -0,0 +1,91 @@
+package com.princekr.nlp.mt.benchmark;
+
+import com.princekr.nlp.mt.util.MurmurHash2;
+import com.princekr.nlp.mt.util.MurmurHash3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of <code>int[]</code> n-gram and phrase keys.
+ *
+ * Created by prince on 2017/10/29.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TestHashSpeed {
+
+    private static final int NUM_KEYS = 1024;
+    private static final int SEED = 0x9747b28c;
+
+    @Param({"1", "3", "5", "7", "20"})
+    public int keyLength;
+
+    private int[][] keys;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(SyntheticData.SEED);
+        final SyntheticData.Zipf zipf = new SyntheticData.Zipf(100000, 1.0);
+        keys = new int[NUM_KEYS][keyLength];
+        for (int[] key : keys) {
+            for (int i = 0; i < keyLength; ++i) {
+                key[i] = zipf.sample(random);
+            }
+        }
+    }
+
+    @Benchmark
+    public int murmurHash2_32() {
+        int h = 0;
+        for (int[] key : keys) h ^= MurmurHash2.hash32(key, key.length, SEED);
+        return h;
+    }
+
+    @Benchmark
+    public long murmurHash2_64() {
+        long h = 0;
+        for (int[] key : keys) h ^= MurmurHash2.hash64(key, key.length, SEED);
+        return h;
+    }
+
+    @Benchmark
+    public int murmurHash3_32() {
+        int h = 0;
+        for (int[] key : keys) h ^= MurmurHash3.hash32(key, key.length, SEED);
+        return h;
+    }
+
+    @Benchmark
+    public long murmurHash3_64() {
+        long h = 0;
+        for (int[] key : keys) h ^= MurmurHash3.hash64(key, key.length, SEED);
+        return h;
+    }
+
+    /**
+     * Baseline: polynomial hash from the JDK.
+     */
+    @Benchmark
+    public int arraysHashCode() {
+        int h = 0;
+        for (int[] key : keys) h ^= Arrays.hashCode(key);
+        return h;
+    }
+}
@@ -1,30 +1,50 @@
 package com.princekr.nlp.mt;
 
-import com.princekr.nlp.mt.decoder.Inferer;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WorkHandler;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import com.princekr.nlp.mt.decoder.AbstractBeamInferer;
+import com.princekr.nlp.mt.decoder.CubePruningDecoder;
 import com.princekr.nlp.mt.decoder.Inferer.NbestMode;
 import com.princekr.nlp.mt.decoder.feat.FeatureExtractor;
 import com.princekr.nlp.mt.decoder.recomb.RecombinationFilterFactory;
+import com.princekr.nlp.mt.decoder.util.DenseScorer;
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
 import com.princekr.nlp.mt.decoder.util.Scorer;
+import com.princekr.nlp.mt.decoder.util.TimeBudget;
 import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
 import com.princekr.nlp.mt.process.Postprocessor;
 import com.princekr.nlp.mt.process.Preprocessor;
+import com.princekr.nlp.mt.tm.DynamicTranslationModel;
 import com.princekr.nlp.mt.tm.TranslationModel;
 import com.princekr.nlp.mt.util.IOTools;
 import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.IStrings;
 import com.princekr.nlp.mt.util.InputProperties;
 import com.princekr.nlp.mt.util.RichTranslation;
 import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.Vocabulary;
 import edu.stanford.nlp.patterns.Pattern;
+import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.StringUtils;
-import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,6 +53,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Phrasal: a phrase-based machine translation system from the Stanford University NLP Group.
@@ -54,13 +78,16 @@ public class Phrasal {
                 .append("  -").append(INPUT_FILE_OPT).append(" file : Filename of the file to decode").append(nl)
                 .append("  -").append(TRANSLATION_TABLE_OPT).append(" filename : Translation model file. Multiple file can be specified by separating filenames with colons").append(nl)
                 .append("  -").append(LANGUAGE_MODEL_OPT).append(" filename : Language model file. For KenLM, prefix filename with 'kenlm:'").append(nl)
+                .append("  -").append(LM_CACHE_SIZE).append(" num : Language model queries cached per thread, 0 for none (default: ").append(LanguageModelFactory.DEFAULT_CACHE_SIZE).append(")").append(nl)
                 .append("  -").append(OPTION_LIMIT_OPT).append(" num : Translation option limit.").append(nl)
                 .append("  -").append(NBEST_LIST_OPT).append(" num : n-best list size").append(nl)
                 .append("  -").append(DISTINCT_NBEST_LIST_OPT).append(" boolean : Generate distinct n-best lists (default: false)").append(nl)
                 .append("  -").append(FORCE_DECODE).append(" filename [filename] : Force decode to reference files(s).").append(nl)
                 .append("  -").append(PREFIX_ALIGN_COMPOUNDS).append(" boolean : Apply heuristic compound word alignment for prefix decoding? Affects cube pruning decoder only. (default: false)").append(nl)
                 .append("  -").append(BEAM_SIZE).append(" num : Stack/beam size.").append(nl)
+                .append("  -").append(TIME_BUDGET).append(" num : Search time per sentence in milliseconds; beams shrink to meet it (default: none)").append(nl)
                 .append("  -").append(SEARCH_ALGORITHM).append(" [cube|multibeam] : Inference algorithm (default: cube)").append(nl)
+                .append("  -").append(VOCABULARY_SNAPSHOT).append(" filename : Memory-map the system vocabulary from a snapshot file.").append(nl)
                 .append("  -").append(REORDERING_MODEL).append(" type filename [options] : Lexicalized re-ordering model where type is [class|hierarchical]. Multiple models can be separating filenames with colons.");
         return sb.toString();
     }
@@ -70,12 +97,14 @@ public class Phrasal {
     public static final String INPUT_FILE_OPT = "text";
     public static final String TRANSLATION_TABLE_OPT = "ttable-file";
     public static final String LANGUAGE_MODEL_OPT = "lmodel-file";
+    public static final String LM_CACHE_SIZE = "lmodel-cache-size";
     public static final String OPTION_LIMIT_OPT = "ttable-limit";
     public static final String NBEST_LIST_OPT = "n-best-list";
     public static final String DISTINCT_NBEST_LIST_OPT = "distint-n-best-list";
     public static final String FORCE_DECODE = "force-decode";
     public static final String PREFIX_ALIGN_COMPOUNDS = "prefix-align-compounds";
     public static final String BEAM_SIZE = "stack";
+    public static final String TIME_BUDGET = "time-budget-ms";
     public static final String SEARCH_ALGORITHM = "search-algorithm";
     public static final String REORDERING_MODEL = "reordering-model";
     public static final String WEIGHTS_FILE = "weights-file";
@@ -92,6 +121,8 @@ public class Phrasal {
     public static final String LINEAR_DISTORTION_OPT = "linear-distortion-options";
     public static final String DROP_UNKNOWN_WORDS = "drop-unknown-words";
     public static final String INDEPENDENT_PHRASE_TABLES = "independent-phrase-tables";
+    public static final String VOCABULARY_SNAPSHOT = "vocab-snapshot";
+    public static final String ALIGNMENT_OUTPUT_FILE = "alignment-output-file";
 
 
     private static final Set<String> REQUIRED_FIELDS = new HashSet<>();
@@ -100,7 +131,9 @@ public class Phrasal {
 
     static {
         REQUIRED_FIELDS.add(TRANSLATION_TABLE_OPT);
-        OPTIONAL_FIELDS.addAll(Arrays.asList(INPUT_FILE_OPT, WEIGHTS_FILE));
+        OPTIONAL_FIELDS.addAll(Arrays.asList(INPUT_FILE_OPT, WEIGHTS_FILE, VOCABULARY_SNAPSHOT, LANGUAGE_MODEL_OPT,
+                LM_CACHE_SIZE, NBEST_LIST_OPT, BEAM_SIZE, TIME_BUDGET, DISTORTION_LIMIT, MAX_SENTENCE_LENGTH,
+                MIN_SENTENCE_LENGTH, NUM_THREADS, ALIGNMENT_OUTPUT_FILE));
         ALL_RECOGNIZED_FIELDS.addAll(REQUIRED_FIELDS);
         ALL_RECOGNIZED_FIELDS.addAll(OPTIONAL_FIELDS);
     }
@@ -111,6 +144,12 @@ public class Phrasal {
 
     public static final int MAX_NBEST_SIZE = 1000;
 
+    /**
+     * Ring buffer slots of the decoding pipeline per decoding thread. Bounds
+     * the inputs read ahead of the output.
+     */
+    private static final int PIPELINE_SLOTS_PER_THREAD = 16;
+
 
     /**
      * Number of decoding threads. Setting this parameter to 0 enables
@@ -140,7 +179,7 @@ public class Phrasal {
     /**
      * Inference objects, one per thread
      */
-    private List<Inferer<IString, String>> inferers;
+    private List<AbstractBeamInferer> inferers;
 
     /**
      * Holds the model weights one per inferer. The model weights have a shared
@@ -313,7 +352,15 @@ public class Phrasal {
     }
 
     public static void initStaticMembers(Map<String, List<String>> config) {
-
+        if (config.containsKey(VOCABULARY_SNAPSHOT)) {
+            final String filename = config.get(VOCABULARY_SNAPSHOT).get(0);
+            try {
+                Vocabulary.systemLoad(filename);
+            } catch (IOException e) {
+                logger.fatal("Could not load vocabulary snapshot: {}", filename);
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     public Phrasal(Map<String, List<String>> config)
@@ -322,43 +369,129 @@ public class Phrasal {
         this(config, null);
     }
 
-    public Phrasal(Map<String, List<String>> config, LanguageModel<IString> lm) {
+    public Phrasal(Map<String, List<String>> config, LanguageModel<IString> lm) throws IOException {
         // Check for required parameters
         if (!config.keySet().containsAll(REQUIRED_FIELDS)) {
             final Set<String> missingFields = new HashSet<>(REQUIRED_FIELDS);
-            missingFields.retainAll(config.keySet());
+            missingFields.removeAll(config.keySet());
             logger.fatal("The following required fields are missing: {}", missingFields);
             throw new RuntimeException();
         }
+
+        if (config.containsKey(NUM_THREADS)) {
+            numThreads = Integer.parseInt(config.get(NUM_THREADS).get(0));
+            if (numThreads < 0) throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
+        if (config.containsKey(DISTORTION_LIMIT)) {
+            distortionLimit = Integer.parseInt(config.get(DISTORTION_LIMIT).get(0));
+        }
+        if (config.containsKey(MAX_SENTENCE_LENGTH)) {
+            maxSentenceSize = Integer.parseInt(config.get(MAX_SENTENCE_LENGTH).get(0));
+        }
+        if (config.containsKey(MIN_SENTENCE_LENGTH)) {
+            minSentenceSize = Integer.parseInt(config.get(MIN_SENTENCE_LENGTH).get(0));
+        }
+        final int beamSize = config.containsKey(BEAM_SIZE) ? Integer.parseInt(config.get(BEAM_SIZE).get(0)) :
+                AbstractBeamInferer.DEFAULT_BEAM_SIZE;
+        final long timeBudget = config.containsKey(TIME_BUDGET) ? Long.parseLong(config.get(TIME_BUDGET).get(0)) : 0L;
+
+        // n-best list: filename [size]
+        if (config.containsKey(NBEST_LIST_OPT)) {
+            final List<String> nbestOpts = config.get(NBEST_LIST_OPT);
+            nbestListWriter = new PrintStream(new FileOutputStream(nbestOpts.get(0)), true, "UTF-8");
+            nbestListSize = nbestOpts.size() > 1 ? Math.min(MAX_NBEST_SIZE, Integer.parseInt(nbestOpts.get(1))) : 1;
+            if (nbestListSize < 1) throw new IllegalArgumentException("Invalid n-best list size: " + nbestListSize);
+            // The n-best list is the best of the last beam
+            if (nbestListSize > beamSize) {
+                logger.warn("The n-best list size {} exceeds the beam size {}", nbestListSize, beamSize);
+            }
+        }
+        if (config.containsKey(ALIGNMENT_OUTPUT_FILE)) {
+            alignmentWriter = new PrintStream(new FileOutputStream(config.get(ALIGNMENT_OUTPUT_FILE).get(0)), true,
+                    "UTF-8");
+        }
+
+        translationModel = DynamicTranslationModel.map(config.get(TRANSLATION_TABLE_OPT).get(0));
+        if (lm != null) {
+            languageModel = lm;
+        } else if (config.containsKey(LANGUAGE_MODEL_OPT)) {
+            final int cacheSize = config.containsKey(LM_CACHE_SIZE) ?
+                    Integer.parseInt(config.get(LM_CACHE_SIZE).get(0)) : LanguageModelFactory.DEFAULT_CACHE_SIZE;
+            languageModel = LanguageModelFactory.load(config.get(LANGUAGE_MODEL_OPT).get(0), cacheSize);
+        }
+        globalModel = config.containsKey(WEIGHTS_FILE) ? IOTools.readWeights(config.get(WEIGHTS_FILE).get(0)) :
+                new ClassicCounter<>();
+
+        // With 0 threads, one decoder expands the beams of long sentences in parallel
+        final int numInferers = Math.max(1, numThreads);
+        scorers = new ArrayList<>(numInferers);
+        inferers = new ArrayList<>(numInferers);
+        for (int i = 0; i < numInferers; ++i) {
+            final Scorer<String> scorer = new DenseScorer(globalModel);
+            final CubePruningDecoder inferer = new CubePruningDecoder(translationModel, languageModel, scorer);
+            inferer.setBeamSize(beamSize);
+            inferer.setDistortionLimit(distortionLimit);
+            inferer.setTimeBudget(timeBudget);
+            if (numThreads == 0) {
+                inferer.setParallelExpansion(ForkJoinPool.commonPool(),
+                        CubePruningDecoder.DEFAULT_MIN_PARALLEL_LENGTH);
+            }
+            scorers.add(scorer);
+            inferers.add(inferer);
+        }
     }
 
     /**
      * Lightweight container for decoder input.
      */
     public static class DecoderInput {
-        //public final Sequence<IString> source;
+        public final Sequence<IString> source;
+        public final int sourceInputId;
+
+        public DecoderInput(Sequence<IString> source, int sourceInputId) {
+            this.source = source;
+            this.sourceInputId = sourceInputId;
+        }
     }
 
     /**
      * Lightweight container for decoder output.
      */
     public static class DecoderOutput {
-
+        public final List<RichTranslation<IString, String>> translations;
+        // Post-processed best translation, or null if there is none
+        public final Sequence<IString> bestTranslation;
+        public final int sourceLength;
+        public final int sourceInputId;
+
+        public DecoderOutput(List<RichTranslation<IString, String>> translations, Sequence<IString> bestTranslation,
+                             int sourceLength, int sourceInputId) {
+            this.translations = translations;
+            this.bestTranslation = bestTranslation;
+            this.sourceLength = sourceLength;
+            this.sourceInputId = sourceInputId;
+        }
     }
 
     /**
-     * Wrapper class to submit this decoder instance to the thread pool.
-     */
-    private class PhrasalProcessor implements ThreadsafeProcessor<DecoderInput, DecoderOutput> {
-
-        @Override
-        public DecoderOutput process(DecoderInput input) {
-            return null;
-        }
-
-        @Override
-        public ThreadsafeProcessor<DecoderInput, DecoderOutput> newInstance() {
-            return null;
+     * Slot of the ring buffer of the decoding pipeline. Each stage fills
+     * the fields read by the next one.
+     */
+    private static final class DecodingEvent {
+        // Raw input, or null after the last input
+        String line;
+        int sourceInputId;
+        DecoderInput input;
+        RuleGrid grid;
+        List<RichTranslation<IString, String>> translations;
+        DecoderOutput output;
+
+        void clear() {
+            line = null;
+            input = null;
+            grid = null;
+            translations = null;
+            output = null;
         }
     }
 
@@ -375,20 +508,201 @@ public class Phrasal {
      */
     private void processConsoleResult(List<RichTranslation<IString, String>> translations,
                                       Sequence<IString> bestTranslation, int sourceLength, int sourceInputId) {
-
+        // An empty line keeps the output aligned with the input
+        System.out.println(bestTranslation == null ? "" : bestTranslation.toString());
+        if (printModelScores && !translations.isEmpty()) {
+            System.err.printf("%d\t%d\t%.4f%n", sourceInputId, sourceLength, translations.get(0).score);
+        }
+        if (nbestListWriter != null) {
+            final int size = Math.min(nbestListSize, translations.size());
+            for (int i = 0; i < size; ++i) {
+                final RichTranslation<IString, String> translation = translations.get(i);
+                nbestListWriter.printf("%d ||| %s ||| %s ||| %.4f%n", sourceInputId, translation.translation,
+                        translation.featureString(), translation.score);
+            }
+        }
+        if (alignmentWriter != null) {
+            alignmentWriter.println(translations.isEmpty() ? "" : translations.get(0).alignmentString());
+        }
     }
 
     /**
      * Decode input from inputStream and either write 1-best transactions to
      * stdout or return them in a <code>List</code>.
+     * <p>
+     * Inputs flow through a ring buffer in stages: preprocessing, rule
+     * lookup and decoding by a pool of workers each, post-processing, and
+     * output in input order. The ring buffer bounds the number of inputs in
+     * flight, so that reading blocks while the decoders are behind.
      *
      * @param inputStream
      * @param outputToConsole if true, output the 1-best transactions to the console. Otherwise,
      *                        return them in a <code>List</code>
-     * @return
+     * @return the 1-best translations in input order, null for inputs that
+     * were not translated; null if the output went to the console.
      */
     public List<RichTranslation<IString, String>> decode(InputStream inputStream, boolean outputToConsole) {
-        return null;
+        final long startTime = System.nanoTime();
+        final int numWorkers = inferers.size();
+        final List<RichTranslation<IString, String>> results = outputToConsole ? null : new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final Disruptor<DecodingEvent> disruptor = new Disruptor<>(DecodingEvent::new,
+                Integer.highestOneBit(Math.max(2, PIPELINE_SLOTS_PER_THREAD * numWorkers) * 2 - 1),
+                pipelineThreadFactory(), ProducerType.SINGLE, new BlockingWaitStrategy());
+        disruptor.setDefaultExceptionHandler(new ExceptionHandler<DecodingEvent>() {
+            @Override
+            public void handleEventException(Throwable ex, long sequence, DecodingEvent event) {
+                logger.error("Pipeline failure for input {}", event.sourceInputId, ex);
+            }
+
+            @Override
+            public void handleOnStartException(Throwable ex) {
+                logger.error("Pipeline failed to start", ex);
+            }
+
+            @Override
+            public void handleOnShutdownException(Throwable ex) {
+                logger.error("Pipeline failed to shut down", ex);
+            }
+        });
+
+        final EventHandler<DecodingEvent> preprocess = (event, sequence, endOfBatch) -> {
+            if (event.line == null) return;
+            final Sequence<IString> source = preprocessor == null ? IStrings.tokenize(event.line) :
+                    preprocessor.process(event.line);
+            event.input = new DecoderInput(source, event.sourceInputId);
+        };
+        final WorkHandler<DecodingEvent>[] lookup = newWorkHandlers(numWorkers);
+        final WorkHandler<DecodingEvent>[] search = newWorkHandlers(numWorkers);
+        for (int i = 0; i < numWorkers; ++i) {
+            final AbstractBeamInferer inferer = inferers.get(i);
+            lookup[i] = event -> {
+                if (event.input != null && isDecodable(event.input.source)) {
+                    event.grid = inferer.lookupRules(event.input.source);
+                }
+            };
+            search[i] = event -> {
+                if (event.input != null) {
+                    event.translations = decode(inferer, event.input.source, event.grid, null,
+                            event.sourceInputId);
+                }
+            };
+        }
+        final EventHandler<DecodingEvent> postprocess = (event, sequence, endOfBatch) -> {
+            if (event.line == null) return;
+            final List<RichTranslation<IString, String>> translations = event.translations == null ?
+                    Collections.emptyList() : event.translations;
+            Sequence<IString> bestTranslation = null;
+            if (!translations.isEmpty()) {
+                bestTranslation = translations.get(0).translation;
+                if (postprocessor != null) bestTranslation = postprocessor.process(bestTranslation);
+            }
+            event.output = new DecoderOutput(translations, bestTranslation,
+                    event.input == null ? 0 : event.input.source.size(), event.sourceInputId);
+        };
+        final EventHandler<DecodingEvent> output = (event, sequence, endOfBatch) -> {
+            if (event.line == null) {
+                done.countDown();
+                return;
+            }
+            final DecoderOutput result = event.output == null ? new DecoderOutput(Collections.emptyList(), null, 0,
+                    event.sourceInputId) : event.output;
+            if (outputToConsole) {
+                processConsoleResult(result.translations, result.bestTranslation, result.sourceLength,
+                        result.sourceInputId);
+            } else {
+                results.add(result.translations.isEmpty() ? null : result.translations.get(0));
+            }
+            event.clear();
+        };
+        disruptor.handleEventsWith(eventHandlers(preprocess))
+                .thenHandleEventsWithWorkerPool(lookup)
+                .thenHandleEventsWithWorkerPool(search)
+                .then(eventHandlers(postprocess))
+                .then(eventHandlers(output));
+
+        final RingBuffer<DecodingEvent> ringBuffer = disruptor.start();
+        int numInputs = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ++numInputs) {
+                publish(ringBuffer, line, numInputs);
+            }
+            publish(ringBuffer, null, numInputs);
+            done.await();
+        } catch (IOException e) {
+            disruptor.halt();
+            logger.fatal("Could not read input", e);
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            disruptor.halt();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        disruptor.shutdown();
+        logger.info("Decoded {} inputs with {} threads in {} ms", numInputs, numWorkers,
+                (System.nanoTime() - startTime) / 1000000);
+        return results;
+    }
+
+    private static void publish(RingBuffer<DecodingEvent> ringBuffer, String line, int sourceInputId) {
+        // Blocks while the ring buffer is full
+        final long sequence = ringBuffer.next();
+        final DecodingEvent event = ringBuffer.get(sequence);
+        event.clear();
+        event.line = line;
+        event.sourceInputId = sourceInputId;
+        ringBuffer.publish(sequence);
+    }
+
+    // Typed arrays for the varargs of the Disruptor DSL
+    @SafeVarargs
+    private static EventHandler<DecodingEvent>[] eventHandlers(EventHandler<DecodingEvent>... handlers) {
+        return handlers;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WorkHandler<DecodingEvent>[] newWorkHandlers(int size) {
+        return (WorkHandler<DecodingEvent>[]) new WorkHandler[size];
+    }
+
+    private static ThreadFactory pipelineThreadFactory() {
+        final AtomicInteger numThreads = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, "phrasal-pipeline-" + numThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param source
+     * @return whether the source is within the sentence length limits.
+     */
+    private boolean isDecodable(Sequence<IString> source) {
+        return source.size() >= minSentenceSize && source.size() <= maxSentenceSize;
+    }
+
+    /**
+     * @param inferer
+     * @param source
+     * @param grid          the rules of the source, or null to skip it
+     * @param budget        null for the beam size and time budget of the
+     *                      inferer
+     * @param sourceInputId
+     * @return the n-best list, empty if decoding failed.
+     */
+    private List<RichTranslation<IString, String>> decode(AbstractBeamInferer inferer, Sequence<IString> source,
+                                                          RuleGrid grid, TimeBudget budget, int sourceInputId) {
+        if (grid == null) return Collections.emptyList();
+        try {
+            return inferer.nbest(source, grid, budget == null ?
+                            TimeBudget.fromNow(inferer.getBeamSize(), inferer.getTimeBudget()) : budget,
+                    nbestListWriter == null ? 1 : nbestListSize);
+        } catch (RuntimeException e) {
+            logger.error("Decoding failure for input {}", sourceInputId, e);
+            return Collections.emptyList();
+        }
     }
 
     /**
@@ -401,7 +715,59 @@ public class Phrasal {
      * @return
      */
     public List<RichTranslation<IString, String>> decode(Sequence<IString> source, int sourceInputId, int threadId) {
-        return null;
+        if (threadId < 0 || threadId >= inferers.size()) {
+            throw new IllegalArgumentException("Invalid thread id: " + threadId);
+        }
+        if (!isDecodable(source)) return Collections.emptyList();
+        final AbstractBeamInferer inferer = inferers.get(threadId);
+        try {
+            return decode(inferer, source, inferer.lookupRules(source), null, sourceInputId);
+        } catch (RuntimeException e) {
+            logger.error("Rule lookup failure for input {}", sourceInputId, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Look up the rules of a tokenized input, to be decoded later by
+     * <code>decode(Sequence, RuleGrid, int, int, int)</code>.
+     *
+     * @param source
+     * @param threadId
+     * @return the rules, or null if the input is outside the sentence length
+     * limits.
+     */
+    public RuleGrid lookupRules(Sequence<IString> source, int threadId) {
+        if (threadId < 0 || threadId >= inferers.size()) {
+            throw new IllegalArgumentException("Invalid thread id: " + threadId);
+        }
+        return isDecodable(source) ? inferers.get(threadId).lookupRules(source) : null;
+    }
+
+    /**
+     * Decode a tokenized input with rules from <code>lookupRules</code> and
+     * a beam size and deadline of its own.
+     *
+     * @param source
+     * @param grid          null for an empty n-best list
+     * @param budget        of this input only
+     * @param sourceInputId
+     * @param threadId
+     * @return
+     */
+    public List<RichTranslation<IString, String>> decode(Sequence<IString> source, RuleGrid grid, TimeBudget budget,
+                                                         int sourceInputId, int threadId) {
+        if (threadId < 0 || threadId >= inferers.size()) {
+            throw new IllegalArgumentException("Invalid thread id: " + threadId);
+        }
+        return decode(inferers.get(threadId), source, grid, budget, sourceInputId);
+    }
+
+    /**
+     * @return the beam size of the decoders.
+     */
+    public int getBeamSize() {
+        return inferers.get(0).getBeamSize();
     }
 
 
@@ -1,7 +0,0 @@
-package com.princekr.nlp.mt.benchmark;
-
-/**
- * Created by prince on 2017/10/29.
- */
-public class DynamicTMThreading {
-}
@@ -1,7 +1,353 @@
 package com.princekr.nlp.mt.decoder;
 
+import com.princekr.nlp.mt.decoder.feat.base.LinearFutureCostFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.NGramLanguageModelFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.UnknownWordFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.WordPenaltyFeaturizer;
+import com.princekr.nlp.mt.decoder.recomb.NGramLMRecombinationFilter;
+import com.princekr.nlp.mt.decoder.recomb.RecombinationFilter;
+import com.princekr.nlp.mt.decoder.util.BundleBeam;
+import com.princekr.nlp.mt.decoder.util.DerivationArena;
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
+import com.princekr.nlp.mt.decoder.util.Scorer;
+import com.princekr.nlp.mt.decoder.util.TimeBudget;
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.tm.SampledRule;
+import com.princekr.nlp.mt.tm.TranslationModel;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.FeatureValue;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.RichTranslation;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.Sequences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
+ * Base of the left-to-right phrase-based decoders with one beam per number
+ * of covered source words. The model is linear over the translation model
+ * scores of the rules, the language model, the word penalty, the unknown
+ * word feature and linear distortion, with a hard distortion limit.
+ * <p>
+ * Derivations live in a DerivationArena; subclasses keep one per thread
+ * and reset it for each sentence. With a time budget, the beams of a
+ * sentence shrink as needed to end its search within the budget (see
+ * TimeBudget). Threadsafe if the models are.
+ *
  * Created by prince on 2017/10/29.
  */
-public class AbstractBeamInferer {
+public abstract class AbstractBeamInferer implements Inferer<IString, String> {
+
+    public static final int DEFAULT_BEAM_SIZE = 200;
+    public static final int DEFAULT_DISTORTION_LIMIT = 5;
+
+    protected final TranslationModel<IString, String> translationModel;
+    // May be null
+    protected final LanguageModel<IString> lm;
+    protected final Scorer<String> scorer;
+    protected final RecombinationFilter<LMState> recombinationFilter = new NGramLMRecombinationFilter();
+
+    private final String[] featureNames;
+    private final double lmWeight;
+    private final double distortionWeight;
+    private final LMState startState;
+    private final ArraySequence endSequence;
+
+    protected int beamSize = DEFAULT_BEAM_SIZE;
+    protected int distortionLimit = DEFAULT_DISTORTION_LIMIT;
+    // Milliseconds per sentence; 0 for none
+    protected long timeBudget;
+
+    /**
+     * @param translationModel
+     * @param lm               may be null
+     * @param scorer           weights of the features
+     */
+    protected AbstractBeamInferer(TranslationModel<IString, String> translationModel, LanguageModel<IString> lm,
+                                  Scorer<String> scorer) {
+        this.translationModel = translationModel;
+        this.lm = lm;
+        this.scorer = scorer;
+        this.featureNames = translationModel.getFeatureNames().toArray(new String[0]);
+        this.lmWeight = lm == null ? 0.0 : scorer.getWeight(NGramLanguageModelFeaturizer.DEFAULT_FEATURE_NAME);
+        this.distortionWeight = scorer.getWeight(LinearFutureCostFeaturizer.FEATURE_NAME);
+        if (lm == null) {
+            this.startState = null;
+            this.endSequence = null;
+        } else {
+            final Sequence<IString> start = lm.getStartSequence();
+            this.startState = lm.score(start, start.size(), null);
+            this.endSequence = new ArraySequence(new int[]{lm.getEndToken().id});
+        }
+    }
+
+    public int getBeamSize() {
+        return beamSize;
+    }
+
+    /**
+     * @param beamSize between 1 and BundleBeam.MAX_CAPACITY
+     */
+    public void setBeamSize(int beamSize) {
+        if (beamSize < 1 || beamSize > BundleBeam.MAX_CAPACITY) throw new IllegalArgumentException("Invalid beam size: " + beamSize);
+        this.beamSize = beamSize;
+    }
+
+    public int getDistortionLimit() {
+        return distortionLimit;
+    }
+
+    /**
+     * @param distortionLimit maximum number of source words jumped over;
+     *                        negative for no limit
+     */
+    public void setDistortionLimit(int distortionLimit) {
+        this.distortionLimit = distortionLimit;
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * @param timeBudget wall-clock milliseconds for the search of a
+     *                   sentence, after rule lookup; 0 for no limit
+     */
+    public void setTimeBudget(long timeBudget) {
+        if (timeBudget < 0L) throw new IllegalArgumentException("Invalid time budget: " + timeBudget);
+        this.timeBudget = timeBudget;
+    }
+
+    @Override
+    public RichTranslation<IString, String> translate(Sequence<IString> source) {
+        return translate(source, lookupRules(source));
+    }
+
+    /**
+     * Query the translation model for the rules of a sentence, so that rule
+     * lookup and search may run in different threads.
+     *
+     * @param source
+     * @return the rules of the source, scored and indexed by span.
+     */
+    public RuleGrid lookupRules(Sequence<IString> source) {
+        final int[] ids = Sequences.toIntArray(source);
+        return new RuleGrid(ids, ids.length == 0 ? Collections.emptyList() : translationModel.getRules(ids),
+                featureNames, scorer, lm, NGramLanguageModelFeaturizer.DEFAULT_FEATURE_NAME);
+    }
+
+    /**
+     * @param source
+     * @param grid   the rules of the source from <code>lookupRules</code>
+     * @return the best translation of the source.
+     */
+    public RichTranslation<IString, String> translate(Sequence<IString> source, RuleGrid grid) {
+        return decode(source, grid, TimeBudget.fromNow(beamSize, timeBudget), 1).get(0);
+    }
+
+    /**
+     * Translate with a beam size and deadline other than the configured
+     * ones, e.g. to trade accuracy for the latency of one request.
+     *
+     * @param source
+     * @param grid   the rules of the source from <code>lookupRules</code>
+     * @param budget of this sentence only; tells afterwards whether the
+     *               beams were shrunk or the translation is partial
+     * @return the best translation of the source.
+     */
+    public RichTranslation<IString, String> translate(Sequence<IString> source, RuleGrid grid, TimeBudget budget) {
+        return decode(source, grid, budget, 1).get(0);
+    }
+
+    /**
+     * @param source
+     * @param grid   the rules of the source from <code>lookupRules</code>
+     * @param budget of this sentence only
+     * @param size   maximum number of translations
+     * @return the best translations of the source, best first.
+     */
+    public List<RichTranslation<IString, String>> nbest(Sequence<IString> source, RuleGrid grid, TimeBudget budget,
+                                                        int size) {
+        if (size < 1) throw new IllegalArgumentException("Invalid n-best list size: " + size);
+        return decode(source, grid, budget, size);
+    }
+
+    /**
+     * Search for the best translations of a sentence. The search always
+     * completes, with beams of size 1 past the deadline. If no derivation
+     * covers the whole source, the translations are those of the
+     * derivations that cover the most words, and the budget is marked
+     * partial.
+     *
+     * @param source
+     * @param grid   the rules of the source
+     * @param budget sizes the beams
+     * @param size   maximum number of translations
+     * @return at least one translation, best first.
+     */
+    protected abstract List<RichTranslation<IString, String>> decode(Sequence<IString> source, RuleGrid grid,
+                                                                     TimeBudget budget, int size);
+
+    /**
+     * @return the LM state before the first target word, or null without
+     * a language model.
+     */
+    protected LMState startState() {
+        return startState;
+    }
+
+    /**
+     * Whether a group of derivations with the coverage and last source
+     * position of d may translate the source span [start, end) next: the
+     * jump to it and the jump from it to the first gap that remains are
+     * within the distortion limit.
+     *
+     * @param arena
+     * @param d
+     * @param start
+     * @param end
+     * @param sourceLength
+     * @return
+     */
+    protected boolean withinDistortionLimit(DerivationArena arena, int d, int start, int end, int sourceLength) {
+        if (distortionLimit < 0) return true;
+        if (Math.abs(arena.lastEnd(d) - start) > distortionLimit) return false;
+        int gap = arena.firstGap(d, sourceLength);
+        if (gap == start) {
+            gap = end;
+            while (gap < sourceLength && arena.isCovered(d, gap)) ++gap;
+        }
+        return gap == sourceLength || Math.abs(end - gap) <= distortionLimit;
+    }
+
+    /**
+     * Apply a rule to a derivation and score the result.
+     *
+     * @param arena
+     * @param grid
+     * @param parent
+     * @param rule        index in the grid
+     * @param futureScore heuristic score of the source left after the rule
+     * @param scratch     at least grid.maxTargetLength() long
+     * @return the new derivation.
+     */
+    protected int extend(DerivationArena arena, RuleGrid grid, int parent, int rule, double futureScore,
+                         float[] scratch) {
+        final int d = allocate(arena, grid, parent, rule);
+        score(arena, grid, d, futureScore, scratch);
+        return d;
+    }
+
+    /**
+     * Apply a rule to a derivation, without scoring the result.
+     *
+     * @param arena
+     * @param grid
+     * @param parent
+     * @param rule   index in the grid
+     * @return the new derivation.
+     */
+    protected static int allocate(DerivationArena arena, RuleGrid grid, int parent, int rule) {
+        final SampledRule r = grid.get(rule);
+        return arena.add(parent, rule, r.sourceStart, r.sourceEnd, r.target.length, null);
+    }
+
+    /**
+     * Score a derivation allocated by <code>allocate</code>: the rule score,
+     * the language model score of its target after the parent, and the
+     * distortion, with &lt;/s&gt; once the source is covered. The priority
+     * adds the heuristic score of the source left. Derivations whose
+     * parents are scored may be scored concurrently.
+     *
+     * @param arena
+     * @param grid
+     * @param d
+     * @param futureScore heuristic score of the source left after the rule
+     * @param scratch     at least grid.maxTargetLength() long
+     */
+    protected void score(DerivationArena arena, RuleGrid grid, int d, double futureScore, float[] scratch) {
+        final int parent = arena.parent(d);
+        final int rule = arena.rule(d);
+        final ArraySequence target = grid.target(rule);
+        double score = arena.score(parent) + grid.score(rule)
+                - distortionWeight * Math.abs(arena.lastEnd(parent) - grid.get(rule).sourceStart);
+        LMState state = arena.lmState(parent);
+        if (lm != null && target.size() > 0) {
+            state = lm.scorePhrase(target, 0, target.size(), state, scratch, 0);
+            score += lmWeight * state.getScore();
+        }
+        if (lm != null && arena.numCovered(d) == grid.sourceLength()) {
+            final LMState end = lm.scorePhrase(endSequence, 0, 1, state, scratch, 0);
+            score += lmWeight * end.getScore();
+        }
+        arena.setLMState(d, state);
+        arena.setScore(d, score, score + futureScore);
+    }
+
+    /**
+     * @param source
+     * @param arena
+     * @param grid
+     * @param d      a derivation
+     * @return the translation of the derivation, with its feature values.
+     */
+    protected RichTranslation<IString, String> translation(Sequence<IString> source, DerivationArena arena,
+                                                           RuleGrid grid, int d) {
+        final int length = arena.targetLength(d);
+        final int[] target = new int[length];
+        int numLinks = 0;
+        for (int e = d; arena.parent(e) != DerivationArena.NONE; e = arena.parent(e)) {
+            numLinks += grid.get(arena.rule(e)).alignment.length;
+        }
+        final int[] alignment = new int[numLinks];
+        int end = length;
+        for (int e = d; arena.parent(e) != DerivationArena.NONE; e = arena.parent(e)) {
+            final SampledRule rule = grid.get(arena.rule(e));
+            final int start = end - rule.target.length;
+            System.arraycopy(rule.target, 0, target, start, rule.target.length);
+            for (int i = rule.alignment.length - 1; i >= 0; --i) {
+                final int link = rule.alignment[i];
+                alignment[--numLinks] = ParallelCorpus.link(rule.sourceStart + ParallelCorpus.linkSource(link),
+                        start + ParallelCorpus.linkTarget(link));
+            }
+            end = start;
+        }
+        return new RichTranslation<>(source, new ArraySequence(target), arena.score(d), alignment,
+                features(arena, grid, d));
+    }
+
+    /**
+     * Recompute the unweighted features of a derivation along its rules,
+     * the terms of the score of <code>score</code>.
+     */
+    private List<FeatureValue<String>> features(DerivationArena arena, RuleGrid grid, int d) {
+        final double[] tm = new double[featureNames.length];
+        double lmScore = 0.0;
+        double wordPenalty = 0.0;
+        double distortion = 0.0;
+        double unknownWord = 0.0;
+        for (int e = d; arena.parent(e) != DerivationArena.NONE; e = arena.parent(e)) {
+            final SampledRule rule = grid.get(arena.rule(e));
+            for (int i = 0; i < tm.length; ++i) tm[i] += rule.scores[i];
+            if (lm != null && rule.target.length > 0) lmScore += arena.lmState(e).getScore();
+            wordPenalty -= rule.target.length;
+            distortion -= Math.abs(arena.lastEnd(arena.parent(e)) - rule.sourceStart);
+            if (rule.count == 0) unknownWord += 1.0;
+        }
+        // As in score, </s> follows the rule that covers the source
+        if (lm != null && arena.parent(d) != DerivationArena.NONE && arena.numCovered(d) == grid.sourceLength()) {
+            lmScore += lm.scorePhrase(endSequence, 0, 1, arena.lmState(d), new float[1], 0).getScore();
+        }
+        final List<FeatureValue<String>> features = new ArrayList<>(tm.length + 4);
+        for (int i = 0; i < tm.length; ++i) features.add(new FeatureValue<>(featureNames[i], tm[i]));
+        if (lm != null) features.add(new FeatureValue<>(NGramLanguageModelFeaturizer.DEFAULT_FEATURE_NAME, lmScore));
+        features.add(new FeatureValue<>(WordPenaltyFeaturizer.FEATURE_NAME, wordPenalty));
+        features.add(new FeatureValue<>(LinearFutureCostFeaturizer.FEATURE_NAME, distortion));
+        features.add(new FeatureValue<>(UnknownWordFeaturizer.FEATURE_NAME, unknownWord));
+        return features;
+    }
 }
@@ -1,7 +1,355 @@
 package com.princekr.nlp.mt.decoder;
 
+import com.princekr.nlp.mt.decoder.h.IsolatedPhraseForeignConverageHeuristic;
+import com.princekr.nlp.mt.decoder.h.SearchHeuristic;
+import com.princekr.nlp.mt.decoder.util.BundleBeam;
+import com.princekr.nlp.mt.decoder.util.CandidateHeap;
+import com.princekr.nlp.mt.decoder.util.DerivationArena;
+import com.princekr.nlp.mt.decoder.util.HyperedgeBundle;
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
+import com.princekr.nlp.mt.decoder.util.Scorer;
+import com.princekr.nlp.mt.decoder.util.TimeBudget;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.tm.TranslationModel;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.RichTranslation;
+import com.princekr.nlp.mt.util.Sequence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
+ * Cube pruning decoder (Huang and Chiang, 2007) for phrase-based
+ * translation. Beam k holds the derivations that cover k source words. It
+ * is filled from the hyperedge bundles of the earlier beams: a group of
+ * derivations of beam j with equal coverage and last source position,
+ * times the rules of an uncovered span of length k - j. Each bundle puts
+ * its best cell in a heap of candidates, scored exactly; popping a cell
+ * adds its derivation to beam k and pushes its successors, until the beam
+ * is full or the pop limit is reached.
+ * <p>
+ * A decoding thread keeps its derivations, beams, bundles and heap in a
+ * workspace that is reset for each sentence, so that a hypothesis is a row
+ * of primitive arrays and a sentence allocates little beyond its rules and
+ * language model states. Threadsafe if the models are.
+ * <p>
+ * With a fork/join pool, sentences of at least <code>minParallelLength</code>
+ * words are expanded in parallel: the first cells of all the bundles of a
+ * beam, most of the scoring of a long sentence, are scored on the pool.
+ * Cells are allocated, pushed, popped and added to the beam by the
+ * decoding thread in the same order as without a pool, so the translation
+ * does not depend on the pool, the number of threads or their timing.
+ *
  * Created by prince on 2017/10/29.
  */
-public class CubePruningDecoder {
+public class CubePruningDecoder extends AbstractBeamInferer {
+
+    private static final Logger logger = LogManager.getLogger(CubePruningDecoder.class);
+
+    public static final int DEFAULT_POP_LIMIT_FACTOR = 4;
+    public static final int DEFAULT_MIN_PARALLEL_LENGTH = 40;
+
+    // Pops between two checks of the deadline
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    // Cells scored by one fork/join task
+    private static final int CELLS_PER_TASK = 16;
+
+    private int popLimit = DEFAULT_POP_LIMIT_FACTOR * DEFAULT_BEAM_SIZE;
+    private ForkJoinPool pool;
+    private int minParallelLength = DEFAULT_MIN_PARALLEL_LENGTH;
+
+    private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(() -> new Workspace(this));
+    // Scratch of the pool threads that score cells
+    private final ThreadLocal<float[]> poolScratch = ThreadLocal.withInitial(() -> new float[16]);
+
+    /**
+     * Search structures of one thread, reused for every sentence.
+     */
+    private static final class Workspace {
+        final CubePruningDecoder decoder;
+        final DerivationArena arena = new DerivationArena();
+        final HyperedgeBundle bundles = new HyperedgeBundle();
+        final CandidateHeap heap = new CandidateHeap();
+        BundleBeam[] beams = new BundleBeam[0];
+        float[] scratch = new float[16];
+
+        // Cells allocated but not yet scored and pushed
+        int numPending;
+        int[] pendingDerivations = new int[64];
+        int[] pendingBundles = new int[64];
+        int[] pendingItems = new int[64];
+        int[] pendingRules = new int[64];
+
+        Workspace(CubePruningDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        void reset(RuleGrid grid) {
+            final int sourceLength = grid.sourceLength();
+            arena.reset(sourceLength);
+            if (beams.length < sourceLength + 1) {
+                final int oldLength = beams.length;
+                beams = Arrays.copyOf(beams, sourceLength + 1);
+                for (int k = oldLength; k <= sourceLength; ++k) {
+                    beams[k] = new BundleBeam(arena, decoder.recombinationFilter);
+                }
+            }
+            if (scratch.length < grid.maxTargetLength() + 1) scratch = new float[2 * grid.maxTargetLength() + 1];
+            numPending = 0;
+        }
+
+        void addPending(int d, int bundle, int item, int rule) {
+            if (numPending == pendingDerivations.length) {
+                final int capacity = 2 * numPending;
+                pendingDerivations = Arrays.copyOf(pendingDerivations, capacity);
+                pendingBundles = Arrays.copyOf(pendingBundles, capacity);
+                pendingItems = Arrays.copyOf(pendingItems, capacity);
+                pendingRules = Arrays.copyOf(pendingRules, capacity);
+            }
+            pendingDerivations[numPending] = d;
+            pendingBundles[numPending] = bundle;
+            pendingItems[numPending] = item;
+            pendingRules[numPending] = rule;
+            ++numPending;
+        }
+    }
+
+    public CubePruningDecoder(TranslationModel<IString, String> translationModel, LanguageModel<IString> lm,
+                              Scorer<String> scorer) {
+        super(translationModel, lm, scorer);
+    }
+
+    @Override
+    public void setBeamSize(int beamSize) {
+        super.setBeamSize(beamSize);
+        this.popLimit = DEFAULT_POP_LIMIT_FACTOR * beamSize;
+    }
+
+    public int getPopLimit() {
+        return popLimit;
+    }
+
+    /**
+     * @param popLimit maximum number of candidates popped per beam
+     */
+    public void setPopLimit(int popLimit) {
+        if (popLimit < 1) throw new IllegalArgumentException("Invalid pop limit: " + popLimit);
+        this.popLimit = popLimit;
+    }
+
+    /**
+     * Expand the beams of long sentences in parallel.
+     *
+     * @param pool              null to decode every sentence on its thread
+     * @param minParallelLength sentences shorter than this are decoded on
+     *                          their thread
+     */
+    public void setParallelExpansion(ForkJoinPool pool, int minParallelLength) {
+        this.pool = pool;
+        this.minParallelLength = minParallelLength;
+    }
+
+    @Override
+    protected List<RichTranslation<IString, String>> decode(Sequence<IString> source, RuleGrid grid,
+                                                            TimeBudget budget, int size) {
+        final Workspace ws = workspace.get();
+        ws.reset(grid);
+        final DerivationArena arena = ws.arena;
+        final SearchHeuristic heuristic = new IsolatedPhraseForeignConverageHeuristic(grid);
+        final int sourceLength = grid.sourceLength();
+        final ForkJoinPool pool = sourceLength >= minParallelLength ? this.pool : null;
+        budget.start(sourceLength);
+
+        final int root = arena.addRoot(startState());
+        arena.setScore(root, 0.0, heuristic.score(arena.coverage(), arena.coverageOffset(root), 0, 0));
+        ws.beams[0].reset(1);
+        ws.beams[0].add(root);
+        ws.beams[0].finish();
+
+        int last = 0;
+        for (int k = 1; k <= sourceLength; ++k) {
+            final BundleBeam beam = ws.beams[k];
+            final int beamSize = budget.beamSize();
+            beam.reset(beamSize);
+            fill(ws, grid, heuristic, k, popLimit(beamSize), pool, budget);
+            beam.finish();
+            if (beam.size() > 0) last = k;
+            budget.endBeam(k, beam.size());
+        }
+        if (budget.isDegraded()) {
+            logger.info("Reduced the beam size from {} to {} for {} to {} covered source words to meet the time budget",
+                    budget.initialBeamSize(), budget.beamSize(), budget.degradedAt(), sourceLength);
+            if (logger.isDebugEnabled()) {
+                final StringBuilder sb = new StringBuilder();
+                for (int k = 1; k <= sourceLength; ++k) {
+                    sb.append(' ').append(budget.beamFill(k)).append('/')
+                            .append(String.format("%.2f", budget.beamNanos(k) / 1e6)).append("ms");
+                }
+                logger.debug("Derivations and time per cardinality:{}", sb);
+            }
+        }
+        if (last < sourceLength) {
+            // A dead end under the distortion limit leaves the last beams
+            // empty; return the best derivations that got furthest rather
+            // than nothing, flagged on the budget
+            budget.markPartial(last);
+            logger.warn("No derivation covers all {} source words; the translation covers only {} of them",
+                    sourceLength, last);
+        }
+        final int[] best = ws.beams[last].best(size);
+        final List<RichTranslation<IString, String>> translations = new ArrayList<>(best.length);
+        for (int d : best) translations.add(translation(source, arena, grid, d));
+        return translations;
+    }
+
+    /**
+     * @param beamSize
+     * @return the pop limit, scaled to the beam size.
+     */
+    private int popLimit(int beamSize) {
+        return beamSize == this.beamSize ? popLimit :
+                (int) Math.max(1L, Math.min(Integer.MAX_VALUE, (long) popLimit * beamSize / this.beamSize));
+    }
+
+    /**
+     * Fill beam k by cube pruning over the bundles of the earlier beams.
+     *
+     * @param popLimit maximum number of candidates popped
+     * @param pool     null to score the first cells of the bundles on the
+     *                 calling thread
+     * @param budget   past its deadline, the beam is left with what it has
+     *                 after the first pop
+     */
+    private void fill(Workspace ws, RuleGrid grid, SearchHeuristic heuristic, int k, int popLimit,
+                      ForkJoinPool pool, TimeBudget budget) {
+        final DerivationArena arena = ws.arena;
+        final HyperedgeBundle bundles = ws.bundles;
+        final CandidateHeap heap = ws.heap;
+        final BundleBeam beam = ws.beams[k];
+        final int sourceLength = grid.sourceLength();
+        bundles.clear();
+        heap.clear();
+        for (int j = Math.max(0, k - grid.maxSpan()); j < k; ++j) {
+            final BundleBeam antecedents = ws.beams[j];
+            final int length = k - j;
+            for (int g = 0; g < antecedents.numGroups(); ++g) {
+                final int first = antecedents.get(antecedents.groupStart(g));
+                // Only the spans within the distortion limit of the last one
+                int minStart = 0;
+                int maxStart = sourceLength - length;
+                if (distortionLimit >= 0) {
+                    minStart = Math.max(minStart, arena.lastEnd(first) - distortionLimit);
+                    maxStart = Math.min(maxStart, arena.lastEnd(first) + distortionLimit);
+                }
+                for (int start = minStart; start <= maxStart; ++start) {
+                    final int end = start + length;
+                    final int ruleStart = grid.ruleStart(start, end);
+                    final int ruleEnd = grid.ruleEnd(start, end);
+                    if (ruleStart == ruleEnd || !isUncovered(arena, first, start, end)
+                            || !withinDistortionLimit(arena, first, start, end, sourceLength)) {
+                        continue;
+                    }
+                    final double futureScore = heuristic.score(arena.coverage(), arena.coverageOffset(first), start,
+                            end);
+                    final int bundle = bundles.add(j, antecedents.groupStart(g), antecedents.groupEnd(g), start, end,
+                            ruleStart, ruleEnd, futureScore);
+                    addCell(ws, grid, bundle, 0, 0);
+                }
+            }
+        }
+        pushPending(ws, grid, pool);
+
+        // The successors of a cell are pushed before the next pop
+        for (int numPops = 0; !heap.isEmpty() && !beam.isFull() && numPops < popLimit; ++numPops) {
+            if (numPops > 0 && numPops % DEADLINE_CHECK_INTERVAL == 0 && budget.isExpired()) break;
+            heap.pop();
+            beam.add(heap.derivation());
+            final int bundle = heap.bundle();
+            final int item = heap.item();
+            final int rule = heap.rule();
+            addCell(ws, grid, bundle, item, rule + 1);
+            if (rule == 0) addCell(ws, grid, bundle, item + 1, 0);
+            pushPending(ws, grid, null);
+        }
+    }
+
+    private static boolean isUncovered(DerivationArena arena, int d, int start, int end) {
+        for (int i = start; i < end; ++i) if (arena.isCovered(d, i)) return false;
+        return true;
+    }
+
+    /**
+     * Allocate the derivation of the cell (item, rule) of a bundle, if the
+     * cell exists, to be scored and pushed by <code>pushPending</code>.
+     */
+    private static void addCell(Workspace ws, RuleGrid grid, int bundle, int item, int rule) {
+        final HyperedgeBundle bundles = ws.bundles;
+        if (item >= bundles.numItems(bundle) || rule >= bundles.numRules(bundle)) return;
+        final int parent = ws.beams[bundles.beam(bundle)].get(bundles.item(bundle, item));
+        ws.addPending(allocate(ws.arena, grid, parent, bundles.rule(bundle, rule)), bundle, item, rule);
+    }
+
+    /**
+     * Score the pending cells, on the pool if there is one, and push them
+     * in the order they were added.
+     */
+    private void pushPending(Workspace ws, RuleGrid grid, ForkJoinPool pool) {
+        final int numPending = ws.numPending;
+        if (pool == null || numPending <= CELLS_PER_TASK) {
+            for (int i = 0; i < numPending; ++i) scorePending(ws, grid, i, ws.scratch);
+        } else {
+            pool.invoke(new ScoreTask(ws, grid, 0, numPending));
+        }
+        final DerivationArena arena = ws.arena;
+        for (int i = 0; i < numPending; ++i) {
+            final int d = ws.pendingDerivations[i];
+            ws.heap.push(arena.priority(d), d, ws.pendingBundles[i], ws.pendingItems[i], ws.pendingRules[i]);
+        }
+        ws.numPending = 0;
+    }
+
+    private void scorePending(Workspace ws, RuleGrid grid, int i, float[] scratch) {
+        score(ws.arena, grid, ws.pendingDerivations[i], ws.bundles.futureScore(ws.pendingBundles[i]), scratch);
+    }
+
+    /**
+     * Scores the pending cells [from, to) of a workspace. Each cell writes
+     * its own arena row only.
+     */
+    private final class ScoreTask extends RecursiveAction {
+        private final Workspace ws;
+        private final RuleGrid grid;
+        private final int from;
+        private final int to;
+
+        ScoreTask(Workspace ws, RuleGrid grid, int from, int to) {
+            this.ws = ws;
+            this.grid = grid;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CELLS_PER_TASK) {
+                // Leaves do not join, so a pool thread scores one leaf at a time
+                float[] scratch = poolScratch.get();
+                if (scratch.length < grid.maxTargetLength() + 1) {
+                    scratch = new float[2 * grid.maxTargetLength() + 1];
+                    poolScratch.set(scratch);
+                }
+                for (int i = from; i < to; ++i) scorePending(ws, grid, i, scratch);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new ScoreTask(ws, grid, from, middle), new ScoreTask(ws, grid, middle, to));
+        }
+    }
 }
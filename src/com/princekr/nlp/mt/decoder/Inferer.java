@@ -1,5 +1,8 @@
 package com.princekr.nlp.mt.decoder;
 
+import com.princekr.nlp.mt.util.RichTranslation;
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
  * Interface for decoding algorithms.
  */
@@ -8,4 +11,10 @@ public interface Inferer<TK, FV> {
     public static enum NbestMode {
         Standard, Diverse, Combined
     }
+
+    /**
+     * @param source
+     * @return the best translation of the source.
+     */
+    RichTranslation<TK, FV> translate(Sequence<TK> source);
 }
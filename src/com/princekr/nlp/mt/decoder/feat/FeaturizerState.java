@@ -1,7 +1,17 @@
 package com.princekr.nlp.mt.decoder.feat;
 
 /**
+ * State that a featurizer keeps with a hypothesis. Hypotheses whose
+ * states are equal receive equal future feature values and can be
+ * recombined.
+ *
  * Created by prince on 2017/10/29.
  */
-public class FeaturizerState {
+public abstract class FeaturizerState {
+
+    @Override
+    public abstract boolean equals(Object other);
+
+    @Override
+    public abstract int hashCode();
 }
@@ -1,7 +1,12 @@
 package com.princekr.nlp.mt.decoder.feat.base;
 
 /**
+ * Linear distortion: minus the number of source words jumped over between
+ * consecutive rules.
+ *
  * Created by prince on 2017/10/29.
  */
 public class LinearFutureCostFeaturizer {
+
+    public static final String FEATURE_NAME = "LinearDistortion";
 }
@@ -1,7 +1,12 @@
 package com.princekr.nlp.mt.decoder.feat.base;
 
 /**
+ * N-gram language model feature: the log probability of the target
+ * words of a rule given the preceding translation.
+ *
  * Created by prince on 2017/10/29.
  */
 public class NGramLanguageModelFeaturizer {
+
+    public static final String DEFAULT_FEATURE_NAME = "LM";
 }
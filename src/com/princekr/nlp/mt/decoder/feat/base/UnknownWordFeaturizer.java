@@ -1,7 +1,12 @@
 package com.princekr.nlp.mt.decoder.feat.base;
 
 /**
+ * Fires once per source word copied to the target because the
+ * translation model has no rule for it.
+ *
  * Created by prince on 2017/10/29.
  */
 public class UnknownWordFeaturizer {
+
+    public static final String FEATURE_NAME = "UnknownWord";
 }
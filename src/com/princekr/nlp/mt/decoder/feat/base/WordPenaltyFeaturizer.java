@@ -1,7 +1,11 @@
 package com.princekr.nlp.mt.decoder.feat.base;
 
 /**
+ * Word penalty: minus the number of target words of a rule.
+ *
  * Created by prince on 2017/10/29.
  */
 public class WordPenaltyFeaturizer {
+
+    public static final String FEATURE_NAME = "WordPenalty";
 }
@@ -1,7 +1,438 @@
 package com.princekr.nlp.mt.decoder.feat.deplm;
 
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.tm.SampledRule;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.TokenUtils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
 /**
+ * Dependency language model feature for left-to-right phrase-based
+ * decoding. The target tree is projected from a parse of the source
+ * through the word alignments of the rules: a target word heads the words
+ * aligned to the dependents of its source word. Events are those of
+ * <code>tools.deplm.DependencyUtils</code>: per head and direction, the
+ * head followed by its dependents from the closest outwards, then
+ * &lt;/s&gt;.
+ * <p>
+ * Events are scored as soon as they are known, one rule application at a
+ * time:
+ * <ul>
+ * <li>the left event of a head when the head is produced, since its left
+ * dependents precede it and were kept as pending children;</li>
+ * <li>the right event incrementally, one dependent at a time, with an LM
+ * state per open head, and its &lt;/s&gt; when the last source dependent
+ * of the head is covered;</li>
+ * <li>a root event when a root is produced.</li>
+ * </ul>
+ * An expansion only looks at the words of the rule, their source
+ * dependents and the open part of the tree kept in the
+ * <code>DependencyLanguageModelState</code>, never at the whole partial
+ * translation.
+ * <p>
+ * Source words translated to nothing pass their dependents to their own
+ * head. A dependent that reaches a head this way after the head was
+ * produced is scored as a right dependent, wherever it is; this is the
+ * only case where the events differ from those of the full target tree.
+ * Threadsafe if the language model is.
+ *
  * Created by prince on 2017/10/29.
  */
-public class AbstractDependencyLanguageModelFeaturizer {
+public abstract class AbstractDependencyLanguageModelFeaturizer {
+
+    public static final String DEFAULT_FEATURE_NAME = "DEPLM";
+
+    private static final int ROOT = -1;
+    private static final int OPEN_STRIDE = DependencyLanguageModelState.OPEN_STRIDE;
+    private static final int PENDING_STRIDE = DependencyLanguageModelState.PENDING_STRIDE;
+    // Resolution of the source positions of a rule
+    private static final byte UNRESOLVED = 0;
+    private static final byte TRANSLATED = 1;
+    private static final byte DROPPED = 2;
+
+    protected final LanguageModel<IString> lm;
+    protected final String featureName;
+
+    protected AbstractDependencyLanguageModelFeaturizer(LanguageModel<IString> lm, String featureName) {
+        this.lm = lm;
+        this.featureName = featureName;
+    }
+
+    /**
+     * @param word system vocabulary id
+     * @param left whether for the left event
+     * @return the token that starts an event of the word as a head.
+     */
+    protected abstract int headToken(int word, boolean left);
+
+    /**
+     * @param word system vocabulary id
+     * @return the token of the word as a dependent.
+     */
+    protected abstract int dependentToken(int word);
+
+    /**
+     * @return the token that starts the event of a root.
+     */
+    protected abstract int rootToken();
+
+    public String getFeatureName() {
+        return featureName;
+    }
+
+    /**
+     * Dependency tree of a source sentence. The dependents of position s
+     * are in children[childStart[s + 1], childStart[s + 2]), and the roots
+     * in children[childStart[0], childStart[1]).
+     */
+    static final class SourceTree {
+        final int[] heads;
+        final int[] childStart;
+        final int[] children;
+
+        SourceTree(int[] heads) {
+            final int length = heads.length;
+            this.heads = heads.clone();
+            this.childStart = new int[length + 2];
+            this.children = new int[length];
+            for (int head : heads) {
+                if (head < ROOT || head >= length) throw new IllegalArgumentException("Invalid head: " + head);
+                ++childStart[head + 2];
+            }
+            for (int s = 0; s <= length; ++s) childStart[s + 1] += childStart[s];
+            final int[] fill = Arrays.copyOf(childStart, length + 1);
+            for (int s = 0; s < length; ++s) children[fill[heads[s] + 1]++] = s;
+        }
+
+        int numChildren(int s) {
+            return childStart[s + 2] - childStart[s + 1];
+        }
+    }
+
+    /**
+     * @param sourceHeads head of each source position, or -1 for a root
+     * @return the state before any rule of a sentence, where only the root
+     * is open.
+     */
+    public DependencyLanguageModelState initialState(int[] sourceHeads) {
+        final SourceTree tree = new SourceTree(sourceHeads);
+        return new DependencyLanguageModelState(tree, new int[]{ROOT, tree.numChildren(ROOT)},
+                new LMState[]{eventContext(rootToken())}, new int[0], new int[0], 0.0);
+    }
+
+    /**
+     * @param headToken
+     * @return the LM state after &lt;s&gt; and the head of an event.
+     */
+    private LMState eventContext(int headToken) {
+        return lm.score(new ArraySequence(new int[]{TokenUtils.START_TOKEN.id, headToken}), 2, null);
+    }
+
+    /**
+     * Score the events completed by a rule application.
+     *
+     * @param prior          state before the rule
+     * @param rule           rule, with its source span and alignment
+     * @param priorCoverage  source positions covered before the rule
+     * @return the state after the rule, whose score is that of the events.
+     */
+    public DependencyLanguageModelState featurize(DependencyLanguageModelState prior, SampledRule rule,
+                                                  BitSet priorCoverage) {
+        return new Expansion(prior, rule.sourceStart, rule.sourceEnd, priorCoverage).apply(rule);
+    }
+
+    /**
+     * Score the events left open at the end of a translation.
+     *
+     * @param prior state after the last rule, with the whole source covered
+     * @return the final state, whose score is that of the events.
+     */
+    public DependencyLanguageModelState featurizeEnd(DependencyLanguageModelState prior) {
+        return new Expansion(prior, 0, 0, null).finish();
+    }
+
+    /**
+     * Mutable copy of a state during one expansion. The lists of the prior
+     * state are copied on first change only.
+     */
+    private final class Expansion {
+        final DependencyLanguageModelState prior;
+        final SourceTree tree;
+        final int start;
+        final int end;
+        final BitSet coverage;
+        final byte[] resolution;
+
+        int[] open;
+        LMState[] openStates;
+        int numOpen;
+        boolean openCopied;
+        int[] pending;
+        int pendingSize;
+        boolean pendingCopied;
+        int[] dropped;
+        int numDropped;
+        boolean droppedCopied;
+
+        double score;
+        float[] scratch = new float[16];
+
+        Expansion(DependencyLanguageModelState prior, int start, int end, BitSet coverage) {
+            this.prior = prior;
+            this.tree = prior.tree;
+            this.start = start;
+            this.end = end;
+            this.coverage = coverage;
+            this.resolution = new byte[end - start];
+            this.open = prior.open;
+            this.openStates = prior.openStates;
+            this.numOpen = prior.openStates.length;
+            this.pending = prior.pending;
+            this.pendingSize = prior.pending.length;
+            this.dropped = prior.dropped;
+            this.numDropped = prior.dropped.length;
+        }
+
+        boolean isResolved(int s) {
+            return s >= start && s < end ? resolution[s - start] != UNRESOLVED : coverage != null && coverage.get(s);
+        }
+
+        boolean isDropped(int s) {
+            if (s >= start && s < end) return resolution[s - start] == DROPPED;
+            return Arrays.binarySearch(dropped, 0, numDropped, s) >= 0;
+        }
+
+        /**
+         * @return the closest ancestor of s that is not dropped, or ROOT.
+         */
+        int effectiveHead(int s) {
+            int head = tree.heads[s];
+            while (head != ROOT && isResolved(head) && isDropped(head)) head = tree.heads[head];
+            return head;
+        }
+
+        /**
+         * @return the number of dependents that will still attach to s:
+         * its unresolved children, and those of its dropped children.
+         */
+        int attachments(int s) {
+            int count = 0;
+            for (int c = tree.childStart[s + 1]; c < tree.childStart[s + 2]; ++c) {
+                final int child = tree.children[c];
+                if (!isResolved(child)) ++count;
+                else if (isDropped(child)) count += attachments(child);
+            }
+            return count;
+        }
+
+        int openIndex(int s) {
+            for (int i = 0; i < numOpen; ++i) if (open[OPEN_STRIDE * i] == s) return i;
+            return -1;
+        }
+
+        DependencyLanguageModelState apply(SampledRule rule) {
+            final int length = end - start;
+            final int[] target = rule.target;
+            // First target word of each source position of the rule
+            final int[] first = new int[length];
+            Arrays.fill(first, -1);
+            for (int link : rule.alignment) {
+                final int s = ParallelCorpus.linkSource(link);
+                final int t = ParallelCorpus.linkTarget(link);
+                if (first[s] < 0 || t < first[s]) first[s] = t;
+            }
+            // Target word -> the source position it heads; a source
+            // position whose word heads another is dropped
+            final int[] headed = new int[target.length];
+            Arrays.fill(headed, -1);
+            for (int s = 0; s < length; ++s) {
+                final int t = first[s];
+                if (t < 0) continue;
+                final int other = headed[t];
+                // Keep the source position highest in the tree
+                if (other < 0 || tree.heads[start + other] == start + s) headed[t] = s;
+            }
+            for (int s = 0; s < length; ++s) {
+                if (first[s] < 0 || headed[first[s]] != s) drop(start + s);
+            }
+            for (int t = 0; t < target.length; ++t) {
+                if (headed[t] >= 0) produce(start + headed[t], target[t]);
+            }
+            return newState();
+        }
+
+        /**
+         * Cover a source position without a target word.
+         */
+        void drop(int s) {
+            resolution[s - start] = DROPPED;
+            if (!droppedCopied) {
+                dropped = Arrays.copyOf(dropped, numDropped + end - start);
+                droppedCopied = true;
+            }
+            int i = numDropped++;
+            for (; i > 0 && dropped[i - 1] > s; --i) dropped[i] = dropped[i - 1];
+            dropped[i] = s;
+
+            // Children waiting for s wait for its head, or attach to it late
+            final int head = effectiveHead(s);
+            int index = openIndex(head);
+            for (int p = 0; p < pendingSize; p += PENDING_STRIDE) {
+                if (pending[p] != s) continue;
+                copyPending();
+                if (index >= 0) {
+                    copyOpen();
+                    scoreRight(index, pending[p + 1]);
+                    removePending(p);
+                    p -= PENDING_STRIDE;
+                } else {
+                    pending[p] = head;
+                }
+            }
+            if (index >= 0) {
+                // s was expected by its head; its dependents now are
+                copyOpen();
+                open[OPEN_STRIDE * index + 1] += attachments(s) - 1;
+                if (open[OPEN_STRIDE * index + 1] == 0) close(index);
+            }
+        }
+
+        /**
+         * Produce the target word that translates source position s.
+         */
+        void produce(int s, int word) {
+            resolution[s - start] = TRANSLATED;
+            scoreLeft(s, word);
+
+            final int expected = attachments(s);
+            final LMState right = eventContext(headToken(word, false));
+            if (expected == 0) {
+                score += close(right);
+            } else {
+                copyOpen();
+                if (OPEN_STRIDE * (numOpen + 1) > open.length) {
+                    open = Arrays.copyOf(open, 2 * OPEN_STRIDE * (numOpen + 1));
+                    openStates = Arrays.copyOf(openStates, 2 * (numOpen + 1));
+                }
+                open[OPEN_STRIDE * numOpen] = s;
+                open[OPEN_STRIDE * numOpen + 1] = expected;
+                openStates[numOpen++] = right;
+            }
+
+            final int head = effectiveHead(s);
+            final int index = openIndex(head);
+            if (index >= 0) {
+                copyOpen();
+                scoreRight(index, dependentToken(word));
+                if (--open[OPEN_STRIDE * index + 1] == 0) close(index);
+            } else if (head != ROOT && !isResolved(head)) {
+                copyPending();
+                if (pendingSize + PENDING_STRIDE > pending.length) {
+                    pending = Arrays.copyOf(pending, 2 * (pendingSize + PENDING_STRIDE));
+                }
+                pending[pendingSize++] = head;
+                pending[pendingSize++] = dependentToken(word);
+            }
+        }
+
+        /**
+         * Score the left event of a head from the children waiting for it.
+         */
+        void scoreLeft(int s, int word) {
+            int numChildren = 0;
+            for (int p = 0; p < pendingSize; p += PENDING_STRIDE) if (pending[p] == s) ++numChildren;
+            final int[] event = new int[numChildren + 3];
+            event[0] = TokenUtils.START_TOKEN.id;
+            event[1] = headToken(word, true);
+            if (numChildren > 0) {
+                copyPending();
+                // Closest first: the latest pending child first
+                int i = 2;
+                for (int p = pendingSize - PENDING_STRIDE; p >= 0; p -= PENDING_STRIDE) {
+                    if (pending[p] != s) continue;
+                    event[i++] = pending[p + 1];
+                    removePending(p);
+                }
+            }
+            event[numChildren + 2] = lm.getEndToken().id;
+            final ArraySequence sequence = new ArraySequence(event);
+            final LMState context = lm.score(sequence.subsequence(0, 2), 2, null);
+            score += lm.scorePhrase(sequence, 2, event.length, context, scratch(event.length), 0).getScore();
+        }
+
+        void scoreRight(int index, int token) {
+            final LMState state = lm.scorePhrase(new ArraySequence(new int[]{token}), 0, 1, openStates[index],
+                    scratch, 0);
+            score += state.getScore();
+            openStates[index] = state;
+        }
+
+        double close(LMState state) {
+            return lm.scorePhrase(new ArraySequence(new int[]{lm.getEndToken().id}), 0, 1, state, scratch, 0)
+                    .getScore();
+        }
+
+        /**
+         * Score the end of the right event of an open head and remove it.
+         */
+        void close(int index) {
+            score += close(openStates[index]);
+            --numOpen;
+            System.arraycopy(open, OPEN_STRIDE * (index + 1), open, OPEN_STRIDE * index, OPEN_STRIDE * (numOpen - index));
+            System.arraycopy(openStates, index + 1, openStates, index, numOpen - index);
+            openStates[numOpen] = null;
+        }
+
+        void removePending(int p) {
+            System.arraycopy(pending, p + PENDING_STRIDE, pending, p, pendingSize - p - PENDING_STRIDE);
+            pendingSize -= PENDING_STRIDE;
+        }
+
+        void copyOpen() {
+            if (openCopied) return;
+            open = Arrays.copyOf(open, OPEN_STRIDE * (numOpen + end - start + 1));
+            openStates = Arrays.copyOf(openStates, numOpen + end - start + 1);
+            openCopied = true;
+        }
+
+        void copyPending() {
+            if (pendingCopied) return;
+            pending = Arrays.copyOf(pending, pendingSize + PENDING_STRIDE * (end - start + 1));
+            pendingCopied = true;
+        }
+
+        float[] scratch(int length) {
+            if (length > scratch.length) scratch = new float[2 * length];
+            return scratch;
+        }
+
+        /**
+         * Close every open head.
+         */
+        DependencyLanguageModelState finish() {
+            for (int i = 0; i < numOpen; ++i) score += close(openStates[i]);
+            return new DependencyLanguageModelState(tree, new int[0], new LMState[0], new int[0], new int[0], score);
+        }
+
+        DependencyLanguageModelState newState() {
+            if (droppedCopied) {
+                // Forget dropped positions whose dependents are all resolved
+                int kept = 0;
+                for (int i = 0; i < numDropped; ++i) {
+                    if (attachments(dropped[i]) > 0) dropped[kept++] = dropped[i];
+                }
+                numDropped = kept;
+            }
+            return new DependencyLanguageModelState(tree,
+                    openCopied ? Arrays.copyOf(open, OPEN_STRIDE * numOpen) : open,
+                    openCopied ? Arrays.copyOf(openStates, numOpen) : openStates,
+                    pendingCopied ? Arrays.copyOf(pending, pendingSize) : pending,
+                    droppedCopied ? Arrays.copyOf(dropped, numDropped) : dropped, score);
+        }
+    }
 }
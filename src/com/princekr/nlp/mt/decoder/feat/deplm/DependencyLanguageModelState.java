@@ -0,0 +1,98 @@
+package com.princekr.nlp.mt.decoder.feat.deplm;
+
+import com.princekr.nlp.mt.decoder.feat.FeaturizerState;
+import com.princekr.nlp.mt.lm.LMState;
+
+import java.util.Arrays;
+
+/**
+ * State of a dependency language model featurizer after a partial
+ * translation: only the part of the target tree that can still change.
+ * <ul>
+ * <li>Open heads: target heads that may still receive right dependents,
+ * with the source position they translate, the number of dependents they
+ * still expect and the LM state of their right event.</li>
+ * <li>Pending children: target words whose head has not been translated
+ * yet, with the source position of that head, in target order.</li>
+ * <li>Dropped source positions: covered without a target word, so that
+ * their dependents attach to the next head up. Kept only while some of
+ * their dependents are uncovered.</li>
+ * </ul>
+ * The lists are primitive arrays that are never modified. An expansion
+ * shares the arrays it does not change with its parent, and so with its
+ * siblings.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class DependencyLanguageModelState extends FeaturizerState {
+
+    static final int OPEN_STRIDE = 2;
+    static final int PENDING_STRIDE = 2;
+
+    // Source tree of the sentence, shared by all its states
+    final AbstractDependencyLanguageModelFeaturizer.SourceTree tree;
+    // Per open head: source position, number of expected dependents
+    final int[] open;
+    final LMState[] openStates;
+    // Per pending child: source position of its head, target word id
+    final int[] pending;
+    // Sorted source positions
+    final int[] dropped;
+    // Log probability of the events scored by the last expansion
+    final double score;
+
+    DependencyLanguageModelState(AbstractDependencyLanguageModelFeaturizer.SourceTree tree, int[] open,
+                                 LMState[] openStates, int[] pending, int[] dropped, double score) {
+        this.tree = tree;
+        this.open = open;
+        this.openStates = openStates;
+        this.pending = pending;
+        this.dropped = dropped;
+        this.score = score;
+    }
+
+    /**
+     * @return the log probability of the dependency events scored by the
+     * expansion that produced this state.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return the number of open heads.
+     */
+    public int numOpen() {
+        return openStates.length;
+    }
+
+    /**
+     * @return the number of pending children.
+     */
+    public int numPending() {
+        return pending.length / PENDING_STRIDE;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof DependencyLanguageModelState)) return false;
+        final DependencyLanguageModelState state = (DependencyLanguageModelState) other;
+        return Arrays.equals(open, state.open) && Arrays.equals(pending, state.pending)
+                && Arrays.equals(dropped, state.dropped) && Arrays.equals(openStates, state.openStates);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Arrays.hashCode(open);
+        hash = 31 * hash + Arrays.hashCode(pending);
+        hash = 31 * hash + Arrays.hashCode(dropped);
+        return 31 * hash + Arrays.hashCode(openStates);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("open %s pending %s dropped %s %.4f", Arrays.toString(open), Arrays.toString(pending),
+                Arrays.toString(dropped), score);
+    }
+}
@@ -1,7 +1,88 @@
 package com.princekr.nlp.mt.decoder.feat.deplm;
 
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
+ * Dependency language model feature over the events of
+ * <code>tools.deplm.BuildDependencyLMData</code>: heads carry a direction
+ * suffix, dependents are plain words and roots follow
+ * <code>DependencyUtils.ROOT_TOKEN</code>. Words outside the vocabulary of
+ * the model are scored as &lt;unk&gt;.
+ *
  * Created by prince on 2017/10/29.
  */
-public class GenericDependecyLanguageModelFeaturizer {
+public class GenericDependecyLanguageModelFeaturizer extends AbstractDependencyLanguageModelFeaturizer {
+
+    private static final int UNKNOWN = -1;
+
+    private final int rootId;
+    // Head tokens by system id: left at 2 * id, right at 2 * id + 1
+    private volatile int[] headIds = new int[0];
+
+    public GenericDependecyLanguageModelFeaturizer(LanguageModel<IString> lm) {
+        this(lm, DEFAULT_FEATURE_NAME);
+    }
+
+    public GenericDependecyLanguageModelFeaturizer(LanguageModel<IString> lm, String featureName) {
+        super(lm, featureName);
+        this.rootId = tokenId(DependencyUtils.ROOT_TOKEN);
+    }
+
+    /**
+     * @param filename accepts the prefixes of LanguageModelFactory
+     * @throws IOException
+     */
+    public GenericDependecyLanguageModelFeaturizer(String filename) throws IOException {
+        this(LanguageModelFactory.load(filename));
+    }
+
+    @Override
+    protected int headToken(int word, boolean left) {
+        final int index = left ? 2 * word : 2 * word + 1;
+        int[] ids = headIds;
+        if (index < ids.length) {
+            final int id = ids[index];
+            if (id != UNKNOWN) return id;
+        } else {
+            ids = grow(index);
+        }
+        // Racing threads store the same id
+        final String suffix = left ? DependencyUtils.LEFT_HEAD_SUFFIX : DependencyUtils.RIGHT_HEAD_SUFFIX;
+        final int id = tokenId(Vocabulary.systemGet(word) + suffix);
+        ids[index] = id;
+        return id;
+    }
+
+    private synchronized int[] grow(int index) {
+        int[] ids = headIds;
+        if (index >= ids.length) {
+            final int oldLength = ids.length;
+            ids = Arrays.copyOf(ids, Math.max(index + 2, Math.max(2048, 2 * oldLength)));
+            Arrays.fill(ids, oldLength, ids.length, UNKNOWN);
+            headIds = ids;
+        }
+        return ids;
+    }
+
+    @Override
+    protected int dependentToken(int word) {
+        return word;
+    }
+
+    @Override
+    protected int rootToken() {
+        return rootId;
+    }
+
+    private int tokenId(String token) {
+        return lm.isKnown(token) ? Vocabulary.systemAdd(token) : TokenUtils.UNK_TOKEN.id;
+    }
 }
@@ -1,7 +1,57 @@
 package com.princekr.nlp.mt.decoder.h;
 
+import com.princekr.nlp.mt.decoder.util.RuleGrid;
+
 /**
+ * Future cost of the standard phrase-based decoder: the best isolated
+ * score of covering each span with rules, computed once per sentence. The
+ * estimate of a partial coverage is the sum over its gaps.
+ *
  * Created by prince on 2017/10/29.
  */
-public class IsolatedPhraseForeignConverageHeuristic {
+public class IsolatedPhraseForeignConverageHeuristic implements SearchHeuristic {
+
+    private final int sourceLength;
+    // Best score of the span [i, j) at i * (sourceLength + 1) + j
+    private final double[] future;
+
+    public IsolatedPhraseForeignConverageHeuristic(RuleGrid grid) {
+        final int n = grid.sourceLength();
+        this.sourceLength = n;
+        this.future = new double[(n + 1) * (n + 1)];
+        for (int length = 1; length <= n; ++length) {
+            for (int i = 0, j = length; j <= n; ++i, ++j) {
+                double best = Double.NEGATIVE_INFINITY;
+                // Rules are sorted: the first is the best
+                if (grid.ruleStart(i, j) < grid.ruleEnd(i, j)) best = grid.isolatedScore(grid.ruleStart(i, j));
+                for (int k = i + 1; k < j; ++k) best = Math.max(best, future[i * (n + 1) + k] + future[k * (n + 1) + j]);
+                future[i * (n + 1) + j] = best;
+            }
+        }
+    }
+
+    @Override
+    public double score(long[] coverage, int offset, int start, int end) {
+        double score = 0.0;
+        int i = next(coverage, offset, start, end, 0, false);
+        while (i < sourceLength) {
+            final int j = next(coverage, offset, start, end, i, true);
+            score += future[i * (sourceLength + 1) + j];
+            i = next(coverage, offset, start, end, j, false);
+        }
+        return score;
+    }
+
+    /**
+     * @return the first position from which is covered, or not, or
+     * sourceLength.
+     */
+    private int next(long[] coverage, int offset, int start, int end, int from, boolean covered) {
+        while (from < sourceLength) {
+            final boolean c = from >= start && from < end || (coverage[offset + (from >>> 6)] & 1L << from) != 0;
+            if (c == covered) break;
+            ++from;
+        }
+        return from;
+    }
 }
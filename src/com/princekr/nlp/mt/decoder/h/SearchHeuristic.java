@@ -1,7 +1,19 @@
 package com.princekr.nlp.mt.decoder.h;
 
 /**
+ * Estimate of the score of translating the rest of a source sentence.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface SearchHeuristic {
+
+    /**
+     * @param coverage bit set of the covered source positions, in
+     *                 coverage[offset, offset + (sourceLength + 63) / 64)
+     * @param offset
+     * @param start    start of a span to count as covered too
+     * @param end      end of the span; equal to start for none
+     * @return the estimated score of the uncovered positions.
+     */
+    double score(long[] coverage, int offset, int start, int end);
 }
@@ -1,7 +1,24 @@
 package com.princekr.nlp.mt.decoder.recomb;
 
+import com.princekr.nlp.mt.lm.LMState;
+
 /**
+ * Recombines hypotheses whose language model states are equal. Models
+ * minimize their states, so the signature is only the context that can
+ * still change future scores, not the last order - 1 words.
+ *
  * Created by prince on 2017/10/29.
  */
-public class NGramLMRecombinationFilter {
+public class NGramLMRecombinationFilter implements RecombinationFilter<LMState> {
+
+    @Override
+    public boolean combinable(LMState hypA, LMState hypB) {
+        if (hypA == null || hypB == null) return hypA == hypB;
+        return hypA.equals(hypB);
+    }
+
+    @Override
+    public long recombinationHashCode(LMState hyp) {
+        return hyp == null ? 0L : hyp.longHashCode();
+    }
 }
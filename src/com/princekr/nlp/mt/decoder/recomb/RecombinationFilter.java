@@ -1,7 +1,25 @@
 package com.princekr.nlp.mt.decoder.recomb;
 
 /**
+ * Decides which hypotheses can be recombined: hypotheses that receive the
+ * same scores for every continuation, so that only the best of them needs
+ * to be kept.
+ *
  * Created by prince on 2017/10/29.
  */
-public interface RecombinationFilter {
+public interface RecombinationFilter<S> {
+
+    /**
+     * @param hypA
+     * @param hypB
+     * @return whether every continuation scores the same after either
+     * hypothesis.
+     */
+    boolean combinable(S hypA, S hypB);
+
+    /**
+     * @param hyp
+     * @return a hash that is equal for combinable hypotheses.
+     */
+    long recombinationHashCode(S hyp);
 }
@@ -1,7 +1,190 @@
 package com.princekr.nlp.mt.decoder.util;
 
+import com.princekr.nlp.mt.decoder.recomb.RecombinationFilter;
+import com.princekr.nlp.mt.lm.LMState;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+import java.util.Arrays;
+
 /**
+ * Beam of the derivations of a DerivationArena that cover the same number
+ * of source words, with recombination: derivations with equal coverage,
+ * last source position and language model state receive the same scores
+ * from then on, and only the best is kept. The recombination table is an
+ * open-addressing table of positions in the beam.
+ * <p>
+ * After <code>finish</code>, the derivations are grouped by coverage and
+ * last source position, each group sorted best first: the groups are the
+ * antecedents of the hyperedge bundles of the next beams. Not threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
-public class BundleBeam {
+public final class BundleBeam {
+
+    // Largest capacity whose recombination table size fits an int
+    public static final int MAX_CAPACITY = 1 << 28;
+
+    private static final int EMPTY = -1;
+
+    private final DerivationArena arena;
+    private final RecombinationFilter<LMState> filter;
+
+    private int capacity;
+    private int size;
+    private int[] items = new int[16];
+
+    private int[] table = new int[32];
+    private long[] hashes = new long[32];
+
+    private int numGroups;
+    private int[] groupStarts = new int[16];
+
+    // Coverage, last source position, then best first; ties in arena order
+    private final IntComparator groupOrder = new AbstractIntComparator() {
+        @Override
+        public int compare(int a, int b) {
+            int c = arena.compareCoverage(a, b);
+            if (c != 0) return c;
+            c = Integer.compare(arena.lastEnd(a), arena.lastEnd(b));
+            if (c != 0) return c;
+            c = Double.compare(arena.score(b), arena.score(a));
+            return c != 0 ? c : Integer.compare(a, b);
+        }
+    };
+
+    private final IntComparator bestFirst = new AbstractIntComparator() {
+        @Override
+        public int compare(int a, int b) {
+            final int c = Double.compare(arena.score(b), arena.score(a));
+            return c != 0 ? c : Integer.compare(a, b);
+        }
+    };
+
+    public BundleBeam(DerivationArena arena, RecombinationFilter<LMState> filter) {
+        this.arena = arena;
+        this.filter = filter;
+    }
+
+    /**
+     * Empty the beam.
+     *
+     * @param capacity maximum number of derivations kept, at most
+     *                 MAX_CAPACITY
+     */
+    public void reset(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid beam capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        size = 0;
+        numGroups = 0;
+        if (items.length < capacity) items = new int[capacity];
+        final int tableSize = Math.max(32, Integer.highestOneBit(capacity) << 2);
+        if (table.length != tableSize) {
+            table = new int[tableSize];
+            hashes = new long[tableSize];
+        }
+        Arrays.fill(table, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * @param i position in the beam
+     * @return the derivation.
+     */
+    public int get(int i) {
+        return items[i];
+    }
+
+    /**
+     * Add a derivation, or recombine it with an equivalent one.
+     *
+     * @param d
+     * @return whether the derivation was kept.
+     */
+    public boolean add(int d) {
+        final long hash = recombinationHash(d);
+        final int mask = table.length - 1;
+        for (int slot = (int) (hash ^ hash >>> 32) & mask; ; slot = slot + 1 & mask) {
+            final int i = table[slot];
+            if (i == EMPTY) {
+                if (size >= capacity) return false;
+                table[slot] = size;
+                hashes[slot] = hash;
+                items[size++] = d;
+                return true;
+            }
+            if (hashes[slot] == hash && combinable(items[i], d)) {
+                if (arena.score(d) <= arena.score(items[i])) return false;
+                items[i] = d;
+                return true;
+            }
+        }
+    }
+
+    private long recombinationHash(int d) {
+        long hash = arena.coverageHash(d);
+        hash = hash * 0x9E3779B97F4A7C15L + arena.lastEnd(d);
+        hash = hash * 0x9E3779B97F4A7C15L + filter.recombinationHashCode(arena.lmState(d));
+        return hash ^ hash >>> 29;
+    }
+
+    private boolean combinable(int a, int b) {
+        return arena.lastEnd(a) == arena.lastEnd(b) && arena.sameCoverage(a, b)
+                && filter.combinable(arena.lmState(a), arena.lmState(b));
+    }
+
+    /**
+     * Group the derivations by coverage and last source position, best
+     * first within each group. No derivation may be added afterwards.
+     */
+    public void finish() {
+        IntArrays.quickSort(items, 0, size, groupOrder);
+        numGroups = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i == 0 || arena.lastEnd(items[i]) != arena.lastEnd(items[i - 1])
+                    || !arena.sameCoverage(items[i], items[i - 1])) {
+                if (numGroups + 1 >= groupStarts.length) groupStarts = Arrays.copyOf(groupStarts, 2 * (numGroups + 1));
+                groupStarts[numGroups++] = i;
+            }
+        }
+        groupStarts[numGroups] = size;
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @param group
+     * @return the position in the beam of the first derivation of the
+     * group.
+     */
+    public int groupStart(int group) {
+        return groupStarts[group];
+    }
+
+    public int groupEnd(int group) {
+        return groupStarts[group + 1];
+    }
+
+    /**
+     * @param n
+     * @return the n best derivations, or all if there are fewer, best
+     * first; ties in arena order.
+     */
+    public int[] best(int n) {
+        final int[] best = Arrays.copyOf(items, size);
+        IntArrays.quickSort(best, bestFirst);
+        return best.length <= n ? best : Arrays.copyOf(best, n);
+    }
 }
@@ -0,0 +1,113 @@
+package com.princekr.nlp.mt.decoder.util;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of cube pruning candidates in parallel primitive arrays.
+ * A candidate is a scored derivation with the cell of its hyperedge bundle
+ * it comes from: (bundle, item index, rule index). Pushing and popping do
+ * not allocate once the arrays have grown. Not threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class CandidateHeap {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size;
+    private double[] priorities = new double[INITIAL_CAPACITY];
+    private int[] derivations = new int[INITIAL_CAPACITY];
+    private int[] bundles = new int[INITIAL_CAPACITY];
+    private int[] items = new int[INITIAL_CAPACITY];
+    private int[] rules = new int[INITIAL_CAPACITY];
+
+    // Fields of the last popped candidate
+    private int derivation;
+    private int bundle;
+    private int item;
+    private int rule;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void push(double priority, int derivation, int bundle, int item, int rule) {
+        if (size == priorities.length) {
+            final int capacity = 2 * size;
+            priorities = Arrays.copyOf(priorities, capacity);
+            derivations = Arrays.copyOf(derivations, capacity);
+            bundles = Arrays.copyOf(bundles, capacity);
+            items = Arrays.copyOf(items, capacity);
+            rules = Arrays.copyOf(rules, capacity);
+        }
+        int i = size++;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (priorities[parent] >= priority) break;
+            move(parent, i);
+            i = parent;
+        }
+        set(i, priority, derivation, bundle, item, rule);
+    }
+
+    /**
+     * Remove the best candidate; its fields are then available from
+     * <code>derivation()</code>, <code>bundle()</code>, <code>item()</code>
+     * and <code>rule()</code>.
+     */
+    public void pop() {
+        derivation = derivations[0];
+        bundle = bundles[0];
+        item = items[0];
+        rule = rules[0];
+        final int last = --size;
+        if (last == 0) return;
+        final double priority = priorities[last];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= last) break;
+            if (child + 1 < last && priorities[child + 1] > priorities[child]) ++child;
+            if (priorities[child] <= priority) break;
+            move(child, i);
+            i = child;
+        }
+        move(last, i);
+    }
+
+    public int derivation() {
+        return derivation;
+    }
+
+    public int bundle() {
+        return bundle;
+    }
+
+    public int item() {
+        return item;
+    }
+
+    public int rule() {
+        return rule;
+    }
+
+    private void move(int from, int to) {
+        set(to, priorities[from], derivations[from], bundles[from], items[from], rules[from]);
+    }
+
+    private void set(int i, double priority, int derivation, int bundle, int item, int rule) {
+        priorities[i] = priority;
+        derivations[i] = derivation;
+        bundles[i] = bundle;
+        items[i] = item;
+        rules[i] = rule;
+    }
+}
@@ -1,7 +1,32 @@
 package com.princekr.nlp.mt.decoder.util;
 
+import edu.stanford.nlp.stats.Counter;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+
 /**
+ * Scorer over a fixed set of weights, copied at construction. Threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
-public class DenseScorer {
+public class DenseScorer implements Scorer<String> {
+
+    private final Object2DoubleOpenHashMap<String> weights;
+
+    /**
+     * @param weights the model, e.g. <code>Phrasal.getModel()</code>
+     */
+    public DenseScorer(Counter<String> weights) {
+        this.weights = new Object2DoubleOpenHashMap<>(weights.size());
+        for (String feature : weights.keySet()) this.weights.put(feature, weights.getCount(feature));
+    }
+
+    @Override
+    public double getWeight(String feature) {
+        return weights.getDouble(feature);
+    }
+
+    @Override
+    public String toString() {
+        return weights.toString();
+    }
 }
@@ -0,0 +1,229 @@
+package com.princekr.nlp.mt.decoder.util;
+
+import com.princekr.nlp.mt.lm.LMState;
+
+import java.util.Arrays;
+
+/**
+ * Derivations of one sentence as rows of parallel arrays, so that a
+ * hypothesis is an int and not an object. Rows are allocated in order and
+ * released all at once by <code>reset</code>; the arrays are kept for the
+ * next sentence. Not threadsafe: decoders keep one arena per thread. Only
+ * the scores and LM states of distinct rows may be set concurrently,
+ * between allocations.
+ * <p>
+ * A derivation is the application of a rule to a parent derivation; row 0
+ * after a reset is the empty derivation. The source coverage of a
+ * derivation is a bit set of <code>coverageWords()</code> longs at
+ * <code>coverageOffset(d)</code> in <code>coverage()</code>.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class DerivationArena {
+
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private int coverageWords = 1;
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] rules = new int[INITIAL_CAPACITY];
+    // End of the source span of the last rule
+    private int[] lastEnds = new int[INITIAL_CAPACITY];
+    private int[] numCovered = new int[INITIAL_CAPACITY];
+    private int[] targetLengths = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    // Score plus the future cost heuristic
+    private double[] priorities = new double[INITIAL_CAPACITY];
+    private long[] coverage = new long[INITIAL_CAPACITY];
+    private LMState[] lmStates = new LMState[INITIAL_CAPACITY];
+
+    /**
+     * Release all rows and prepare for a sentence.
+     *
+     * @param sourceLength
+     */
+    public void reset(int sourceLength) {
+        // Let the LM states go
+        Arrays.fill(lmStates, 0, size, null);
+        size = 0;
+        coverageWords = Math.max(1, (sourceLength + 63) >>> 6);
+        if (coverage.length < coverageWords * parents.length) {
+            coverage = new long[coverageWords * parents.length];
+        }
+    }
+
+    /**
+     * @return the number of rows in use.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the empty derivation, with the LM state before the first
+     * word.
+     */
+    public int addRoot(LMState lmState) {
+        final int d = allocate();
+        parents[d] = NONE;
+        rules[d] = NONE;
+        lastEnds[d] = 0;
+        numCovered[d] = 0;
+        targetLengths[d] = 0;
+        scores[d] = 0.0;
+        priorities[d] = 0.0;
+        Arrays.fill(coverage, d * coverageWords, (d + 1) * coverageWords, 0L);
+        lmStates[d] = lmState;
+        return d;
+    }
+
+    /**
+     * Extend a derivation with a rule over the source span [start, end).
+     *
+     * @return the new derivation; its scores are set by the caller.
+     */
+    public int add(int parent, int rule, int start, int end, int targetLength, LMState lmState) {
+        final int d = allocate();
+        parents[d] = parent;
+        rules[d] = rule;
+        lastEnds[d] = end;
+        numCovered[d] = numCovered[parent] + end - start;
+        targetLengths[d] = targetLengths[parent] + targetLength;
+        System.arraycopy(coverage, parent * coverageWords, coverage, d * coverageWords, coverageWords);
+        final int offset = d * coverageWords;
+        for (int i = start; i < end; ++i) coverage[offset + (i >>> 6)] |= 1L << i;
+        lmStates[d] = lmState;
+        return d;
+    }
+
+    private int allocate() {
+        if (size == parents.length) {
+            final int capacity = 2 * size;
+            parents = Arrays.copyOf(parents, capacity);
+            rules = Arrays.copyOf(rules, capacity);
+            lastEnds = Arrays.copyOf(lastEnds, capacity);
+            numCovered = Arrays.copyOf(numCovered, capacity);
+            targetLengths = Arrays.copyOf(targetLengths, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            lmStates = Arrays.copyOf(lmStates, capacity);
+        }
+        if (coverage.length < (size + 1) * coverageWords) {
+            coverage = Arrays.copyOf(coverage, coverageWords * parents.length);
+        }
+        return size++;
+    }
+
+    public int parent(int d) {
+        return parents[d];
+    }
+
+    public int rule(int d) {
+        return rules[d];
+    }
+
+    public int lastEnd(int d) {
+        return lastEnds[d];
+    }
+
+    public int numCovered(int d) {
+        return numCovered[d];
+    }
+
+    public int targetLength(int d) {
+        return targetLengths[d];
+    }
+
+    public double score(int d) {
+        return scores[d];
+    }
+
+    public double priority(int d) {
+        return priorities[d];
+    }
+
+    public void setScore(int d, double score, double priority) {
+        scores[d] = score;
+        priorities[d] = priority;
+    }
+
+    public LMState lmState(int d) {
+        return lmStates[d];
+    }
+
+    public void setLMState(int d, LMState lmState) {
+        lmStates[d] = lmState;
+    }
+
+    /**
+     * @return the coverage bit sets of all rows. Valid until the next
+     * allocation.
+     */
+    public long[] coverage() {
+        return coverage;
+    }
+
+    public int coverageWords() {
+        return coverageWords;
+    }
+
+    public int coverageOffset(int d) {
+        return d * coverageWords;
+    }
+
+    /**
+     * @return whether source position i is covered by derivation d.
+     */
+    public boolean isCovered(int d, int i) {
+        return (coverage[d * coverageWords + (i >>> 6)] & 1L << i) != 0;
+    }
+
+    /**
+     * @return the first source position not covered by derivation d, or
+     * sourceLength.
+     */
+    public int firstGap(int d, int sourceLength) {
+        final int offset = d * coverageWords;
+        for (int w = 0; w < coverageWords; ++w) {
+            final long word = ~coverage[offset + w];
+            if (word != 0L) return Math.min(sourceLength, (w << 6) + Long.numberOfTrailingZeros(word));
+        }
+        return sourceLength;
+    }
+
+    /**
+     * @return whether two derivations cover the same source positions.
+     */
+    public boolean sameCoverage(int a, int b) {
+        final int offsetA = a * coverageWords;
+        final int offsetB = b * coverageWords;
+        for (int w = 0; w < coverageWords; ++w) if (coverage[offsetA + w] != coverage[offsetB + w]) return false;
+        return true;
+    }
+
+    /**
+     * @return a hash of the coverage of derivation d.
+     */
+    public long coverageHash(int d) {
+        final int offset = d * coverageWords;
+        long hash = 0L;
+        for (int w = 0; w < coverageWords; ++w) hash = 31L * hash + coverage[offset + w];
+        return hash;
+    }
+
+    /**
+     * @return the lexicographic order of the coverage of two derivations.
+     */
+    public int compareCoverage(int a, int b) {
+        final int offsetA = a * coverageWords;
+        final int offsetB = b * coverageWords;
+        for (int w = 0; w < coverageWords; ++w) {
+            final int c = Long.compare(coverage[offsetA + w], coverage[offsetB + w]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
@@ -1,7 +1,110 @@
 package com.princekr.nlp.mt.decoder.util;
 
+import java.util.Arrays;
+
 /**
+ * The hyperedge bundles of one beam expansion, as parallel arrays. A
+ * bundle pairs a group of derivations with equal coverage and last source
+ * position, sorted best first, with the rules of one source span, sorted
+ * best first: its cells (item, rule) are the candidate extensions that
+ * cube pruning enumerates from (0, 0). Not threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
-public class HyperedgeBundle {
+public final class HyperedgeBundle {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    // Beam of the derivations, and their range in it
+    private int[] beams = new int[INITIAL_CAPACITY];
+    private int[] itemStarts = new int[INITIAL_CAPACITY];
+    private int[] itemEnds = new int[INITIAL_CAPACITY];
+    // Source span and its range of rules in the RuleGrid
+    private int[] sourceStarts = new int[INITIAL_CAPACITY];
+    private int[] sourceEnds = new int[INITIAL_CAPACITY];
+    private int[] ruleStarts = new int[INITIAL_CAPACITY];
+    private int[] ruleEnds = new int[INITIAL_CAPACITY];
+    // Heuristic score of the source left after the span, equal for all cells
+    private double[] futureScores = new double[INITIAL_CAPACITY];
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the new bundle.
+     */
+    public int add(int beam, int itemStart, int itemEnd, int sourceStart, int sourceEnd, int ruleStart, int ruleEnd,
+                   double futureScore) {
+        if (size == beams.length) {
+            final int capacity = 2 * size;
+            beams = Arrays.copyOf(beams, capacity);
+            itemStarts = Arrays.copyOf(itemStarts, capacity);
+            itemEnds = Arrays.copyOf(itemEnds, capacity);
+            sourceStarts = Arrays.copyOf(sourceStarts, capacity);
+            sourceEnds = Arrays.copyOf(sourceEnds, capacity);
+            ruleStarts = Arrays.copyOf(ruleStarts, capacity);
+            ruleEnds = Arrays.copyOf(ruleEnds, capacity);
+            futureScores = Arrays.copyOf(futureScores, capacity);
+        }
+        beams[size] = beam;
+        itemStarts[size] = itemStart;
+        itemEnds[size] = itemEnd;
+        sourceStarts[size] = sourceStart;
+        sourceEnds[size] = sourceEnd;
+        ruleStarts[size] = ruleStart;
+        ruleEnds[size] = ruleEnd;
+        futureScores[size] = futureScore;
+        return size++;
+    }
+
+    public int beam(int bundle) {
+        return beams[bundle];
+    }
+
+    /**
+     * @return the number of derivations of the bundle.
+     */
+    public int numItems(int bundle) {
+        return itemEnds[bundle] - itemStarts[bundle];
+    }
+
+    /**
+     * @return the position in its beam of the item-th derivation.
+     */
+    public int item(int bundle, int item) {
+        return itemStarts[bundle] + item;
+    }
+
+    public int numRules(int bundle) {
+        return ruleEnds[bundle] - ruleStarts[bundle];
+    }
+
+    /**
+     * @return the rule-th rule of the bundle, as a RuleGrid index.
+     */
+    public int rule(int bundle, int rule) {
+        return ruleStarts[bundle] + rule;
+    }
+
+    public int sourceStart(int bundle) {
+        return sourceStarts[bundle];
+    }
+
+    public int sourceEnd(int bundle) {
+        return sourceEnds[bundle];
+    }
+
+    /**
+     * @return the heuristic score of the source words that the
+     * derivations of the bundle leave uncovered.
+     */
+    public double futureScore(int bundle) {
+        return futureScores[bundle];
+    }
 }
@@ -1,7 +1,194 @@
 package com.princekr.nlp.mt.decoder.util;
 
+import com.princekr.nlp.mt.decoder.feat.base.UnknownWordFeaturizer;
+import com.princekr.nlp.mt.decoder.feat.base.WordPenaltyFeaturizer;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.tm.SampledRule;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+import java.util.List;
+
 /**
+ * The rules of a source sentence indexed by span, each span sorted by
+ * isolated score, best first. Rules are numbered from 0; the rules of span
+ * [i, j) are [ruleStart(i, j), ruleEnd(i, j)). A source word without a
+ * one-word rule gets a rule that copies it, which fires the unknown word
+ * feature, so that every sentence has a translation.
+ * <p>
+ * The score of a rule is its translation model scores, word penalty and
+ * unknown word feature weighted; the isolated score adds the weighted
+ * language model score of the target phrase without context, and serves
+ * to sort rules and estimate future costs.
+ *
  * Created by prince on 2017/10/29.
  */
 public class RuleGrid {
+
+    private final int sourceLength;
+    private final int maxSpan;
+    private final int maxTargetLength;
+    private final int[] spanStart;
+    private final SampledRule[] rules;
+    private final ArraySequence[] targets;
+    private final double[] scores;
+    private final double[] isolatedScores;
+
+    /**
+     * @param source       system vocabulary ids
+     * @param rules        rules of spans of the source
+     * @param featureNames names of the scores of the rules
+     * @param scorer
+     * @param lm           may be null
+     * @param lmFeature    name of the language model feature
+     */
+    public RuleGrid(int[] source, List<SampledRule> rules, String[] featureNames, Scorer<String> scorer,
+                    LanguageModel<IString> lm, String lmFeature) {
+        this.sourceLength = source.length;
+        int maxSpan = 1;
+        for (SampledRule rule : rules) maxSpan = Math.max(maxSpan, rule.sourceEnd - rule.sourceStart);
+        this.maxSpan = maxSpan;
+
+        // Copy rules for the words without a one-word rule
+        final boolean[] covered = new boolean[sourceLength];
+        for (SampledRule rule : rules) if (rule.sourceEnd - rule.sourceStart == 1) covered[rule.sourceStart] = true;
+        int numRules = rules.size();
+        for (boolean c : covered) if (!c) ++numRules;
+
+        final int numSpans = sourceLength * maxSpan;
+        this.spanStart = new int[numSpans + 1];
+        for (SampledRule rule : rules) ++spanStart[span(rule.sourceStart, rule.sourceEnd) + 1];
+        for (int i = 0; i < sourceLength; ++i) if (!covered[i]) ++spanStart[span(i, i + 1) + 1];
+        for (int s = 0; s < numSpans; ++s) spanStart[s + 1] += spanStart[s];
+
+        this.rules = new SampledRule[numRules];
+        this.targets = new ArraySequence[numRules];
+        this.scores = new double[numRules];
+        this.isolatedScores = new double[numRules];
+        final int[] fill = new int[numSpans];
+        System.arraycopy(spanStart, 0, fill, 0, numSpans);
+        for (SampledRule rule : rules) this.rules[fill[span(rule.sourceStart, rule.sourceEnd)]++] = rule;
+        for (int i = 0; i < sourceLength; ++i) {
+            if (covered[i]) continue;
+            this.rules[fill[span(i, i + 1)]++] = new SampledRule(i, i + 1, new int[]{source[i]},
+                    new int[]{source[i]}, new int[]{ParallelCorpus.link(0, 0)}, 0, 0, new float[featureNames.length]);
+        }
+
+        int maxTargetLength = 0;
+        for (SampledRule rule : this.rules) maxTargetLength = Math.max(maxTargetLength, rule.target.length);
+        this.maxTargetLength = maxTargetLength;
+
+        final double wordPenalty = scorer.getWeight(WordPenaltyFeaturizer.FEATURE_NAME);
+        final double unknownWord = scorer.getWeight(UnknownWordFeaturizer.FEATURE_NAME);
+        final double lmWeight = lm == null ? 0.0 : scorer.getWeight(lmFeature);
+        for (int r = 0; r < numRules; ++r) {
+            final SampledRule rule = this.rules[r];
+            targets[r] = new ArraySequence(rule.target);
+            double score = scorer.score(featureNames, rule.scores) - wordPenalty * rule.target.length;
+            if (rule.count == 0) score += unknownWord;
+            scores[r] = score;
+            isolatedScores[r] = lm == null || rule.target.length == 0 ? score :
+                    score + lmWeight * lm.score(targets[r], 0, null).getScore();
+        }
+        final int[] order = new int[numRules];
+        final SampledRule[] sortedRules = new SampledRule[numRules];
+        final ArraySequence[] sortedTargets = new ArraySequence[numRules];
+        final double[] sortedScores = new double[numRules];
+        final double[] sortedIsolatedScores = new double[numRules];
+        for (int r = 0; r < numRules; ++r) order[r] = r;
+        final IntComparator bestFirst = new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Double.compare(isolatedScores[b], isolatedScores[a]);
+            }
+        };
+        for (int s = 0; s < numSpans; ++s) IntArrays.quickSort(order, spanStart[s], spanStart[s + 1], bestFirst);
+        for (int r = 0; r < numRules; ++r) {
+            sortedRules[r] = this.rules[order[r]];
+            sortedTargets[r] = targets[order[r]];
+            sortedScores[r] = scores[order[r]];
+            sortedIsolatedScores[r] = isolatedScores[order[r]];
+        }
+        System.arraycopy(sortedRules, 0, this.rules, 0, numRules);
+        System.arraycopy(sortedTargets, 0, targets, 0, numRules);
+        System.arraycopy(sortedScores, 0, scores, 0, numRules);
+        System.arraycopy(sortedIsolatedScores, 0, isolatedScores, 0, numRules);
+    }
+
+    private int span(int i, int j) {
+        return i * maxSpan + j - i - 1;
+    }
+
+    public int sourceLength() {
+        return sourceLength;
+    }
+
+    /**
+     * @return the length of the longest span with rules.
+     */
+    public int maxSpan() {
+        return maxSpan;
+    }
+
+    /**
+     * @return the length of the longest target phrase of a rule.
+     */
+    public int maxTargetLength() {
+        return maxTargetLength;
+    }
+
+    public int numRules() {
+        return rules.length;
+    }
+
+    /**
+     * @param i
+     * @param j
+     * @return the first rule of the span [i, j).
+     */
+    public int ruleStart(int i, int j) {
+        return j - i > maxSpan ? 0 : spanStart[span(i, j)];
+    }
+
+    /**
+     * @param i
+     * @param j
+     * @return the rule after the last of the span [i, j).
+     */
+    public int ruleEnd(int i, int j) {
+        return j - i > maxSpan ? 0 : spanStart[span(i, j) + 1];
+    }
+
+    public SampledRule get(int rule) {
+        return rules[rule];
+    }
+
+    /**
+     * @param rule
+     * @return the target phrase of the rule.
+     */
+    public ArraySequence target(int rule) {
+        return targets[rule];
+    }
+
+    /**
+     * @param rule
+     * @return the weighted score of the rule without the language model.
+     */
+    public double score(int rule) {
+        return scores[rule];
+    }
+
+    /**
+     * @param rule
+     * @return the weighted score of the rule with the language model score
+     * of its target without context.
+     */
+    public double isolatedScore(int rule) {
+        return isolatedScores[rule];
+    }
 }
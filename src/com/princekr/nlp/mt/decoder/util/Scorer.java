@@ -1,7 +1,26 @@
 package com.princekr.nlp.mt.decoder.util;
 
 /**
+ * Weights of a linear model.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface Scorer<FV> {
+
+    /**
+     * @param feature
+     * @return the weight of the feature, 0 if it has none.
+     */
+    double getWeight(FV feature);
+
+    /**
+     * @param features
+     * @param values   value of each feature
+     * @return the dot product of the values with the weights.
+     */
+    default double score(FV[] features, float[] values) {
+        double score = 0.0;
+        for (int i = 0; i < features.length; ++i) score += getWeight(features[i]) * values[i];
+        return score;
+    }
 }
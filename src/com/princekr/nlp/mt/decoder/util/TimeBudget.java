@@ -0,0 +1,173 @@
+package com.princekr.nlp.mt.decoder.util;
+
+/**
+ * Wall-clock budget of the search for one sentence, which sizes the beams
+ * still to be filled. The time and number of derivations of each coverage
+ * cardinality are recorded; after each beam, the time per derivation of
+ * the beams so far predicts the time of the beams left, and if they would
+ * not fit before the deadline at the current size, the size shrinks so
+ * that they do, down to 1. The first beams hold few derivations and have
+ * a high fixed cost, so the prediction waits until the beams so far hold
+ * at least a full beam. Past the deadline the beams have size 1, and
+ * the decoder stops filling a beam once it has one derivation, so that the
+ * search completes the best hypotheses greedily. Beams never grow back.
+ * <p>
+ * A budget serves one sentence; the caller may inspect it afterwards,
+ * including whether the translation is partial. Not threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class TimeBudget {
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final int initialBeamSize;
+    private final long deadline;
+
+    private int beamSize;
+    private int sourceLength;
+    private long lastTime;
+    private long totalNanos;
+    private long totalFill;
+    // Time and number of derivations of each cardinality
+    private long[] beamNanos = new long[0];
+    private int[] beamFill = new int[0];
+    // First cardinality filled with a smaller beam, or 0
+    private int degradedAt;
+    // Source words covered by the translations returned
+    private int coveredWords;
+
+    /**
+     * @param beamSize maximum number of derivations per beam
+     * @param deadline in System.nanoTime() time, or NO_DEADLINE
+     */
+    public TimeBudget(int beamSize, long deadline) {
+        if (beamSize < 1) throw new IllegalArgumentException("Invalid beam size: " + beamSize);
+        this.initialBeamSize = beamSize;
+        this.beamSize = beamSize;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param beamSize
+     * @param millis   time from now, or 0 for no deadline
+     * @return a budget that ends in millis milliseconds.
+     */
+    public static TimeBudget fromNow(int beamSize, long millis) {
+        return new TimeBudget(beamSize, millis <= 0L ? NO_DEADLINE : System.nanoTime() + millis * 1000000L);
+    }
+
+    /**
+     * Start the search of a sentence.
+     *
+     * @param sourceLength number of beams to fill after the empty one
+     */
+    public void start(int sourceLength) {
+        this.sourceLength = sourceLength;
+        this.coveredWords = sourceLength;
+        this.beamNanos = new long[sourceLength + 1];
+        this.beamFill = new int[sourceLength + 1];
+        this.totalNanos = 0L;
+        this.totalFill = 0L;
+        this.lastTime = System.nanoTime();
+    }
+
+    /**
+     * @return the size of the next beam.
+     */
+    public int beamSize() {
+        return beamSize;
+    }
+
+    /**
+     * Account for the beam of a coverage cardinality and size the next one.
+     *
+     * @param cardinality
+     * @param filled      number of derivations in the beam
+     */
+    public void endBeam(int cardinality, int filled) {
+        final long now = System.nanoTime();
+        beamNanos[cardinality] = now - lastTime;
+        beamFill[cardinality] = filled;
+        lastTime = now;
+        totalNanos += beamNanos[cardinality];
+        totalFill += filled;
+        if (deadline == NO_DEADLINE) return;
+        final int beamsLeft = sourceLength - cardinality;
+        if (beamsLeft <= 0 || beamSize == 1) return;
+        final long timeLeft = deadline - now;
+        if (timeLeft > 0L && totalFill < beamSize) return;
+        // Each derivation kept costs the pops and scoring that produced it
+        final double nanosPerSlot = Math.max(1.0, (double) totalNanos / Math.max(1L, totalFill));
+        final double affordable = timeLeft <= 0L ? 1.0 : timeLeft / (beamsLeft * nanosPerSlot);
+        if (affordable < beamSize) {
+            beamSize = (int) Math.max(1.0, affordable);
+            if (degradedAt == 0) degradedAt = cardinality + 1;
+        }
+    }
+
+    public int initialBeamSize() {
+        return initialBeamSize;
+    }
+
+    /**
+     * @return whether some beam was smaller than the initial size.
+     */
+    public boolean isDegraded() {
+        return degradedAt > 0;
+    }
+
+    /**
+     * @return the first coverage cardinality with a smaller beam, or 0.
+     */
+    public int degradedAt() {
+        return degradedAt;
+    }
+
+    /**
+     * Record that no derivation covers the whole source, so that the search
+     * returns derivations of a smaller cardinality.
+     *
+     * @param coveredWords number of source words they cover
+     */
+    public void markPartial(int coveredWords) {
+        this.coveredWords = coveredWords;
+    }
+
+    /**
+     * @return whether the translations leave source words untranslated.
+     */
+    public boolean isPartial() {
+        return coveredWords < sourceLength;
+    }
+
+    /**
+     * @return the number of source words covered by the translations.
+     */
+    public int coveredWords() {
+        return coveredWords;
+    }
+
+    /**
+     * @param cardinality
+     * @return the wall-clock nanoseconds spent on the beam.
+     */
+    public long beamNanos(int cardinality) {
+        return beamNanos[cardinality];
+    }
+
+    /**
+     * @param cardinality
+     * @return the number of derivations of the beam.
+     */
+    public int beamFill(int cardinality) {
+        return beamFill[cardinality];
+    }
+
+    /**
+     * @return whether the deadline has passed.
+     */
+    public boolean isExpired() {
+        return deadline != NO_DEADLINE && System.nanoTime() >= deadline;
+    }
+}
@@ -1,7 +1,60 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.MurmurHash3;
+
+import java.util.Arrays;
+
 /**
+ * State of an <code>ARPALanguageModel</code>: the context words and their
+ * backoff weights, so that the next word is scored without looking the
+ * context up again.
+ *
  * Created by prince on 2017/10/29.
  */
-public class ARPALMState {
+public class ARPALMState extends LMState {
+
+    // LM ids of the context, most recent first
+    final int[] words;
+    // backoffs[j]: log10 backoff of the n-gram of the j + 1 most recent words
+    final float[] backoffs;
+    // longHashCode(), computed on first use; 0 if not yet
+    private volatile long longHash;
+
+    ARPALMState(double score, int[] words, float[] backoffs) {
+        this.score = score;
+        this.words = words;
+        this.backoffs = backoffs;
+    }
+
+    @Override
+    public int length() {
+        return words.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof ARPALMState)) return false;
+        return Arrays.equals(words, ((ARPALMState) other).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public long longHashCode() {
+        long hash = longHash;
+        if (hash == 0) {
+            hash = MurmurHash3.hash64(words, words.length, 0);
+            longHash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.4f", Arrays.toString(words), score);
+    }
 }
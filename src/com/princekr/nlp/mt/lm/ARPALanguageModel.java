@@ -1,7 +1,329 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 /**
+ * Backoff n-gram language model read from an ARPA file and stored off-heap
+ * in a reversed trie, similar to KenLM's trie with quantization.
+ * <p>
+ * Unigrams are arrays indexed by LM word id that hold the full-precision
+ * probability and backoff. An n-gram of a higher order is a child of its
+ * suffix: its record holds its first word, quantized probability and
+ * backoff, and the records of each order are sorted by (suffix, word) so
+ * that the children of an n-gram are a contiguous range found through a
+ * bit-packed pointer array. Records and pointers are bit-packed into
+ * <code>BitPackedArray</code>s with as many bits as the vocabulary size and
+ * n-gram counts require. Probabilities and backoffs are quantized per order
+ * to <code>probBits</code> and <code>backoffBits</code>.
+ * <p>
+ * Scoring a word walks from the word towards older context words, one
+ * binary search per matched order. The state keeps the context words and
+ * their backoffs, so the context is never looked up again. States are
+ * minimized as in KenLM: the state keeps only the most recent words that
+ * some n-gram of the model extends to the right. Older words cannot change
+ * the score of what follows, and dropping them lets more hypotheses
+ * recombine.
+ * <p>
+ * Parsing a large ARPA file is slow, so a model can be saved as a binary
+ * image with <code>save()</code> and mapped back with <code>map()</code>,
+ * which only reads the vocabulary. <code>load()</code> accepts either.
+ * <p>
+ * Words outside the model map to &lt;unk&gt;. Threadsafe once loaded.
+ *
  * Created by prince on 2017/10/29.
  */
-public class ARPALanguageModel {
+public class ARPALanguageModel implements LanguageModel<IString> {
+
+    private static final Logger logger = LogManager.getLogger(ARPALanguageModel.class.getName());
+
+    public static final int DEFAULT_PROB_BITS = 8;
+    public static final int DEFAULT_BACKOFF_BITS = 8;
+
+    static final double LOG10_TO_LN = Math.log(10.0);
+    private static final int UNK_ID = NGramTrie.UNK_ID;
+
+    private final String name;
+    private final int order;
+    private final NGramTrie trie;
+    // system id -> LM id; ids past the end are unknown
+    private final int[] lmIds;
+    private final ThreadLocal<Context> contexts;
+
+    /**
+     * Load an ARPA file, optionally gzipped, with the default quantization.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public ARPALanguageModel(String filename) throws IOException {
+        this(filename, DEFAULT_PROB_BITS, DEFAULT_BACKOFF_BITS);
+    }
+
+    /**
+     * Load an ARPA file, optionally gzipped. Plain files are parsed in
+     * parallel on the common pool.
+     *
+     * @param filename
+     * @param probBits    bits per quantized probability
+     * @param backoffBits bits per quantized backoff
+     * @throws IOException
+     */
+    public ARPALanguageModel(String filename, int probBits, int backoffBits) throws IOException {
+        this(filename, parse(filename, probBits, backoffBits));
+    }
+
+    private ARPALanguageModel(String name, NGramTrie trie) {
+        this.name = name;
+        this.trie = trie;
+        this.order = trie.order;
+        final int[] systemIds = trie.systemIds;
+        int maxSystemId = 0;
+        for (int systemId : systemIds) maxSystemId = Math.max(maxSystemId, systemId);
+        this.lmIds = new int[maxSystemId + 1];
+        for (int id = 0; id < systemIds.length; ++id) lmIds[systemIds[id]] = id;
+        this.contexts = ThreadLocal.withInitial(() -> new Context(order - 1));
+    }
+
+    private static NGramTrie parse(String filename, int probBits, int backoffBits) throws IOException {
+        if (probBits < 1 || probBits > 24 || backoffBits < 1 || backoffBits > 24) {
+            throw new IllegalArgumentException(String.format("Invalid quantization: %d/%d bits", probBits, backoffBits));
+        }
+        final long startTime = System.nanoTime();
+        final NGramTrie trie = ARPAParser.parse(filename, probBits, backoffBits, ForkJoinPool.commonPool());
+        logNGrams("Loaded", filename, trie, startTime);
+        return trie;
+    }
+
+    private static void logNGrams(String action, String filename, NGramTrie trie, long startTime) {
+        long numNGrams = 0;
+        for (int n = 1; n <= trie.order; ++n) numNGrams += trie.size(n);
+        logger.info("{} {}-gram model {} with {} n-grams in {} MB off-heap in {} ms", action, trie.order, filename,
+                numNGrams, trie.byteSize() >> 20, (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * Map a binary image written by <code>save()</code>.
+     *
+     * @param filename
+     * @return the model.
+     * @throws IOException
+     */
+    public static ARPALanguageModel map(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        // Mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            final NGramTrie trie = NGramTrie.map(channel);
+            logNGrams("Mapped", filename, trie, startTime);
+            return new ARPALanguageModel(filename, trie);
+        }
+    }
+
+    /**
+     * @param filename
+     * @return whether the file is a binary image written by <code>save()</code>.
+     * @throws IOException
+     */
+    public static boolean isBinary(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            return NGramTrie.isImage(channel);
+        }
+    }
+
+    /**
+     * Map a binary image, or parse an ARPA file with the default
+     * quantization.
+     *
+     * @param filename
+     * @return the model.
+     * @throws IOException
+     */
+    public static ARPALanguageModel load(String filename) throws IOException {
+        return isBinary(filename) ? map(filename) : new ARPALanguageModel(filename);
+    }
+
+    /**
+     * Write the model as a binary image that <code>map()</code> reads.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            trie.write(channel);
+        }
+    }
+
+    /**
+     * @return whether the model is mapped from a binary image.
+     */
+    public boolean isMapped() {
+        return trie.isMapped();
+    }
+
+    /**
+     * @param systemId
+     * @return the LM id of a system vocabulary id; &lt;unk&gt; if unknown.
+     */
+    int lmId(int systemId) {
+        return systemId >= 0 && systemId < lmIds.length ? lmIds[systemId] : UNK_ID;
+    }
+
+    /**
+     * Context of a scoring pass: the words and backoffs of an
+     * <code>ARPALMState</code>, updated in place word by word. One per
+     * thread.
+     */
+    private static final class Context {
+        // Most recent first
+        final int[] words;
+        final float[] backoffs;
+        // Backoffs of the n-grams matched by the current word
+        final float[] matched;
+        int length;
+
+        Context(int maxLength) {
+            words = new int[maxLength];
+            backoffs = new float[maxLength];
+            matched = new float[maxLength];
+        }
+    }
+
+    /**
+     * Score one word and append it to the context.
+     *
+     * @param word    LM id
+     * @param context
+     * @return the log10 probability of the word.
+     */
+    private float scoreWord(int word, Context context) {
+        final int[] words = context.words;
+        final float[] backoffs = context.backoffs;
+        final float[] matchedBackoffs = context.matched;
+        final int length = context.length;
+        float prob = trie.unigramProbs.get(word);
+        if (matchedBackoffs.length > 0) matchedBackoffs[0] = trie.unigramBackoffs.get(word);
+        long node = word;
+        int matched = 1;
+        // Longest match that can still be extended to the right
+        int extended = trie.extendsRight(word) ? 1 : 0;
+        for (int i = 0; i < length; ++i) {
+            final long child = trie.find(matched + 1, node, words[i]);
+            if (child < 0) break;
+            node = child;
+            ++matched;
+            final long record = trie.records[matched - 1].get(child);
+            prob = trie.prob(matched, record);
+            if (matched < order) {
+                matchedBackoffs[matched - 1] = trie.backoff(matched, record);
+                if (trie.extendsRight(matched, record)) extended = matched;
+            }
+        }
+        // Back off from the contexts that are longer than the match
+        float score = prob;
+        for (int j = matched - 1; j < length; ++j) score += backoffs[j];
+
+        final int newLength = Math.min(extended, order - 1);
+        for (int j = newLength - 1; j > 0; --j) words[j] = words[j - 1];
+        if (newLength > 0) words[0] = word;
+        System.arraycopy(matchedBackoffs, 0, backoffs, 0, newLength);
+        context.length = newLength;
+        return score;
+    }
+
+    private Context startContext(LMState priorState) {
+        final Context context = contexts.get();
+        if (priorState != null) {
+            final ARPALMState state = (ARPALMState) priorState;
+            System.arraycopy(state.words, 0, context.words, 0, state.words.length);
+            System.arraycopy(state.backoffs, 0, context.backoffs, 0, state.backoffs.length);
+            context.length = state.words.length;
+        } else {
+            context.length = 0;
+        }
+        return context;
+    }
+
+    private static ARPALMState newState(double score, Context context) {
+        return new ARPALMState(score * LOG10_TO_LN, Arrays.copyOf(context.words, context.length),
+                Arrays.copyOf(context.backoffs, context.length));
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+        final Context context = startContext(priorState);
+        if (priorState == null) {
+            for (int i = 0; i < startOffsetIndex; ++i) scoreWord(lmId(sequence.get(i).id), context);
+        }
+        double score = 0.0;
+        for (int i = startOffsetIndex, size = sequence.size(); i < size; ++i) {
+            score += scoreWord(lmId(sequence.get(i).id), context);
+        }
+        return newState(score, context);
+    }
+
+    @Override
+    public LMState scorePhrase(Sequence<IString> phrase, int from, int to, LMState priorState, float[] scores,
+                               int offset) {
+        final Context context = startContext(priorState);
+        double score = 0.0;
+        for (int i = from; i < to; ++i) {
+            final float wordScore = scoreWord(lmId(phrase.get(i).id), context);
+            scores[offset + i - from] = (float) (wordScore * LOG10_TO_LN);
+            score += wordScore;
+        }
+        return newState(score, context);
+    }
+
+    @Override
+    public boolean isKnown(String word) {
+        final int systemId = Vocabulary.systemIndexOf(word);
+        return systemId == TokenUtils.UNK_TOKEN.id || lmId(systemId) != UNK_ID;
+    }
+
+    @Override
+    public Sequence<IString> getStartSequence() {
+        return new ArraySequence(new IString[]{TokenUtils.START_TOKEN});
+    }
+
+    @Override
+    public IString getEndToken() {
+        return TokenUtils.END_TOKEN;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int order() {
+        return order;
+    }
+
+    /**
+     * @return the number of off-heap bytes used by the model.
+     */
+    public long byteSize() {
+        return trie.byteSize();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d-gram, %d/%d-bit quantization)", name, order, trie.probBits,
+                trie.backoffBits);
+    }
 }
@@ -0,0 +1,553 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads an ARPA file into an <code>NGramTrie</code>.
+ * <p>
+ * Plain files are mapped and each n-gram section is cut into line-aligned
+ * chunks that are tokenized and looked up in parallel; the orders are still
+ * read one after the other since an n-gram needs the trie of its suffix.
+ * Gzipped files are read sequentially from a stream.
+ * <p>
+ * N-grams whose words or suffix are not in the model are skipped with a
+ * warning. &lt;unk&gt; always has LM id 0.
+ *
+ * Created by prince on 2017/10/29.
+ */
+final class ARPAParser {
+
+    private static final Logger logger = LogManager.getLogger(ARPAParser.class.getName());
+
+    // log10 probability of <unk> if the ARPA file does not list it
+    private static final float UNK_PROB = -100.0f;
+    private static final int CHUNK_BYTES = 1 << 24;
+
+    private final String filename;
+    private final int probBits;
+    private final int backoffBits;
+    private final ForkJoinPool pool;
+
+    private NGramTrie trie;
+    // system id -> LM id; ids past the end are unknown
+    private int[] lmIds;
+
+    private ARPAParser(String filename, int probBits, int backoffBits, ForkJoinPool pool) {
+        this.filename = filename;
+        this.probBits = probBits;
+        this.backoffBits = backoffBits;
+        this.pool = pool;
+    }
+
+    /**
+     * Read an ARPA file, optionally gzipped.
+     *
+     * @param filename
+     * @param probBits    bits per quantized probability
+     * @param backoffBits bits per quantized backoff
+     * @param pool        pool for parsing plain files
+     * @return the trie.
+     * @throws IOException
+     */
+    static NGramTrie parse(String filename, int probBits, int backoffBits, ForkJoinPool pool) throws IOException {
+        final ARPAParser parser = new ARPAParser(filename, probBits, backoffBits, pool);
+        if (filename.endsWith(".gz")) parser.parseStream();
+        else parser.parseMapped();
+        return parser.trie;
+    }
+
+    /**
+     * Unigrams read from a file, in file order.
+     */
+    private static final class Unigrams {
+        int[] systemIds;
+        float[] probs;
+        float[] backoffs;
+        int size;
+
+        Unigrams(int capacity) {
+            systemIds = new int[capacity];
+            probs = new float[capacity];
+            backoffs = new float[capacity];
+        }
+    }
+
+    /**
+     * N-grams of a higher order: trie keys and values, without the skipped
+     * ones.
+     */
+    private static final class NGrams {
+        final long[] keys;
+        // Index of the prefix of each n-gram in the order below, or -1
+        final long[] prefixes;
+        final float[] probs;
+        final float[] backoffs;
+        int size;
+        long numSkipped;
+
+        NGrams(int capacity, boolean hasBackoffs) {
+            keys = new long[capacity];
+            prefixes = new long[capacity];
+            probs = new float[capacity];
+            backoffs = hasBackoffs ? new float[capacity] : null;
+        }
+    }
+
+    /**
+     * Assign LM ids in file order, with &lt;unk&gt; first, and start the trie.
+     */
+    private void setUnigrams(int order, Unigrams unigrams) {
+        final int capacity = unigrams.size + 1;
+        final int[] systemIds = new int[capacity];
+        final float[] probs = new float[capacity];
+        final float[] backoffs = new float[capacity];
+        systemIds[NGramTrie.UNK_ID] = TokenUtils.UNK_TOKEN.id;
+        probs[NGramTrie.UNK_ID] = UNK_PROB;
+        int numUnigrams = 1;
+        for (int i = 0; i < unigrams.size; ++i) {
+            final int systemId = unigrams.systemIds[i];
+            final int id = systemId == TokenUtils.UNK_TOKEN.id ? NGramTrie.UNK_ID : numUnigrams++;
+            systemIds[id] = systemId;
+            probs[id] = unigrams.probs[i];
+            backoffs[id] = unigrams.backoffs[i];
+        }
+        lmIds = new int[Vocabulary.systemSize()];
+        for (int id = 0; id < numUnigrams; ++id) lmIds[systemIds[id]] = id;
+        trie = new NGramTrie(order, probBits, backoffBits, systemIds, probs, backoffs, numUnigrams);
+    }
+
+    /**
+     * @return the LM id of a word, or -1 if it is not a unigram of the model.
+     */
+    private int knownId(String word) {
+        final int systemId = Vocabulary.systemIndexOf(word);
+        if (systemId < 0 || systemId >= lmIds.length) return -1;
+        final int id = lmIds[systemId];
+        return id != NGramTrie.UNK_ID || systemId == TokenUtils.UNK_TOKEN.id ? id : -1;
+    }
+
+    /**
+     * Add a parsed n-gram of order n, or count it as skipped.
+     *
+     * @param fields probability, words and optional backoff
+     * @param ids    scratch of length n
+     */
+    private void addNGram(String[] fields, int n, int[] ids, NGrams ngrams) {
+        for (int k = 0; k < n; ++k) {
+            ids[k] = knownId(fields[k + 1]);
+            if (ids[k] < 0) {
+                ++ngrams.numSkipped;
+                return;
+            }
+        }
+        final long parent = trie.parent(ids, n);
+        if (parent < 0) {
+            ++ngrams.numSkipped;
+            return;
+        }
+        final int i = ngrams.size++;
+        ngrams.keys[i] = parent << 32 | ids[0];
+        ngrams.prefixes[i] = trie.prefix(ids, n);
+        ngrams.probs[i] = Float.parseFloat(fields[0]);
+        if (ngrams.backoffs != null) {
+            ngrams.backoffs[i] = fields.length > n + 1 ? Float.parseFloat(fields[n + 1]) : 0.0f;
+        }
+    }
+
+    private void addOrder(int n, NGrams ngrams) {
+        if (ngrams.numSkipped > 0) {
+            logger.warn("Skipped {} {}-grams of {} whose words or suffix are not in the model", ngrams.numSkipped, n,
+                    filename);
+        }
+        trie.addOrder(n, ngrams.keys, ngrams.probs, ngrams.backoffs, ngrams.size);
+        trie.markExtended(n - 1, ngrams.prefixes, ngrams.size);
+    }
+
+    private static String[] split(String line, int n) throws IOException {
+        final String[] fields = line.split("\\s+");
+        if (fields.length < n + 1 || fields.length > n + 2) {
+            throw new IOException("Malformed " + n + "-gram: " + line);
+        }
+        return fields;
+    }
+
+    private static int checkCount(long count, int n) throws IOException {
+        if (count > Integer.MAX_VALUE - 8) throw new IOException("Too many " + n + "-grams: " + count);
+        return (int) count;
+    }
+
+    /**
+     * Parse the lines of the \data\ header after the \data\ line.
+     *
+     * @return the number of n-grams per order.
+     */
+    private long[] parseCounts(List<String> lines) throws IOException {
+        final List<Long> counts = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                if (counts.isEmpty()) continue;
+                break;
+            }
+            if (!line.startsWith("ngram ")) throw new IOException("Malformed ARPA header line: " + line);
+            final int eq = line.indexOf('=');
+            final int n = Integer.parseInt(line.substring(6, eq).trim());
+            if (n != counts.size() + 1) throw new IOException("ARPA header lists orders out of order: " + line);
+            counts.add(Long.parseLong(line.substring(eq + 1).trim()));
+        }
+        if (counts.isEmpty()) throw new IOException("No n-gram counts in " + filename);
+        final long[] result = new long[counts.size()];
+        for (int n = 0; n < result.length; ++n) result[n] = counts.get(n);
+        return result;
+    }
+
+    // Sequential parsing of streams
+
+    private void parseStream() throws IOException {
+        InputStream in = Files.newInputStream(Paths.get(filename));
+        if (filename.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.trim().equals("\\data\\")) ;
+            if (line == null) throw new IOException("No \\data\\ section in " + filename);
+            final List<String> header = new ArrayList<>();
+            while ((line = reader.readLine()) != null && !line.trim().startsWith("\\")) header.add(line);
+            final long[] counts = parseCounts(header);
+            final int order = counts.length;
+
+            final Unigrams unigrams = new Unigrams(checkCount(counts[0], 1));
+            seekSection(reader, line, 1);
+            for (int i = 0; i < counts[0]; ++i) {
+                final String[] fields = split(readLine(reader, 1), 1);
+                unigrams.systemIds[i] = Vocabulary.systemAdd(fields[1]);
+                unigrams.probs[i] = Float.parseFloat(fields[0]);
+                unigrams.backoffs[i] = fields.length > 2 ? Float.parseFloat(fields[2]) : 0.0f;
+            }
+            unigrams.size = (int) counts[0];
+            setUnigrams(order, unigrams);
+
+            for (int n = 2; n <= order; ++n) {
+                seekSection(reader, null, n);
+                final int size = checkCount(counts[n - 1], n);
+                final NGrams ngrams = new NGrams(size, n < order);
+                final int[] ids = new int[n];
+                for (int i = 0; i < size; ++i) addNGram(split(readLine(reader, n), n), n, ids, ngrams);
+                addOrder(n, ngrams);
+            }
+        }
+    }
+
+    private void seekSection(BufferedReader reader, String line, int n) throws IOException {
+        final String header = "\\" + n + "-grams:";
+        if (line != null && line.trim().equals(header)) return;
+        while ((line = reader.readLine()) != null && !line.trim().equals(header)) ;
+        if (line == null) throw new IOException("No " + header + " section in " + filename);
+    }
+
+    private String readLine(BufferedReader reader, int n) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) throw new IOException("Unexpected end of " + filename + " in " + n + "-grams");
+            line = line.trim();
+        } while (line.isEmpty());
+        return line;
+    }
+
+    // Parallel parsing of mapped files
+
+    private void parseMapped() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final List<Long> sections = pool.invoke(new SectionScan(channel, 0, fileSize));
+            int dataSection = -1;
+            for (int s = 0; s < sections.size() && dataSection < 0; ++s) {
+                if (sectionName(channel, sections.get(s)).equals("\\data\\")) dataSection = s;
+            }
+            if (dataSection < 0) throw new IOException("No \\data\\ section in " + filename);
+            final long dataStart = nextLine(channel, sections.get(dataSection), fileSize);
+            final long dataEnd = dataSection + 1 < sections.size() ? sections.get(dataSection + 1) : fileSize;
+            final String header = new String(read(channel, dataStart, dataEnd), StandardCharsets.UTF_8);
+            final List<String> headerLines = new ArrayList<>();
+            for (String line : header.split("\n")) headerLines.add(line);
+            final long[] counts = parseCounts(headerLines);
+            final int order = counts.length;
+
+            // Body of each order: from after its header line to the next section
+            final long[] starts = new long[order];
+            final long[] ends = new long[order];
+            for (int s = dataSection + 1; s < sections.size(); ++s) {
+                final String name = sectionName(channel, sections.get(s));
+                if (!name.endsWith("-grams:")) continue;
+                final int n;
+                try {
+                    n = Integer.parseInt(name.substring(1, name.length() - 7));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed ARPA section header: " + name);
+                }
+                if (n < 1 || n > order) throw new IOException("Unexpected ARPA section: " + name);
+                starts[n - 1] = nextLine(channel, sections.get(s), fileSize);
+                ends[n - 1] = s + 1 < sections.size() ? sections.get(s + 1) : fileSize;
+            }
+            for (int n = 1; n <= order; ++n) {
+                if (starts[n - 1] == 0) throw new IOException("No \\" + n + "-grams: section in " + filename);
+            }
+
+            final List<UnigramTask> unigramTasks = new ArrayList<>();
+            for (long[] chunk : chunks(channel, starts[0], ends[0])) {
+                unigramTasks.add(new UnigramTask(channel, chunk[0], chunk[1]));
+            }
+            for (UnigramTask task : unigramTasks) pool.execute(task);
+            final Unigrams unigrams = new Unigrams(checkCount(counts[0], 1));
+            for (UnigramTask task : unigramTasks) append(unigrams, task.join());
+            if (unigrams.size != counts[0]) {
+                throw new IOException(String.format("Expected %d 1-grams in %s, found %d", counts[0], filename,
+                        unigrams.size));
+            }
+            setUnigrams(order, unigrams);
+
+            for (int n = 2; n <= order; ++n) {
+                final List<NGramTask> tasks = new ArrayList<>();
+                for (long[] chunk : chunks(channel, starts[n - 1], ends[n - 1])) {
+                    tasks.add(new NGramTask(channel, chunk[0], chunk[1], n, n < order));
+                }
+                for (NGramTask task : tasks) pool.execute(task);
+                final NGrams ngrams = new NGrams(checkCount(counts[n - 1], n), n < order);
+                long numFound = 0;
+                for (NGramTask task : tasks) {
+                    final NGrams chunk = task.join();
+                    numFound += chunk.size + chunk.numSkipped;
+                    if (numFound > counts[n - 1]) break;
+                    System.arraycopy(chunk.keys, 0, ngrams.keys, ngrams.size, chunk.size);
+                    System.arraycopy(chunk.prefixes, 0, ngrams.prefixes, ngrams.size, chunk.size);
+                    System.arraycopy(chunk.probs, 0, ngrams.probs, ngrams.size, chunk.size);
+                    if (ngrams.backoffs != null) {
+                        System.arraycopy(chunk.backoffs, 0, ngrams.backoffs, ngrams.size, chunk.size);
+                    }
+                    ngrams.size += chunk.size;
+                    ngrams.numSkipped += chunk.numSkipped;
+                }
+                if (numFound != counts[n - 1]) {
+                    throw new IOException(String.format("Expected %d %d-grams in %s, found %d", counts[n - 1], n,
+                            filename, numFound));
+                }
+                addOrder(n, ngrams);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void append(Unigrams unigrams, Unigrams chunk) throws IOException {
+        if (unigrams.size + chunk.size > unigrams.systemIds.length) {
+            throw new IOException("More 1-grams than the header of " + filename + " lists");
+        }
+        System.arraycopy(chunk.systemIds, 0, unigrams.systemIds, unigrams.size, chunk.size);
+        System.arraycopy(chunk.probs, 0, unigrams.probs, unigrams.size, chunk.size);
+        System.arraycopy(chunk.backoffs, 0, unigrams.backoffs, unigrams.size, chunk.size);
+        unigrams.size += chunk.size;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long end) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long start, long end) {
+        final ByteBuffer buffer = map(channel, start, end);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the offset after the line that contains offset.
+     */
+    private static long nextLine(FileChannel channel, long offset, long fileSize) {
+        final ByteBuffer buffer = map(channel, offset, Math.min(fileSize, offset + (1 << 16)));
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == '\n') return offset + buffer.position();
+        }
+        return Math.min(fileSize, offset + (1 << 16));
+    }
+
+    private static String sectionName(FileChannel channel, long offset) throws IOException {
+        final long end = nextLine(channel, offset, channel.size());
+        return new String(read(channel, offset, end), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Cut [start, end) into ranges of about <code>CHUNK_BYTES</code> that
+     * end at line ends.
+     */
+    private static List<long[]> chunks(FileChannel channel, long start, long end) {
+        final List<long[]> chunks = new ArrayList<>();
+        while (start < end) {
+            long cut = start + CHUNK_BYTES;
+            cut = cut >= end ? end : Math.min(end, nextLine(channel, cut, end));
+            chunks.add(new long[]{start, cut});
+            start = cut;
+        }
+        return chunks;
+    }
+
+    /**
+     * Offsets of the lines that start with a backslash, which are the
+     * section headers of an ARPA file.
+     */
+    private static final class SectionScan extends RecursiveTask<List<Long>> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        SectionScan(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Long> compute() {
+            if (end - start > CHUNK_BYTES) {
+                final long mid = start + (end - start) / 2;
+                final SectionScan left = new SectionScan(channel, start, mid);
+                left.fork();
+                final List<Long> right = new SectionScan(channel, mid, end).compute();
+                final List<Long> sections = left.join();
+                sections.addAll(right);
+                return sections;
+            }
+            final List<Long> sections = new ArrayList<>();
+            final ByteBuffer buffer = map(channel, Math.max(0, start - 1), end);
+            byte previous = start == 0 ? (byte) '\n' : buffer.get();
+            while (buffer.hasRemaining()) {
+                final byte b = buffer.get();
+                if (b == '\\' && previous == '\n') sections.add(start + buffer.position() - 1 - (start == 0 ? 0 : 1));
+                previous = b;
+            }
+            return sections;
+        }
+    }
+
+    /**
+     * Iterates over the non-empty lines of a mapped chunk.
+     */
+    private static final class LineReader {
+        private final ByteBuffer buffer;
+        private byte[] line = new byte[256];
+
+        LineReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        String next() {
+            while (buffer.hasRemaining()) {
+                int length = 0;
+                while (buffer.hasRemaining()) {
+                    final byte b = buffer.get();
+                    if (b == '\n') break;
+                    if (length == line.length) line = java.util.Arrays.copyOf(line, 2 * length);
+                    line[length++] = b;
+                }
+                final String s = new String(line, 0, length, StandardCharsets.UTF_8).trim();
+                if (!s.isEmpty()) return s;
+            }
+            return null;
+        }
+    }
+
+    private final class UnigramTask extends RecursiveTask<Unigrams> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        UnigramTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Unigrams compute() {
+            final LineReader reader = new LineReader(map(channel, start, end));
+            Unigrams unigrams = new Unigrams(1024);
+            try {
+                for (String line; (line = reader.next()) != null; ) {
+                    final String[] fields = split(line, 1);
+                    if (unigrams.size == unigrams.systemIds.length) {
+                        final Unigrams grown = new Unigrams(2 * unigrams.size);
+                        System.arraycopy(unigrams.systemIds, 0, grown.systemIds, 0, unigrams.size);
+                        System.arraycopy(unigrams.probs, 0, grown.probs, 0, unigrams.size);
+                        System.arraycopy(unigrams.backoffs, 0, grown.backoffs, 0, unigrams.size);
+                        grown.size = unigrams.size;
+                        unigrams = grown;
+                    }
+                    final int i = unigrams.size++;
+                    unigrams.systemIds[i] = Vocabulary.systemAdd(fields[1]);
+                    unigrams.probs[i] = Float.parseFloat(fields[0]);
+                    unigrams.backoffs[i] = fields.length > 2 ? Float.parseFloat(fields[2]) : 0.0f;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return unigrams;
+        }
+    }
+
+    private final class NGramTask extends RecursiveTask<NGrams> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final int n;
+        private final boolean hasBackoffs;
+
+        NGramTask(FileChannel channel, long start, long end, int n, boolean hasBackoffs) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.n = n;
+            this.hasBackoffs = hasBackoffs;
+        }
+
+        @Override
+        protected NGrams compute() {
+            final ByteBuffer buffer = map(channel, start, end);
+            // Count lines first so that the chunk is allocated once
+            int numLines = 0;
+            for (int i = 0, size = buffer.limit(); i < size; ++i) if (buffer.get(i) == '\n') ++numLines;
+            final NGrams ngrams = new NGrams(numLines + 1, hasBackoffs);
+            final LineReader reader = new LineReader(buffer);
+            final int[] ids = new int[n];
+            try {
+                for (String line; (line = reader.next()) != null; ) addNGram(split(line, n), n, ids, ngrams);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return ngrams;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.MurmurHash3;
+import com.princekr.nlp.mt.util.Sequence;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lossy cache of (context state, word) queries in front of another language
+ * model. The decoder asks for the same word after the same state many
+ * times, within a sentence and across hypotheses.
+ * <p>
+ * Each thread has its own direct-mapped table, so lookups take no locks
+ * and no atomic operations. A key hashes the context hash and the word id;
+ * a new entry evicts whatever was in its slot. Keys are compared in full,
+ * so a wrong score needs a 64-bit hash collision. An entry packs the key,
+ * the score and the context hash after the word into adjacent longs, so a
+ * hit reads one cache line and never touches a state object.
+ * <p>
+ * From the first miss of a query on, the rest of the phrase is scored by
+ * the wrapped model in one <code>scorePhrase</code> call, which returns
+ * the state after the last word only. The entries of the words before the
+ * last have no state, and their context hash chains the key instead of
+ * hashing a state: a later query of the same phrase after the same state
+ * hits on every word, and one that goes on differently rescores from the
+ * last state it passed. Hit and miss counts are summed across threads, in
+ * batches.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class CachingLanguageModel implements LanguageModel<IString> {
+
+    private static final long WORD_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    // Lookups a thread counts before adding them to the totals
+    private static final int STATS_BATCH = 1024;
+    private static final int ENTRY_LONGS = 3;
+
+    private final LanguageModel<IString> lm;
+    private final int mask;
+    private final ThreadLocal<Cache> caches;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param lm
+     * @param size entries per thread, rounded up to a power of two
+     */
+    public CachingLanguageModel(LanguageModel<IString> lm, int size) {
+        if (size < 1 || size > 1 << 30) throw new IllegalArgumentException("Invalid cache size: " + size);
+        this.lm = lm;
+        final int capacity = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+        this.mask = capacity - 1;
+        this.caches = ThreadLocal.withInitial(() -> new Cache(capacity));
+    }
+
+    private static final class Cache {
+        // Per slot: key, context hash after the word, score bits
+        final long[] entries;
+        // State after the word per slot, if known: the context hash is then
+        // its longHashCode()
+        final LMState[] states;
+        float[] scratch = new float[16];
+        int hits;
+        int misses;
+
+        Cache(int capacity) {
+            entries = new long[ENTRY_LONGS * capacity];
+            states = new LMState[capacity];
+        }
+    }
+
+    /**
+     * State of a <code>CachingLanguageModel</code>: a state of the wrapped
+     * model, which may be shared through the cache, and its own score.
+     */
+    private static final class CachedLMState extends LMState {
+        final LMState state;
+        final long hash;
+
+        CachedLMState(double score, LMState state, long hash) {
+            this.score = score;
+            this.state = state;
+            this.hash = hash;
+        }
+
+        @Override
+        public int length() {
+            return state.length();
+        }
+
+        @Override
+        public long longHashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof CachedLMState)) return false;
+            return state.equals(((CachedLMState) other).state);
+        }
+
+        @Override
+        public int hashCode() {
+            return state.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return state.toString();
+        }
+    }
+
+    private static long key(long stateHash, int word) {
+        return MurmurHash3.fmix64(stateHash + (word + 1) * WORD_MULTIPLIER);
+    }
+
+    /**
+     * Score [contextFrom, to) after priorState through the cache, keeping
+     * the scores of [from, to).
+     */
+    private LMState score(Sequence<IString> sequence, int contextFrom, int from, int to, LMState priorState,
+                          float[] scores, int offset) {
+        final Cache cache = caches.get();
+        final long[] entries = cache.entries;
+        final LMState[] states = cache.states;
+        // Last known state, before the word at position known
+        LMState state = null;
+        int known = contextFrom;
+        // Hash of the null state, which has no context
+        long hash = 0L;
+        if (priorState != null) {
+            state = ((CachedLMState) priorState).state;
+            hash = ((CachedLMState) priorState).hash;
+        }
+        double score = 0.0;
+        int i = contextFrom;
+        for (; i < to; ++i) {
+            final long key = key(hash, sequence.get(i).id);
+            final int entry = ENTRY_LONGS * ((int) key & mask);
+            // A fresh slot has key 0, which a query matches with
+            // probability 2^-64
+            if (entries[entry] != key) break;
+            hash = entries[entry + 1];
+            final float wordScore = Float.intBitsToFloat((int) entries[entry + 2]);
+            if (i >= from) {
+                score += wordScore;
+                if (scores != null) scores[offset + i - from] = wordScore;
+            }
+            final LMState next = states[entry / ENTRY_LONGS];
+            if (next != null) {
+                state = next;
+                known = i + 1;
+            }
+            ++cache.hits;
+        }
+        if (known < to) {
+            // Score from the last known state, then cache the words missed
+            final int length = to - known;
+            if (cache.scratch.length < length) cache.scratch = new float[Math.max(length, 2 * cache.scratch.length)];
+            final float[] scratch = cache.scratch;
+            state = lm.scorePhrase(sequence, known, to, state, scratch, 0);
+            // If every word hit, the last had no state
+            if (i == to) ++cache.misses;
+            for (; i < to; ++i) {
+                final float wordScore = scratch[i - known];
+                final long key = key(hash, sequence.get(i).id);
+                final int slot = (int) key & mask;
+                final int entry = ENTRY_LONGS * slot;
+                hash = i + 1 == to ? state.longHashCode() : key;
+                entries[entry] = key;
+                entries[entry + 1] = hash;
+                entries[entry + 2] = Float.floatToRawIntBits(wordScore);
+                states[slot] = i + 1 == to ? state : null;
+                if (i >= from) {
+                    score += wordScore;
+                    if (scores != null) scores[offset + i - from] = wordScore;
+                }
+                ++cache.misses;
+            }
+            hash = state.longHashCode();
+        }
+        if (cache.hits + cache.misses >= STATS_BATCH) {
+            hits.add(cache.hits);
+            misses.add(cache.misses);
+            cache.hits = 0;
+            cache.misses = 0;
+        }
+        if (state == null) state = lm.score(sequence.subsequence(0, 0), 0, null);
+        return new CachedLMState(score, state, hash);
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+        return score(sequence, priorState == null ? 0 : startOffsetIndex, startOffsetIndex, sequence.size(),
+                priorState, null, 0);
+    }
+
+    @Override
+    public LMState scorePhrase(Sequence<IString> phrase, int from, int to, LMState priorState, float[] scores,
+                               int offset) {
+        return score(phrase, from, from, to, priorState, scores, offset);
+    }
+
+    /**
+     * @return the number of lookups answered from the cache, up to the
+     * batches that threads have not reported yet.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups passed to the wrapped model, up to the
+     * batches that threads have not reported yet.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache.
+     */
+    public double hitRate() {
+        final long hits = hits();
+        final long total = hits + misses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * @return the wrapped model.
+     */
+    public LanguageModel<IString> getLanguageModel() {
+        return lm;
+    }
+
+    @Override
+    public boolean isKnown(String word) {
+        return lm.isKnown(word);
+    }
+
+    @Override
+    public Sequence<IString> getStartSequence() {
+        return lm.getStartSequence();
+    }
+
+    @Override
+    public IString getEndToken() {
+        return lm.getEndToken();
+    }
+
+    @Override
+    public String getName() {
+        return lm.getName();
+    }
+
+    @Override
+    public int order() {
+        return lm.order();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (cache of %d entries per thread, hit rate %.1f%% of %d lookups)", lm, mask + 1,
+                100.0 * hitRate(), hits() + misses());
+    }
+}
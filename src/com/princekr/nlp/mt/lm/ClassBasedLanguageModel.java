@@ -0,0 +1,87 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.AbstractWordClassMap;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.Vocabulary;
+
+/**
+ * Language model over word classes: words are mapped to their classes and
+ * scored by a model trained on class sequences. The vocabulary of classes
+ * is small, so a class model of a given order has far fewer distinct states
+ * than a word model, and hypotheses recombine more often.
+ * <p>
+ * States are those of the wrapped model. Threadsafe if the wrapped model
+ * is.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class ClassBasedLanguageModel implements LanguageModel<IString> {
+
+    private final LanguageModel<IString> lm;
+    private final AbstractWordClassMap classMap;
+
+    /**
+     * @param lm       model over classes
+     * @param classMap
+     */
+    public ClassBasedLanguageModel(LanguageModel<IString> lm, AbstractWordClassMap classMap) {
+        this.lm = lm;
+        this.classMap = classMap;
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+        final int from = priorState == null ? 0 : startOffsetIndex;
+        final Sequence<IString> classes = new ArraySequence(classMap.map(sequence, from, sequence.size()));
+        return lm.score(classes, startOffsetIndex - from, priorState);
+    }
+
+    @Override
+    public LMState scorePhrase(Sequence<IString> phrase, int from, int to, LMState priorState, float[] scores,
+                               int offset) {
+        final Sequence<IString> classes = new ArraySequence(classMap.map(phrase, from, to));
+        return lm.scorePhrase(classes, 0, to - from, priorState, scores, offset);
+    }
+
+    /**
+     * @return the model over classes.
+     */
+    public LanguageModel<IString> getLanguageModel() {
+        return lm;
+    }
+
+    @Override
+    public boolean isKnown(String word) {
+        final int systemId = Vocabulary.systemIndexOf(word);
+        if (systemId < 0) return false;
+        final int wordClass = classMap.get(systemId);
+        return wordClass != AbstractWordClassMap.UNKNOWN_CLASS.id && lm.isKnown(Vocabulary.systemGet(wordClass));
+    }
+
+    @Override
+    public Sequence<IString> getStartSequence() {
+        return lm.getStartSequence();
+    }
+
+    @Override
+    public IString getEndToken() {
+        return lm.getEndToken();
+    }
+
+    @Override
+    public String getName() {
+        return lm.getName();
+    }
+
+    @Override
+    public int order() {
+        return lm.order();
+    }
+
+    @Override
+    public String toString() {
+        return lm + " (word classes)";
+    }
+}
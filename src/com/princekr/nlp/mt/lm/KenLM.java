@@ -1,7 +1,167 @@
 package com.princekr.nlp.mt.lm;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
 /**
+ * JNI binding to a KenLM model, ARPA or KenLM binary. The native library
+ * (libPhrasalKenLM) is built into src-cc by the compileKenLM task and is
+ * looked up on <code>java.library.path</code>.
+ * <p>
+ * State and words cross into native code through a per-thread direct
+ * buffer in native byte order, so a call copies no Java arrays. Layout in
+ * ints, with stateLength = order - 1:
+ * <pre>
+ *   [0]                                       context length
+ *   [1, 1 + stateLength)                      context words, most recent first
+ *   [1 + stateLength, 1 + 2 * stateLength)    context backoffs (float)
+ *   [1 + 2 * stateLength, ... + numWords)     phrase words in, log10 scores (float) out
+ * </pre>
+ * <code>scorePhrase()</code> scores the phrase after the context in one
+ * native call and leaves the context after the phrase in the header.
+ * <p>
+ * The native model is freed by <code>close()</code>, which must not race
+ * with calls from other threads.
+ *
  * Created by prince on 2017/10/29.
  */
-public class KenLM {
+public final class KenLM implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(KenLM.class.getName());
+
+    public static final String LIBRARY_NAME = "PhrasalKenLM";
+    private static final boolean AVAILABLE = loadLibrary();
+    private static final int INITIAL_PHRASE_LENGTH = 64;
+
+    // 0 once closed
+    private volatile long handle;
+    private final int order;
+    private final int stateLength;
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary(LIBRARY_NAME);
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            logger.info("KenLM native library {} is not available: {}", LIBRARY_NAME, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the native library is loaded.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Load a model through KenLM.
+     *
+     * @param filename ARPA file or KenLM binary
+     * @throws IOException if KenLM cannot read the file
+     */
+    public KenLM(String filename) throws IOException {
+        if (!AVAILABLE) throw new IllegalStateException("KenLM native library " + LIBRARY_NAME + " is not loaded");
+        this.handle = construct(filename);
+        if (handle == 0) throw new IOException("KenLM could not load " + filename);
+        this.order = order(handle);
+        this.stateLength = order - 1;
+        this.buffers = ThreadLocal.withInitial(() -> allocate(INITIAL_PHRASE_LENGTH));
+    }
+
+    private ByteBuffer allocate(int maxPhraseLength) {
+        return ByteBuffer.allocateDirect(4 * (phraseOffset() + maxPhraseLength)).order(ByteOrder.nativeOrder());
+    }
+
+    public int order() {
+        return order;
+    }
+
+    private long handle() {
+        final long h = handle;
+        if (h == 0) throw new IllegalStateException("KenLM model is closed");
+        return h;
+    }
+
+    /**
+     * @param word
+     * @return the KenLM id of a word; 0 (&lt;unk&gt;) if unknown.
+     */
+    public int index(String word) {
+        return index(handle(), word.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param maxPhraseLength
+     * @return the calling thread's buffer, large enough for a phrase of
+     * maxPhraseLength words.
+     */
+    ByteBuffer buffer(int maxPhraseLength) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < 4 * (phraseOffset() + maxPhraseLength)) {
+            buffer = allocate(Math.max(maxPhraseLength, 2 * (buffer.capacity() / 4 - phraseOffset())));
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the int offset of the context words in a buffer.
+     */
+    int wordsOffset() {
+        return 1;
+    }
+
+    /**
+     * @return the int offset of the context backoffs in a buffer.
+     */
+    int backoffsOffset() {
+        return 1 + stateLength;
+    }
+
+    /**
+     * @return the int offset of the phrase in a buffer.
+     */
+    int phraseOffset() {
+        return 1 + 2 * stateLength;
+    }
+
+    /**
+     * Score the numWords words of the phrase in a buffer after its context.
+     *
+     * @param buffer   a buffer from <code>buffer()</code>
+     * @param numWords
+     */
+    void scorePhrase(ByteBuffer buffer, int numWords) {
+        scorePhrase(handle(), buffer, numWords);
+    }
+
+    /**
+     * Free the native model. Later calls throw IllegalStateException.
+     */
+    @Override
+    public synchronized void close() {
+        final long h = handle;
+        if (h == 0) return;
+        handle = 0;
+        destroy(h);
+    }
+
+    private static native long construct(String filename);
+
+    private static native void destroy(long handle);
+
+    private static native int order(long handle);
+
+    private static native int index(long handle, byte[] utf8);
+
+    private static native void scorePhrase(long handle, ByteBuffer buffer, int numWords);
 }
@@ -1,7 +1,58 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.MurmurHash3;
+
+import java.util.Arrays;
+
 /**
+ * State of a <code>KenLanguageModel</code>: KenLM's context words and
+ * backoffs, copied out of the native buffer.
+ *
  * Created by prince on 2017/10/29.
  */
-public class KenLMState {
+public class KenLMState extends LMState {
+
+    // KenLM ids of the context, most recent first
+    final int[] words;
+    final float[] backoffs;
+    // longHashCode(), computed on first use; 0 if not yet
+    private volatile long longHash;
+
+    KenLMState(double score, int[] words, float[] backoffs) {
+        this.score = score;
+        this.words = words;
+        this.backoffs = backoffs;
+    }
+
+    @Override
+    public int length() {
+        return words.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof KenLMState)) return false;
+        return Arrays.equals(words, ((KenLMState) other).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public long longHashCode() {
+        long hash = longHash;
+        if (hash == 0) {
+            hash = MurmurHash3.hash64(words, words.length, 0);
+            longHash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.4f", Arrays.toString(words), score);
+    }
 }
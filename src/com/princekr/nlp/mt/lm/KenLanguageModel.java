@@ -1,7 +1,206 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 /**
+ * Language model backed by KenLM through JNI. A call crosses into native
+ * code once, whether it scores one word or a whole phrase.
+ * <p>
+ * Use <code>load()</code> to fall back to <code>ARPALanguageModel</code>
+ * when the native library is not present. <code>close()</code> frees the
+ * native model.
+ *
  * Created by prince on 2017/10/29.
  */
-public class KenLanguageModel {
+public class KenLanguageModel implements LanguageModel<IString>, Closeable {
+
+    private static final Logger logger = LogManager.getLogger(KenLanguageModel.class.getName());
+
+    // Start of the header of KenLM binary files
+    private static final byte[] KENLM_BINARY_MAGIC = "mmap lm ".getBytes(StandardCharsets.US_ASCII);
+    private static final int UNKNOWN = -1;
+
+    private final String name;
+    private final KenLM kenLM;
+    private final int order;
+    // system id -> KenLM id, filled in on first use
+    private volatile int[] kenLMIds = new int[0];
+
+    /**
+     * Load a model through the native library.
+     *
+     * @param filename ARPA file or KenLM binary
+     * @throws IOException
+     */
+    public KenLanguageModel(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        this.name = filename;
+        this.kenLM = new KenLM(filename);
+        this.order = kenLM.order();
+        logger.info("Loaded {}-gram model {} through KenLM in {} ms", order, filename,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * Load a model through KenLM if the native library is present, and
+     * otherwise with <code>ARPALanguageModel</code>, which reads ARPA files
+     * and its own binary images but not KenLM binaries.
+     *
+     * @param filename
+     * @return the model.
+     * @throws IOException
+     */
+    public static LanguageModel<IString> load(String filename) throws IOException {
+        if (KenLM.isAvailable()) return new KenLanguageModel(filename);
+        if (isKenLMBinary(filename)) {
+            throw new IOException(String.format("%s is a KenLM binary, which requires the native library %s. "
+                    + "Load the ARPA file or convert it with BuildBinaryLM instead.", filename, KenLM.LIBRARY_NAME));
+        }
+        logger.warn("KenLM native library is not available; loading {} with ARPALanguageModel", filename);
+        return ARPALanguageModel.load(filename);
+    }
+
+    private static boolean isKenLMBinary(String filename) throws IOException {
+        final byte[] header = new byte[KENLM_BINARY_MAGIC.length];
+        try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+            int length = 0;
+            for (int n; length < header.length && (n = in.read(header, length, header.length - length)) > 0; ) {
+                length += n;
+            }
+            return length == header.length && Arrays.equals(header, KENLM_BINARY_MAGIC);
+        }
+    }
+
+    private int kenLMId(IString token) {
+        final int systemId = token.id;
+        int[] ids = kenLMIds;
+        if (systemId < ids.length) {
+            final int id = ids[systemId];
+            if (id != UNKNOWN) return id;
+        } else {
+            ids = grow(systemId);
+        }
+        // Racing threads store the same id
+        final int id = kenLM.index(token.toString());
+        ids[systemId] = id;
+        return id;
+    }
+
+    private synchronized int[] grow(int systemId) {
+        int[] ids = kenLMIds;
+        if (systemId >= ids.length) {
+            final int oldLength = ids.length;
+            ids = Arrays.copyOf(ids, Math.max(systemId + 1, Math.max(1024, 2 * oldLength)));
+            Arrays.fill(ids, oldLength, ids.length, UNKNOWN);
+            kenLMIds = ids;
+        }
+        return ids;
+    }
+
+    /**
+     * Score the tokens [from, to) after priorState, or after the tokens
+     * [contextFrom, from) if priorState is null, in one native call.
+     */
+    private LMState score(Sequence<IString> sequence, int contextFrom, int from, int to, LMState priorState,
+                          float[] scores, int offset) {
+        final int numWords = to - contextFrom;
+        final ByteBuffer buffer = kenLM.buffer(numWords);
+        final int wordsOffset = kenLM.wordsOffset();
+        final int backoffsOffset = kenLM.backoffsOffset();
+        final int phraseOffset = kenLM.phraseOffset();
+        if (priorState == null) {
+            buffer.putInt(0, 0);
+        } else {
+            final KenLMState state = (KenLMState) priorState;
+            buffer.putInt(0, state.words.length);
+            for (int i = 0; i < state.words.length; ++i) {
+                buffer.putInt(4 * (wordsOffset + i), state.words[i]);
+                buffer.putFloat(4 * (backoffsOffset + i), state.backoffs[i]);
+            }
+        }
+        for (int i = contextFrom; i < to; ++i) {
+            buffer.putInt(4 * (phraseOffset + i - contextFrom), kenLMId(sequence.get(i)));
+        }
+
+        kenLM.scorePhrase(buffer, numWords);
+
+        double score = 0.0;
+        for (int i = from; i < to; ++i) {
+            final float wordScore = buffer.getFloat(4 * (phraseOffset + i - contextFrom));
+            if (scores != null) scores[offset + i - from] = (float) (wordScore * ARPALanguageModel.LOG10_TO_LN);
+            score += wordScore;
+        }
+        final int length = buffer.getInt(0);
+        final int[] words = new int[length];
+        final float[] backoffs = new float[length];
+        for (int i = 0; i < length; ++i) {
+            words[i] = buffer.getInt(4 * (wordsOffset + i));
+            backoffs[i] = buffer.getFloat(4 * (backoffsOffset + i));
+        }
+        return new KenLMState(score * ARPALanguageModel.LOG10_TO_LN, words, backoffs);
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+        return score(sequence, priorState == null ? 0 : startOffsetIndex, startOffsetIndex, sequence.size(),
+                priorState, null, 0);
+    }
+
+    @Override
+    public LMState scorePhrase(Sequence<IString> phrase, int from, int to, LMState priorState, float[] scores,
+                               int offset) {
+        return score(phrase, from, from, to, priorState, scores, offset);
+    }
+
+    @Override
+    public boolean isKnown(String word) {
+        return kenLM.index(word) != 0 || word.equals(TokenUtils.UNK_TOKEN.toString());
+    }
+
+    @Override
+    public Sequence<IString> getStartSequence() {
+        return new ArraySequence(new IString[]{TokenUtils.START_TOKEN});
+    }
+
+    @Override
+    public IString getEndToken() {
+        return TokenUtils.END_TOKEN;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int order() {
+        return order;
+    }
+
+    /**
+     * Free the native model. The model must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        kenLM.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d-gram, KenLM)", name, order);
+    }
 }
@@ -1,7 +1,45 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.decoder.feat.FeaturizerState;
+
 /**
+ * Language model state after scoring a sequence: the score of the scored
+ * tokens and whatever context the model needs to score what follows.
+ * States with equal context are equal, so that hypotheses that end in them
+ * can be recombined.
+ * <p>
+ * Models should minimize their states as KenLM does: keep only the most
+ * recent words that some n-gram of the model extends to the right, since
+ * older words cannot change the score of any continuation.
+ * <code>equals()</code>, <code>hashCode()</code> and
+ * <code>longHashCode()</code> then compare only that suffix, and more
+ * hypotheses recombine.
+ *
  * Created by prince on 2017/10/29.
  */
-public class LMState {
+public abstract class LMState extends FeaturizerState {
+
+    protected double score;
+
+    /**
+     * @return the log probability of the scored tokens.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return the number of context tokens kept by the state, after
+     * minimization.
+     */
+    public abstract int length();
+
+    /**
+     * @return a 64-bit hash of the context, consistent with
+     * <code>equals()</code>, for caches that key on states without keeping
+     * them. Defaults to <code>hashCode()</code>.
+     */
+    public long longHashCode() {
+        return hashCode();
+    }
 }
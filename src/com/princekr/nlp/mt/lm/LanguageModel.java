@@ -1,7 +1,84 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
  * Interface for language models.
+ * <p>
+ * Scores are natural log probabilities. Implementations must be threadsafe.
  */
 public interface LanguageModel<T> {
+
+    /**
+     * Score the tokens of a sequence from startOffsetIndex on.
+     *
+     * @param sequence
+     * @param startOffsetIndex first token to score; earlier tokens are context
+     *                         if priorState is null
+     * @param priorState       state after the preceding tokens, or null
+     * @return the state after the last token, whose score is the sum over
+     * the scored tokens.
+     */
+    LMState score(Sequence<T> sequence, int startOffsetIndex, LMState priorState);
+
+    /**
+     * Score the tokens [from, to) of a phrase after priorState in one call,
+     * as the decoder does when it extends a hypothesis with a rule. This
+     * avoids a call and a state per token, and a native backend crosses into
+     * native code once per phrase.
+     * <p>
+     * The default implementation scores one token at a time.
+     *
+     * @param phrase
+     * @param from
+     * @param to
+     * @param priorState state before the phrase, or null to score the
+     *                   phrase without context
+     * @param scores     receives the log probability of token i at
+     *                   scores[offset + i - from]
+     * @param offset
+     * @return the state after the last token, whose score is the sum over
+     * the phrase.
+     */
+    default LMState scorePhrase(Sequence<T> phrase, int from, int to, LMState priorState, float[] scores,
+                                int offset) {
+        if (from == to) return score(phrase.subsequence(from, to), 0, priorState);
+        LMState state = priorState;
+        double score = 0.0;
+        for (int i = from; i < to; ++i) {
+            state = score(phrase.subsequence(i, i + 1), 0, state);
+            scores[offset + i - from] = (float) state.getScore();
+            score += state.getScore();
+        }
+        state.score = score;
+        return state;
+    }
+
+    /**
+     * Words outside the vocabulary of the model are scored as &lt;unk&gt;.
+     * The default implementation knows every word.
+     *
+     * @param word
+     * @return whether the word is in the vocabulary of the model.
+     */
+    default boolean isKnown(String word) {
+        return true;
+    }
+
+    /**
+     * @return the sequence that precedes every sentence, i.e. &lt;s&gt;.
+     */
+    Sequence<T> getStartSequence();
+
+    /**
+     * @return the token that ends every sentence, i.e. &lt;/s&gt;.
+     */
+    T getEndToken();
+
+    String getName();
+
+    /**
+     * @return the n-gram order.
+     */
+    int order();
 }
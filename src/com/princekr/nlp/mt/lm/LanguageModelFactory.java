@@ -1,7 +1,65 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.TargetClassMap;
+
+import java.io.IOException;
+
 /**
+ * Loads language models by filename.
+ *
  * Created by prince on 2017/10/29.
  */
 public class LanguageModelFactory {
+
+    public static final String KEN_LM_PREFIX = "kenlm:";
+    public static final String NPLM_PREFIX = "nplm:";
+    public static final String CLASS_LM_PREFIX = "class:";
+    // Cache entries per thread for decoding, where hypotheses share states;
+    // streams of distinct sentences, as in perplexity, are faster uncached
+    public static final int DEFAULT_CACHE_SIZE = 1 << 12;
+
+    private LanguageModelFactory() {
+    }
+
+    /**
+     * Load a language model. Filenames with the <code>kenlm:</code> prefix
+     * are loaded through KenLM, or the Java implementation if the native
+     * library is not present, and <code>nplm:</code> loads an
+     * <code>NPLM</code> with its defaults. <code>class:</code> loads the rest
+     * of the filename as a model over the classes of
+     * <code>TargetClassMap</code>, which must be loaded first. Otherwise
+     * binary images written by <code>ARPALanguageModel.save()</code> (see
+     * <code>BuildBinaryLM</code>) are mapped without parsing, and other files
+     * are read as ARPA, optionally gzipped.
+     *
+     * @param filename
+     * @return the model.
+     * @throws IOException
+     */
+    public static LanguageModel<IString> load(String filename) throws IOException {
+        if (filename.startsWith(CLASS_LM_PREFIX)) {
+            return new ClassBasedLanguageModel(load(filename.substring(CLASS_LM_PREFIX.length())),
+                    TargetClassMap.getInstance());
+        }
+        if (filename.startsWith(KEN_LM_PREFIX)) {
+            return KenLanguageModel.load(filename.substring(KEN_LM_PREFIX.length()));
+        }
+        if (filename.startsWith(NPLM_PREFIX)) return new NPLM(filename.substring(NPLM_PREFIX.length()));
+        return ARPALanguageModel.load(filename);
+    }
+
+    /**
+     * Load a language model as <code>load(String)</code> does, behind a
+     * <code>CachingLanguageModel</code>.
+     *
+     * @param filename
+     * @param cacheSize entries per decoding thread; 0 for no cache
+     * @return the model.
+     * @throws IOException
+     */
+    public static LanguageModel<IString> load(String filename, int cacheSize) throws IOException {
+        final LanguageModel<IString> lm = load(filename);
+        return cacheSize > 0 ? new CachingLanguageModel(lm, cacheSize) : lm;
+    }
 }
@@ -0,0 +1,480 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.BitPackedArray;
+import com.princekr.nlp.mt.util.Vocabulary;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reversed n-gram trie with quantized probabilities, similar to KenLM's
+ * trie. This is the storage of <code>ARPALanguageModel</code>.
+ * <p>
+ * Unigrams are arrays indexed by LM word id that hold the full-precision
+ * probability and backoff. An n-gram of a higher order is a child of its
+ * suffix: its record holds its first word, quantized probability and
+ * backoff, and the records of each order are sorted by (suffix, word) so
+ * that the children of an n-gram are a contiguous range found through a
+ * bit-packed pointer array. Probabilities and backoffs are quantized per
+ * order.
+ * <p>
+ * Every n-gram below the highest order also has an extension bit, set if
+ * it is the prefix of a longer n-gram or has a nonzero backoff. A context
+ * without the bit backs off the same way whatever follows, so states can
+ * drop it (KenLM's right-state minimization).
+ * <p>
+ * The trie is built order by order with <code>addOrder()</code>, or mapped
+ * from a binary image written by <code>write()</code>. Layout
+ * (little-endian, sections padded to 8 bytes):
+ * <pre>
+ *   int    magic, version, order, probBits, backoffBits, wordBits, numUnigrams, reserved
+ *   long[order]              number of n-grams per order
+ *   int[numUnigrams + 1]     word offsets, then the UTF-8 words in LM id order
+ *   float[numUnigrams]       unigram log10 probabilities
+ *   float[numUnigrams]       unigram log10 backoffs
+ *   unigram extension bits (BitPackedArray)
+ *   per order 2..N           quantizer centers: int count, float[count] for
+ *                            probabilities, then for backoffs below order N
+ *   per order 2..N           records (BitPackedArray)
+ *   per order 1..N-1         child pointers (BitPackedArray)
+ * </pre>
+ * Threadsafe once built.
+ *
+ * Created by prince on 2017/10/29.
+ */
+final class NGramTrie {
+
+    static final int MAGIC = 0x50415250; // "PARP"
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+
+    static final int UNK_ID = 0;
+
+    final int order;
+    final int probBits;
+    final int backoffBits;
+    final int wordBits;
+    // LM id -> system vocabulary id
+    final int[] systemIds;
+    final FloatBuffer unigramProbs;
+    final FloatBuffer unigramBackoffs;
+    final BitPackedArray unigramExtensions;
+    // records[n - 1]: n-grams of order n, for n >= 2
+    final BitPackedArray[] records;
+    // pointers[n - 1]: first child in order n + 1 of each n-gram of order n, plus an end
+    final BitPackedArray[] pointers;
+    final Quantizer[] probQuantizers;
+    final Quantizer[] backoffQuantizers;
+
+    /**
+     * Start a trie with its unigrams.
+     *
+     * @param order
+     * @param probBits    bits per quantized probability
+     * @param backoffBits bits per quantized backoff
+     * @param systemIds   system ids of the words, indexed by LM id
+     * @param probs       log10 probabilities, indexed by LM id
+     * @param backoffs    log10 backoffs, indexed by LM id
+     * @param numUnigrams
+     */
+    NGramTrie(int order, int probBits, int backoffBits, int[] systemIds, float[] probs, float[] backoffs,
+              int numUnigrams) {
+        this.order = order;
+        this.probBits = probBits;
+        this.backoffBits = backoffBits;
+        this.wordBits = BitPackedArray.bitsFor(numUnigrams - 1);
+        if (wordBits + probBits + backoffBits + 1 > BitPackedArray.MAX_WIDTH) {
+            throw new IllegalArgumentException("Vocabulary is too large: " + numUnigrams);
+        }
+        this.systemIds = java.util.Arrays.copyOf(systemIds, numUnigrams);
+        this.unigramProbs = ByteBuffer.allocateDirect(4 * numUnigrams).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        this.unigramBackoffs = ByteBuffer.allocateDirect(4 * numUnigrams).order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        unigramProbs.put(probs, 0, numUnigrams);
+        unigramBackoffs.put(backoffs, 0, numUnigrams);
+        this.unigramExtensions = new BitPackedArray(numUnigrams, 1);
+        for (int id = 0; id < numUnigrams; ++id) if (backoffs[id] != 0.0f) unigramExtensions.set(id, 1);
+        this.records = new BitPackedArray[order];
+        this.pointers = new BitPackedArray[order];
+        this.probQuantizers = new Quantizer[order];
+        this.backoffQuantizers = new Quantizer[order];
+    }
+
+    private NGramTrie(int order, int probBits, int backoffBits, int wordBits, int[] systemIds,
+                      FloatBuffer unigramProbs, FloatBuffer unigramBackoffs, BitPackedArray unigramExtensions,
+                      BitPackedArray[] records,
+                      BitPackedArray[] pointers, Quantizer[] probQuantizers, Quantizer[] backoffQuantizers) {
+        this.order = order;
+        this.probBits = probBits;
+        this.backoffBits = backoffBits;
+        this.wordBits = wordBits;
+        this.systemIds = systemIds;
+        this.unigramProbs = unigramProbs;
+        this.unigramBackoffs = unigramBackoffs;
+        this.unigramExtensions = unigramExtensions;
+        this.records = records;
+        this.pointers = pointers;
+        this.probQuantizers = probQuantizers;
+        this.backoffQuantizers = backoffQuantizers;
+    }
+
+    int numUnigrams() {
+        return systemIds.length;
+    }
+
+    /**
+     * @param n
+     * @return the number of n-grams of order n.
+     */
+    long size(int n) {
+        return n == 1 ? numUnigrams() : records[n - 1] == null ? 0 : records[n - 1].length();
+    }
+
+    /**
+     * Find the n-gram of order childOrder that extends the (childOrder -
+     * 1)-gram parent with a word on the left.
+     *
+     * @return the index of the n-gram in its order, or -1.
+     */
+    long find(int childOrder, long parent, int word) {
+        final BitPackedArray range = pointers[childOrder - 2];
+        if (range == null) return -1;
+        final BitPackedArray children = records[childOrder - 1];
+        final long wordMask = (1L << wordBits) - 1;
+        long lo = range.get(parent);
+        long hi = range.get(parent + 1) - 1;
+        while (lo <= hi) {
+            final long mid = (lo + hi) >>> 1;
+            final long w = children.get(mid) & wordMask;
+            if (w < word) lo = mid + 1;
+            else if (w > word) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Find an n-gram by walking from its last word.
+     *
+     * @param ids    LM ids
+     * @param from   first word of the n-gram in ids
+     * @param length order of the n-gram
+     * @return the index of ids[from..from + length) in its order, or -1.
+     */
+    long node(int[] ids, int from, int length) {
+        final int last = from + length - 1;
+        long node = ids[last];
+        for (int k = last - 1; k >= from && node >= 0; --k) node = find(last - k + 1, node, ids[k]);
+        return node;
+    }
+
+    /**
+     * Find the suffix of an n-gram, which is its parent in the trie.
+     *
+     * @param ids LM ids of the n-gram
+     * @param n
+     * @return the index of ids[1..n) in order n - 1, or -1.
+     */
+    long parent(int[] ids, int n) {
+        return node(ids, 1, n - 1);
+    }
+
+    /**
+     * Find the prefix of an n-gram, which extends to the right into it.
+     *
+     * @param ids LM ids of the n-gram
+     * @param n
+     * @return the index of ids[0..n - 1) in order n - 1, or -1.
+     */
+    long prefix(int[] ids, int n) {
+        return node(ids, 0, n - 1);
+    }
+
+    private int recordWidth(int n) {
+        return wordBits + probBits + (n < order ? backoffBits + 1 : 0);
+    }
+
+    private long extensionBit() {
+        return 1L << (wordBits + probBits + backoffBits);
+    }
+
+    float prob(int n, long record) {
+        return probQuantizers[n - 1].decode((int) (record >>> wordBits) & ((1 << probBits) - 1));
+    }
+
+    float backoff(int n, long record) {
+        return backoffQuantizers[n - 1].decode((int) (record >>> (wordBits + probBits)) & ((1 << backoffBits) - 1));
+    }
+
+    /**
+     * @param n      order of the record, below the highest
+     * @param record
+     * @return whether the n-gram can still be extended to the right.
+     */
+    boolean extendsRight(int n, long record) {
+        return (record & extensionBit()) != 0;
+    }
+
+    /**
+     * @param word LM id
+     * @return whether the unigram can still be extended to the right.
+     */
+    boolean extendsRight(int word) {
+        return unigramExtensions.get(word) != 0;
+    }
+
+    /**
+     * Set the extension bits of n-grams of order n, once their extensions
+     * of order n + 1 have been added.
+     *
+     * @param n
+     * @param nodes indices in order n; negative ones are ignored
+     * @param size
+     */
+    void markExtended(int n, long[] nodes, int size) {
+        if (n == 1) {
+            for (int i = 0; i < size; ++i) if (nodes[i] >= 0) unigramExtensions.set(nodes[i], 1);
+            return;
+        }
+        final BitPackedArray packed = records[n - 1];
+        final long bit = extensionBit();
+        for (int i = 0; i < size; ++i) {
+            if (nodes[i] >= 0) packed.set(nodes[i], packed.get(nodes[i]) | bit);
+        }
+    }
+
+    /**
+     * Sort, quantize and pack the n-grams of order n. Orders must be added
+     * in increasing order, since their parents must be known.
+     *
+     * @param n
+     * @param keys     parent index &lt;&lt; 32 | first word, in any order
+     * @param probs    log10 probabilities
+     * @param backoffs log10 backoffs, or null for the highest order
+     * @param size     number of n-grams
+     */
+    void addOrder(int n, long[] keys, float[] probs, float[] backoffs, int size) {
+        final int[] sorted = new int[size];
+        for (int i = 0; i < size; ++i) sorted[i] = i;
+        LongArrays.parallelRadixSortIndirect(sorted, keys, 0, size, false);
+
+        final Quantizer probQuantizer = Quantizer.train(probs, size, probBits, false);
+        final Quantizer backoffQuantizer = n < order ? Quantizer.train(backoffs, size, backoffBits, true) : null;
+        final BitPackedArray packed = new BitPackedArray(size, recordWidth(n));
+        final long numParents = size(n - 1);
+        final BitPackedArray parentPointers = new BitPackedArray(numParents + 1, BitPackedArray.bitsFor(size));
+        long parent = 0;
+        for (int r = 0; r < size; ++r) {
+            final int i = sorted[r];
+            final long key = keys[i];
+            while (parent <= key >>> 32) parentPointers.set(parent++, r);
+            long record = key & 0xffffffffL | (long) probQuantizer.encode(probs[i]) << wordBits;
+            if (backoffQuantizer != null) {
+                record |= (long) backoffQuantizer.encode(backoffs[i]) << (wordBits + probBits);
+                if (backoffs[i] != 0.0f) record |= extensionBit();
+            }
+            packed.set(r, record);
+        }
+        while (parent <= numParents) parentPointers.set(parent++, size);
+
+        records[n - 1] = packed;
+        pointers[n - 2] = parentPointers;
+        probQuantizers[n - 1] = probQuantizer;
+        backoffQuantizers[n - 1] = backoffQuantizer;
+    }
+
+    boolean isMapped() {
+        return unigramProbs.isReadOnly();
+    }
+
+    /**
+     * @return the number of off-heap bytes.
+     */
+    long byteSize() {
+        long size = 8L * numUnigrams() + unigramExtensions.byteSize();
+        for (BitPackedArray array : records) if (array != null) size += array.byteSize();
+        for (BitPackedArray array : pointers) if (array != null) size += array.byteSize();
+        return size;
+    }
+
+    /**
+     * Write the binary image at the current position of a channel.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    void write(FileChannel channel) throws IOException {
+        final int numUnigrams = numUnigrams();
+        final ByteBuffer header = allocate(HEADER_BYTES + 8 * order);
+        header.putInt(MAGIC).putInt(VERSION).putInt(order).putInt(probBits).putInt(backoffBits).putInt(wordBits)
+                .putInt(numUnigrams).putInt(0);
+        for (int n = 1; n <= order; ++n) header.putLong(size(n));
+        writeFully(channel, header);
+
+        final byte[][] words = new byte[numUnigrams][];
+        int numBytes = 0;
+        for (int id = 0; id < numUnigrams; ++id) {
+            words[id] = Vocabulary.systemGet(systemIds[id]).getBytes(StandardCharsets.UTF_8);
+            numBytes += words[id].length;
+        }
+        final ByteBuffer vocabulary = allocate(pad(4 * (numUnigrams + 1) + numBytes));
+        int offset = 0;
+        for (int id = 0; id < numUnigrams; ++id) {
+            vocabulary.putInt(offset);
+            offset += words[id].length;
+        }
+        vocabulary.putInt(offset);
+        for (byte[] word : words) vocabulary.put(word);
+        writeFully(channel, vocabulary);
+
+        final ByteBuffer unigrams = allocate(pad(8 * numUnigrams));
+        for (int id = 0; id < numUnigrams; ++id) unigrams.putFloat(unigramProbs.get(id));
+        for (int id = 0; id < numUnigrams; ++id) unigrams.putFloat(unigramBackoffs.get(id));
+        writeFully(channel, unigrams);
+        unigramExtensions.write(channel);
+
+        int quantizerBytes = 0;
+        for (int n = 2; n <= order; ++n) {
+            quantizerBytes += 4 + 4 * probQuantizers[n - 1].centers().length;
+            if (n < order) quantizerBytes += 4 + 4 * backoffQuantizers[n - 1].centers().length;
+        }
+        final ByteBuffer quantizers = allocate(pad(quantizerBytes));
+        for (int n = 2; n <= order; ++n) {
+            putCenters(quantizers, probQuantizers[n - 1]);
+            if (n < order) putCenters(quantizers, backoffQuantizers[n - 1]);
+        }
+        writeFully(channel, quantizers);
+
+        for (int n = 2; n <= order; ++n) records[n - 1].write(channel);
+        for (int n = 1; n < order; ++n) pointers[n - 1].write(channel);
+    }
+
+    private static void putCenters(ByteBuffer buffer, Quantizer quantizer) {
+        final float[] centers = quantizer.centers();
+        buffer.putInt(centers.length);
+        for (float center : centers) buffer.putFloat(center);
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int pad(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * @param channel
+     * @return whether the channel starts with a binary image.
+     * @throws IOException
+     */
+    static boolean isImage(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_BYTES) return false;
+        final ByteBuffer magic = allocate(4);
+        channel.read(magic, 0);
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Map a binary image. Only the vocabulary and the quantizer centers are
+     * copied to the heap; the words are interned in the system vocabulary.
+     *
+     * @param channel
+     * @return the trie.
+     * @throws IOException
+     */
+    static NGramTrie map(FileChannel channel) throws IOException {
+        final ByteBuffer header = map(channel, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC) throw new IOException("Not a binary language model");
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported binary language model version: " + header.getInt(4));
+        }
+        final int order = header.getInt(8);
+        final int probBits = header.getInt(12);
+        final int backoffBits = header.getInt(16);
+        final int wordBits = header.getInt(20);
+        final int numUnigrams = header.getInt(24);
+        if (order < 1 || numUnigrams < 1 || wordBits + probBits + backoffBits + 1 > BitPackedArray.MAX_WIDTH) {
+            throw new IOException("Corrupt binary language model header");
+        }
+        final ByteBuffer sizeBuffer = map(channel, HEADER_BYTES, 8 * order);
+        final long[] sizes = new long[order];
+        for (int n = 1; n <= order; ++n) sizes[n - 1] = sizeBuffer.getLong(8 * (n - 1));
+        long position = HEADER_BYTES + 8 * order;
+
+        final ByteBuffer offsets = map(channel, position, 4 * (numUnigrams + 1));
+        final int numBytes = offsets.getInt(4 * numUnigrams);
+        final ByteBuffer vocabulary = map(channel, position + 4 * (numUnigrams + 1), numBytes);
+        final int[] systemIds = new int[numUnigrams];
+        final byte[] word = new byte[1024];
+        for (int id = 0; id < numUnigrams; ++id) {
+            final int start = offsets.getInt(4 * id);
+            final int length = offsets.getInt(4 * (id + 1)) - start;
+            final byte[] bytes = length <= word.length ? word : new byte[length];
+            vocabulary.position(start);
+            vocabulary.get(bytes, 0, length);
+            systemIds[id] = Vocabulary.systemAdd(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        position += pad(4 * (numUnigrams + 1) + numBytes);
+
+        final FloatBuffer unigramProbs = map(channel, position, 4 * numUnigrams).asFloatBuffer();
+        final FloatBuffer unigramBackoffs = map(channel, position + 4 * numUnigrams, 4 * numUnigrams).asFloatBuffer();
+        position += pad(8 * numUnigrams);
+        final BitPackedArray unigramExtensions = BitPackedArray.map(channel, position, numUnigrams, 1);
+        position += BitPackedArray.byteSize(numUnigrams, 1);
+
+        final Quantizer[] probQuantizers = new Quantizer[order];
+        final Quantizer[] backoffQuantizers = new Quantizer[order];
+        long quantizerPosition = position;
+        for (int n = 2; n <= order; ++n) {
+            final float[] probCenters = readCenters(channel, quantizerPosition);
+            quantizerPosition += 4 + 4 * probCenters.length;
+            probQuantizers[n - 1] = Quantizer.of(probCenters, false);
+            if (n < order) {
+                final float[] backoffCenters = readCenters(channel, quantizerPosition);
+                quantizerPosition += 4 + 4 * backoffCenters.length;
+                backoffQuantizers[n - 1] = Quantizer.of(backoffCenters, true);
+            }
+        }
+        position += pad((int) (quantizerPosition - position));
+
+        final BitPackedArray[] records = new BitPackedArray[order];
+        for (int n = 2; n <= order; ++n) {
+            final int width = wordBits + probBits + (n < order ? backoffBits + 1 : 0);
+            records[n - 1] = BitPackedArray.map(channel, position, sizes[n - 1], width);
+            position += BitPackedArray.byteSize(sizes[n - 1], width);
+        }
+        final BitPackedArray[] pointers = new BitPackedArray[order];
+        for (int n = 1; n < order; ++n) {
+            final int width = BitPackedArray.bitsFor(sizes[n]);
+            pointers[n - 1] = BitPackedArray.map(channel, position, sizes[n - 1] + 1, width);
+            position += BitPackedArray.byteSize(sizes[n - 1] + 1, width);
+        }
+        return new NGramTrie(order, probBits, backoffBits, wordBits, systemIds, unigramProbs, unigramBackoffs,
+                unigramExtensions, records, pointers, probQuantizers, backoffQuantizers);
+    }
+
+    private static float[] readCenters(FileChannel channel, long position) throws IOException {
+        final int count = map(channel, position, 4).getInt(0);
+        if (count < 1 || count > 1 << 24) throw new IOException("Corrupt quantizer: " + count + " centers");
+        final FloatBuffer buffer = map(channel, position + 4, 4 * count).asFloatBuffer();
+        final float[] centers = new float[count];
+        buffer.get(centers);
+        return centers;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (position + size > channel.size()) throw new IOException("Binary language model is truncated");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -1,7 +1,519 @@
 package com.princekr.nlp.mt.lm;
 
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.MurmurHash3;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
+
 /**
+ * Feed-forward neural language model in the text format of the NPLM
+ * toolkit (Vaswani et al., 2013): input embeddings of the order - 1
+ * context words, one or two hidden layers and an output softmax.
+ * <p>
+ * Scoring runs on the CPU in plain float loops that the JIT can vectorize:
+ * <ul>
+ * <li>The first layer is a sum over context positions of W1_pos *
+ * embedding(word). It is precomputed for every (word, position) of the most
+ * frequent input words, which the toolkit lists first.</li>
+ * <li>The last hidden layer and the log partition function of a context are
+ * kept in a per-thread, direct-mapped cache keyed by a hash of the
+ * context, so each further word after a cached context costs one dot
+ * product.</li>
+ * </ul>
+ * Output probabilities are normalized by default. Self-normalized models
+ * can skip the partition function, which is the cost of a full output
+ * layer per context.
+ *
  * Created by prince on 2017/10/29.
  */
-public class NPLM {
+public class NPLM implements LanguageModel<IString> {
+
+    private static final Logger logger = LogManager.getLogger(NPLM.class.getName());
+
+    public static final int DEFAULT_CACHE_SIZE = 1 << 14;
+    public static final int DEFAULT_PRECOMPUTED_WORDS = 1 << 14;
+
+    private enum Activation {
+        IDENTITY, RECTIFIER, TANH, HARDTANH;
+
+        static Activation of(String name) throws IOException {
+            switch (name) {
+                case "identity":
+                    return IDENTITY;
+                case "rectifier":
+                    return RECTIFIER;
+                case "tanh":
+                    return TANH;
+                case "hardtanh":
+                    return HARDTANH;
+                default:
+                    throw new IOException("Unknown NPLM activation function: " + name);
+            }
+        }
+
+        void apply(float[] x, int size) {
+            switch (this) {
+                case RECTIFIER:
+                    for (int i = 0; i < size; ++i) x[i] = Math.max(0.0f, x[i]);
+                    break;
+                case TANH:
+                    for (int i = 0; i < size; ++i) x[i] = (float) Math.tanh(x[i]);
+                    break;
+                case HARDTANH:
+                    for (int i = 0; i < size; ++i) x[i] = Math.max(-1.0f, Math.min(1.0f, x[i]));
+                    break;
+                default:
+            }
+        }
+    }
+
+    private final String name;
+    private final int order;
+    private final int contextSize;
+    private final boolean normalize;
+    private final Activation activation;
+
+    // Input and output vocabularies: system id -> model id; unknown past the end
+    private final int[] inputIds;
+    private final int[] outputIds;
+    private final int inputUnk;
+    private final int outputUnk;
+    private final int inputStart;
+
+    private final int embeddingSize;
+    // Units of the first hidden layer, and of the last one
+    private final int hidden1Size;
+    private final int hidden2Size;
+    private final boolean twoLayers;
+
+    // inputVocabSize x embeddingSize
+    private final float[] inputEmbeddings;
+    // hidden1Size x (contextSize * embeddingSize)
+    private final float[] hiddenWeights1;
+    private final float[] hiddenBiases1;
+    // Transposed: hidden1Size x hidden2Size, or null with one layer
+    private final float[] hiddenWeights2T;
+    private final float[] hiddenBiases2;
+    // outputVocabSize x hidden2Size, and transposed for the partition function
+    private final float[] outputWeights;
+    private final float[] outputWeightsT;
+    private final float[] outputBiases;
+    private final int outputVocabSize;
+
+    // W1_pos * embedding(word): numPrecomputed x contextSize x hidden1Size
+    private final float[] precomputed;
+    private final int numPrecomputed;
+
+    private final int cacheSize;
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * Load a model with normalized probabilities and the default cache and
+     * precomputation sizes.
+     *
+     * @param filename NPLM text format, optionally gzipped
+     * @throws IOException
+     */
+    public NPLM(String filename) throws IOException {
+        this(filename, true, DEFAULT_CACHE_SIZE, DEFAULT_PRECOMPUTED_WORDS);
+    }
+
+    /**
+     * Load a model.
+     *
+     * @param filename        NPLM text format, optionally gzipped
+     * @param normalize       whether to normalize output probabilities
+     * @param cacheSize       contexts cached per thread, rounded up to a
+     *                        power of two; 0 for no cache
+     * @param precomputeWords number of most frequent input words whose
+     *                        first-layer products are precomputed
+     * @throws IOException
+     */
+    public NPLM(String filename, boolean normalize, int cacheSize, int precomputeWords) throws IOException {
+        final long startTime = System.nanoTime();
+        this.name = filename;
+        this.normalize = normalize;
+        final Map<String, float[]> sections = new HashMap<>();
+        final Map<String, String> config = new HashMap<>();
+        final List<String> inputVocabulary = new ArrayList<>();
+        final List<String> outputVocabulary = new ArrayList<>();
+        read(filename, config, inputVocabulary, outputVocabulary, sections);
+
+        this.order = intConfig(config, "ngram_size");
+        this.contextSize = order - 1;
+        this.embeddingSize = intConfig(config, "input_embedding_dimension");
+        final int numHidden = intConfig(config, "num_hidden");
+        final int outputEmbeddingSize = intConfig(config, "output_embedding_dimension");
+        this.activation = Activation.of(config.getOrDefault("activation_function", "rectifier"));
+        this.twoLayers = numHidden > 0;
+        this.hidden1Size = twoLayers ? numHidden : outputEmbeddingSize;
+        this.hidden2Size = outputEmbeddingSize;
+        if (inputVocabulary.size() != intConfig(config, "input_vocab_size")
+                || outputVocabulary.size() != intConfig(config, "output_vocab_size")) {
+            throw new IOException("Vocabulary sizes do not match the config of " + filename);
+        }
+        this.outputVocabSize = outputVocabulary.size();
+
+        this.inputEmbeddings = matrix(sections, "input_embeddings", inputVocabulary.size(), embeddingSize);
+        this.hiddenWeights1 = matrix(sections, "hidden_weights 1", hidden1Size, contextSize * embeddingSize);
+        this.hiddenBiases1 = matrix(sections, "hidden_biases 1", hidden1Size, 1);
+        if (twoLayers) {
+            this.hiddenWeights2T = transpose(matrix(sections, "hidden_weights 2", hidden2Size, hidden1Size),
+                    hidden2Size, hidden1Size);
+            this.hiddenBiases2 = matrix(sections, "hidden_biases 2", hidden2Size, 1);
+        } else {
+            this.hiddenWeights2T = null;
+            this.hiddenBiases2 = null;
+        }
+        this.outputWeights = matrix(sections, "output_weights", outputVocabSize, hidden2Size);
+        this.outputWeightsT = normalize ? transpose(outputWeights, outputVocabSize, hidden2Size) : null;
+        this.outputBiases = matrix(sections, "output_biases", outputVocabSize, 1);
+
+        this.inputIds = systemToModelIds(inputVocabulary);
+        this.outputIds = systemToModelIds(outputVocabulary);
+        this.inputUnk = modelId(inputVocabulary, TokenUtils.UNK_TOKEN.toString(), filename);
+        this.outputUnk = modelId(outputVocabulary, TokenUtils.UNK_TOKEN.toString(), filename);
+        this.inputStart = modelId(inputVocabulary, TokenUtils.START_TOKEN.toString(), filename);
+
+        final long maxPrecomputed = (Integer.MAX_VALUE - 8) / ((long) contextSize * hidden1Size);
+        this.numPrecomputed = (int) Math.min(Math.min(precomputeWords, inputVocabulary.size()), maxPrecomputed);
+        this.precomputed = precompute();
+
+        if (cacheSize < 0 || (long) cacheSize * hidden2Size > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Invalid cache size: " + cacheSize);
+        }
+        this.cacheSize = Integer.highestOneBit(cacheSize) == cacheSize ? cacheSize :
+                Integer.highestOneBit(cacheSize) << 1;
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+        logger.info("Loaded {}-gram NPLM {} ({} x {} hidden units, {} input and {} output words) in {} ms", order,
+                filename, hidden1Size, twoLayers ? hidden2Size : 0, inputVocabulary.size(), outputVocabSize,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    private static int intConfig(Map<String, String> config, String key) throws IOException {
+        final String value = config.get(key);
+        if (value == null) throw new IOException("Missing NPLM config: " + key);
+        return Integer.parseInt(value);
+    }
+
+    private static float[] matrix(Map<String, float[]> sections, String section, int rows, int cols)
+            throws IOException {
+        final float[] values = sections.get(section);
+        if (values == null) throw new IOException("Missing NPLM section: \\" + section);
+        if (values.length != (long) rows * cols) {
+            throw new IOException(String.format("NPLM section \\%s has %d values, expected %d x %d", section,
+                    values.length, rows, cols));
+        }
+        return values;
+    }
+
+    private static float[] transpose(float[] matrix, int rows, int cols) {
+        final float[] transposed = new float[matrix.length];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) transposed[c * rows + r] = matrix[r * cols + c];
+        }
+        return transposed;
+    }
+
+    private static int[] systemToModelIds(List<String> vocabulary) {
+        final int[] systemIds = new int[vocabulary.size()];
+        int maxSystemId = 0;
+        for (int id = 0; id < systemIds.length; ++id) {
+            systemIds[id] = Vocabulary.systemAdd(vocabulary.get(id));
+            maxSystemId = Math.max(maxSystemId, systemIds[id]);
+        }
+        final int[] modelIds = new int[maxSystemId + 1];
+        Arrays.fill(modelIds, -1);
+        for (int id = 0; id < systemIds.length; ++id) modelIds[systemIds[id]] = id;
+        return modelIds;
+    }
+
+    private static int modelId(List<String> vocabulary, String word, String filename) throws IOException {
+        final int id = vocabulary.indexOf(word);
+        if (id < 0) throw new IOException(filename + " has no " + word + " in its vocabulary");
+        return id;
+    }
+
+    /**
+     * Read the sections of an NPLM file. Matrices are read as flat arrays
+     * in row-major order, whatever their line breaks.
+     */
+    private static void read(String filename, Map<String, String> config, List<String> inputVocabulary,
+                             List<String> outputVocabulary, Map<String, float[]> sections) throws IOException {
+        InputStream in = Files.newInputStream(Paths.get(filename));
+        if (filename.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String section = null;
+            float[] values = new float[1024];
+            int numValues = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (line.startsWith("\\")) {
+                    if (section != null && numValues > 0) sections.put(section, Arrays.copyOf(values, numValues));
+                    section = line.substring(1);
+                    numValues = 0;
+                    if (section.equals("end")) break;
+                    continue;
+                }
+                if (line.isEmpty() || section == null) continue;
+                if (section.equals("config")) {
+                    final int space = line.indexOf(' ');
+                    if (space > 0) config.put(line.substring(0, space), line.substring(space + 1).trim());
+                } else if (section.equals("input_vocab")) {
+                    inputVocabulary.add(line);
+                } else if (section.equals("output_vocab")) {
+                    outputVocabulary.add(line);
+                } else {
+                    for (StringTokenizer tokens = new StringTokenizer(line); tokens.hasMoreTokens(); ) {
+                        if (numValues == values.length) values = Arrays.copyOf(values, 2 * numValues);
+                        values[numValues++] = Float.parseFloat(tokens.nextToken());
+                    }
+                }
+            }
+        }
+    }
+
+    private float[] precompute() {
+        final float[] products = new float[numPrecomputed * contextSize * hidden1Size];
+        for (int word = 0; word < numPrecomputed; ++word) {
+            for (int position = 0; position < contextSize; ++position) {
+                firstLayer(word, position, products, (word * contextSize + position) * hidden1Size);
+            }
+        }
+        return products;
+    }
+
+    /**
+     * out[offset + j] = (W1_position * embedding(word))[j]
+     */
+    private void firstLayer(int word, int position, float[] out, int offset) {
+        final int inputSize = contextSize * embeddingSize;
+        final int embedding = word * embeddingSize;
+        for (int j = 0; j < hidden1Size; ++j) {
+            out[offset + j] = dot(hiddenWeights1, j * inputSize + position * embeddingSize, inputEmbeddings,
+                    embedding, embeddingSize);
+        }
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int size) {
+        // Four accumulators keep the adds independent
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+        int i = 0;
+        for (; i + 3 < size; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < size; ++i) s0 += a[aOffset + i] * b[bOffset + i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * y[0, size) += alpha * x[offset, offset + size)
+     */
+    private static void axpy(float alpha, float[] x, int offset, float[] y, int size) {
+        for (int i = 0; i < size; ++i) y[i] += alpha * x[offset + i];
+    }
+
+    /**
+     * Per-thread buffers and the cache of hidden layers by context.
+     */
+    private final class Scratch {
+        final float[] hidden1 = new float[hidden1Size];
+        final float[] hidden2 = new float[hidden2Size];
+        final float[] firstLayer = new float[hidden1Size];
+        final float[] logits = normalize ? new float[outputVocabSize] : null;
+        final int[] context = new int[contextSize];
+        // Result of hiddenLayer(): offset of the layer and log partition function
+        int hiddenOffset;
+        float logPartition;
+        // Cache: 0 marks an empty slot
+        final long[] keys = new long[cacheSize];
+        final float[] hidden = new float[cacheSize * hidden2Size];
+        final float[] logPartitions = new float[cacheSize];
+    }
+
+    /**
+     * Find or compute the last hidden layer of a context.
+     *
+     * @return the array that holds the layer at
+     * <code>scratch.hiddenOffset</code>: either the cache of the thread or
+     * <code>scratch.hidden2</code>. Also sets
+     * <code>scratch.logPartition</code>.
+     */
+    private float[] hiddenLayer(Scratch scratch, int[] context) {
+        long key = 0L;
+        int slot = 0;
+        if (cacheSize > 0) {
+            key = MurmurHash3.hash64(context, contextSize, 0);
+            if (key == 0L) key = 1L;
+            slot = (int) key & (cacheSize - 1);
+            if (scratch.keys[slot] == key) {
+                scratch.hiddenOffset = slot * hidden2Size;
+                scratch.logPartition = scratch.logPartitions[slot];
+                return scratch.hidden;
+            }
+        }
+
+        final float[] hidden1 = scratch.hidden1;
+        System.arraycopy(hiddenBiases1, 0, hidden1, 0, hidden1Size);
+        for (int position = 0; position < contextSize; ++position) {
+            final int word = context[position];
+            if (word < numPrecomputed) {
+                final int products = (word * contextSize + position) * hidden1Size;
+                for (int j = 0; j < hidden1Size; ++j) hidden1[j] += precomputed[products + j];
+            } else {
+                firstLayer(word, position, scratch.firstLayer, 0);
+                for (int j = 0; j < hidden1Size; ++j) hidden1[j] += scratch.firstLayer[j];
+            }
+        }
+        activation.apply(hidden1, hidden1Size);
+        float[] last = hidden1;
+        if (twoLayers) {
+            final float[] hidden2 = scratch.hidden2;
+            System.arraycopy(hiddenBiases2, 0, hidden2, 0, hidden2Size);
+            for (int k = 0; k < hidden1Size; ++k) {
+                // Rectified units are often 0
+                if (hidden1[k] != 0.0f) axpy(hidden1[k], hiddenWeights2T, k * hidden2Size, hidden2, hidden2Size);
+            }
+            activation.apply(hidden2, hidden2Size);
+            last = hidden2;
+        }
+
+        float logZ = 0.0f;
+        if (normalize) {
+            final float[] logits = scratch.logits;
+            System.arraycopy(outputBiases, 0, logits, 0, outputVocabSize);
+            for (int d = 0; d < hidden2Size; ++d) {
+                if (last[d] != 0.0f) axpy(last[d], outputWeightsT, d * outputVocabSize, logits, outputVocabSize);
+            }
+            float max = Float.NEGATIVE_INFINITY;
+            for (int v = 0; v < outputVocabSize; ++v) max = Math.max(max, logits[v]);
+            double sum = 0.0;
+            for (int v = 0; v < outputVocabSize; ++v) sum += Math.exp(logits[v] - max);
+            logZ = (float) (max + Math.log(sum));
+        }
+        scratch.logPartition = logZ;
+
+        if (cacheSize > 0) {
+            scratch.keys[slot] = key;
+            scratch.logPartitions[slot] = logZ;
+            System.arraycopy(last, 0, scratch.hidden, slot * hidden2Size, hidden2Size);
+            scratch.hiddenOffset = slot * hidden2Size;
+            return scratch.hidden;
+        }
+        scratch.hiddenOffset = 0;
+        if (last != scratch.hidden2) System.arraycopy(last, 0, scratch.hidden2, 0, hidden2Size);
+        return scratch.hidden2;
+    }
+
+    private int inputId(int systemId) {
+        final int id = systemId < inputIds.length ? inputIds[systemId] : -1;
+        return id < 0 ? inputUnk : id;
+    }
+
+    private int outputId(int systemId) {
+        final int id = systemId < outputIds.length ? outputIds[systemId] : -1;
+        return id < 0 ? outputUnk : id;
+    }
+
+    private void startContext(LMState priorState, int[] context) {
+        if (priorState == null) Arrays.fill(context, inputStart);
+        else System.arraycopy(((NPLMState) priorState).context, 0, context, 0, contextSize);
+    }
+
+    private void push(int[] context, int systemId) {
+        if (contextSize == 0) return;
+        System.arraycopy(context, 1, context, 0, contextSize - 1);
+        context[contextSize - 1] = inputId(systemId);
+    }
+
+    /**
+     * Score [contextFrom, to) after priorState, keeping the scores of
+     * [from, to).
+     */
+    private LMState score(Sequence<IString> sequence, int contextFrom, int from, int to, LMState priorState,
+                          float[] scores, int offset) {
+        final Scratch scratch = this.scratch.get();
+        final int[] context = scratch.context;
+        startContext(priorState, context);
+        double score = 0.0;
+        for (int i = contextFrom; i < to; ++i) {
+            final int systemId = sequence.get(i).id;
+            if (i >= from) {
+                final float[] hidden = hiddenLayer(scratch, context);
+                final int word = outputId(systemId);
+                final float wordScore = dot(outputWeights, word * hidden2Size, hidden, scratch.hiddenOffset,
+                        hidden2Size) + outputBiases[word] - scratch.logPartition;
+                score += wordScore;
+                if (scores != null) scores[offset + i - from] = wordScore;
+            }
+            push(context, systemId);
+        }
+        return new NPLMState(score, context.clone());
+    }
+
+    @Override
+    public LMState score(Sequence<IString> sequence, int startOffsetIndex, LMState priorState) {
+        return score(sequence, priorState == null ? 0 : startOffsetIndex, startOffsetIndex, sequence.size(),
+                priorState, null, 0);
+    }
+
+    @Override
+    public LMState scorePhrase(Sequence<IString> phrase, int from, int to, LMState priorState, float[] scores,
+                               int offset) {
+        return score(phrase, from, from, to, priorState, scores, offset);
+    }
+
+    @Override
+    public boolean isKnown(String word) {
+        final int systemId = Vocabulary.systemIndexOf(word);
+        return systemId >= 0 && systemId < outputIds.length && outputIds[systemId] >= 0;
+    }
+
+    @Override
+    public Sequence<IString> getStartSequence() {
+        return new ArraySequence(new IString[]{TokenUtils.START_TOKEN});
+    }
+
+    @Override
+    public IString getEndToken() {
+        return TokenUtils.END_TOKEN;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int order() {
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d-gram NPLM, %d precomputed words, %d cached contexts per thread%s)", name, order,
+                numPrecomputed, cacheSize, normalize ? "" : ", unnormalized");
+    }
 }
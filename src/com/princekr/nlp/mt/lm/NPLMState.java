@@ -0,0 +1,48 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.MurmurHash3;
+
+import java.util.Arrays;
+
+/**
+ * State of an <code>NPLM</code>: the input vocabulary ids of the last
+ * order - 1 words, oldest first, padded with &lt;s&gt;.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class NPLMState extends LMState {
+
+    final int[] context;
+
+    NPLMState(double score, int[] context) {
+        this.score = score;
+        this.context = context;
+    }
+
+    @Override
+    public int length() {
+        return context.length;
+    }
+
+    @Override
+    public long longHashCode() {
+        return MurmurHash3.hash64(context, context.length, 0);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof NPLMState)) return false;
+        return Arrays.equals(context, ((NPLMState) other).context);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(context);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.4f", Arrays.toString(context), score);
+    }
+}
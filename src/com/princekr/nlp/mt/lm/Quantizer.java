@@ -0,0 +1,90 @@
+package com.princekr.nlp.mt.lm;
+
+import java.util.Arrays;
+
+/**
+ * Maps floats to codes of a few bits. Values are split into 2^bits bins of
+ * equal counts and each bin is represented by the mean of its values, as
+ * in KenLM. Optionally code 0 is reserved for exactly 0.0, which is the
+ * most common backoff.
+ *
+ * Created by prince on 2017/10/29.
+ */
+final class Quantizer {
+
+    private final float[] centers;
+    // Midpoints between adjacent centers
+    private final float[] bounds;
+    private final boolean zeroCode;
+
+    private Quantizer(float[] centers, boolean zeroCode) {
+        this.centers = centers;
+        this.zeroCode = zeroCode;
+        this.bounds = new float[centers.length - 1];
+        for (int i = 0; i < bounds.length; ++i) {
+            bounds[i] = (centers[i] + centers[i + 1]) / 2.0f;
+        }
+    }
+
+    /**
+     * Estimate bins from values.
+     *
+     * @param values
+     * @param size     number of values to use
+     * @param bits
+     * @param zeroCode whether to reserve code 0 for 0.0
+     * @return the quantizer.
+     */
+    static Quantizer train(float[] values, int size, int bits, boolean zeroCode) {
+        final int numBins = (1 << bits) - (zeroCode ? 1 : 0);
+        final float[] sorted = new float[size];
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            if (!zeroCode || values[i] != 0.0f) sorted[n++] = values[i];
+        }
+        Arrays.sort(sorted, 0, n);
+        final float[] centers = new float[Math.max(1, Math.min(numBins, n))];
+        for (int b = 0; b < centers.length; ++b) {
+            final int lo = (int) ((long) b * n / centers.length);
+            final int hi = (int) ((long) (b + 1) * n / centers.length);
+            double sum = 0.0;
+            for (int i = lo; i < hi; ++i) sum += sorted[i];
+            centers[b] = hi > lo ? (float) (sum / (hi - lo)) : 0.0f;
+        }
+        return new Quantizer(centers, zeroCode);
+    }
+
+    /**
+     * @param centers  the values of the codes, ascending, excluding the zero code
+     * @param zeroCode
+     * @return a quantizer with the given bins.
+     */
+    static Quantizer of(float[] centers, boolean zeroCode) {
+        return new Quantizer(centers.clone(), zeroCode);
+    }
+
+    float[] centers() {
+        return centers.clone();
+    }
+
+    boolean hasZeroCode() {
+        return zeroCode;
+    }
+
+    int encode(float value) {
+        if (zeroCode && value == 0.0f) return 0;
+        int lo = 0;
+        int hi = bounds.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (bounds[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return zeroCode ? lo + 1 : lo;
+    }
+
+    float decode(int code) {
+        if (zeroCode) return code == 0 ? 0.0f : centers[code - 1];
+        return centers[code];
+    }
+}
@@ -1,7 +1,17 @@
 package com.princekr.nlp.mt.process;
 
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
+ * Leaves translations unchanged.
+ *
  * Created by prince on 2017/10/29.
  */
-public class IdentityPostprocessor {
+public class IdentityPostprocessor implements Postprocessor {
+
+    @Override
+    public Sequence<IString> process(Sequence<IString> inputSequence) {
+        return inputSequence;
+    }
 }
@@ -1,7 +1,19 @@
 package com.princekr.nlp.mt.process;
 
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
+ * Converts the output of the decoder to its final form. Implementations
+ * must be threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface Postprocessor {
+
+    /**
+     * @param inputSequence a translation
+     * @return the post-processed translation.
+     */
+    Sequence<IString> process(Sequence<IString> inputSequence);
 }
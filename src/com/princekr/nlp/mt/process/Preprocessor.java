@@ -1,7 +1,19 @@
 package com.princekr.nlp.mt.process;
 
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
+ * Converts raw source input to the tokens seen by the decoder.
+ * Implementations must be threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface Preprocessor {
+
+    /**
+     * @param input raw source text
+     * @return the tokenized source.
+     */
+    Sequence<IString> process(String input);
 }
@@ -1,7 +1,75 @@
 package com.princekr.nlp.mt.stats;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
 /**
+ * Sampling utilities.
+ *
  * Created by prince on 2017/10/29.
  */
 public class Sampling {
+
+    private Sampling() {
+    }
+
+    /**
+     * Draw k distinct integers from [0, n) with Floyd's algorithm. Returns
+     * all of [0, n) if k &gt;= n. Intended for small k, e.g. rule samples.
+     *
+     * @param n
+     * @param k
+     * @param random
+     * @return the sample in ascending order.
+     */
+    public static int[] sampleWithoutReplacement(int n, int k, Random random) {
+        if (k >= n) {
+            final int[] all = new int[Math.max(0, n)];
+            for (int i = 0; i < all.length; ++i) all[i] = i;
+            return all;
+        }
+        final int[] sample = new int[k];
+        int size = 0;
+        for (int j = n - k; j < n; ++j) {
+            final int t = random.nextInt(j + 1);
+            final int x = contains(sample, size, t) ? j : t;
+            sample[size++] = x;
+        }
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * Draw k distinct integers from [0, n) into a caller-owned buffer, so
+     * that a thread can sample repeatedly without allocating. Use one
+     * <code>SplittableRandom</code> per thread, e.g. split from a root.
+     *
+     * @param n
+     * @param k
+     * @param random
+     * @param sample buffer of length at least min(n, k)
+     * @return the sample size, min(n, k); the sample is in ascending order.
+     */
+    public static int sampleWithoutReplacement(int n, int k, SplittableRandom random, int[] sample) {
+        if (k >= n) {
+            for (int i = 0; i < n; ++i) sample[i] = i;
+            return Math.max(0, n);
+        }
+        int size = 0;
+        for (int j = n - k; j < n; ++j) {
+            final int t = random.nextInt(j + 1);
+            final int x = contains(sample, size, t) ? j : t;
+            sample[size++] = x;
+        }
+        Arrays.sort(sample, 0, size);
+        return size;
+    }
+
+    private static boolean contains(int[] a, int size, int x) {
+        for (int i = 0; i < size; ++i) {
+            if (a[i] == x) return true;
+        }
+        return false;
+    }
 }
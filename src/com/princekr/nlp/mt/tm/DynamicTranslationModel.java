@@ -1,7 +1,570 @@
 package com.princekr.nlp.mt.tm;
 
+import com.princekr.nlp.mt.stats.Sampling;
+import com.princekr.nlp.mt.util.DynamicIntegerArrayIndex;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.LinearIndexedCorpus;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.ParallelSuffixArray;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.Sequences;
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
 /**
+ * Translation model that extracts rules at query time from a suffix-array
+ * indexed bitext, so that no phrase table has to be precomputed.
+ * <p>
+ * For each span of the input, the suffix array range of the span is
+ * narrowed from the range of the span one word shorter, and at most
+ * <code>sampleSize</code> occurrences are drawn from it. Each sampled
+ * occurrence yields the tightest target phrase that is consistent with the
+ * word alignment. Rules are scored with the phrase translation probability
+ * estimated on the sample and with lexical weights estimated on the whole
+ * bitext when the model is built.
+ * <p>
+ * A built model can be saved to a single file and mapped back read-only,
+ * so that several decoders share the bitext through the page cache instead
+ * of each rebuilding it on the heap. The system vocabulary is saved next to
+ * it with the suffix <code>VOCABULARY_SUFFIX</code>, since the file stores
+ * word ids.
+ * <p>
+ * Sentence pairs can be added while the model is in use. They go to a small
+ * foreground index that is rebuilt on each addition and queried together
+ * with the background index: occurrences are sampled from both ranges and
+ * lexical counts are summed. Once the foreground reaches
+ * <code>mergeThreshold</code> pairs, a background thread merges it into a new
+ * background index. Both indexes and the lexical tables are published as one
+ * immutable snapshot, so queries never block and see each update either
+ * entirely or not at all. Merging a mapped model produces a heap model.
+ * <p>
+ * The query path shares no mutable state between threads: each thread
+ * samples with its own <code>SplittableRandom</code>, split from a root
+ * generator, and extracts rules into its own scratch buffers.
+ * <p>
+ * Threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
-public class DynamicTranslationModel {
+public class DynamicTranslationModel<FV> implements TranslationModel<IString, FV> {
+
+    private static final Logger logger = LogManager.getLogger(DynamicTranslationModel.class.getName());
+
+    public static final int DEFAULT_SAMPLE_SIZE = 100;
+    public static final int DEFAULT_MAX_SOURCE_PHRASE = 5;
+    public static final int DEFAULT_MAX_TARGET_PHRASE = 7;
+    public static final int DEFAULT_RULE_LIMIT = 20;
+    public static final int DEFAULT_MERGE_THRESHOLD = 10000;
+
+    public static final String VOCABULARY_SUFFIX = ".vocab";
+
+    public static final String[] FEATURE_NAMES = {
+            "DYN.phi_ef", "DYN.lex_ef", "DYN.lex_fe", "DYN.singleton"
+    };
+
+    private static final long EMPTY_RANGE = ParallelSuffixArray.range(0, 0);
+
+    private final ForkJoinPool pool;
+    private volatile Snapshot snapshot;
+    // Serializes updates; queries do not take it
+    private final Object updateLock = new Object();
+    private boolean merging;
+    // Split once per thread; guarded by itself
+    private final SplittableRandom random = new SplittableRandom();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> new Scratch(splitRandom()));
+
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private int maxSourcePhrase = DEFAULT_MAX_SOURCE_PHRASE;
+    private int maxTargetPhrase = DEFAULT_MAX_TARGET_PHRASE;
+    private int ruleLimit = DEFAULT_RULE_LIMIT;
+    private volatile int mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+
+    /**
+     * Build a model in the common fork/join pool.
+     *
+     * @param sa
+     */
+    public DynamicTranslationModel(ParallelSuffixArray sa) {
+        this(sa, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build a model.
+     *
+     * @param sa
+     * @param pool used to estimate the lexical weights and to index added
+     *             sentence pairs
+     */
+    public DynamicTranslationModel(ParallelSuffixArray sa, ForkJoinPool pool) {
+        this(sa, LexicalTable.build(sa.getCorpus(), pool), pool);
+    }
+
+    private DynamicTranslationModel(ParallelSuffixArray sa, LexicalTable lexicalTable, ForkJoinPool pool) {
+        this.pool = pool;
+        this.snapshot = new Snapshot(sa, lexicalTable, null, lexicalTable);
+    }
+
+    private SplittableRandom splitRandom() {
+        synchronized (random) {
+            return random.split();
+        }
+    }
+
+    /**
+     * Thread-confined buffers for rule extraction. Only the returned rules
+     * are allocated per query.
+     */
+    private static final class Scratch {
+        final SplittableRandom random;
+        final DynamicIntegerArrayIndex targets = new DynamicIntegerArrayIndex();
+        final List<int[]> alignments = new ArrayList<>();
+        int[] sample = new int[DEFAULT_SAMPLE_SIZE];
+        int[] phrase = new int[DEFAULT_MAX_TARGET_PHRASE];
+        int[] counts = new int[64];
+        // (MAX_VALUE - count) << 32 | target id, to sort by count without boxing
+        long[] order = new long[64];
+
+        Scratch(SplittableRandom random) {
+            this.random = random;
+        }
+    }
+
+    /**
+     * Immutable state seen by a query.
+     */
+    private static final class Snapshot {
+        final ParallelSuffixArray background;
+        final LexicalTable backgroundLexicalTable;
+        // null if there are no added sentence pairs
+        final ParallelSuffixArray foreground;
+        // Background counts with the foreground counts stacked on them
+        final LexicalTable lexicalTable;
+
+        Snapshot(ParallelSuffixArray background, LexicalTable backgroundLexicalTable,
+                 ParallelSuffixArray foreground, LexicalTable lexicalTable) {
+            this.background = background;
+            this.backgroundLexicalTable = backgroundLexicalTable;
+            this.foreground = foreground;
+            this.lexicalTable = lexicalTable;
+        }
+
+        int foregroundSize() {
+            return foreground == null ? 0 : foreground.getCorpus().size();
+        }
+    }
+
+    /**
+     * Load a word-aligned bitext and index it.
+     *
+     * @param sourceFile
+     * @param targetFile
+     * @param alignmentFile
+     * @return the model.
+     * @throws IOException
+     */
+    public static <FV> DynamicTranslationModel<FV> load(String sourceFile, String targetFile,
+                                                        String alignmentFile) throws IOException {
+        final long startTime = System.nanoTime();
+        final ParallelCorpus corpus = ParallelCorpus.loadCorpus(sourceFile, targetFile, alignmentFile, 1024);
+        logger.info("Loaded {} sentence pairs in {} ms", corpus.size(), (System.nanoTime() - startTime) / 1000000);
+        return new DynamicTranslationModel<>(new ParallelSuffixArray(corpus));
+    }
+
+    /**
+     * Save the model to a file that can be mapped by <code>map()</code>,
+     * and the system vocabulary next to it.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.foreground != null) {
+            logger.warn("Saving only the background of {}; merge() first to include {} added sentence pairs",
+                    filename, snapshot.foregroundSize());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            snapshot.background.write(channel);
+            snapshot.backgroundLexicalTable.write(channel);
+        }
+        Vocabulary.systemSave(filename + VOCABULARY_SUFFIX);
+        logger.info("Saved {} sentence pairs to {} in {} ms", snapshot.background.getCorpus().size(), filename,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * Map a model saved by <code>save()</code> as the background. The saved vocabulary is
+     * loaded into the system vocabulary first, which must not conflict with
+     * words that were added since startup.
+     *
+     * @param filename
+     * @return a read-only model backed by the file.
+     * @throws IOException
+     */
+    public static <FV> DynamicTranslationModel<FV> map(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        Vocabulary.systemLoad(filename + VOCABULARY_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            // Mappings remain valid after the channel is closed
+            final FileChannel channel = file.getChannel();
+            final ParallelSuffixArray sa = ParallelSuffixArray.map(channel);
+            final LexicalTable lexicalTable = LexicalTable.map(channel);
+            logger.info("Mapped {} sentence pairs from {} in {} ms", sa.getCorpus().size(), filename,
+                    (System.nanoTime() - startTime) / 1000000);
+            return new DynamicTranslationModel<>(sa, lexicalTable, ForkJoinPool.commonPool());
+        }
+    }
+
+    /**
+     * @return whether the background is mapped from a file.
+     */
+    public boolean isMapped() {
+        return snapshot.background.isMapped();
+    }
+
+    public ParallelSuffixArray getSuffixArray() {
+        return snapshot.background;
+    }
+
+    /**
+     * @return the number of added sentence pairs that are not merged yet.
+     */
+    public int foregroundSize() {
+        return snapshot.foregroundSize();
+    }
+
+    /**
+     * @param mergeThreshold foreground size that triggers a background merge
+     */
+    public void setMergeThreshold(int mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    public void add(Sequence<IString> source, Sequence<IString> target, int[] alignment) {
+        add(Sequences.toIntArray(source), Sequences.toIntArray(target), alignment);
+    }
+
+    /**
+     * Add a sentence pair. Queries that start after this returns use it.
+     *
+     * @param source    system vocabulary ids
+     * @param target    system vocabulary ids
+     * @param alignment links packed as in <code>ParallelCorpus.link</code>
+     */
+    public void add(int[] source, int[] target, int[] alignment) {
+        final ParallelCorpus pairs = new ParallelCorpus(1);
+        pairs.add(source, target, alignment);
+        addAll(pairs);
+    }
+
+    /**
+     * Add sentence pairs. The foreground is rebuilt once per call, so
+     * batches are cheaper than single pairs.
+     *
+     * @param pairs
+     */
+    public void addAll(ParallelCorpus pairs) {
+        if (pairs.size() == 0) return;
+        final long startTime = System.nanoTime();
+        synchronized (updateLock) {
+            final Snapshot snapshot = this.snapshot;
+            final ParallelCorpus foreground = new ParallelCorpus(snapshot.foregroundSize() + pairs.size());
+            if (snapshot.foreground != null) {
+                foreground.addAll(snapshot.foreground.getCorpus(), 0, snapshot.foregroundSize());
+            }
+            foreground.addAll(pairs, 0, pairs.size());
+            this.snapshot = withForeground(snapshot.background, snapshot.backgroundLexicalTable, foreground);
+            if (!merging && foreground.size() >= mergeThreshold) startMerge();
+        }
+        logger.debug("Added {} sentence pairs in {} ms", pairs.size(), (System.nanoTime() - startTime) / 1000000);
+    }
+
+    private Snapshot withForeground(ParallelSuffixArray background, LexicalTable backgroundLexicalTable,
+                                    ParallelCorpus foreground) {
+        if (foreground.size() == 0) {
+            return new Snapshot(background, backgroundLexicalTable, null, backgroundLexicalTable);
+        }
+        return new Snapshot(background, backgroundLexicalTable, new ParallelSuffixArray(foreground, pool),
+                backgroundLexicalTable.withForeground(LexicalTable.build(foreground, pool)));
+    }
+
+    /**
+     * Start a background merge. Called holding <code>updateLock</code>.
+     */
+    private void startMerge() {
+        merging = true;
+        final Thread merger = new Thread(this::mergeForeground, "DynamicTranslationModel-merge");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * Merge the foreground into the background and wait until it is done.
+     * Queries and additions proceed during the merge.
+     *
+     * @throws InterruptedException
+     */
+    public void merge() throws InterruptedException {
+        synchronized (updateLock) {
+            while (merging) updateLock.wait();
+            if (snapshot.foreground == null) return;
+            merging = true;
+        }
+        mergeForeground();
+    }
+
+    /**
+     * Build a background over the current background and foreground. Pairs
+     * added meanwhile stay in the foreground, and are merged next if they
+     * reach the threshold. Called with <code>merging</code> set.
+     */
+    private void mergeForeground() {
+        boolean published = false;
+        try {
+            final long startTime = System.nanoTime();
+            final Snapshot base = snapshot;
+            if (base.foreground == null) return;
+            final ParallelCorpus background = base.background.getCorpus();
+            final ParallelCorpus foreground = base.foreground.getCorpus();
+            final ParallelCorpus merged = new ParallelCorpus(background.size() + foreground.size());
+            merged.addAll(background, 0, background.size());
+            merged.addAll(foreground, 0, foreground.size());
+            final ParallelSuffixArray sa = new ParallelSuffixArray(merged, pool);
+            final LexicalTable lexicalTable = LexicalTable.build(merged, pool);
+            synchronized (updateLock) {
+                // Only additions happen during a merge, so the base foreground is a prefix
+                final ParallelCorpus current = snapshot.foreground.getCorpus();
+                final ParallelCorpus remaining = new ParallelCorpus(current.size() - foreground.size());
+                remaining.addAll(current, foreground.size(), current.size());
+                snapshot = withForeground(sa, lexicalTable, remaining);
+            }
+            published = true;
+            logger.info("Merged {} sentence pairs into the background in {} ms", foreground.size(),
+                    (System.nanoTime() - startTime) / 1000000);
+        } catch (RuntimeException e) {
+            logger.error("Background merge failed; the foreground is kept", e);
+        } finally {
+            synchronized (updateLock) {
+                // Additions do not start a merge while one runs
+                if (published && snapshot.foregroundSize() >= mergeThreshold) {
+                    startMerge();
+                } else {
+                    merging = false;
+                    updateLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sampleSize maximum number of occurrences sampled per source phrase
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public void setMaxSourcePhrase(int maxSourcePhrase) {
+        this.maxSourcePhrase = maxSourcePhrase;
+    }
+
+    public void setMaxTargetPhrase(int maxTargetPhrase) {
+        this.maxTargetPhrase = maxTargetPhrase;
+    }
+
+    /**
+     * @param ruleLimit maximum number of rules returned per source span
+     */
+    public void setRuleLimit(int ruleLimit) {
+        this.ruleLimit = ruleLimit;
+    }
+
+    @Override
+    public int maxLengthSource() {
+        return maxSourcePhrase;
+    }
+
+    public int maxLengthTarget() {
+        return maxTargetPhrase;
+    }
+
+    @Override
+    public List<String> getFeatureNames() {
+        return Collections.unmodifiableList(Arrays.asList(FEATURE_NAMES));
+    }
+
+    public List<SampledRule> getRules(Sequence<IString> source) {
+        return getRules(Sequences.toIntArray(source));
+    }
+
+    /**
+     * Extract rules for all spans of a source sentence.
+     *
+     * @param source system vocabulary ids
+     * @return the rules, grouped by span.
+     */
+    @Override
+    public List<SampledRule> getRules(int[] source) {
+        final Snapshot snapshot = this.snapshot;
+        final List<SampledRule> rules = new ArrayList<>();
+        for (int i = 0; i < source.length; ++i) {
+            long range = snapshot.background.fullRange();
+            long foregroundRange = snapshot.foreground == null ? EMPTY_RANGE : snapshot.foreground.fullRange();
+            for (int j = i + 1, end = Math.min(source.length, i + maxSourcePhrase); j <= end; ++j) {
+                range = narrow(snapshot.background, range, source, i, j);
+                foregroundRange = narrow(snapshot.foreground, foregroundRange, source, i, j);
+                if (ParallelSuffixArray.rangeSize(range) + ParallelSuffixArray.rangeSize(foregroundRange) == 0) break;
+                extractRules(snapshot, range, foregroundRange, source, i, j, rules);
+            }
+        }
+        return rules;
+    }
+
+    private static long narrow(ParallelSuffixArray sa, long range, int[] source, int from, int to) {
+        return ParallelSuffixArray.rangeSize(range) == 0 ? range : sa.narrow(range, source, from, to);
+    }
+
+    /**
+     * Extract rules for the span source[from, to).
+     *
+     * @param source system vocabulary ids
+     * @param from
+     * @param to
+     * @return the rules.
+     */
+    public List<SampledRule> getRules(int[] source, int from, int to) {
+        final Snapshot snapshot = this.snapshot;
+        final List<SampledRule> rules = new ArrayList<>();
+        final long range = snapshot.background.find(source, from, to);
+        final long foregroundRange = snapshot.foreground == null ? EMPTY_RANGE :
+                snapshot.foreground.find(source, from, to);
+        if (ParallelSuffixArray.rangeSize(range) + ParallelSuffixArray.rangeSize(foregroundRange) > 0) {
+            extractRules(snapshot, range, foregroundRange, source, from, to, rules);
+        }
+        return rules;
+    }
+
+    /**
+     * Sample occurrences from the background range followed by the
+     * foreground range, as if they were one range.
+     */
+    private void extractRules(Snapshot snapshot, long range, long foregroundRange, int[] source, int from, int to,
+                              List<SampledRule> rules) {
+        final Scratch scratch = this.scratch.get();
+        final int backgroundSize = ParallelSuffixArray.rangeSize(range);
+        final int n = backgroundSize + ParallelSuffixArray.rangeSize(foregroundRange);
+        final int sampleSize = this.sampleSize;
+        if (scratch.sample.length < Math.min(n, sampleSize)) scratch.sample = new int[Math.min(n, sampleSize)];
+        final int[] sample = scratch.sample;
+        final int numSamples = Sampling.sampleWithoutReplacement(n, sampleSize, scratch.random, sample);
+        final int length = to - from;
+        final LexicalTable lexicalTable = snapshot.lexicalTable;
+        final int maxTargetPhrase = this.maxTargetPhrase;
+        if (scratch.phrase.length < maxTargetPhrase) scratch.phrase = new int[maxTargetPhrase];
+        final int[] phrase = scratch.phrase;
+
+        final DynamicIntegerArrayIndex targets = scratch.targets;
+        final List<int[]> alignments = scratch.alignments;
+        targets.clear();
+        alignments.clear();
+        int[] counts = scratch.counts;
+        for (int r = 0; r < numSamples; ++r) {
+            final int index = sample[r];
+            final ParallelSuffixArray sa;
+            final int position;
+            if (index < backgroundSize) {
+                sa = snapshot.background;
+                position = sa.get(ParallelSuffixArray.rangeStart(range) + index);
+            } else {
+                sa = snapshot.foreground;
+                position = sa.get(ParallelSuffixArray.rangeStart(foregroundRange) + index - backgroundSize);
+            }
+            final ParallelCorpus corpus = sa.getCorpus();
+            final LinearIndexedCorpus links = corpus.links();
+            final LinearIndexedCorpus targetText = corpus.target();
+            final int sentence = corpus.sentenceOf(position);
+            final int i = position - corpus.sourceStart(sentence);
+            final int j = i + length;
+            final int linkStart = corpus.linkStart(sentence);
+            final int linkEnd = corpus.linkEnd(sentence);
+
+            // Links are sorted by source position
+            int minTarget = Integer.MAX_VALUE;
+            int maxTarget = -1;
+            for (int k = linkStart; k < linkEnd; ++k) {
+                final int s = ParallelCorpus.linkSource(links.get(k));
+                if (s >= j) break;
+                if (s >= i) {
+                    final int t = ParallelCorpus.linkTarget(links.get(k));
+                    if (t < minTarget) minTarget = t;
+                    if (t > maxTarget) maxTarget = t;
+                }
+            }
+            if (maxTarget < 0 || maxTarget - minTarget >= maxTargetPhrase) continue;
+            boolean consistent = true;
+            int numLinks = 0;
+            for (int k = linkStart; k < linkEnd; ++k) {
+                final int t = ParallelCorpus.linkTarget(links.get(k));
+                if (t >= minTarget && t <= maxTarget) {
+                    final int s = ParallelCorpus.linkSource(links.get(k));
+                    if (s < i || s >= j) {
+                        consistent = false;
+                        break;
+                    }
+                    ++numLinks;
+                }
+            }
+            if (!consistent) continue;
+
+            final int targetStart = corpus.targetStart(sentence) + minTarget;
+            final int phraseLength = maxTarget - minTarget + 1;
+            for (int k = 0; k < phraseLength; ++k) phrase[k] = targetText.get(targetStart + k);
+            final int id = targets.add(phrase, 0, phraseLength);
+            if (id == counts.length) counts = scratch.counts = Arrays.copyOf(counts, 2 * id);
+            if (id == alignments.size()) counts[id] = 0;
+            if (++counts[id] == 1) {
+                final int[] alignment = new int[numLinks];
+                for (int k = linkStart, m = 0; m < numLinks; ++k) {
+                    final int s = ParallelCorpus.linkSource(links.get(k));
+                    if (s >= i) {
+                        alignment[m++] = ParallelCorpus.link(s - i, ParallelCorpus.linkTarget(links.get(k)) - minTarget);
+                    }
+                }
+                alignments.add(alignment);
+            }
+        }
+        if (targets.size() == 0) return;
+
+        // Score only the most frequent targets, ties in order of first occurrence
+        final int numTargets = targets.size();
+        if (scratch.order.length < numTargets) scratch.order = new long[Math.max(numTargets, 2 * scratch.order.length)];
+        final long[] order = scratch.order;
+        for (int id = 0; id < numTargets; ++id) order[id] = (long) (Integer.MAX_VALUE - counts[id]) << 32 | id;
+        Arrays.sort(order, 0, numTargets);
+        final int[] src = Arrays.copyOfRange(source, from, to);
+        for (int r = 0, end = Math.min(ruleLimit, numTargets); r < end; ++r) {
+            final int id = (int) order[r];
+            final int[] tgt = targets.get(id);
+            final int[] alignment = alignments.get(id);
+            final float[] scores = new float[FEATURE_NAMES.length];
+            scores[0] = (float) Math.log((double) counts[id] / numSamples);
+            scores[1] = (float) lexicalTable.lexEF(src, tgt, alignment);
+            scores[2] = (float) lexicalTable.lexFE(src, tgt, alignment);
+            scores[3] = counts[id] == 1 ? 1.0f : 0.0f;
+            rules.add(new SampledRule(from, to, src, tgt, alignment, counts[id], numSamples, scores));
+        }
+    }
 }
@@ -0,0 +1,382 @@
+package com.princekr.nlp.mt.tm;
+
+import com.princekr.nlp.mt.util.LinearIndexedCorpus;
+import com.princekr.nlp.mt.util.MurmurHash3;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.ProbingIntegerArrayIndex;
+import com.princekr.nlp.mt.util.Vocabulary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Word translation probabilities w(e|f) and w(f|e) estimated from the
+ * aligned word pairs of a bitext. Unaligned words are counted as aligned to
+ * NULL.
+ * <p>
+ * Pairs are counted in parallel and then frozen into an open-addressing
+ * table of packed (f, e) keys, which <code>write()</code> stores and
+ * <code>map()</code> maps in place. Layout (little-endian):
+ * <pre>
+ *   int    magic
+ *   int    version
+ *   int    tableSize              (power of two)
+ *   int    vocabularySize
+ *   long   numPairs
+ *   long[tableSize]      keys     (f &lt;&lt; 32 | e, or Long.MIN_VALUE if empty)
+ *   int[tableSize]       counts
+ *   int[vocabularySize]  source marginals (word + 1, NULL at 0)
+ *   int[vocabularySize]  target marginals
+ *   padding to a multiple of 8 bytes
+ * </pre>
+ * A table can be stacked on another with <code>withForeground()</code>,
+ * which sums the counts of both; this scores rules of a model that is
+ * updated incrementally without rebuilding its background table.
+ * <p>
+ * Threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+final class LexicalTable {
+
+    private static final Logger logger = LogManager.getLogger(LexicalTable.class.getName());
+
+    static final int NULL = -1;
+
+    static final int MAGIC = 0x504c4558; // "PLEX"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAX_TABLE_SIZE = 1 << 27;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final double MIN_PROB = 1e-7;
+    private static final int WRITE_CHUNK = 1 << 20;
+
+    private final LongBuffer keys;
+    private final IntBuffer counts;
+    private final IntBuffer sourceCounts;
+    private final IntBuffer targetCounts;
+    private final int mask;
+    private final long numPairs;
+    // Counts added to those of this table, or null
+    private final LexicalTable foreground;
+
+    private LexicalTable(LongBuffer keys, IntBuffer counts, IntBuffer sourceCounts, IntBuffer targetCounts,
+                         long numPairs, LexicalTable foreground) {
+        this.keys = keys;
+        this.counts = counts;
+        this.sourceCounts = sourceCounts;
+        this.targetCounts = targetCounts;
+        this.mask = keys.capacity() - 1;
+        this.numPairs = numPairs;
+        this.foreground = foreground;
+    }
+
+    /**
+     * @param foreground counts to add to those of this table, or null
+     * @return a view of this table with the counts of another added.
+     */
+    LexicalTable withForeground(LexicalTable foreground) {
+        return new LexicalTable(keys, counts, sourceCounts, targetCounts, numPairs, foreground);
+    }
+
+    private static long pack(int f, int e) {
+        return (long) f << 32 | (e & 0xffffffffL);
+    }
+
+    /**
+     * Count the aligned word pairs of a corpus.
+     *
+     * @param corpus
+     * @param pool
+     * @return
+     */
+    static LexicalTable build(ParallelCorpus corpus, ForkJoinPool pool) {
+        final long startTime = System.nanoTime();
+        final Counter counter = new Counter(corpus);
+        pool.invoke(counter.new CountTask(0, corpus.size()));
+
+        final int numPairs = counter.pairs.size();
+        int tableSize = 16;
+        while (tableSize < MAX_TABLE_SIZE && (tableSize >>> 2) * 3 < numPairs) tableSize <<= 1;
+        if ((tableSize >>> 2) * 3 < numPairs) {
+            throw new IllegalStateException("Too many word pairs: " + numPairs);
+        }
+        final long[] keys = new long[tableSize];
+        final int[] counts = new int[tableSize];
+        Arrays.fill(keys, EMPTY);
+        final int mask = tableSize - 1;
+        for (int id = 0; id < numPairs; ++id) {
+            final int[] pair = counter.pairs.get(id);
+            final long key = pack(pair[0], pair[1]);
+            int i = (int) MurmurHash3.fmix64(key) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = key;
+            counts[i] = counter.count(id);
+        }
+        final LexicalTable table = new LexicalTable(LongBuffer.wrap(keys), IntBuffer.wrap(counts),
+                IntBuffer.wrap(toArray(counter.sourceCounts)), IntBuffer.wrap(toArray(counter.targetCounts)),
+                numPairs, null);
+        logger.info("Estimated lexical weights for {} word pairs in {} ms", numPairs,
+                (System.nanoTime() - startTime) / 1000000);
+        return table;
+    }
+
+    private static int[] toArray(AtomicIntegerArray a) {
+        final int[] array = new int[a.length()];
+        for (int i = 0; i < array.length; ++i) array[i] = a.get(i);
+        return array;
+    }
+
+    /**
+     * Concurrent pair counts used during construction.
+     */
+    private static final class Counter {
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+        private static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+        // Minimum number of sentences per fork/join task
+        private static final int TASK_SIZE = 1024;
+
+        private final ParallelCorpus corpus;
+        private final ProbingIntegerArrayIndex pairs;
+        private final AtomicReferenceArray<AtomicIntegerArray> pairCounts = new AtomicReferenceArray<>(MAX_PAGES);
+        private final AtomicIntegerArray sourceCounts;
+        private final AtomicIntegerArray targetCounts;
+
+        Counter(ParallelCorpus corpus) {
+            this.corpus = corpus;
+            final int vocabularySize = Vocabulary.systemSize() + 1;
+            this.pairs = new ProbingIntegerArrayIndex(Math.max(1024, corpus.size()));
+            this.sourceCounts = new AtomicIntegerArray(vocabularySize);
+            this.targetCounts = new AtomicIntegerArray(vocabularySize);
+        }
+
+        private void add(int[] key, int f, int e) {
+            key[0] = f;
+            key[1] = e;
+            final int id = pairs.add(key);
+            AtomicIntegerArray page = pairCounts.get(id >>> PAGE_BITS);
+            if (page == null) {
+                pairCounts.compareAndSet(id >>> PAGE_BITS, null, new AtomicIntegerArray(PAGE_SIZE));
+                page = pairCounts.get(id >>> PAGE_BITS);
+            }
+            page.incrementAndGet(id & PAGE_MASK);
+            sourceCounts.incrementAndGet(f + 1);
+            targetCounts.incrementAndGet(e + 1);
+        }
+
+        private int count(int id) {
+            return pairCounts.get(id >>> PAGE_BITS).get(id & PAGE_MASK);
+        }
+
+        private final class CountTask extends RecursiveAction {
+            private final int lo;
+            private final int hi;
+
+            CountTask(int lo, int hi) {
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            @Override
+            protected void compute() {
+                if (hi - lo > TASK_SIZE) {
+                    final int mid = (lo + hi) >>> 1;
+                    invokeAll(new CountTask(lo, mid), new CountTask(mid, hi));
+                    return;
+                }
+                final LinearIndexedCorpus source = corpus.source();
+                final LinearIndexedCorpus target = corpus.target();
+                final LinearIndexedCorpus links = corpus.links();
+                final int[] key = new int[2];
+                boolean[] sourceAligned = new boolean[64];
+                boolean[] targetAligned = new boolean[64];
+                for (int sentence = lo; sentence < hi; ++sentence) {
+                    final int sourceStart = corpus.sourceStart(sentence);
+                    final int targetStart = corpus.targetStart(sentence);
+                    final int sourceLength = corpus.sourceLength(sentence);
+                    final int targetLength = corpus.targetLength(sentence);
+                    if (sourceLength > sourceAligned.length) sourceAligned = new boolean[sourceLength];
+                    if (targetLength > targetAligned.length) targetAligned = new boolean[targetLength];
+                    Arrays.fill(sourceAligned, 0, sourceLength, false);
+                    Arrays.fill(targetAligned, 0, targetLength, false);
+                    for (int k = corpus.linkStart(sentence), end = corpus.linkEnd(sentence); k < end; ++k) {
+                        final int s = ParallelCorpus.linkSource(links.get(k));
+                        final int t = ParallelCorpus.linkTarget(links.get(k));
+                        sourceAligned[s] = true;
+                        targetAligned[t] = true;
+                        add(key, source.get(sourceStart + s), target.get(targetStart + t));
+                    }
+                    for (int s = 0; s < sourceLength; ++s) {
+                        if (!sourceAligned[s]) add(key, source.get(sourceStart + s), NULL);
+                    }
+                    for (int t = 0; t < targetLength; ++t) {
+                        if (!targetAligned[t]) add(key, NULL, target.get(targetStart + t));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Map a table written by <code>write()</code>, starting at the current
+     * position of a channel. The position is advanced past it.
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    static LexicalTable map(FileChannel channel) throws IOException {
+        final long offset = channel.position();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) throw new IOException("Not a lexical table: file is too short");
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a lexical table");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported lexical table version: " + header.getInt(4));
+        }
+        final int tableSize = header.getInt(8);
+        final int vocabularySize = header.getInt(12);
+        if (Integer.bitCount(tableSize) != 1 || tableSize > MAX_TABLE_SIZE || vocabularySize < 1) {
+            throw new IOException("Corrupt lexical table: table size " + tableSize);
+        }
+        long position = offset + HEADER_BYTES;
+        final LongBuffer keys = map(channel, position, 8L * tableSize).asLongBuffer();
+        position += 8L * tableSize;
+        final IntBuffer counts = map(channel, position, 4L * tableSize).asIntBuffer();
+        position += 4L * tableSize;
+        final IntBuffer sourceCounts = map(channel, position, 4L * vocabularySize).asIntBuffer();
+        position += 4L * vocabularySize;
+        final IntBuffer targetCounts = map(channel, position, 4L * vocabularySize).asIntBuffer();
+        position += 4L * vocabularySize;
+        channel.position((position + 7) & ~7L);
+        return new LexicalTable(keys, counts, sourceCounts, targetCounts, header.getLong(16), null);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (position + size > channel.size()) throw new IOException("Corrupt lexical table: file is too short");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write the table at the current position of a channel. A foreground
+     * table is not written.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    void write(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(keys.capacity()).putInt(sourceCounts.capacity())
+                .putLong(numPairs);
+        header.flip();
+        while (header.hasRemaining()) channel.write(header);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(8 * WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < keys.capacity(); i += WRITE_CHUNK) {
+            final int n = Math.min(WRITE_CHUNK, keys.capacity() - i);
+            final LongBuffer src = keys.duplicate();
+            src.limit(i + n).position(i);
+            buffer.clear();
+            buffer.asLongBuffer().put(src);
+            buffer.limit(8 * n);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        for (IntBuffer ints : new IntBuffer[]{counts, sourceCounts, targetCounts}) {
+            for (int i = 0; i < ints.capacity(); i += WRITE_CHUNK) {
+                final int n = Math.min(WRITE_CHUNK, ints.capacity() - i);
+                final IntBuffer src = ints.duplicate();
+                src.limit(i + n).position(i);
+                buffer.clear();
+                buffer.asIntBuffer().put(src);
+                buffer.limit(4 * n);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+        final long position = channel.position();
+        final ByteBuffer padding = ByteBuffer.allocate((int) (((position + 7) & ~7L) - position));
+        while (padding.hasRemaining()) channel.write(padding);
+    }
+
+    private int count(int f, int e) {
+        final int c = foreground == null ? 0 : foreground.count(f, e);
+        final long key = pack(f, e);
+        for (int i = (int) MurmurHash3.fmix64(key) & mask; ; i = (i + 1) & mask) {
+            final long k = keys.get(i);
+            if (k == key) return c + counts.get(i);
+            if (k == EMPTY) return c;
+        }
+    }
+
+    private int sourceCount(int f) {
+        final int c = foreground == null ? 0 : foreground.sourceCount(f);
+        return f + 1 < sourceCounts.capacity() ? c + sourceCounts.get(f + 1) : c;
+    }
+
+    private int targetCount(int e) {
+        final int c = foreground == null ? 0 : foreground.targetCount(e);
+        return e + 1 < targetCounts.capacity() ? c + targetCounts.get(e + 1) : c;
+    }
+
+    double probEF(int f, int e) {
+        final int c = sourceCount(f);
+        return c == 0 ? MIN_PROB : Math.max(MIN_PROB, (double) count(f, e) / c);
+    }
+
+    double probFE(int f, int e) {
+        final int c = targetCount(e);
+        return c == 0 ? MIN_PROB : Math.max(MIN_PROB, (double) count(f, e) / c);
+    }
+
+    /**
+     * Log lexical weight of the target given the source (Koehn et al. 2003).
+     */
+    double lexEF(int[] src, int[] tgt, int[] alignment) {
+        double score = 0.0;
+        for (int t = 0; t < tgt.length; ++t) {
+            double sum = 0.0;
+            int n = 0;
+            for (int link : alignment) {
+                if (ParallelCorpus.linkTarget(link) == t) {
+                    sum += probEF(src[ParallelCorpus.linkSource(link)], tgt[t]);
+                    ++n;
+                }
+            }
+            score += Math.log(n == 0 ? probEF(NULL, tgt[t]) : sum / n);
+        }
+        return score;
+    }
+
+    /**
+     * Log lexical weight of the source given the target.
+     */
+    double lexFE(int[] src, int[] tgt, int[] alignment) {
+        double score = 0.0;
+        for (int s = 0; s < src.length; ++s) {
+            double sum = 0.0;
+            int n = 0;
+            for (int link : alignment) {
+                if (ParallelCorpus.linkSource(link) == s) {
+                    sum += probFE(src[s], tgt[ParallelCorpus.linkTarget(link)]);
+                    ++n;
+                }
+            }
+            score += Math.log(n == 0 ? probFE(src[s], NULL) : sum / n);
+        }
+        return score;
+    }
+}
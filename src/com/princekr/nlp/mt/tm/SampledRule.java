@@ -1,7 +1,65 @@
 package com.princekr.nlp.mt.tm;
 
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.IStrings;
+import com.princekr.nlp.mt.util.ParallelCorpus;
+import com.princekr.nlp.mt.util.Sequence;
+
 /**
+ * A rule extracted from a sample of the occurrences of a source phrase, with
+ * its scores. Words are system vocabulary ids.
+ *
  * Created by prince on 2017/10/29.
  */
 public class SampledRule {
+
+    // Span of the query covered by the rule
+    public final int sourceStart;
+    public final int sourceEnd;
+
+    public final int[] source;
+    public final int[] target;
+    // Links packed as in ParallelCorpus.link, relative to the rule
+    public final int[] alignment;
+
+    // Number of sampled occurrences that yielded this rule
+    public final int count;
+    public final int sampleSize;
+    public final float[] scores;
+
+    public SampledRule(int sourceStart, int sourceEnd, int[] source, int[] target, int[] alignment,
+                       int count, int sampleSize, float[] scores) {
+        this.sourceStart = sourceStart;
+        this.sourceEnd = sourceEnd;
+        this.source = source;
+        this.target = target;
+        this.alignment = alignment;
+        this.count = count;
+        this.sampleSize = sampleSize;
+        this.scores = scores;
+    }
+
+    public Sequence<IString> sourceSequence() {
+        return new ArraySequence(source);
+    }
+
+    public Sequence<IString> targetSequence() {
+        return new ArraySequence(target);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.join(" ", IStrings.toStringArray(source))).append(" => ")
+                .append(String.join(" ", IStrings.toStringArray(target))).append(" |||");
+        for (int link : alignment) {
+            sb.append(' ').append(ParallelCorpus.linkSource(link)).append('-').append(ParallelCorpus.linkTarget(link));
+        }
+        sb.append(" |||");
+        for (float score : scores) {
+            sb.append(' ').append(score);
+        }
+        return sb.append(" ||| ").append(count).append('/').append(sampleSize).toString();
+    }
 }
@@ -1,8 +1,26 @@
 package com.princekr.nlp.mt.tm;
 
+import java.util.List;
+
 /**
  * Interface for data structures that query and score rules
  * for specific inputs.
  */
 public interface TranslationModel<TK, FV> {
+
+    /**
+     * @param source system vocabulary ids
+     * @return the rules for all spans of the source, grouped by span.
+     */
+    List<SampledRule> getRules(int[] source);
+
+    /**
+     * @return the length of the longest source phrase of a rule.
+     */
+    int maxLengthSource();
+
+    /**
+     * @return the names of the scores of the rules, in order.
+     */
+    List<String> getFeatureNames();
 }
@@ -0,0 +1,34 @@
+package com.princekr.nlp.mt.tools;
+
+import com.princekr.nlp.mt.lm.ARPALanguageModel;
+
+import java.io.IOException;
+
+/**
+ * Converts an ARPA language model to the binary image that
+ * <code>LanguageModelFactory</code> maps directly.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class BuildBinaryLM {
+
+    private static String usage() {
+        return String.format("Usage: java %s arpa_file binary_file [prob_bits [backoff_bits]]%n"
+                        + "  Plain ARPA files are parsed in parallel; gzipped files sequentially.%n"
+                        + "  Default quantization: %d/%d bits", BuildBinaryLM.class.getName(),
+                ARPALanguageModel.DEFAULT_PROB_BITS, ARPALanguageModel.DEFAULT_BACKOFF_BITS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int probBits = args.length > 2 ? Integer.parseInt(args[2]) : ARPALanguageModel.DEFAULT_PROB_BITS;
+        final int backoffBits = args.length > 3 ? Integer.parseInt(args[3]) : ARPALanguageModel.DEFAULT_BACKOFF_BITS;
+        final long startTime = System.nanoTime();
+        final ARPALanguageModel lm = new ARPALanguageModel(args[0], probBits, backoffBits);
+        lm.save(args[1]);
+        System.err.printf("Wrote %s in %.1f s%n", args[1], (System.nanoTime() - startTime) / 1e9);
+    }
+}
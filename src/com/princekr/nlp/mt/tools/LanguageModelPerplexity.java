@@ -1,7 +1,271 @@
 package com.princekr.nlp.mt.tools;
 
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
 /**
+ * Computes the perplexity of a language model on a tokenized corpus, one
+ * sentence per line.
+ * <p>
+ * The corpus is streamed: a plain file is split into byte ranges that are
+ * scored in parallel against one shared model, each thread reading its
+ * range through a fixed buffer, and the counts of the ranges are added at
+ * the end. Gzipped files are read sequentially. Memory does not grow with
+ * the corpus; words outside the vocabulary of the model are scored as
+ * &lt;unk&gt; without being added to the system vocabulary.
+ *
  * Created by prince on 2017/10/29.
  */
 public class LanguageModelPerplexity {
+
+    private static final int SHARD_BYTES = 1 << 26;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static String usage() {
+        return String.format("Usage: java %s lm_file corpus_file [threads [cache_size]]%n"
+                        + "  lm_file accepts the prefixes of LanguageModelFactory.%n"
+                        + "  Default threads: available processors; default cache_size: 0 (none), since the"
+                        + " queries of distinct sentences are rarely repeated",
+                LanguageModelPerplexity.class.getName());
+    }
+
+    /**
+     * Counts of a part of the corpus. &lt;/s&gt; counts as a word; empty
+     * lines are skipped.
+     */
+    private static final class Counts {
+        long numSentences;
+        long numWords;
+        long numOOVs;
+        // Natural log probabilities of all words, and of the OOVs among them
+        double logProb;
+        double oovLogProb;
+
+        void add(Counts other) {
+            numSentences += other.numSentences;
+            numWords += other.numWords;
+            numOOVs += other.numOOVs;
+            logProb += other.logProb;
+            oovLogProb += other.oovLogProb;
+        }
+
+        double perplexity() {
+            return Math.exp(-logProb / numWords);
+        }
+
+        double perplexityWithoutOOVs() {
+            return Math.exp(-(logProb - oovLogProb) / (numWords - numOOVs));
+        }
+    }
+
+    /**
+     * Source of the lines of a part of the corpus.
+     */
+    private interface LineSource {
+        /**
+         * @return the next line, or null at the end.
+         * @throws IOException
+         */
+        String next() throws IOException;
+    }
+
+    /**
+     * Lines that start in the byte range [start, end) of a file, read
+     * through a fixed buffer. The line that crosses start belongs to the
+     * range before; the line that crosses end is read to its end.
+     */
+    private static final class RangeLineSource implements LineSource {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        // File position of the next byte to fill the buffer from
+        private long filePosition;
+        private byte[] line = new byte[256];
+        private boolean started;
+
+        RangeLineSource(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        private void skipPartialLine() throws IOException {
+            started = true;
+            if (start == 0) return;
+            // The first line of the range starts after the first newline at or after start - 1
+            filePosition = start - 1;
+            while (hasRemaining() && buffer.get() != '\n') ;
+        }
+
+        private long position() {
+            return filePosition - buffer.remaining();
+        }
+
+        private boolean hasRemaining() throws IOException {
+            if (buffer.hasRemaining()) return true;
+            buffer.clear();
+            final int numRead = channel.read(buffer, filePosition);
+            buffer.flip();
+            if (numRead <= 0) return false;
+            filePosition += numRead;
+            return true;
+        }
+
+        @Override
+        public String next() throws IOException {
+            if (!started) skipPartialLine();
+            if (position() >= end || !hasRemaining()) return null;
+            int length = 0;
+            while (hasRemaining()) {
+                final byte b = buffer.get();
+                if (b == '\n') break;
+                if (length == line.length) line = Arrays.copyOf(line, 2 * length);
+                line[length++] = b;
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Scores the sentences of a line source.
+     */
+    private static final class ScoreTask extends RecursiveTask<Counts> {
+        private final LanguageModel<IString> lm;
+        private final LineSource source;
+
+        ScoreTask(LanguageModel<IString> lm, LineSource source) {
+            this.lm = lm;
+            this.source = source;
+        }
+
+        @Override
+        protected Counts compute() {
+            final Counts counts = new Counts();
+            final Sequence<IString> start = lm.getStartSequence();
+            final LMState startState = lm.score(start, start.size(), null);
+            final int endId = lm.getEndToken().id;
+            float[] scores = new float[256];
+            boolean[] oov = new boolean[256];
+            try {
+                for (String line; (line = source.next()) != null; ) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+                    final String[] tokens = WHITESPACE.split(line);
+                    final int length = tokens.length + 1;
+                    if (length > scores.length) {
+                        scores = new float[2 * length];
+                        oov = new boolean[2 * length];
+                    }
+                    final int[] ids = new int[length];
+                    for (int i = 0; i < tokens.length; ++i) {
+                        oov[i] = !lm.isKnown(tokens[i]);
+                        ids[i] = oov[i] ? TokenUtils.UNK_TOKEN.id : Vocabulary.systemAdd(tokens[i]);
+                    }
+                    ids[tokens.length] = endId;
+                    final LMState state = lm.scorePhrase(new ArraySequence(ids), 0, length, startState, scores, 0);
+                    counts.logProb += state.getScore();
+                    for (int i = 0; i < tokens.length; ++i) {
+                        if (oov[i]) {
+                            ++counts.numOOVs;
+                            counts.oovLogProb += scores[i];
+                        }
+                    }
+                    counts.numWords += length;
+                    ++counts.numSentences;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Score a corpus.
+     *
+     * @param lm
+     * @param filename plain or gzipped
+     * @param pool     threads that score the shards of a plain file
+     * @return the counts of the whole corpus.
+     * @throws IOException
+     */
+    private static Counts score(LanguageModel<IString> lm, String filename, ForkJoinPool pool) throws IOException {
+        try {
+            if (filename.endsWith(".gz")) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(Paths.get(filename)), BUFFER_BYTES),
+                        StandardCharsets.UTF_8))) {
+                    return pool.invoke(new ScoreTask(lm, reader::readLine));
+                }
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                // Enough shards to balance the threads, no larger than SHARD_BYTES
+                final long numShards = Math.max(4L * pool.getParallelism(), (size + SHARD_BYTES - 1) / SHARD_BYTES);
+                final long shardBytes = Math.max(1, (size + numShards - 1) / numShards);
+                final List<ScoreTask> tasks = new ArrayList<>();
+                for (long start = 0; start < size; start += shardBytes) {
+                    final long end = Math.min(size, start + shardBytes);
+                    tasks.add(new ScoreTask(lm, new RangeLineSource(channel, start, end)));
+                }
+                for (ScoreTask task : tasks) pool.execute(task);
+                final Counts counts = new Counts();
+                for (ScoreTask task : tasks) counts.add(task.join());
+                return counts;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        final LanguageModel<IString> lm = LanguageModelFactory.load(args[0], cacheSize);
+        final ForkJoinPool pool = new ForkJoinPool(numThreads);
+        final long startTime = System.nanoTime();
+        final Counts counts = score(lm, args[1], pool);
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        pool.shutdown();
+
+        System.out.printf("Sentences: %d, words: %d (with </s>), OOVs: %d%n", counts.numSentences, counts.numWords,
+                counts.numOOVs);
+        System.out.printf("Log probability: %.4f (log10 %.4f)%n", counts.logProb, counts.logProb / Math.log(10.0));
+        System.out.printf("Perplexity: %.4f, without OOVs: %.4f%n", counts.perplexity(),
+                counts.perplexityWithoutOOVs());
+        System.err.printf("Scored %d words in %.1f s with %d threads: %.0f words/s%n", counts.numWords, seconds,
+                numThreads, counts.numWords / seconds);
+        System.err.println(lm);
+    }
 }
@@ -1,7 +1,48 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.CoNLLReader;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.DependencyTree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
 /**
+ * Writes the head-modifier events of a parsed corpus, one per line, as
+ * training data for an n-gram toolkit. Trees are streamed from CoNLL one
+ * sentence at a time.
+ *
  * Created by prince on 2017/10/29.
  */
 public class BuildDependencyLMData {
+
+    private static String usage() {
+        return String.format("Usage: java %s conll_file events_file%n"
+                + "  Files ending in .gz are gzipped.", BuildDependencyLMData.class.getName());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final long startTime = System.nanoTime();
+        long numTrees = 0;
+        final long[] numEvents = new long[1];
+        try (CoNLLReader reader = new CoNLLReader(args[0]);
+             BufferedWriter writer = DependencyUtils.newWriter(args[1])) {
+            final DependencyUtils.EventConsumer consumer = (event, length) -> {
+                for (int i = 0; i < length; ++i) {
+                    if (i > 0) writer.write(' ');
+                    writer.write(event[i]);
+                }
+                writer.write('\n');
+                ++numEvents[0];
+            };
+            for (DependencyTree tree; (tree = reader.next()) != null; ++numTrees) {
+                DependencyUtils.events(tree, consumer);
+            }
+        }
+        System.err.printf("Wrote %d events of %d trees in %.1f s%n", numEvents[0], numTrees,
+                (System.nanoTime() - startTime) / 1e9);
+    }
 }
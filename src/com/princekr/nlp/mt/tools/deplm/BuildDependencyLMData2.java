@@ -1,7 +1,52 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.CoNLLReader;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.DependencyTree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
 /**
+ * Counts the n-grams of the head-modifier events of a parsed corpus
+ * directly, without writing the events, in the SRILM count format for
+ * <code>ngram-count -read</code>. Trees are streamed from CoNLL and the
+ * counts spill to sorted runs on disk, so memory is bounded whatever the
+ * size of the corpus.
+ *
  * Created by prince on 2017/10/29.
  */
 public class BuildDependencyLMData2 {
+
+    private static String usage() {
+        return String.format("Usage: java %s order conll_file counts_file [max_entries]%n"
+                        + "  Files ending in .gz are gzipped. max_entries: n-grams counted in memory"
+                        + " before a run is written (default %d)", BuildDependencyLMData2.class.getName(),
+                ExternalNGramCounter.DEFAULT_MAX_ENTRIES);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int order = Integer.parseInt(args[0]);
+        final int maxEntries = args.length > 3 ? Integer.parseInt(args[3]) : ExternalNGramCounter.DEFAULT_MAX_ENTRIES;
+        final long startTime = System.nanoTime();
+        long numTrees = 0;
+        final long numNGrams;
+        final int numRuns;
+        try (CoNLLReader reader = new CoNLLReader(args[1]);
+             ExternalNGramCounter counter = new ExternalNGramCounter(order, maxEntries)) {
+            final DependencyUtils.EventConsumer consumer = counter::add;
+            for (DependencyTree tree; (tree = reader.next()) != null; ++numTrees) {
+                DependencyUtils.events(tree, consumer);
+            }
+            numRuns = counter.numRuns();
+            try (BufferedWriter writer = DependencyUtils.newWriter(args[2])) {
+                numNGrams = counter.write(writer);
+            }
+        }
+        System.err.printf("Counted %d n-grams of %d trees (%d runs) in %.1f s%n", numNGrams, numTrees, numRuns,
+                (System.nanoTime() - startTime) / 1e9);
+    }
 }
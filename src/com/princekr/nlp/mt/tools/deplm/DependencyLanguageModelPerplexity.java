@@ -1,7 +1,53 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.DependencyTree;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.EventScorer;
+import com.princekr.nlp.mt.util.IString;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
 /**
+ * Computes the perplexity of a dependency language model on the
+ * head-modifier events of a parsed corpus. Trees are streamed from CoNLL
+ * and scored in batches on several threads against one shared model.
+ *
  * Created by prince on 2017/10/29.
  */
 public class DependencyLanguageModelPerplexity {
+
+    private static String usage() {
+        return String.format("Usage: java %s lm_file conll_file [threads]%n"
+                        + "  lm_file accepts the prefixes of LanguageModelFactory. Default threads: available"
+                        + " processors", DependencyLanguageModelPerplexity.class.getName());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final LanguageModel<IString> lm = LanguageModelFactory.load(args[0]);
+        final ForkJoinPool pool = new ForkJoinPool(numThreads);
+        final long startTime = System.nanoTime();
+        final EventScorer total = new EventScorer(lm);
+        DependencyUtils.forEachBatch(args[1], pool, trees -> {
+            final EventScorer scorer = new EventScorer(lm);
+            for (DependencyTree tree : trees) scorer.score(tree);
+            return scorer;
+        }, total::add);
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        pool.shutdown();
+
+        System.out.printf("Events: %d, predicted tokens: %d (with </s>), OOVs: %d%n", total.numEvents,
+                total.numTokens, total.numOOVs);
+        System.out.printf("Log probability: %.4f (log10 %.4f)%n", total.logProb, total.logProb / Math.log(10.0));
+        System.out.printf("Perplexity: %.4f, without OOVs: %.4f%n", Math.exp(-total.logProb / total.numTokens),
+                Math.exp(-(total.logProb - total.oovLogProb) / (total.numTokens - total.numOOVs)));
+        System.err.printf("Scored %d tokens in %.1f s with %d threads: %.0f tokens/s%n", total.numTokens, seconds,
+                numThreads, total.numTokens / seconds);
+    }
 }
@@ -1,7 +1,67 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.EventScorer;
+import com.princekr.nlp.mt.util.IString;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
 /**
+ * Scores each tree of a parsed corpus with a dependency language model and
+ * prints one line per sentence, in corpus order: the log probability of
+ * its events, the number of predicted tokens and the per-token perplexity.
+ * Trees are streamed from CoNLL and scored in batches on several threads.
+ *
  * Created by prince on 2017/10/29.
  */
 public class DependencyLanguageModelPerplexity2 {
-}
+
+    private static String usage() {
+        return String.format("Usage: java %s lm_file conll_file [threads]%n"
+                        + "  lm_file accepts the prefixes of LanguageModelFactory. Default threads: available"
+                        + " processors", DependencyLanguageModelPerplexity2.class.getName());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final LanguageModel<IString> lm = LanguageModelFactory.load(args[0]);
+        final ForkJoinPool pool = new ForkJoinPool(numThreads);
+        final long startTime = System.nanoTime();
+        final long[] numTrees = new long[1];
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            DependencyUtils.forEachBatch(args[1], pool, trees -> {
+                final EventScorer scorer = new EventScorer(lm);
+                final String[] lines = new String[trees.size()];
+                for (int i = 0; i < lines.length; ++i) {
+                    final long numTokens = scorer.numTokens;
+                    final double score = scorer.score(trees.get(i));
+                    final long treeTokens = scorer.numTokens - numTokens;
+                    lines[i] = String.format("%.4f\t%d\t%.4f", score, treeTokens, Math.exp(-score / treeTokens));
+                }
+                return lines;
+            }, lines -> {
+                try {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                numTrees[0] += lines.length;
+            });
+        }
+        pool.shutdown();
+        System.err.printf("Scored %d trees in %.1f s with %d threads%n", numTrees[0],
+                (System.nanoTime() - startTime) / 1e9, numThreads);
+    }}
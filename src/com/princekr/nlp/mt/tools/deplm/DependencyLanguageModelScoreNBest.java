@@ -1,7 +1,102 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.lm.LanguageModelFactory;
+import com.princekr.nlp.mt.tools.deplm.DependencyUtils.EventScorer;
+import com.princekr.nlp.mt.util.IString;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+
 /**
+ * Adds a dependency language model feature to n-best lists. Each n-best
+ * file comes with the CoNLL parses of its translations, one tree per
+ * entry in the same order. Trees are scored in batches on several threads
+ * while the n-best entries are streamed through, so any number of lists
+ * of any size are scored in bounded memory.
+ * <p>
+ * Entries have the format <code>id ||| translation ||| features ||| score</code>;
+ * the feature is appended to the features and written to
+ * <code>nbest_file.deplm</code>.
+ *
  * Created by prince on 2017/10/29.
  */
 public class DependencyLanguageModelScoreNBest {
+
+    public static final String FEATURE_NAME = "DepLM";
+    private static final String FIELD_SEPARATOR = " ||| ";
+    private static final String OUTPUT_SUFFIX = ".deplm";
+
+    private static String usage() {
+        return String.format("Usage: java %s lm_file nbest_file conll_file [nbest_file conll_file ...]%n"
+                        + "  lm_file accepts the prefixes of LanguageModelFactory. Writes nbest_file%s with the"
+                        + " feature %s.", DependencyLanguageModelScoreNBest.class.getName(), OUTPUT_SUFFIX,
+                FEATURE_NAME);
+    }
+
+    /**
+     * Score the entries of one n-best list.
+     *
+     * @return the number of entries.
+     */
+    private static long score(LanguageModel<IString> lm, String nbestFile, String conllFile, ForkJoinPool pool)
+            throws IOException {
+        final long[] numEntries = new long[1];
+        try (BufferedReader nbest = DependencyUtils.newReader(nbestFile);
+             BufferedWriter writer = DependencyUtils.newWriter(nbestFile + OUTPUT_SUFFIX)) {
+            DependencyUtils.forEachBatch(conllFile, pool, trees -> {
+                final EventScorer scorer = new EventScorer(lm);
+                final double[] scores = new double[trees.size()];
+                for (int i = 0; i < scores.length; ++i) scores[i] = scorer.score(trees.get(i));
+                return scores;
+            }, scores -> {
+                try {
+                    for (double score : scores) {
+                        final String entry = nbest.readLine();
+                        if (entry == null) {
+                            throw new IOException(String.format("%s has more trees than %s has entries", conllFile,
+                                    nbestFile));
+                        }
+                        writer.write(addFeature(entry, score, nbestFile));
+                        writer.newLine();
+                        ++numEntries[0];
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (nbest.readLine() != null) {
+                throw new IOException(String.format("%s has more entries than %s has trees", nbestFile, conllFile));
+            }
+        }
+        return numEntries[0];
+    }
+
+    private static String addFeature(String entry, double score, String nbestFile) throws IOException {
+        // End of the features: the separator before the score
+        final int first = entry.indexOf(FIELD_SEPARATOR);
+        final int second = first < 0 ? -1 : entry.indexOf(FIELD_SEPARATOR, first + FIELD_SEPARATOR.length());
+        final int third = second < 0 ? -1 : entry.indexOf(FIELD_SEPARATOR, second + FIELD_SEPARATOR.length());
+        if (third < 0) throw new IOException("Malformed n-best entry in " + nbestFile + ": " + entry);
+        return String.format("%s %s: %.6f%s", entry.substring(0, third), FEATURE_NAME, score, entry.substring(third));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length % 2 == 0) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        final LanguageModel<IString> lm = LanguageModelFactory.load(args[0]);
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (int i = 1; i < args.length; i += 2) {
+            final long startTime = System.nanoTime();
+            final long numEntries = score(lm, args[i], args[i + 1], pool);
+            System.err.printf("Scored %d entries of %s in %.1f s%n", numEntries, args[i],
+                    (System.nanoTime() - startTime) / 1e9);
+        }
+        pool.shutdown();
+    }
 }
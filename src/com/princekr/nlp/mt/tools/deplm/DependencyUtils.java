@@ -1,7 +1,346 @@
 package com.princekr.nlp.mt.tools.deplm;
 
+import com.princekr.nlp.mt.lm.LMState;
+import com.princekr.nlp.mt.lm.LanguageModel;
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.TokenUtils;
+import com.princekr.nlp.mt.util.Vocabulary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 /**
+ * Dependency trees and head-modifier events for dependency language models.
+ * <p>
+ * A tree yields one event per head and direction: the head word with a
+ * direction suffix, followed by its dependents on that side from the
+ * closest outwards. A head without dependents on a side still yields an
+ * event, so the model learns when to stop. The root word is an event
+ * after <code>ROOT_TOKEN</code>. An n-gram model trained on the events, one
+ * per line, is a dependency language model; scoring an event predicts its
+ * dependents and &lt;/s&gt;, given the head.
+ * <p>
+ * Trees are read from CoNLL files one sentence at a time, so the tools
+ * built on this class run in memory that does not depend on the corpus.
+ *
  * Created by prince on 2017/10/29.
  */
-public class DependencyUtils {
+public final class DependencyUtils {
+
+    public static final String ROOT_TOKEN = "<ROOT>";
+    public static final String LEFT_HEAD_SUFFIX = "<L>";
+    public static final String RIGHT_HEAD_SUFFIX = "<R>";
+
+    private static final int IO_BUFFER_BYTES = 1 << 16;
+    private static final int BATCH_SIZE = 256;
+
+    private DependencyUtils() {
+    }
+
+    /**
+     * Dependency tree of a sentence. Tokens are numbered from 1 as in
+     * CoNLL; head 0 is the root.
+     */
+    public static final class DependencyTree {
+        final String[] words;
+        final int[] heads;
+
+        DependencyTree(String[] words, int[] heads) {
+            this.words = words;
+            this.heads = heads;
+        }
+
+        public int size() {
+            return words.length;
+        }
+
+        /**
+         * @param i token, from 1
+         * @return the word of the token.
+         */
+        public String word(int i) {
+            return words[i - 1];
+        }
+
+        /**
+         * @param i token, from 1
+         * @return the head of the token; 0 for the root.
+         */
+        public int head(int i) {
+            return heads[i - 1];
+        }
+    }
+
+    /**
+     * Reads CoNLL-X or CoNLL-U trees, plain or gzipped, one sentence at a
+     * time: one token per line with the id, word and head in the first,
+     * second and seventh columns, and a blank line after each sentence.
+     * Comments, multiword tokens and empty nodes are skipped.
+     */
+    public static final class CoNLLReader implements Closeable {
+        private final String filename;
+        private final BufferedReader reader;
+        private final List<String> words = new ArrayList<>();
+        private int[] heads = new int[64];
+        private long lineNumber;
+
+        public CoNLLReader(String filename) throws IOException {
+            this.filename = filename;
+            this.reader = newReader(filename);
+        }
+
+        /**
+         * @return the next tree, or null at the end of the file.
+         * @throws IOException
+         */
+        public DependencyTree next() throws IOException {
+            words.clear();
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                if (line.trim().isEmpty()) {
+                    if (words.isEmpty()) continue;
+                    break;
+                }
+                if (line.startsWith("#")) continue;
+                final String[] fields = line.indexOf('\t') >= 0 ? line.split("\t") : line.trim().split("\\s+");
+                if (fields.length < 7) throw malformed(line);
+                final String id = fields[0];
+                if (id.indexOf('-') >= 0 || id.indexOf('.') >= 0) continue;
+                try {
+                    if (Integer.parseInt(id) != words.size() + 1) throw malformed(line);
+                    if (words.size() == heads.length) heads = Arrays.copyOf(heads, 2 * heads.length);
+                    heads[words.size()] = Integer.parseInt(fields[6]);
+                } catch (NumberFormatException e) {
+                    throw malformed(line);
+                }
+                words.add(fields[1]);
+            }
+            if (words.isEmpty()) return null;
+            final int size = words.size();
+            for (int i = 0; i < size; ++i) {
+                if (heads[i] < 0 || heads[i] > size) {
+                    throw new IOException(String.format("Head out of range in the sentence before %s:%d", filename,
+                            lineNumber));
+                }
+            }
+            return new DependencyTree(words.toArray(new String[size]), Arrays.copyOf(heads, size));
+        }
+
+        private IOException malformed(String line) {
+            return new IOException(String.format("Malformed CoNLL line at %s:%d: %s", filename, lineNumber, line));
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Receives the events of a tree. The array is reused between calls.
+     */
+    public interface EventConsumer {
+        /**
+         * @param event  head token, then dependents from the closest outwards
+         * @param length number of tokens of the event
+         */
+        void accept(String[] event, int length) throws IOException;
+    }
+
+    /**
+     * Extract the events of a tree, in the order of their heads: the root
+     * event, then the left and right events of each token.
+     *
+     * @param tree
+     * @param consumer
+     * @throws IOException if the consumer throws
+     */
+    public static void events(DependencyTree tree, EventConsumer consumer) throws IOException {
+        final int size = tree.size();
+        // Dependents of each head in increasing order, in children[start[h], start[h + 1])
+        final int[] start = new int[size + 2];
+        for (int i = 0; i < size; ++i) ++start[tree.heads[i] + 1];
+        for (int h = 0; h <= size; ++h) start[h + 1] += start[h];
+        final int[] children = new int[size];
+        final int[] fill = Arrays.copyOf(start, size + 1);
+        for (int i = 1; i <= size; ++i) children[fill[tree.heads[i - 1]]++] = i;
+
+        final String[] event = new String[size + 1];
+        event[0] = ROOT_TOKEN;
+        int length = 1;
+        for (int c = start[0]; c < start[1]; ++c) event[length++] = tree.word(children[c]);
+        consumer.accept(event, length);
+        for (int h = 1; h <= size; ++h) {
+            final String head = tree.word(h);
+            int split = start[h];
+            while (split < start[h + 1] && children[split] < h) ++split;
+            event[0] = head + LEFT_HEAD_SUFFIX;
+            length = 1;
+            for (int c = split - 1; c >= start[h]; --c) event[length++] = tree.word(children[c]);
+            consumer.accept(event, length);
+            event[0] = head + RIGHT_HEAD_SUFFIX;
+            length = 1;
+            for (int c = split; c < start[h + 1]; ++c) event[length++] = tree.word(children[c]);
+            consumer.accept(event, length);
+        }
+    }
+
+    /**
+     * Scores the events of trees with a dependency language model and
+     * keeps counts. Words outside the vocabulary of the model are scored as
+     * &lt;unk&gt; without being added to the system vocabulary. Not
+     * threadsafe; use one per thread.
+     */
+    public static final class EventScorer implements EventConsumer {
+        private final LanguageModel<IString> lm;
+        private final int endId;
+        private float[] scores = new float[64];
+        private double treeScore;
+
+        public long numEvents;
+        // Predicted tokens: dependents and </s>
+        public long numTokens;
+        public long numOOVs;
+        // Natural log probabilities of all predicted tokens, and of the OOVs among them
+        public double logProb;
+        public double oovLogProb;
+
+        public EventScorer(LanguageModel<IString> lm) {
+            this.lm = lm;
+            this.endId = lm.getEndToken().id;
+        }
+
+        /**
+         * @param tree
+         * @return the log probability of the events of the tree.
+         */
+        public double score(DependencyTree tree) {
+            treeScore = 0.0;
+            try {
+                events(tree, this);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return treeScore;
+        }
+
+        @Override
+        public void accept(String[] event, int length) {
+            final int[] ids = new int[length + 2];
+            ids[0] = TokenUtils.START_TOKEN.id;
+            for (int i = 0; i < length; ++i) ids[i + 1] = id(event[i]);
+            ids[length + 1] = endId;
+            if (length > scores.length) scores = new float[2 * length];
+            // The head is context: score the dependents and </s>
+            final ArraySequence sequence = new ArraySequence(ids);
+            final LMState context = lm.score(sequence.subsequence(0, 2), 2, null);
+            final double score = lm.scorePhrase(sequence, 2, ids.length, context, scores, 0).getScore();
+            treeScore += score;
+            logProb += score;
+            ++numEvents;
+            numTokens += length;
+            for (int i = 2; i <= length; ++i) {
+                if (ids[i] == TokenUtils.UNK_TOKEN.id) {
+                    ++numOOVs;
+                    oovLogProb += scores[i - 2];
+                }
+            }
+        }
+
+        /**
+         * Add the counts of another scorer.
+         *
+         * @param other
+         */
+        public void add(EventScorer other) {
+            numEvents += other.numEvents;
+            numTokens += other.numTokens;
+            numOOVs += other.numOOVs;
+            logProb += other.logProb;
+            oovLogProb += other.oovLogProb;
+        }
+
+        private int id(String word) {
+            return lm.isKnown(word) ? Vocabulary.systemAdd(word) : TokenUtils.UNK_TOKEN.id;
+        }
+    }
+
+    /**
+     * Process the trees of a CoNLL file in batches on a pool, and pass the
+     * results to a sink in file order. Only a few batches are in flight at
+     * a time, so memory does not depend on the file.
+     *
+     * @param filename
+     * @param pool
+     * @param work     processes a batch on a pool thread
+     * @param sink     receives the results on the calling thread
+     * @throws IOException
+     */
+    public static <R> void forEachBatch(String filename, ForkJoinPool pool, Function<List<DependencyTree>, R> work,
+                                        Consumer<R> sink) throws IOException {
+        final int maxInFlight = 2 * pool.getParallelism();
+        final ArrayDeque<ForkJoinTask<R>> inFlight = new ArrayDeque<>();
+        try (CoNLLReader reader = new CoNLLReader(filename)) {
+            List<DependencyTree> batch = new ArrayList<>(BATCH_SIZE);
+            for (DependencyTree tree; (tree = reader.next()) != null; ) {
+                batch.add(tree);
+                if (batch.size() == BATCH_SIZE) {
+                    if (inFlight.size() == maxInFlight) sink.accept(inFlight.removeFirst().join());
+                    final List<DependencyTree> trees = batch;
+                    inFlight.addLast(pool.submit(() -> work.apply(trees)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                final List<DependencyTree> trees = batch;
+                inFlight.addLast(pool.submit(() -> work.apply(trees)));
+            }
+            while (!inFlight.isEmpty()) sink.accept(inFlight.removeFirst().join());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param filename plain or gzipped
+     * @return a UTF-8 reader.
+     * @throws IOException
+     */
+    public static BufferedReader newReader(String filename) throws IOException {
+        InputStream in = Files.newInputStream(Paths.get(filename));
+        if (filename.endsWith(".gz")) in = new GZIPInputStream(in, IO_BUFFER_BYTES);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), IO_BUFFER_BYTES);
+    }
+
+    /**
+     * @param filename gzipped if it ends with .gz
+     * @return a UTF-8 writer.
+     * @throws IOException
+     */
+    public static BufferedWriter newWriter(String filename) throws IOException {
+        OutputStream out = Files.newOutputStream(Paths.get(filename));
+        if (filename.endsWith(".gz")) out = new GZIPOutputStream(out, IO_BUFFER_BYTES);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), IO_BUFFER_BYTES);
+    }
 }
@@ -0,0 +1,187 @@
+package com.princekr.nlp.mt.tools.deplm;
+
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts the n-grams of sentences in bounded memory. Counts are kept in a
+ * hash table until it holds <code>maxEntries</code> n-grams; the table is
+ * then written to a temporary file as a sorted run and cleared. At the end
+ * the runs are merged, adding the counts of equal n-grams.
+ * <p>
+ * Sentences are wrapped in &lt;s&gt; and &lt;/s&gt;, and the output has
+ * the SRILM count format, <code>w1 ... wn TAB count</code>, sorted by
+ * n-gram, for <code>ngram-count -read</code>. Not threadsafe.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class ExternalNGramCounter implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 22;
+
+    private static final String START = "<s>";
+    private static final String END = "</s>";
+
+    private final int order;
+    private final int maxEntries;
+    private final Object2LongOpenHashMap<String> counts;
+    private final List<Path> runs = new ArrayList<>();
+    private final StringBuilder ngram = new StringBuilder();
+    private String[] tokens = new String[64];
+
+    /**
+     * @param order
+     * @param maxEntries n-grams kept in memory before a run is written
+     */
+    public ExternalNGramCounter(int order, int maxEntries) {
+        if (order < 1) throw new IllegalArgumentException("Invalid order: " + order);
+        this.order = order;
+        this.maxEntries = maxEntries;
+        this.counts = new Object2LongOpenHashMap<>();
+    }
+
+    /**
+     * Count the n-grams of a sentence.
+     *
+     * @param sentence
+     * @param length   number of words of the sentence
+     * @throws IOException if a run cannot be written
+     */
+    public void add(String[] sentence, int length) throws IOException {
+        if (length + 2 > tokens.length) tokens = new String[2 * (length + 2)];
+        tokens[0] = START;
+        System.arraycopy(sentence, 0, tokens, 1, length);
+        tokens[length + 1] = END;
+        for (int i = 0; i < length + 2; ++i) {
+            ngram.setLength(0);
+            for (int n = 1; n <= order && i + n <= length + 2; ++n) {
+                if (n > 1) ngram.append(' ');
+                ngram.append(tokens[i + n - 1]);
+                counts.addTo(ngram.toString(), 1L);
+            }
+        }
+        if (counts.size() >= maxEntries) spill();
+    }
+
+    private void spill() throws IOException {
+        final Path run = Files.createTempFile("ngrams", ".run");
+        run.toFile().deleteOnExit();
+        try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+            writeSorted(writer);
+        }
+        runs.add(run);
+        counts.clear();
+    }
+
+    private void writeSorted(Writer writer) throws IOException {
+        final String[] keys = counts.keySet().toArray(new String[counts.size()]);
+        Arrays.parallelSort(keys);
+        for (String key : keys) {
+            writer.write(key);
+            writer.write('\t');
+            writer.write(Long.toString(counts.getLong(key)));
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Sorted run being merged, positioned at its next n-gram.
+     */
+    private static final class Run implements Comparable<Run> {
+        final BufferedReader reader;
+        String ngram;
+        long count;
+
+        Run(Path path) throws IOException {
+            reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        }
+
+        boolean advance() throws IOException {
+            final String line = reader.readLine();
+            if (line == null) return false;
+            final int tab = line.lastIndexOf('\t');
+            ngram = line.substring(0, tab);
+            count = Long.parseLong(line.substring(tab + 1));
+            return true;
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return ngram.compareTo(other.ngram);
+        }
+    }
+
+    /**
+     * Write the counts of all the sentences added.
+     *
+     * @param writer
+     * @return the number of distinct n-grams.
+     * @throws IOException
+     */
+    public long write(Writer writer) throws IOException {
+        if (runs.isEmpty()) {
+            writeSorted(writer);
+            return counts.size();
+        }
+        if (!counts.isEmpty()) spill();
+        final PriorityQueue<Run> queue = new PriorityQueue<>(runs.size());
+        final List<Run> open = new ArrayList<>(runs.size());
+        long numNGrams = 0;
+        try {
+            for (Path path : runs) {
+                final Run run = new Run(path);
+                open.add(run);
+                if (run.advance()) queue.add(run);
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                final String ngram = run.ngram;
+                long count = 0;
+                while (true) {
+                    count += run.count;
+                    if (run.advance()) queue.add(run);
+                    if (queue.isEmpty() || !queue.peek().ngram.equals(ngram)) break;
+                    run = queue.poll();
+                }
+                writer.write(ngram);
+                writer.write('\t');
+                writer.write(Long.toString(count));
+                writer.write('\n');
+                ++numNGrams;
+            }
+        } finally {
+            for (Run run : open) run.reader.close();
+        }
+        return numNGrams;
+    }
+
+    /**
+     * @return the number of sorted runs written so far.
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Delete the runs.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) Files.deleteIfExists(run);
+        runs.clear();
+    }
+}
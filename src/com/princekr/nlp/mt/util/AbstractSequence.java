@@ -1,7 +1,128 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 /**
- * Created by prince on 2017/10/29.
+ * Implementations of the <code>Sequence</code> methods that depend only on
+ * <code>get()</code> and <code>size()</code>.
+ * <p>
+ * Hash codes are computed from a rolling polynomial over the hash codes of
+ * the elements (see <code>Sequences.rollingHash()</code>), so subclasses
+ * may compute them incrementally and still agree with this class.
  */
-public class AbstractSequence {
+public abstract class AbstractSequence<T> implements Sequence<T> {
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * The rolling hash of the elements. Subclasses that cache it should
+     * override this method.
+     */
+    protected long rollingHash() {
+        long h = 0L;
+        for (int i = 0, sz = size(); i < sz; ++i) {
+            h = Sequences.rollingHash(h, get(i).hashCode());
+        }
+        return h;
+    }
+
+    @Override
+    public long longHashCode() {
+        return Sequences.finishHash(rollingHash(), size());
+    }
+
+    @Override
+    public int hashCode() {
+        final long h = longHashCode();
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof Sequence)) {
+            return false;
+        }
+        final Sequence<T> other = (Sequence<T>) o;
+        final int sz = size();
+        if (sz != other.size()) return false;
+        for (int i = 0; i < sz; ++i) {
+            if (!get(i).equals(other.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(Sequence<T> prefix) {
+        final int prefixSize = prefix.size();
+        if (prefixSize > size()) return false;
+        for (int i = 0; i < prefixSize; ++i) {
+            if (!get(i).equals(prefix.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Sequence<T> subsequence) {
+        final int subSize = subsequence.size();
+        final int lastStart = size() - subSize;
+        outer:
+        for (int start = 0; start <= lastStart; ++start) {
+            for (int i = 0; i < subSize; ++i) {
+                if (!get(start + i).equals(subsequence.get(i))) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int compareTo(Sequence<T> o) {
+        final int sz = Math.min(size(), o.size());
+        for (int i = 0; i < sz; ++i) {
+            final int cmp = ((Comparable<T>) get(i)).compareTo(o.get(i));
+            if (cmp != 0) return cmp;
+        }
+        return size() - o.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < size();
+            }
+
+            @Override
+            public T next() {
+                if (position >= size()) throw new NoSuchElementException();
+                return get(position++);
+            }
+        };
+    }
+
+    @Override
+    public String toString(String delimiter) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0, sz = size(); i < sz; ++i) {
+            if (i > 0) sb.append(delimiter);
+            sb.append(get(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toString(" ");
+    }
 }
@@ -1,7 +1,103 @@
 package com.princekr.nlp.mt.util;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 /**
+ * Map from words to word classes, read from files with one
+ * <code>word class</code> pair per line, as written by mkcls or a Brown
+ * clusterer. Classes are interned in the system vocabulary, so a sequence
+ * of classes is an ordinary <code>Sequence&lt;IString&gt;</code>.
+ * <p>
+ * Words without a class map to <code>UNKNOWN_CLASS</code>, except
+ * &lt;s&gt; and &lt;/s&gt;, which map to themselves. Lookups index an
+ * array by system id and take no locks; load before decoder threads start.
+ *
  * Created by prince on 2017/10/29.
  */
-public class AbstractWordClassMap {
+public abstract class AbstractWordClassMap {
+
+    private static final Logger logger = LogManager.getLogger(AbstractWordClassMap.class.getName());
+
+    public static final IString UNKNOWN_CLASS = TokenUtils.UNK_TOKEN;
+
+    // system id -> system id of the class; -1 if the word has no class
+    private volatile int[] classIds = new int[0];
+
+    /**
+     * Add the classes of a file. A word listed again takes its last class.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public synchronized void load(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        int[] classIds = this.classIds;
+        int numMappings = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                final String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException(String.format("Malformed class mapping at %s:%d: %s", filename,
+                            lineNumber, line));
+                }
+                final int word = Vocabulary.systemAdd(fields[0]);
+                final int wordClass = Vocabulary.systemAdd(fields[1]);
+                if (word >= classIds.length) {
+                    final int length = classIds.length;
+                    classIds = Arrays.copyOf(classIds, Math.max(word + 1, 2 * length));
+                    Arrays.fill(classIds, length, classIds.length, -1);
+                }
+                classIds[word] = wordClass;
+                ++numMappings;
+            }
+        }
+        this.classIds = classIds;
+        logger.info("Loaded {} word classes from {} in {}ms", numMappings, filename,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * @param word system vocabulary id
+     * @return the system vocabulary id of the class of the word.
+     */
+    public int get(int word) {
+        final int[] classIds = this.classIds;
+        if (word >= 0 && word < classIds.length && classIds[word] >= 0) return classIds[word];
+        if (word == TokenUtils.START_TOKEN.id || word == TokenUtils.END_TOKEN.id) return word;
+        return UNKNOWN_CLASS.id;
+    }
+
+    /**
+     * @param word
+     * @return the class of the word.
+     */
+    public IString get(IString word) {
+        return new IString(get(word.id));
+    }
+
+    /**
+     * Map the words of sequence[from, to) to their classes.
+     *
+     * @param sequence
+     * @param from
+     * @param to
+     * @return system vocabulary ids of the classes.
+     */
+    public int[] map(Sequence<IString> sequence, int from, int to) {
+        final int[] classes = new int[to - from];
+        for (int i = from; i < to; ++i) classes[i - from] = get(sequence.get(i).id);
+        return classes;
+    }
 }
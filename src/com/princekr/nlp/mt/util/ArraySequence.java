@@ -1,7 +1,231 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
- * Created by prince on 2017/10/29.
+ * Sequence of system vocabulary ids backed by an <code>int[]</code>.
+ * <p>
+ * Subsequences are views over the same backing array. The rolling hash is
+ * computed once at construction, in constant time for concatenations.
+ * <p>
+ * Backing arrays are allocated with spare capacity. The first sequence to
+ * extend the used region of a backing array claims the spare slots with a
+ * CAS and writes into them in place, so growing a hypothesis one phrase at
+ * a time usually allocates only the new <code>ArraySequence</code>. Other
+ * extensions of the same sequence copy. Slots visible to an existing
+ * sequence are never written.
  */
-public class ArraySequence {
+public class ArraySequence extends AbstractSequence<IString> {
+
+    static final ArraySequence EMPTY = new ArraySequence(new int[0]);
+
+    private static final int MIN_HEADROOM = 8;
+
+    private final Backing backing;
+    private final int start;
+    private final int end;
+    private final long hash;
+
+    /**
+     * Wrap an array of system vocabulary ids. The array is not copied and
+     * must not be modified afterwards.
+     *
+     * @param ids
+     */
+    public ArraySequence(int[] ids) {
+        this(new Backing(ids, ids.length), 0, ids.length, Sequences.rollingHash(ids, 0, ids.length));
+    }
+
+    /**
+     * Copy a sequence of IStrings.
+     *
+     * @param elements
+     */
+    public ArraySequence(IString[] elements) {
+        this(idsOf(elements));
+    }
+
+    /**
+     * Copy an arbitrary sequence.
+     *
+     * @param sequence
+     */
+    public ArraySequence(Sequence<IString> sequence) {
+        this(Sequences.toIntArray(sequence));
+    }
+
+    private ArraySequence(Backing backing, int start, int end, long hash) {
+        this.backing = backing;
+        this.start = start;
+        this.end = end;
+        this.hash = hash;
+    }
+
+    private static int[] idsOf(IString[] elements) {
+        final int[] ids = new int[elements.length];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = elements[i].id;
+        }
+        return ids;
+    }
+
+    @Override
+    public IString get(int i) {
+        return new IString(getId(i));
+    }
+
+    /**
+     * Return the system vocabulary id at position i without creating an
+     * IString.
+     *
+     * @param i
+     * @return
+     */
+    public int getId(int i) {
+        if (i < 0 || i >= end - start) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d Size: %d", i, end - start));
+        }
+        return backing.ids[start + i];
+    }
+
+    @Override
+    public int size() {
+        return end - start;
+    }
+
+    /**
+     * @return a copy of the system vocabulary ids.
+     */
+    public int[] toIntArray() {
+        final int[] ids = new int[end - start];
+        System.arraycopy(backing.ids, start, ids, 0, ids.length);
+        return ids;
+    }
+
+    @Override
+    public ArraySequence subsequence(int start, int end) {
+        if (start < 0 || end > size() || start > end) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) Size: %d", start, end, size()));
+        }
+        if (start == 0 && end == size()) return this;
+        final int from = this.start + start;
+        final int to = this.start + end;
+        return new ArraySequence(backing, from, to, Sequences.rollingHash(backing.ids, from, to));
+    }
+
+    @Override
+    public Sequence<IString> concat(Sequence<IString> other) {
+        if (other.isEmpty()) return this;
+        if (other instanceof ArraySequence) {
+            final ArraySequence o = (ArraySequence) other;
+            if (isEmpty()) return o;
+            return extend(o.backing.ids, o.start, o.size(), o.hash);
+        }
+        final int[] ids = Sequences.toIntArray(other);
+        return extend(ids, 0, ids.length, Sequences.rollingHash(ids, 0, ids.length));
+    }
+
+    @Override
+    public Sequence<IString> append(IString element) {
+        final long h = Sequences.rollingHash(hash, element.id);
+        final int size = size();
+        final Backing b = backing;
+        if (end < b.ids.length && b.claim(end, end + 1)) {
+            b.ids[end] = element.id;
+            return new ArraySequence(b, start, end + 1, h);
+        }
+        final int[] ids = new int[capacityFor(size + 1)];
+        System.arraycopy(b.ids, start, ids, 0, size);
+        ids[size] = element.id;
+        return new ArraySequence(new Backing(ids, size + 1), 0, size + 1, h);
+    }
+
+    @Override
+    public Sequence<IString> prepend(IString element) {
+        final int size = size();
+        final int[] ids = new int[capacityFor(size + 1)];
+        ids[0] = element.id;
+        System.arraycopy(backing.ids, start, ids, 1, size);
+        final long h = Sequences.concatHash(element.id, hash, size);
+        return new ArraySequence(new Backing(ids, size + 1), 0, size + 1, h);
+    }
+
+    /**
+     * Append src[from, from + n) with rolling hash tailHash.
+     */
+    private ArraySequence extend(int[] src, int from, int n, long tailHash) {
+        final long h = Sequences.concatHash(hash, tailHash, n);
+        final int size = size();
+        final int newEnd = end + n;
+        final Backing b = backing;
+        if (newEnd <= b.ids.length && b.claim(end, newEnd)) {
+            System.arraycopy(src, from, b.ids, end, n);
+            return new ArraySequence(b, start, newEnd, h);
+        }
+        final int[] ids = new int[capacityFor(size + n)];
+        System.arraycopy(b.ids, start, ids, 0, size);
+        System.arraycopy(src, from, ids, size, n);
+        return new ArraySequence(new Backing(ids, size + n), 0, size + n, h);
+    }
+
+    private static int capacityFor(int size) {
+        return size + Math.max(MIN_HEADROOM, size >> 1);
+    }
+
+    @Override
+    protected long rollingHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (o instanceof ArraySequence) {
+            final ArraySequence other = (ArraySequence) o;
+            final int size = size();
+            if (hash != other.hash || size != other.size()) return false;
+            final int[] a = backing.ids;
+            final int[] b = other.backing.ids;
+            for (int i = 0; i < size; ++i) {
+                if (a[start + i] != b[other.start + i]) return false;
+            }
+            return true;
+        } else {
+            return super.equals(o);
+        }
+    }
+
+    @Override
+    public boolean startsWith(Sequence<IString> prefix) {
+        if (!(prefix instanceof ArraySequence)) return super.startsWith(prefix);
+        final ArraySequence p = (ArraySequence) prefix;
+        final int prefixSize = p.size();
+        if (prefixSize > size()) return false;
+        for (int i = 0; i < prefixSize; ++i) {
+            if (backing.ids[start + i] != p.backing.ids[p.start + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Backing array shared by a sequence and its views. <code>fill</code> is
+     * the end of the region handed out so far.
+     */
+    private static final class Backing {
+        private static final AtomicIntegerFieldUpdater<Backing> FILL =
+                AtomicIntegerFieldUpdater.newUpdater(Backing.class, "fill");
+
+        private final int[] ids;
+        private volatile int fill;
+
+        private Backing(int[] ids, int fill) {
+            this.ids = ids;
+            this.fill = fill;
+        }
+
+        private boolean claim(int from, int to) {
+            return fill == from && FILL.compareAndSet(this, from, to);
+        }
+    }
 }
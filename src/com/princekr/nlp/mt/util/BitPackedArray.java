@@ -0,0 +1,196 @@
+package com.princekr.nlp.mt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-length array of unsigned values of <code>width</code> bits, packed
+ * back to back in off-heap 64-bit words. Values may straddle two words.
+ * Words are kept in pages of 2^27 longs (1GB), so the array is not limited
+ * by the 2GB size of a single buffer.
+ * <p>
+ * Direct buffers count against <code>-XX:MaxDirectMemorySize</code>, which
+ * defaults to the maximum heap size. An array can also be written to a file
+ * as little-endian words and mapped back read-only, which uses neither.
+ * <p>
+ * Writes are not threadsafe; reads of a fully written array are.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class BitPackedArray {
+
+    static final int PAGE_BITS = 27;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int WRITE_CHUNK = 1 << 17;
+    public static final int MAX_WIDTH = 63;
+
+    private final LongBuffer[] pages;
+    private final long length;
+    private final int width;
+    private final long mask;
+
+    /**
+     * Allocate a zero-filled array.
+     *
+     * @param length number of values
+     * @param width  bits per value, between 1 and <code>MAX_WIDTH</code>
+     */
+    public BitPackedArray(long length, int width) {
+        if (width < 1 || width > MAX_WIDTH) {
+            throw new IllegalArgumentException("Invalid width: " + width);
+        }
+        if (length < 0) throw new IllegalArgumentException("Negative length: " + length);
+        final long numWords = numWords(length, width);
+        this.pages = new LongBuffer[numPages(numWords)];
+        for (int p = 0; p < pages.length; ++p) {
+            final int n = (int) Math.min(PAGE_SIZE, numWords - ((long) p << PAGE_BITS));
+            pages[p] = ByteBuffer.allocateDirect(8 * n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+        this.length = length;
+        this.width = width;
+        this.mask = -1L >>> (64 - width);
+    }
+
+    private BitPackedArray(LongBuffer[] pages, long length, int width) {
+        this.pages = pages;
+        this.length = length;
+        this.width = width;
+        this.mask = -1L >>> (64 - width);
+    }
+
+    private static long numWords(long length, int width) {
+        // One spare word so that reads never straddle past the end
+        return (length * width + 63) / 64 + 1;
+    }
+
+    private static int numPages(long numWords) {
+        return (int) ((numWords + PAGE_MASK) >>> PAGE_BITS);
+    }
+
+    /**
+     * @param length
+     * @param width
+     * @return the number of bytes that <code>write()</code> writes for an
+     * array of this shape.
+     */
+    public static long byteSize(long length, int width) {
+        return 8 * numWords(length, width);
+    }
+
+    /**
+     * Map an array written by <code>write()</code>.
+     *
+     * @param channel
+     * @param offset  file offset of the array
+     * @param length  number of values
+     * @param width   bits per value
+     * @return a read-only array.
+     * @throws IOException
+     */
+    public static BitPackedArray map(FileChannel channel, long offset, long length, int width) throws IOException {
+        if (width < 1 || width > MAX_WIDTH || length < 0) {
+            throw new IOException(String.format("Invalid bit-packed array: %d values of %d bits", length, width));
+        }
+        final long numWords = numWords(length, width);
+        if (offset + 8 * numWords > channel.size()) throw new IOException("File is too short: " + channel.size());
+        final LongBuffer[] pages = new LongBuffer[numPages(numWords)];
+        for (int p = 0; p < pages.length; ++p) {
+            final long start = (long) p << PAGE_BITS;
+            final long n = Math.min(PAGE_SIZE, numWords - start);
+            pages[p] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8 * start, 8 * n)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+        return new BitPackedArray(pages, length, width);
+    }
+
+    /**
+     * Write the words at the current position of a channel.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void write(FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(8 * WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        for (LongBuffer page : pages) {
+            for (int i = 0; i < page.capacity(); i += WRITE_CHUNK) {
+                final int n = Math.min(WRITE_CHUNK, page.capacity() - i);
+                final LongBuffer src = page.duplicate();
+                src.limit(i + n).position(i);
+                buffer.clear();
+                buffer.asLongBuffer().put(src);
+                buffer.limit(8 * n);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return whether the array is mapped read-only from a file.
+     */
+    public boolean isMapped() {
+        return pages[0].isReadOnly();
+    }
+
+    /**
+     * @param maxValue
+     * @return the number of bits needed to store values up to maxValue.
+     */
+    public static int bitsFor(long maxValue) {
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(maxValue));
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    /**
+     * @return the number of off-heap bytes.
+     */
+    public long byteSize() {
+        long size = 0;
+        for (LongBuffer page : pages) size += 8L * page.capacity();
+        return size;
+    }
+
+    private long word(long w) {
+        return pages[(int) (w >>> PAGE_BITS)].get((int) w & PAGE_MASK);
+    }
+
+    private void putWord(long w, long value) {
+        pages[(int) (w >>> PAGE_BITS)].put((int) w & PAGE_MASK, value);
+    }
+
+    public long get(long i) {
+        final long bit = i * width;
+        final long w = bit >>> 6;
+        final int offset = (int) bit & 63;
+        long value = word(w) >>> offset;
+        if (offset + width > 64) value |= word(w + 1) << (64 - offset);
+        return value & mask;
+    }
+
+    public void set(long i, long value) {
+        if (i < 0 || i >= length) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Index: %d Length: %d", i, length));
+        }
+        if ((value & ~mask) != 0) {
+            throw new IllegalArgumentException(String.format("Value %d does not fit in %d bits", value, width));
+        }
+        final long bit = i * width;
+        final long w = bit >>> 6;
+        final int offset = (int) bit & 63;
+        putWord(w, word(w) & ~(mask << offset) | value << offset);
+        if (offset + width > 64) {
+            final int shift = 64 - offset;
+            putWord(w + 1, word(w + 1) & ~(mask >>> shift) | value >>> shift);
+        }
+    }
+}
@@ -1,7 +1,127 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.Arrays;
+
 /**
+ * Single-threaded index of <code>int[]</code> keys over one flat key
+ * arena. Cheaper than <code>ProbingIntegerArrayIndex</code> when the index
+ * is confined to one thread, e.g. for rules extracted during a single query.
+ * <p>
+ * Not threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
-public class DynamicIntegerArrayIndex {
+public class DynamicIntegerArrayIndex implements IntegerArrayIndex {
+
+    private static final int SEED = 0x3c074a61;
+
+    // Keys back to back, each preceded by its length
+    private int[] arena;
+    private int arenaEnd;
+
+    // id -> arena offset and fingerprint of the key
+    private int[] offsets;
+    private int[] fingerprints;
+    private int size;
+
+    // id + 1, or 0 for an empty slot
+    private int[] table;
+
+    public DynamicIntegerArrayIndex() {
+        this(64);
+    }
+
+    /**
+     * @param initialCapacity expected number of keys
+     */
+    public DynamicIntegerArrayIndex(int initialCapacity) {
+        final int capacity = Math.max(4, initialCapacity);
+        arena = new int[4 * capacity];
+        offsets = new int[capacity];
+        fingerprints = new int[capacity];
+        int tableSize = 8;
+        while (tableSize < 2 * capacity) tableSize <<= 1;
+        table = new int[tableSize];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all keys but keep the allocated storage.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        arenaEnd = 0;
+    }
+
+    @Override
+    public int indexOf(int[] key, int from, int to) {
+        final int h = MurmurHash3.hash32(key, from, to - from, SEED);
+        final int mask = table.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            final int slot = table[i];
+            if (slot == 0) return UNKNOWN_ID;
+            if (fingerprints[slot - 1] == h && keyEquals(slot - 1, key, from, to)) return slot - 1;
+        }
+    }
+
+    @Override
+    public int add(int[] key, int from, int to) {
+        final int h = MurmurHash3.hash32(key, from, to - from, SEED);
+        int mask = table.length - 1;
+        int i = h & mask;
+        for (int slot; (slot = table[i]) != 0; i = (i + 1) & mask) {
+            if (fingerprints[slot - 1] == h && keyEquals(slot - 1, key, from, to)) return slot - 1;
+        }
+
+        final int id = size++;
+        if (id == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * id);
+            fingerprints = Arrays.copyOf(fingerprints, 2 * id);
+        }
+        final int length = to - from;
+        if (arenaEnd + length + 1 > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(2 * arena.length, arenaEnd + length + 1));
+        }
+        offsets[id] = arenaEnd;
+        fingerprints[id] = h;
+        arena[arenaEnd] = length;
+        System.arraycopy(key, from, arena, arenaEnd + 1, length);
+        arenaEnd += length + 1;
+
+        if (2 * size > table.length) {
+            table = new int[2 * table.length];
+            mask = table.length - 1;
+            for (int j = 0; j < size; ++j) {
+                int k = fingerprints[j] & mask;
+                while (table[k] != 0) k = (k + 1) & mask;
+                table[k] = j + 1;
+            }
+        } else {
+            table[i] = id + 1;
+        }
+        return id;
+    }
+
+    private boolean keyEquals(int id, int[] key, int from, int to) {
+        int p = offsets[id];
+        if (arena[p++] != to - from) return false;
+        for (int i = from; i < to; ++i, ++p) {
+            if (arena[p] != key[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int[] get(int id) {
+        if (id < 0 || id >= size) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Index: %d Size: %d", id, size));
+        }
+        final int offset = offsets[id];
+        return Arrays.copyOfRange(arena, offset + 1, offset + 1 + arena[offset]);
+    }
 }
@@ -1,7 +1,22 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * The value of a feature of a translation.
+ *
  * Created by prince on 2017/10/29.
  */
-public class FeatureValue {
+public class FeatureValue<T> {
+
+    public final T name;
+    public final double value;
+
+    public FeatureValue(T name, double value) {
+        this.name = name;
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + value;
+    }
 }
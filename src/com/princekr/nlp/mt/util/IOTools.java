@@ -1,5 +1,13 @@
 package com.princekr.nlp.mt.util;
 
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.Counter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 
@@ -10,4 +18,34 @@ public class IOTools {
     public static Map<String,List<String>> readConfigFile(String configFile) {
         return null;
     }
+
+    /**
+     * Read model weights, one "feature weight" pair per line. Blank lines
+     * are skipped.
+     *
+     * @param filename
+     * @return the weights.
+     * @throws IOException
+     */
+    public static Counter<String> readWeights(String filename) throws IOException {
+        final Counter<String> weights = new ClassicCounter<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                final String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException(String.format("%s:%d: expected a feature and a weight", filename, lineNumber));
+                }
+                try {
+                    weights.setCount(fields[0], Double.parseDouble(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("%s:%d: invalid weight %s", filename, lineNumber, fields[1]));
+                }
+            }
+        }
+        return weights;
+    }
 }
@@ -5,29 +5,76 @@ import java.io.Serializable;
 /**
  * Represents a String with a corresponding Integer ID. Keeps a static index of
  * all the Strings, indexed by ID.
+ * <p>
+ * An IString is a flyweight: it holds only the system vocabulary id, and the
+ * characters live in the system vocabulary.
  */
 public class IString implements CharSequence, Serializable, Comparable<IString> {
 
-    //private final int id;
+    private static final long serialVersionUID = 2718L;
 
+    public final int id;
+
+    /**
+     * Add the string to the system vocabulary.
+     *
+     * @param string
+     */
+    public IString(String string) {
+        this.id = Vocabulary.systemAdd(string);
+    }
+
+    /**
+     * Wrap an id that is already in the system vocabulary.
+     *
+     * @param id
+     */
+    public IString(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
 
     @Override
     public int length() {
-        return 0;
+        return toString().length();
     }
 
     @Override
     public char charAt(int index) {
-        return 0;
+        return toString().charAt(index);
     }
 
     @Override
     public CharSequence subSequence(int start, int end) {
-        return null;
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof IString)) {
+            return false;
+        } else {
+            return id == ((IString) o).id;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return Vocabulary.systemGet(id);
     }
 
     @Override
     public int compareTo(IString o) {
-        return 0;
+        return id == o.id ? 0 : toString().compareTo(o.toString());
     }
 }
@@ -1,7 +1,53 @@
 package com.princekr.nlp.mt.util;
 
 /**
- * Created by prince on 2017/10/29.
+ * Utility functions for converting between strings, IStrings and
+ * system vocabulary ids.
  */
 public class IStrings {
+
+    private IStrings() {
+    }
+
+    /**
+     * Split a string on whitespace and convert it to a sequence.
+     *
+     * @param str
+     * @return
+     */
+    public static Sequence<IString> tokenize(String str) {
+        final String trimmed = str.trim();
+        if (trimmed.isEmpty()) return Sequences.emptySequence();
+        return new ArraySequence(toIntArray(trimmed.split("\\s+")));
+    }
+
+    /**
+     * Convert strings to system vocabulary ids, adding them if necessary.
+     *
+     * @param tokens
+     * @return
+     */
+    public static int[] toIntArray(String[] tokens) {
+        final int[] ids = new int[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) {
+            ids[i] = Vocabulary.systemAdd(tokens[i]);
+        }
+        return ids;
+    }
+
+    public static IString[] toIStringArray(String[] tokens) {
+        final IString[] strings = new IString[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) {
+            strings[i] = new IString(tokens[i]);
+        }
+        return strings;
+    }
+
+    public static String[] toStringArray(int[] ids) {
+        final String[] strings = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            strings[i] = Vocabulary.systemGet(ids[i]);
+        }
+        return strings;
+    }
 }
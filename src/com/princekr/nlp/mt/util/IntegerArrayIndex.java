@@ -1,7 +1,65 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * Maps <code>int[]</code> keys, e.g. rule sources and targets encoded as
+ * system vocabulary ids, to contiguous integer ids.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface IntegerArrayIndex {
+
+    int UNKNOWN_ID = -1;
+
+    /**
+     * Lookup a key without adding it.
+     *
+     * @param key
+     * @return the id of the key, or UNKNOWN_ID.
+     */
+    default int indexOf(int[] key) {
+        return indexOf(key, 0, key.length);
+    }
+
+    /**
+     * Lookup the key key[from, to) without copying it.
+     *
+     * @param key
+     * @param from
+     * @param to
+     * @return the id of the key, or UNKNOWN_ID.
+     */
+    int indexOf(int[] key, int from, int to);
+
+    /**
+     * Lookup a key, adding it if necessary.
+     *
+     * @param key
+     * @return the id of the key.
+     */
+    default int add(int[] key) {
+        return add(key, 0, key.length);
+    }
+
+    /**
+     * Lookup the key key[from, to), adding it if necessary.
+     *
+     * @param key
+     * @param from
+     * @param to
+     * @return the id of the key.
+     */
+    int add(int[] key, int from, int to);
+
+    /**
+     * Return a copy of the key with the given id.
+     *
+     * @param id
+     * @return
+     */
+    int[] get(int id);
+
+    /**
+     * @return the number of keys in the index.
+     */
+    int size();
 }
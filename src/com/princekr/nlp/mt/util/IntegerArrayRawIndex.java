@@ -1,7 +1,34 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * Maps <code>int[]</code> keys to contiguous integer ids without storing
+ * the keys. Keys are identified by a 64-bit hash, so distinct keys collide
+ * with negligible but non-zero probability.
+ *
  * Created by prince on 2017/10/29.
  */
 public interface IntegerArrayRawIndex {
+
+    int UNKNOWN_ID = -1;
+
+    /**
+     * Lookup a key without adding it.
+     *
+     * @param key
+     * @return the id of the key, or UNKNOWN_ID.
+     */
+    int indexOf(int[] key);
+
+    /**
+     * Lookup a key, adding it if necessary.
+     *
+     * @param key
+     * @return the id of the key.
+     */
+    int add(int[] key);
+
+    /**
+     * @return the number of keys in the index.
+     */
+    int size();
 }
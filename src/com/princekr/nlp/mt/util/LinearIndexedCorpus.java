@@ -1,7 +1,154 @@
 package com.princekr.nlp.mt.util;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
 /**
+ * Sentences of ints stored back to back in one linear array, with an index
+ * of sentence offsets. Used for both sides of a <code>ParallelCorpus</code>
+ * and for its alignment links. If the corpus is terminated, each sentence
+ * is followed by <code>EOS</code>.
+ * <p>
+ * The arrays are either on the heap or mapped from a file. Sentences are
+ * appended by a single thread; reads are threadsafe.
+ *
  * Created by prince on 2017/10/29.
  */
 public class LinearIndexedCorpus {
+
+    public static final int EOS = -1;
+
+    private final PagedIntArray tokens;
+    // sentence -> first position; entry size() is the end of the last sentence
+    private final PagedIntArray offsets;
+    private final boolean terminated;
+
+    /**
+     * @param initialCapacity expected number of positions
+     * @param terminated      whether to append EOS to each sentence
+     */
+    public LinearIndexedCorpus(int initialCapacity, boolean terminated) {
+        this.tokens = new PagedIntArray(initialCapacity);
+        this.offsets = new PagedIntArray(Math.max(16, initialCapacity / 16));
+        this.offsets.add(0);
+        this.terminated = terminated;
+    }
+
+    private LinearIndexedCorpus(PagedIntArray tokens, PagedIntArray offsets, boolean terminated) {
+        this.tokens = tokens;
+        this.offsets = offsets;
+        this.terminated = terminated;
+    }
+
+    /**
+     * Append a sentence.
+     *
+     * @param sentence
+     * @return the id of the sentence.
+     */
+    public int add(int[] sentence) {
+        tokens.addAll(sentence, 0, sentence.length);
+        if (terminated) tokens.add(EOS);
+        offsets.add(tokens.length());
+        return offsets.length() - 2;
+    }
+
+    /**
+     * @return the number of sentences.
+     */
+    public int size() {
+        return offsets.length() - 1;
+    }
+
+    /**
+     * @return the number of positions, including terminators.
+     */
+    public int length() {
+        return tokens.length();
+    }
+
+    public int get(int position) {
+        return tokens.get(position);
+    }
+
+    /**
+     * @param sentence
+     * @return the position of the first token of the sentence.
+     */
+    public int start(int sentence) {
+        return offsets.get(sentence);
+    }
+
+    /**
+     * @param sentence
+     * @return the number of tokens in the sentence, excluding EOS.
+     */
+    public int length(int sentence) {
+        return offsets.get(sentence + 1) - offsets.get(sentence) - (terminated ? 1 : 0);
+    }
+
+    /**
+     * @param position
+     * @return the sentence that contains the position.
+     */
+    public int sentenceOf(int position) {
+        if (position < 0 || position >= tokens.length()) {
+            throw new IndexOutOfBoundsException(String.format("Position: %d Length: %d", position, tokens.length()));
+        }
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (offsets.get(mid) <= position) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * @param sentence
+     * @return a copy of the sentence, excluding EOS.
+     */
+    public int[] getSentence(int sentence) {
+        final int start = start(sentence);
+        return tokens.toArray(start, start + length(sentence));
+    }
+
+    public boolean isMapped() {
+        return tokens.isMapped();
+    }
+
+    /**
+     * Write the offsets followed by the tokens.
+     */
+    void write(FileChannel channel) throws IOException {
+        offsets.write(channel);
+        tokens.write(channel);
+    }
+
+    /**
+     * Map a corpus written by <code>write()</code>.
+     *
+     * @param channel
+     * @param offset     file offset of the corpus
+     * @param size       number of sentences
+     * @param length     number of positions
+     * @param terminated
+     * @return
+     * @throws IOException
+     */
+    static LinearIndexedCorpus map(FileChannel channel, long offset, int size, int length,
+                                   boolean terminated) throws IOException {
+        final PagedIntArray offsets = PagedIntArray.map(channel, offset, size + 1);
+        final PagedIntArray tokens = PagedIntArray.map(channel, offset + 4L * (size + 1), length);
+        if (offsets.get(size) != length) throw new IOException("Corrupt corpus: offsets do not match length");
+        return new LinearIndexedCorpus(tokens, offsets, terminated);
+    }
+
+    /**
+     * @return the number of bytes written by <code>write()</code>.
+     */
+    long byteSize() {
+        return 4L * (offsets.length() + tokens.length());
+    }
 }
@@ -0,0 +1,192 @@
+package com.princekr.nlp.mt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only string index over a memory-mapped vocabulary snapshot. The
+ * snapshot contains the hash table itself, so loading neither copies nor
+ * re-hashes the strings.
+ * <p>
+ * Layout (little-endian):
+ * <pre>
+ *   int    magic
+ *   int    version
+ *   int    size
+ *   int    tableSize            (power of two)
+ *   long   arenaLength
+ *   long   reserved
+ *   long[size]      locations   (arena offset &lt;&lt; 20 | byte length)
+ *   int[size]       hashes
+ *   int[tableSize]  table       (id + 1, or 0 for an empty slot)
+ *   byte[arenaLength] UTF-8 arena
+ * </pre>
+ */
+final class MappedStringIndex {
+
+    static final int MAGIC = 0x50564f43; // "PVOC"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int LENGTH_BITS = 20;
+    private static final int LENGTH_MASK = (1 << LENGTH_BITS) - 1;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int mask;
+    private final int locationsOffset;
+    private final int hashesOffset;
+    private final int tableOffset;
+    private final int arenaOffset;
+    // Per-thread view and copy of a candidate entry
+    private final ThreadLocal<Candidate> candidates;
+
+    private MappedStringIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a vocabulary snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported vocabulary snapshot version: " + buffer.getInt(4));
+        }
+        this.size = buffer.getInt(8);
+        final int tableSize = buffer.getInt(12);
+        final long arenaLength = buffer.getLong(16);
+        if (Integer.bitCount(tableSize) != 1 || tableSize < size) {
+            throw new IOException("Corrupt vocabulary snapshot: table size " + tableSize);
+        }
+        this.mask = tableSize - 1;
+        this.locationsOffset = HEADER_BYTES;
+        this.hashesOffset = locationsOffset + 8 * size;
+        this.tableOffset = hashesOffset + 4 * size;
+        this.arenaOffset = tableOffset + 4 * tableSize;
+        if (arenaOffset + arenaLength != buffer.capacity()) {
+            throw new IOException("Corrupt vocabulary snapshot: length mismatch");
+        }
+        this.candidates = ThreadLocal.withInitial(() -> new Candidate(this.buffer.duplicate()));
+    }
+
+    /**
+     * Map a snapshot into memory.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    static MappedStringIndex map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Vocabulary snapshot exceeds 2GB: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedStringIndex(buffer);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int hash(int id) {
+        return buffer.getInt(hashesOffset + 4 * id);
+    }
+
+    int indexOf(String s, int h) {
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            final int slot = buffer.getInt(tableOffset + 4 * i);
+            if (slot == 0) return PackedStringIndex.UNKNOWN_ID;
+            final int id = slot - 1;
+            if (hash(id) == h && matches(id, s)) return id;
+        }
+    }
+
+    /**
+     * A thread's view of the buffer and a copy of the bytes of the entry it
+     * compares, so that the heap index's <code>utf8Equals()</code> compares
+     * mapped entries too. Only entries whose hash matches are copied.
+     */
+    private static final class Candidate {
+        final ByteBuffer view;
+        byte[] bytes = new byte[64];
+
+        Candidate(ByteBuffer view) {
+            this.view = view;
+        }
+    }
+
+    private boolean matches(int id, String s) {
+        final long location = buffer.getLong(locationsOffset + 8 * id);
+        final int length = (int) location & LENGTH_MASK;
+        final Candidate candidate = candidates.get();
+        if (candidate.bytes.length < length) candidate.bytes = new byte[Math.max(length, 2 * candidate.bytes.length)];
+        candidate.view.position(arenaOffset + (int) (location >>> LENGTH_BITS));
+        candidate.view.get(candidate.bytes, 0, length);
+        return PackedStringIndex.utf8Equals(s, candidate.bytes, 0, length);
+    }
+
+    /**
+     * Copy the UTF-8 bytes of an entry.
+     */
+    byte[] bytes(int id) {
+        final long location = buffer.getLong(locationsOffset + 8 * id);
+        final byte[] bytes = new byte[(int) location & LENGTH_MASK];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(arenaOffset + (int) (location >>> LENGTH_BITS));
+        view.get(bytes);
+        return bytes;
+    }
+
+    String get(int id) {
+        return new String(bytes(id), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a snapshot of strings that have already been hashed.
+     *
+     * @param path
+     * @param strings UTF-8 bytes indexed by id
+     * @param hashes  hash of each string
+     * @param size    number of strings
+     * @throws IOException
+     */
+    static void write(Path path, byte[][] strings, int[] hashes, int size) throws IOException {
+        int tableSize = 16;
+        while (tableSize < 2L * size) tableSize <<= 1;
+        long arenaLength = 0;
+        for (int id = 0; id < size; ++id) arenaLength += strings[id].length;
+        final long fileLength = HEADER_BYTES + 12L * size + 4L * tableSize + arenaLength;
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("Vocabulary snapshot would exceed 2GB");
+        }
+
+        final int[] table = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int id = 0; id < size; ++id) {
+            int i = hashes[id] & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = id + 1;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) fileLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(tableSize).putLong(arenaLength).putLong(0L);
+        long offset = 0;
+        for (int id = 0; id < size; ++id) {
+            buffer.putLong((offset << LENGTH_BITS) | strings[id].length);
+            offset += strings[id].length;
+        }
+        for (int id = 0; id < size; ++id) buffer.putInt(hashes[id]);
+        for (int slot : table) buffer.putInt(slot);
+        for (int id = 0; id < size; ++id) buffer.put(strings[id]);
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+}
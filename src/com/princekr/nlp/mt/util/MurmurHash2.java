@@ -1,7 +1,81 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * MurmurHash2 by Austin Appleby, specialized to <code>int[]</code> keys.
+ * Each int is hashed as four little-endian bytes, so results match the
+ * reference implementation on the equivalent byte array.
+ *
  * Created by prince on 2017/10/29.
  */
-public class MurmurHash2 {
+public final class MurmurHash2 {
+
+    private MurmurHash2() {
+    }
+
+    /**
+     * 32-bit MurmurHash2 of key[offset, offset + length).
+     *
+     * @param key
+     * @param offset
+     * @param length number of ints
+     * @param seed
+     * @return
+     */
+    public static int hash32(int[] key, int offset, int length, int seed) {
+        final int m = 0x5bd1e995;
+        final int r = 24;
+        int h = seed ^ (length << 2);
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            int k = key[i];
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+        }
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    public static int hash32(int[] key, int length, int seed) {
+        return hash32(key, 0, length, seed);
+    }
+
+    /**
+     * 64-bit MurmurHash64A of key[offset, offset + length).
+     *
+     * @param key
+     * @param offset
+     * @param length number of ints
+     * @param seed
+     * @return
+     */
+    public static long hash64(int[] key, int offset, int length, int seed) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = (seed & 0xffffffffL) ^ ((length << 2) * m);
+        final int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            long k = (key[i] & 0xffffffffL) | ((long) key[i + 1] << 32);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        if ((length & 1) != 0) {
+            h ^= key[end] & 0xffffffffL;
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    public static long hash64(int[] key, int length, int seed) {
+        return hash64(key, 0, length, seed);
+    }
 }
@@ -1,7 +1,130 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * MurmurHash3 by Austin Appleby, specialized to <code>int[]</code> keys.
+ * Each int is hashed as four little-endian bytes, so results match the
+ * reference implementation on the equivalent byte array.
+ *
  * Created by prince on 2017/10/29.
  */
-public class MurmurHash3 {
+public final class MurmurHash3 {
+
+    private MurmurHash3() {
+    }
+
+    private static final int C1_32 = 0xcc9e2d51;
+    private static final int C2_32 = 0x1b873593;
+    private static final long C1_64 = 0x87c37b91114253d5L;
+    private static final long C2_64 = 0x4cf5ad432745937fL;
+
+    /**
+     * MurmurHash3_x86_32 of key[offset, offset + length).
+     *
+     * @param key
+     * @param offset
+     * @param length number of ints
+     * @param seed
+     * @return
+     */
+    public static int hash32(int[] key, int offset, int length, int seed) {
+        int h = seed;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            int k = key[i];
+            k *= C1_32;
+            k = Integer.rotateLeft(k, 15);
+            k *= C2_32;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        h ^= length << 2;
+        return fmix32(h);
+    }
+
+    public static int hash32(int[] key, int length, int seed) {
+        return hash32(key, 0, length, seed);
+    }
+
+    /**
+     * Lower 64 bits of MurmurHash3_x64_128 of key[offset, offset + length).
+     *
+     * @param key
+     * @param offset
+     * @param length number of ints
+     * @param seed
+     * @return
+     */
+    public static long hash64(int[] key, int offset, int length, int seed) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = seed & 0xffffffffL;
+        final int blockEnd = offset + (length & ~3);
+        for (int i = offset; i < blockEnd; i += 4) {
+            long k1 = (key[i] & 0xffffffffL) | ((long) key[i + 1] << 32);
+            long k2 = (key[i + 2] & 0xffffffffL) | ((long) key[i + 3] << 32);
+
+            k1 *= C1_64;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2_64;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2_64;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1_64;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = length & 3;
+        if (tail == 3) {
+            long k2 = key[blockEnd + 2] & 0xffffffffL;
+            k2 *= C2_64;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1_64;
+            h2 ^= k2;
+        }
+        if (tail > 0) {
+            long k1 = key[blockEnd] & 0xffffffffL;
+            if (tail > 1) k1 |= (long) key[blockEnd + 1] << 32;
+            k1 *= C1_64;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2_64;
+            h1 ^= k1;
+        }
+
+        h1 ^= length << 2;
+        h2 ^= length << 2;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    public static long hash64(int[] key, int length, int seed) {
+        return hash64(key, 0, length, seed);
+    }
+
+    public static int fmix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
 }
@@ -0,0 +1,337 @@
+package com.princekr.nlp.mt.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Thread-safe, append-only index from strings to contiguous integer ids.
+ * <p>
+ * Strings are stored UTF-8 encoded in a paged byte arena and found through
+ * an open-addressing table of ids, so an entry costs a few primitive slots
+ * instead of a String, a boxed Integer and a map entry.
+ * <p>
+ * Lookups never lock. Insertions are serialized on a private lock and publish
+ * each entry through a volatile write to the hash table, so a reader that can
+ * see an id can also see its string. Ids are never reassigned.
+ * <p>
+ * An index can be layered over a memory-mapped snapshot (see
+ * <code>map(Path, int)</code>). The snapshot holds ids <code>[0, base size)</code>
+ * and is queried in place; new strings are appended on the heap after it.
+ */
+public final class PackedStringIndex {
+
+    public static final int UNKNOWN_ID = -1;
+
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+    private static final int MAX_LENGTH = PAGE_SIZE - 1;
+    private static final int MAX_PAGES = 1 << 24;
+
+    /**
+     * Rehash when the table is more than half full.
+     */
+    private static final int LOAD_FACTOR_INVERSE = 2;
+
+    /**
+     * id -> location of the UTF-8 bytes, packed as page (24 bits),
+     * offset in page (20 bits) and length (20 bits).
+     */
+    private volatile long[] locations;
+
+    /**
+     * id -> cached hash of the string.
+     */
+    private volatile int[] hashes;
+
+    /**
+     * Open-addressing table. Slots hold id + 1, and 0 marks an empty slot.
+     */
+    private volatile AtomicIntegerArray table;
+
+    private volatile byte[][] pages;
+    private volatile int size;
+
+    private final MappedStringIndex base;
+    private final int baseSize;
+
+    // Writer state, guarded by writeLock
+    private final Object writeLock = new Object();
+    private int numPages;
+    private int pageFill;
+
+    public PackedStringIndex() {
+        this(1024);
+    }
+
+    public PackedStringIndex(int initialCapacity) {
+        this(null, initialCapacity);
+    }
+
+    private PackedStringIndex(MappedStringIndex base, int initialCapacity) {
+        this.base = base;
+        this.baseSize = base == null ? 0 : base.size();
+        int capacity = Math.max(16, initialCapacity);
+        this.locations = new long[capacity];
+        this.hashes = new int[capacity];
+        this.table = new AtomicIntegerArray(tableSizeFor(capacity));
+        this.pages = new byte[16][];
+    }
+
+    private static int tableSizeFor(int capacity) {
+        long n = Long.highestOneBit((long) capacity * LOAD_FACTOR_INVERSE - 1) << 1;
+        if (n > (1 << 30)) throw new IllegalArgumentException("Capacity too large: " + capacity);
+        return (int) Math.max(16, n);
+    }
+
+    /**
+     * Memory-map a snapshot written by <code>save(Path)</code>. The strings in
+     * the snapshot keep their ids.
+     *
+     * @param path
+     * @param initialCapacity capacity for strings added after the snapshot.
+     * @return
+     * @throws IOException
+     */
+    public static PackedStringIndex map(Path path, int initialCapacity) throws IOException {
+        return new PackedStringIndex(MappedStringIndex.map(path), initialCapacity);
+    }
+
+    /**
+     * Write a snapshot of the index that can be loaded with
+     * <code>map(Path, int)</code>. Strings added concurrently may or may not
+     * be included.
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void save(Path path) throws IOException {
+        final int heapSize = size;
+        final int total = baseSize + heapSize;
+        final byte[][] strings = new byte[total][];
+        final int[] h = new int[total];
+        for (int id = 0; id < baseSize; ++id) {
+            strings[id] = base.bytes(id);
+            h[id] = base.hash(id);
+        }
+        for (int id = 0; id < heapSize; ++id) {
+            final long location = locations[id];
+            strings[baseSize + id] = Arrays.copyOfRange(pages[page(location)], offset(location),
+                    offset(location) + length(location));
+            h[baseSize + id] = hashes[id];
+        }
+        MappedStringIndex.write(path, strings, h, total);
+    }
+
+    /**
+     * The hash of a string. String.hashCode() is cached by the String and its
+     * value is fixed by the language specification, so stored hashes remain
+     * valid across JVMs.
+     */
+    static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Number of strings in the index.
+     */
+    public int size() {
+        return baseSize + size;
+    }
+
+    /**
+     * Lookup the id of a string without adding it.
+     *
+     * @param s
+     * @return the id, or UNKNOWN_ID if the string is not in the index.
+     */
+    public int indexOf(String s) {
+        final int h = hash(s);
+        if (base != null) {
+            final int id = base.indexOf(s, h);
+            if (id != UNKNOWN_ID) return id;
+        }
+        final int id = heapIndexOf(s, h);
+        return id == UNKNOWN_ID ? UNKNOWN_ID : baseSize + id;
+    }
+
+    private int heapIndexOf(String s, int h) {
+        final AtomicIntegerArray t = table;
+        final int mask = t.length() - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            final int slot = t.get(i);
+            if (slot == 0) return UNKNOWN_ID;
+            final int id = slot - 1;
+            if (hashes[id] == h && matches(id, s)) return id;
+        }
+    }
+
+    /**
+     * Lookup the id of a string, adding it if necessary.
+     *
+     * @param s
+     * @return the id of the string.
+     */
+    public int add(String s) {
+        int id = indexOf(s);
+        return id == UNKNOWN_ID ? baseSize + insert(s) : id;
+    }
+
+    public boolean contains(String s) {
+        return indexOf(s) != UNKNOWN_ID;
+    }
+
+    /**
+     * Return the string with the given id.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if the id has not been assigned.
+     */
+    public String get(int id) {
+        if (id < baseSize && id >= 0) {
+            return base.get(id);
+        }
+        id -= baseSize;
+        if (id < 0 || id >= size) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Index: %d Size: %d", id + baseSize, size()));
+        }
+        final long location = locations[id];
+        return new String(pages[page(location)], offset(location), length(location), StandardCharsets.UTF_8);
+    }
+
+    private static int page(long location) {
+        return (int) (location >>> 40);
+    }
+
+    private static int offset(long location) {
+        return (int) (location >>> 20) & OFFSET_MASK;
+    }
+
+    private static int length(long location) {
+        return (int) location & OFFSET_MASK;
+    }
+
+    private boolean matches(int id, String s) {
+        final long location = locations[id];
+        return utf8Equals(s, pages[page(location)], offset(location), length(location));
+    }
+
+    private int insert(String s) {
+        synchronized (writeLock) {
+            // Another writer may have added the string in the meantime
+            final int h = hash(s);
+            AtomicIntegerArray t = table;
+            int mask = t.length() - 1;
+            int i = h & mask;
+            for (int slot; (slot = t.get(i)) != 0; i = (i + 1) & mask) {
+                if (hashes[slot - 1] == h && matches(slot - 1, s)) return slot - 1;
+            }
+
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_LENGTH) {
+                throw new IllegalArgumentException("String exceeds maximum encoded length: " + bytes.length);
+            }
+            final int id = size;
+            if (id == locations.length) {
+                if (baseSize + id == Integer.MAX_VALUE - 1) throw new IllegalStateException("Index is full");
+                int newCapacity = (int) Math.min(Integer.MAX_VALUE - 1, 2L * id);
+                locations = Arrays.copyOf(locations, newCapacity);
+                hashes = Arrays.copyOf(hashes, newCapacity);
+            }
+            locations[id] = append(bytes);
+            hashes[id] = h;
+
+            if ((long) (id + 1) * LOAD_FACTOR_INVERSE > t.length()) {
+                // Readers still probing the old table simply miss this entry
+                table = rehash(id + 1, t.length() << 1);
+            } else {
+                t.set(i, id + 1);
+            }
+            size = id + 1;
+            return id;
+        }
+    }
+
+    private long append(byte[] bytes) {
+        if (numPages == 0 || pageFill + bytes.length > PAGE_SIZE) {
+            if (numPages == MAX_PAGES) throw new IllegalStateException("String arena is full");
+            byte[][] p = pages;
+            if (numPages == p.length) {
+                p = Arrays.copyOf(p, 2 * p.length);
+            }
+            p[numPages++] = new byte[PAGE_SIZE];
+            pages = p;
+            pageFill = 0;
+        }
+        final int page = numPages - 1;
+        System.arraycopy(bytes, 0, pages[page], pageFill, bytes.length);
+        final long location = ((long) page << 40) | ((long) pageFill << 20) | bytes.length;
+        pageFill += bytes.length;
+        return location;
+    }
+
+    private AtomicIntegerArray rehash(int numEntries, int tableSize) {
+        final AtomicIntegerArray t = new AtomicIntegerArray(tableSize);
+        final int mask = tableSize - 1;
+        final int[] h = hashes;
+        for (int id = 0; id < numEntries; ++id) {
+            int i = h[id] & mask;
+            while (t.get(i) != 0) i = (i + 1) & mask;
+            t.lazySet(i, id + 1);
+        }
+        return t;
+    }
+
+    /**
+     * Compare a string with the UTF-8 bytes b[off, off + len) without
+     * decoding them. Unpaired surrogates compare equal to '?', which is how
+     * String.getBytes() encodes them.
+     */
+    static boolean utf8Equals(String s, byte[] b, int off, int len) {
+        final int end = off + len;
+        final int n = s.length();
+        int p = off;
+        for (int i = 0; i < n; ++i) {
+            int c = s.charAt(i);
+            if (c < 0x80) {
+                if (p >= end || b[p++] != c) return false;
+                continue;
+            }
+            if (Character.isSurrogate((char) c)) {
+                if (Character.isHighSurrogate((char) c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    c = Character.toCodePoint((char) c, s.charAt(++i));
+                } else {
+                    if (p >= end || b[p++] != '?') return false;
+                    continue;
+                }
+            }
+            if (c < 0x800) {
+                if (p + 2 > end
+                        || b[p++] != (byte) (0xc0 | (c >> 6))
+                        || b[p++] != (byte) (0x80 | (c & 0x3f))) return false;
+            } else if (c < 0x10000) {
+                if (p + 3 > end
+                        || b[p++] != (byte) (0xe0 | (c >> 12))
+                        || b[p++] != (byte) (0x80 | ((c >> 6) & 0x3f))
+                        || b[p++] != (byte) (0x80 | (c & 0x3f))) return false;
+            } else {
+                if (p + 4 > end
+                        || b[p++] != (byte) (0xf0 | (c >> 18))
+                        || b[p++] != (byte) (0x80 | ((c >> 12) & 0x3f))
+                        || b[p++] != (byte) (0x80 | ((c >> 6) & 0x3f))
+                        || b[p++] != (byte) (0x80 | (c & 0x3f))) return false;
+            }
+        }
+        return p == end;
+    }
+}
@@ -0,0 +1,155 @@
+package com.princekr.nlp.mt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Array of up to 2^31 ints in pages of 2^28. Pages are either growable heap
+ * arrays or read-only regions of a memory-mapped file, so the same code
+ * reads both; a single mapping cannot exceed 2GB.
+ * <p>
+ * Files store the ints little-endian. Appends are not threadsafe.
+ */
+final class PagedIntArray {
+
+    static final int PAGE_BITS = 28;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int WRITE_CHUNK = 1 << 20;
+
+    private IntBuffer[] pages;
+    private int length;
+
+    PagedIntArray(int initialCapacity) {
+        this.pages = new IntBuffer[]{IntBuffer.wrap(new int[Math.max(16, Math.min(PAGE_SIZE, initialCapacity))])};
+    }
+
+    private PagedIntArray(IntBuffer[] pages, int length) {
+        this.pages = pages;
+        this.length = length;
+    }
+
+    /**
+     * Wrap an array. Arrays of at most one page are not copied.
+     *
+     * @param a
+     * @return
+     */
+    static PagedIntArray wrap(int[] a) {
+        if (a.length <= PAGE_SIZE) return new PagedIntArray(new IntBuffer[]{IntBuffer.wrap(a)}, a.length);
+        final PagedIntArray array = new PagedIntArray(PAGE_SIZE);
+        array.addAll(a, 0, a.length);
+        return array;
+    }
+
+    /**
+     * Map length ints starting at offset of a file.
+     *
+     * @param channel
+     * @param offset
+     * @param length
+     * @return a read-only array.
+     * @throws IOException
+     */
+    static PagedIntArray map(FileChannel channel, long offset, int length) throws IOException {
+        if (offset + 4L * length > channel.size()) {
+            throw new IOException("File is too short: " + channel.size());
+        }
+        final int numPages = Math.max(1, (int) ((length + (long) PAGE_MASK) >>> PAGE_BITS));
+        final IntBuffer[] pages = new IntBuffer[numPages];
+        for (int p = 0; p < numPages; ++p) {
+            final long start = (long) p << PAGE_BITS;
+            final long n = Math.min(PAGE_SIZE, length - start);
+            pages[p] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4 * start, 4 * Math.max(0, n))
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        return new PagedIntArray(pages, length);
+    }
+
+    int get(int i) {
+        return pages[i >>> PAGE_BITS].get(i & PAGE_MASK);
+    }
+
+    void set(int i, int value) {
+        pages[i >>> PAGE_BITS].put(i & PAGE_MASK, value);
+    }
+
+    int length() {
+        return length;
+    }
+
+    boolean isMapped() {
+        return pages[0].isDirect();
+    }
+
+    void add(int value) {
+        ensureCapacity(length + 1);
+        set(length++, value);
+    }
+
+    void addAll(int[] a, int from, int to) {
+        ensureCapacity(length + (to - from));
+        while (from < to) {
+            final int offset = length & PAGE_MASK;
+            final int n = Math.min(to - from, PAGE_SIZE - offset);
+            System.arraycopy(a, from, pages[length >>> PAGE_BITS].array(), offset, n);
+            from += n;
+            length += n;
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity < 0 || minCapacity > MAX_LENGTH) {
+            throw new IllegalStateException("Array cannot grow beyond " + MAX_LENGTH);
+        }
+        if (isMapped()) throw new UnsupportedOperationException("Mapped arrays are read-only");
+        while (true) {
+            final int last = pages.length - 1;
+            final long capacity = ((long) last << PAGE_BITS) + pages[last].capacity();
+            if (capacity >= minCapacity) return;
+            final int pageCapacity = pages[last].capacity();
+            if (pageCapacity < PAGE_SIZE) {
+                final long needed = minCapacity - ((long) last << PAGE_BITS);
+                final int newCapacity = (int) Math.min(PAGE_SIZE, Math.max(needed, 2L * pageCapacity));
+                pages[last] = IntBuffer.wrap(Arrays.copyOf(pages[last].array(), newCapacity));
+            } else {
+                pages = Arrays.copyOf(pages, pages.length + 1);
+                pages[last + 1] = IntBuffer.wrap(new int[Math.min(PAGE_SIZE,
+                        Math.max(16, minCapacity - ((last + 1) << PAGE_BITS)))]);
+            }
+        }
+    }
+
+    int[] toArray(int from, int to) {
+        final int[] a = new int[to - from];
+        for (int i = from; i < to; ++i) a[i - from] = get(i);
+        return a;
+    }
+
+    /**
+     * Write the ints at the current position of a channel.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    void write(FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        final IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < length; ) {
+            final int offset = i & PAGE_MASK;
+            final int n = Math.min(WRITE_CHUNK, Math.min(PAGE_SIZE - offset, length - i));
+            final IntBuffer page = pages[i >>> PAGE_BITS].duplicate();
+            page.limit(offset + n).position(offset);
+            ints.clear();
+            ints.put(page);
+            buffer.clear().limit(4 * n);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            i += n;
+        }
+    }
+}
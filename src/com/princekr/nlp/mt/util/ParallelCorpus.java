@@ -1,7 +1,274 @@
 package com.princekr.nlp.mt.util;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 /**
+ * Word-aligned bitext.
+ * <p>
+ * Source and target sentences are stored as system vocabulary ids in two
+ * terminated <code>LinearIndexedCorpus</code> instances. The alignment links
+ * of a sentence pair are packed as
+ * <code>sourcePosition &lt;&lt; 16 | targetPosition</code> and sorted, so the
+ * links of one source word are contiguous; they are stored in a third,
+ * unterminated corpus.
+ * <p>
+ * Sentences are appended by a single thread. Once loading is done the
+ * corpus can be read by any number of threads.
+ *
  * Created by prince on 2017/10/29.
  */
 public class ParallelCorpus {
+
+    /**
+     * Sentence terminator. Smaller than any vocabulary id.
+     */
+    public static final int EOS = LinearIndexedCorpus.EOS;
+
+    public static final int MAX_SENTENCE_LENGTH = Short.MAX_VALUE;
+
+    private static final int LINK_BITS = 16;
+    private static final int LINK_MASK = (1 << LINK_BITS) - 1;
+
+    private final LinearIndexedCorpus source;
+    private final LinearIndexedCorpus target;
+    private final LinearIndexedCorpus links;
+
+    public ParallelCorpus() {
+        this(1024);
+    }
+
+    /**
+     * @param initialCapacity expected number of sentence pairs
+     */
+    public ParallelCorpus(int initialCapacity) {
+        final int tokens = (int) Math.min(Integer.MAX_VALUE - 8, 16L * Math.max(16, initialCapacity));
+        this.source = new LinearIndexedCorpus(tokens, true);
+        this.target = new LinearIndexedCorpus(tokens, true);
+        this.links = new LinearIndexedCorpus(tokens, false);
+    }
+
+    private ParallelCorpus(LinearIndexedCorpus source, LinearIndexedCorpus target, LinearIndexedCorpus links) {
+        this.source = source;
+        this.target = target;
+        this.links = links;
+    }
+
+    /**
+     * Load a corpus from tokenized source and target files and an alignment
+     * file with one line of <code>i-j</code> links per sentence pair.
+     *
+     * @param sourceFile
+     * @param targetFile
+     * @param alignmentFile
+     * @param expectedSize expected number of sentence pairs
+     * @return the corpus.
+     * @throws IOException
+     */
+    public static ParallelCorpus loadCorpus(String sourceFile, String targetFile, String alignmentFile,
+                                            int expectedSize) throws IOException {
+        final ParallelCorpus corpus = new ParallelCorpus(expectedSize);
+        try (BufferedReader sourceReader = Files.newBufferedReader(Paths.get(sourceFile), StandardCharsets.UTF_8);
+             BufferedReader targetReader = Files.newBufferedReader(Paths.get(targetFile), StandardCharsets.UTF_8);
+             BufferedReader alignmentReader = Files.newBufferedReader(Paths.get(alignmentFile), StandardCharsets.UTF_8)) {
+            String sourceLine;
+            while ((sourceLine = sourceReader.readLine()) != null) {
+                final String targetLine = targetReader.readLine();
+                final String alignmentLine = alignmentReader.readLine();
+                if (targetLine == null || alignmentLine == null) {
+                    throw new IOException("Corpus files have different numbers of lines at line " + (corpus.size() + 1));
+                }
+                corpus.add(tokenize(sourceLine), tokenize(targetLine), parseAlignment(alignmentLine));
+            }
+            if (targetReader.readLine() != null || alignmentReader.readLine() != null) {
+                throw new IOException("Corpus files have different numbers of lines at line " + (corpus.size() + 1));
+            }
+        }
+        return corpus;
+    }
+
+    private static int[] tokenize(String line) {
+        final String trimmed = line.trim();
+        return trimmed.isEmpty() ? new int[0] : IStrings.toIntArray(trimmed.split("\\s+"));
+    }
+
+    /**
+     * Parse links of the form <code>i-j</code>.
+     *
+     * @param line
+     * @return links packed as in <code>link(i, j)</code>.
+     */
+    public static int[] parseAlignment(String line) {
+        final String trimmed = line.trim();
+        if (trimmed.isEmpty()) return new int[0];
+        final String[] tokens = trimmed.split("\\s+");
+        final int[] links = new int[tokens.length];
+        for (int k = 0; k < tokens.length; ++k) {
+            final int dash = tokens[k].indexOf('-');
+            if (dash < 0) throw new IllegalArgumentException("Invalid alignment link: " + tokens[k]);
+            links[k] = link(Integer.parseInt(tokens[k].substring(0, dash)),
+                    Integer.parseInt(tokens[k].substring(dash + 1)));
+        }
+        return links;
+    }
+
+    /**
+     * Pack an alignment link.
+     *
+     * @param sourcePosition
+     * @param targetPosition
+     * @return
+     */
+    public static int link(int sourcePosition, int targetPosition) {
+        return sourcePosition << LINK_BITS | targetPosition;
+    }
+
+    public static int linkSource(int link) {
+        return link >>> LINK_BITS;
+    }
+
+    public static int linkTarget(int link) {
+        return link & LINK_MASK;
+    }
+
+    /**
+     * Append a sentence pair.
+     *
+     * @param src system vocabulary ids
+     * @param tgt system vocabulary ids
+     * @param alignment links packed as in <code>link(i, j)</code>
+     * @return the id of the sentence pair.
+     */
+    public int add(int[] src, int[] tgt, int[] alignment) {
+        if (src.length > MAX_SENTENCE_LENGTH || tgt.length > MAX_SENTENCE_LENGTH) {
+            throw new IllegalArgumentException("Sentence longer than " + MAX_SENTENCE_LENGTH);
+        }
+        final int[] sorted = alignment.clone();
+        Arrays.sort(sorted);
+        for (int link : sorted) {
+            if (linkSource(link) >= src.length || linkTarget(link) >= tgt.length) {
+                throw new IllegalArgumentException(String.format("Link %d-%d out of bounds for sentence %d",
+                        linkSource(link), linkTarget(link), size()));
+            }
+        }
+        source.add(src);
+        target.add(tgt);
+        return links.add(sorted);
+    }
+
+    /**
+     * Append sentence pairs of another corpus.
+     *
+     * @param other
+     * @param from  first sentence pair
+     * @param to    end of the sentence pairs, exclusive
+     */
+    public void addAll(ParallelCorpus other, int from, int to) {
+        for (int sentence = from; sentence < to; ++sentence) {
+            source.add(other.getSource(sentence));
+            target.add(other.getTarget(sentence));
+            links.add(other.getAlignment(sentence));
+        }
+    }
+
+    /**
+     * @return the number of sentence pairs.
+     */
+    public int size() {
+        return links.size();
+    }
+
+    public LinearIndexedCorpus source() {
+        return source;
+    }
+
+    public LinearIndexedCorpus target() {
+        return target;
+    }
+
+    public LinearIndexedCorpus links() {
+        return links;
+    }
+
+    public int sourceStart(int sentence) {
+        return source.start(sentence);
+    }
+
+    public int sourceLength(int sentence) {
+        return source.length(sentence);
+    }
+
+    public int targetStart(int sentence) {
+        return target.start(sentence);
+    }
+
+    public int targetLength(int sentence) {
+        return target.length(sentence);
+    }
+
+    public int linkStart(int sentence) {
+        return links.start(sentence);
+    }
+
+    public int linkEnd(int sentence) {
+        return links.start(sentence + 1);
+    }
+
+    /**
+     * @param position a position in the source side
+     * @return the sentence that contains the position.
+     */
+    public int sentenceOf(int position) {
+        return source.sentenceOf(position);
+    }
+
+    public int[] getSource(int sentence) {
+        return source.getSentence(sentence);
+    }
+
+    public int[] getTarget(int sentence) {
+        return target.getSentence(sentence);
+    }
+
+    public int[] getAlignment(int sentence) {
+        return links.getSentence(sentence);
+    }
+
+    public boolean isMapped() {
+        return source.isMapped();
+    }
+
+    /**
+     * Write the source, target and link corpora.
+     */
+    void write(FileChannel channel) throws IOException {
+        source.write(channel);
+        target.write(channel);
+        links.write(channel);
+    }
+
+    /**
+     * @return the number of bytes written by <code>write()</code>.
+     */
+    long byteSize() {
+        return source.byteSize() + target.byteSize() + links.byteSize();
+    }
+
+    /**
+     * Map a corpus written by <code>write()</code>.
+     */
+    static ParallelCorpus map(FileChannel channel, long offset, int size, int sourceLength, int targetLength,
+                              int linksLength) throws IOException {
+        final LinearIndexedCorpus source = LinearIndexedCorpus.map(channel, offset, size, sourceLength, true);
+        offset += source.byteSize();
+        final LinearIndexedCorpus target = LinearIndexedCorpus.map(channel, offset, size, targetLength, true);
+        offset += target.byteSize();
+        final LinearIndexedCorpus links = LinearIndexedCorpus.map(channel, offset, size, linksLength, false);
+        return new ParallelCorpus(source, target, links);
+    }
 }
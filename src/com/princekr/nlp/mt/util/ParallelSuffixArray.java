@@ -1,7 +1,550 @@
 package com.princekr.nlp.mt.util;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
 /**
+ * Suffix array over the source side of a <code>ParallelCorpus</code>.
+ * <p>
+ * Suffixes end at the sentence terminator. Every terminator is treated as a
+ * distinct symbol that sorts before all words, so the array is fully
+ * determined and a suffix never matches across a sentence boundary. The
+ * array holds the corpus positions of all words in suffix order.
+ * <p>
+ * Construction is prefix doubling in the style of Larsson and Sadakane. An
+ * initial parallel counting sort groups suffixes by their first word; each
+ * round then sorts every unfinished group by the rank of the suffix h
+ * positions to the right, doubling the sorted prefix length. Groups are
+ * independent, so a round is split across a fork/join pool. Since suffixes
+ * stop at the end of the sentence, the number of rounds is logarithmic in
+ * the longest sentence.
+ * <p>
+ * Lookups narrow a range of the array one word at a time with binary
+ * search, so all spans starting at one position of a query are found by
+ * extending a single range. Threadsafe for reads.
+ * <p>
+ * <code>write()</code> stores the corpus and the suffix array in a
+ * versioned binary layout that <code>map()</code> memory-maps and queries
+ * in place, so decoders sharing a host also share the page cache. Layout
+ * (little-endian; lengths count ints):
+ * <pre>
+ *   int    magic
+ *   int    version
+ *   int    numSentences
+ *   int    reserved
+ *   long   sourceLength           (including terminators)
+ *   long   targetLength           (including terminators)
+ *   long   linksLength
+ *   long   suffixArrayLength
+ *   int[numSentences + 1]  source offsets
+ *   int[sourceLength]      source words
+ *   int[numSentences + 1]  target offsets
+ *   int[targetLength]      target words
+ *   int[numSentences + 1]  link offsets
+ *   int[linksLength]       links
+ *   int[suffixArrayLength] suffix array
+ *   padding to a multiple of 8 bytes
+ * </pre>
+ * Words are system vocabulary ids, so a mapped array must be used with the
+ * vocabulary snapshot that was current when it was written.
+ *
  * Created by prince on 2017/10/29.
  */
 public class ParallelSuffixArray {
+
+    private static final Logger logger = LogManager.getLogger(ParallelSuffixArray.class.getName());
+
+    static final int MAGIC = 0x50534158; // "PSAX"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+
+    private final ParallelCorpus corpus;
+    private final PagedIntArray suffixArray;
+
+    /**
+     * Build a suffix array in the common fork/join pool.
+     *
+     * @param corpus
+     */
+    public ParallelSuffixArray(ParallelCorpus corpus) {
+        this(corpus, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Build a suffix array.
+     *
+     * @param corpus
+     * @param pool
+     */
+    public ParallelSuffixArray(ParallelCorpus corpus, ForkJoinPool pool) {
+        this.corpus = corpus;
+        final long startTime = System.nanoTime();
+        this.suffixArray = PagedIntArray.wrap(new Builder(corpus, pool).build());
+        logger.info("Built suffix array over {} positions in {} ms", suffixArray.length(),
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    private ParallelSuffixArray(ParallelCorpus corpus, PagedIntArray suffixArray) {
+        this.corpus = corpus;
+        this.suffixArray = suffixArray;
+    }
+
+    /**
+     * Map a suffix array written by <code>write()</code>, starting at the
+     * current position of a channel. The position is advanced past it. The
+     * mapping stays valid after the channel is closed.
+     *
+     * @param channel
+     * @return a read-only suffix array.
+     * @throws IOException
+     */
+    public static ParallelSuffixArray map(FileChannel channel) throws IOException {
+        final long startTime = System.nanoTime();
+        final long offset = channel.position();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) throw new IOException("Not a suffix array: file is too short");
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a suffix array");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported suffix array version: " + header.getInt(4));
+        }
+        final int numSentences = header.getInt(8);
+        final int sourceLength = checkLength(header.getLong(16));
+        final int targetLength = checkLength(header.getLong(24));
+        final int linksLength = checkLength(header.getLong(32));
+        final int suffixArrayLength = checkLength(header.getLong(40));
+
+        long position = offset + HEADER_BYTES;
+        final ParallelCorpus corpus = ParallelCorpus.map(channel, position, numSentences, sourceLength,
+                targetLength, linksLength);
+        position += corpus.byteSize();
+        final PagedIntArray suffixArray = PagedIntArray.map(channel, position, suffixArrayLength);
+        position += 4L * suffixArrayLength;
+        channel.position(pad(position));
+        logger.info("Mapped suffix array over {} positions in {} ms", suffixArrayLength,
+                (System.nanoTime() - startTime) / 1000000);
+        return new ParallelSuffixArray(corpus, suffixArray);
+    }
+
+    private static int checkLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Corrupt suffix array: length " + length);
+        return (int) length;
+    }
+
+    private static long pad(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * Write the corpus and the suffix array at the current position of a
+     * channel.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void write(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(corpus.size()).putInt(0)
+                .putLong(corpus.source().length()).putLong(corpus.target().length())
+                .putLong(corpus.links().length()).putLong(suffixArray.length());
+        header.flip();
+        while (header.hasRemaining()) channel.write(header);
+        corpus.write(channel);
+        suffixArray.write(channel);
+        final long position = channel.position();
+        final ByteBuffer padding = ByteBuffer.allocate((int) (pad(position) - position));
+        while (padding.hasRemaining()) channel.write(padding);
+    }
+
+    public boolean isMapped() {
+        return suffixArray.isMapped();
+    }
+
+    public ParallelCorpus getCorpus() {
+        return corpus;
+    }
+
+    /**
+     * @return the number of suffixes.
+     */
+    public int size() {
+        return suffixArray.length();
+    }
+
+    /**
+     * @param index
+     * @return the corpus position of the suffix at index.
+     */
+    public int get(int index) {
+        return suffixArray.get(index);
+    }
+
+    /**
+     * @param index
+     * @return the sentence and offset of the suffix at index.
+     */
+    public ParallelSuffixArrayEntry getEntry(int index) {
+        final int position = suffixArray.get(index);
+        final int sentence = corpus.sentenceOf(position);
+        return new ParallelSuffixArrayEntry(corpus, sentence, position - corpus.sourceStart(sentence));
+    }
+
+    /**
+     * Pack the suffix array range [start, end).
+     */
+    public static long range(int start, int end) {
+        return (long) start << 32 | end;
+    }
+
+    public static int rangeStart(long range) {
+        return (int) (range >>> 32);
+    }
+
+    public static int rangeEnd(long range) {
+        return (int) range;
+    }
+
+    public static int rangeSize(long range) {
+        return rangeEnd(range) - rangeStart(range);
+    }
+
+    /**
+     * @return the range of all suffixes, i.e. of the empty phrase.
+     */
+    public long fullRange() {
+        return range(0, suffixArray.length());
+    }
+
+    /**
+     * Find the suffixes that start with key[from, to).
+     *
+     * @param key
+     * @param from
+     * @param to
+     * @return the range of matching suffixes, empty if there are none.
+     */
+    public long find(int[] key, int from, int to) {
+        long range = fullRange();
+        for (int i = from + 1; i <= to && rangeSize(range) > 0; ++i) {
+            range = narrow(range, key, from, i);
+        }
+        return range;
+    }
+
+    /**
+     * Given the range of suffixes that start with key[from, to - 1), find
+     * those that start with key[from, to).
+     *
+     * @param range
+     * @param key
+     * @param from
+     * @param to
+     * @return the range of matching suffixes, empty if there are none.
+     */
+    public long narrow(long range, int[] key, int from, int to) {
+        final LinearIndexedCorpus text = corpus.source();
+        final int depth = to - from - 1;
+        final int word = key[to - 1];
+        final int end = rangeEnd(range);
+        int lo = rangeStart(range);
+        if (word < 0) return range(lo, lo);
+        int hi = end;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (text.get(suffixArray.get(mid) + depth) < word) lo = mid + 1;
+            else hi = mid;
+        }
+        final int first = lo;
+        hi = end;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (text.get(suffixArray.get(mid) + depth) <= word) lo = mid + 1;
+            else hi = mid;
+        }
+        return range(first, lo);
+    }
+
+    /**
+     * Prefix-doubling construction. During a round, <code>rank</code> is
+     * read-only and new ranks are written to <code>nextRank</code>; they are
+     * copied back once all groups of the round are sorted.
+     */
+    private static final class Builder {
+        private static final int INSERTION_SORT_THRESHOLD = 16;
+        private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+        // Minimum number of suffixes per fork/join task
+        private static final int TASK_SIZE = 1 << 14;
+
+        private final ForkJoinPool pool;
+        private final LinearIndexedCorpus text;
+        private final int n;
+        private final int numSentences;
+
+        private int[] sa;
+        // position -> index of the first suffix of its group
+        private int[] rank;
+        private int[] nextRank;
+
+        Builder(ParallelCorpus corpus, ForkJoinPool pool) {
+            this.pool = pool;
+            this.text = corpus.source();
+            this.n = text.length();
+            this.numSentences = corpus.size();
+        }
+
+        int[] build() {
+            sa = new int[n];
+            rank = new int[n];
+            IntArrayList groups = bucketSort();
+            nextRank = rank.clone();
+            int rounds = 0;
+            for (int h = 1; !groups.isEmpty(); h <<= 1, ++rounds) {
+                if (h > ParallelCorpus.MAX_SENTENCE_LENGTH) {
+                    throw new IllegalStateException("Suffix sorting did not converge");
+                }
+                final long[] weights = weights(groups);
+                final IntArrayList next = pool.invoke(new GroupTask(groups, weights, 0, groups.size() / 2, h, false));
+                pool.invoke(new GroupTask(groups, weights, 0, groups.size() / 2, h, true));
+                groups = next;
+            }
+            logger.debug("Suffix sorting took {} doubling rounds", rounds);
+            rank = null;
+            nextRank = null;
+            // Terminators sort first, one per sentence
+            return Arrays.copyOfRange(sa, numSentences, n);
+        }
+
+        /**
+         * Counting sort of all positions by their first symbol.
+         *
+         * @return the groups of suffixes with the same first word, as
+         * (start, length) pairs.
+         */
+        private IntArrayList bucketSort() {
+            final int numChunks = Math.max(1, Math.min(pool.getParallelism(), n / TASK_SIZE));
+            final int[] chunkMax = new int[numChunks];
+            final int[] chunkTerminators = new int[numChunks];
+            forEachChunk(numChunks, c -> {
+                int max = -1;
+                int terminators = 0;
+                for (int p = chunkStart(c, numChunks), end = chunkStart(c + 1, numChunks); p < end; ++p) {
+                    final int w = text.get(p);
+                    if (w > max) max = w;
+                    else if (w == ParallelCorpus.EOS) ++terminators;
+                }
+                chunkMax[c] = max;
+                chunkTerminators[c] = terminators;
+            });
+            int maxWord = -1;
+            for (int max : chunkMax) maxWord = Math.max(maxWord, max);
+            final int numWords = maxWord + 1;
+
+            final int[][] counts = new int[numChunks][];
+            forEachChunk(numChunks, c -> {
+                final int[] chunkCounts = new int[numWords];
+                for (int p = chunkStart(c, numChunks), end = chunkStart(c + 1, numChunks); p < end; ++p) {
+                    final int w = text.get(p);
+                    if (w != ParallelCorpus.EOS) ++chunkCounts[w];
+                }
+                counts[c] = chunkCounts;
+            });
+
+            // Turn counts into the first output index of each chunk and word
+            final IntArrayList groups = new IntArrayList();
+            final int[] bucketStart = new int[numWords];
+            int next = numSentences;
+            for (int w = 0; w < numWords; ++w) {
+                bucketStart[w] = next;
+                final int start = next;
+                for (int c = 0; c < numChunks; ++c) {
+                    final int count = counts[c][w];
+                    counts[c][w] = next;
+                    next += count;
+                }
+                if (next - start > 1) {
+                    groups.add(start);
+                    groups.add(next - start);
+                }
+            }
+            final int[] terminatorStart = new int[numChunks];
+            for (int c = 1; c < numChunks; ++c) {
+                terminatorStart[c] = terminatorStart[c - 1] + chunkTerminators[c - 1];
+            }
+
+            forEachChunk(numChunks, c -> {
+                final int[] output = counts[c];
+                int terminator = terminatorStart[c];
+                for (int p = chunkStart(c, numChunks), end = chunkStart(c + 1, numChunks); p < end; ++p) {
+                    final int w = text.get(p);
+                    if (w == ParallelCorpus.EOS) {
+                        rank[p] = terminator;
+                        sa[terminator++] = p;
+                    } else {
+                        rank[p] = bucketStart[w];
+                        sa[output[w]++] = p;
+                    }
+                }
+            });
+            return groups;
+        }
+
+        private int chunkStart(int chunk, int numChunks) {
+            return (int) ((long) n * chunk / numChunks);
+        }
+
+        private void forEachChunk(int numChunks, IntConsumer body) {
+            pool.invoke(new ChunkTask(0, numChunks, body));
+        }
+
+        /**
+         * Prefix sums of group lengths, used to split work evenly.
+         */
+        private static long[] weights(IntArrayList groups) {
+            final long[] weights = new long[groups.size() / 2 + 1];
+            for (int g = 0; g < weights.length - 1; ++g) {
+                weights[g + 1] = weights[g] + groups.getInt(2 * g + 1);
+            }
+            return weights;
+        }
+
+        /**
+         * Sort a group by the rank of the suffix h positions to the right,
+         * assign ranks to the new subgroups and collect those that are still
+         * unsorted.
+         */
+        private void refine(int start, int length, int h, IntArrayList unsorted) {
+            final int end = start + length;
+            if (length <= INSERTION_SORT_THRESHOLD) {
+                for (int i = start + 1; i < end; ++i) {
+                    final int p = sa[i];
+                    final int key = rank[p + h];
+                    int j = i - 1;
+                    while (j >= start && rank[sa[j] + h] > key) {
+                        sa[j + 1] = sa[j];
+                        --j;
+                    }
+                    sa[j + 1] = p;
+                }
+            } else {
+                final long[] keys = new long[length];
+                for (int i = 0; i < length; ++i) {
+                    final int p = sa[start + i];
+                    keys[i] = (long) rank[p + h] << 32 | p;
+                }
+                if (length >= PARALLEL_SORT_THRESHOLD) Arrays.parallelSort(keys);
+                else Arrays.sort(keys);
+                for (int i = 0; i < length; ++i) {
+                    sa[start + i] = (int) keys[i];
+                }
+            }
+            int runStart = start;
+            int runKey = rank[sa[start] + h];
+            for (int i = start; i <= end; ++i) {
+                final int key = i < end ? rank[sa[i] + h] : -1;
+                if (i == end || key != runKey) {
+                    for (int j = runStart; j < i; ++j) {
+                        nextRank[sa[j]] = runStart;
+                    }
+                    if (i - runStart > 1) {
+                        unsorted.add(runStart);
+                        unsorted.add(i - runStart);
+                    }
+                    runStart = i;
+                    runKey = key;
+                }
+            }
+        }
+
+        private void commit(int start, int length) {
+            for (int i = start, end = start + length; i < end; ++i) {
+                final int p = sa[i];
+                rank[p] = nextRank[p];
+            }
+        }
+
+        /**
+         * Refines, or commits the new ranks of, the groups in [lo, hi).
+         */
+        private final class GroupTask extends RecursiveTask<IntArrayList> {
+            private final IntArrayList groups;
+            private final long[] weights;
+            private final int lo;
+            private final int hi;
+            private final int h;
+            private final boolean commit;
+
+            GroupTask(IntArrayList groups, long[] weights, int lo, int hi, int h, boolean commit) {
+                this.groups = groups;
+                this.weights = weights;
+                this.lo = lo;
+                this.hi = hi;
+                this.h = h;
+                this.commit = commit;
+            }
+
+            @Override
+            protected IntArrayList compute() {
+                if (hi - lo > 1 && weights[hi] - weights[lo] > TASK_SIZE) {
+                    // Split at the middle of the work
+                    final long half = (weights[lo] + weights[hi]) >>> 1;
+                    int mid = Arrays.binarySearch(weights, lo + 1, hi, half);
+                    if (mid < 0) mid = -mid - 1;
+                    mid = Math.max(lo + 1, Math.min(hi - 1, mid));
+                    final GroupTask right = new GroupTask(groups, weights, mid, hi, h, commit);
+                    right.fork();
+                    final IntArrayList left = new GroupTask(groups, weights, lo, mid, h, commit).compute();
+                    final IntArrayList rightGroups = right.join();
+                    if (left != null) left.addAll(rightGroups);
+                    return left;
+                }
+                final IntArrayList unsorted = commit ? null : new IntArrayList();
+                for (int g = lo; g < hi; ++g) {
+                    final int start = groups.getInt(2 * g);
+                    final int length = groups.getInt(2 * g + 1);
+                    if (commit) commit(start, length);
+                    else refine(start, length, h, unsorted);
+                }
+                return unsorted;
+            }
+        }
+    }
+
+    /**
+     * Runs body for every chunk in [lo, hi).
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private final int lo;
+        private final int hi;
+        private final IntConsumer body;
+
+        ChunkTask(int lo, int hi, IntConsumer body) {
+            this.lo = lo;
+            this.hi = hi;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                body.accept(lo);
+            } else {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new ChunkTask(lo, mid, body), new ChunkTask(mid, hi, body));
+            }
+        }
+    }
 }
@@ -1,7 +1,68 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * One occurrence of a source phrase in a <code>ParallelCorpus</code>: a
+ * sentence pair and the offset of the phrase in its source sentence.
+ * Accessors read the corpus arrays directly.
+ *
  * Created by prince on 2017/10/29.
  */
 public class ParallelSuffixArrayEntry {
+
+    public final int sentence;
+    public final int position;
+    private final ParallelCorpus corpus;
+
+    /**
+     * @param corpus
+     * @param sentence the sentence pair
+     * @param position offset in the source sentence
+     */
+    public ParallelSuffixArrayEntry(ParallelCorpus corpus, int sentence, int position) {
+        this.corpus = corpus;
+        this.sentence = sentence;
+        this.position = position;
+    }
+
+    public int sourceLength() {
+        return corpus.sourceLength(sentence);
+    }
+
+    public int targetLength() {
+        return corpus.targetLength(sentence);
+    }
+
+    /**
+     * @param i offset in the source sentence
+     * @return the system vocabulary id of the word.
+     */
+    public int source(int i) {
+        return corpus.source().get(corpus.sourceStart(sentence) + i);
+    }
+
+    /**
+     * @param i offset in the target sentence
+     * @return the system vocabulary id of the word.
+     */
+    public int target(int i) {
+        return corpus.target().get(corpus.targetStart(sentence) + i);
+    }
+
+    public int numLinks() {
+        return corpus.linkEnd(sentence) - corpus.linkStart(sentence);
+    }
+
+    /**
+     * @param k
+     * @return the k-th alignment link, packed as in
+     * <code>ParallelCorpus.link</code>.
+     */
+    public int link(int k) {
+        return corpus.links().get(corpus.linkStart(sentence) + k);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d:%d", sentence, position);
+    }
 }
@@ -1,7 +1,273 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
 /**
+ * Thread-safe linear-probing index of <code>int[]</code> keys.
+ * <p>
+ * Keys are stored back to back, each preceded by its length, in an arena of
+ * fixed-size int pages. Each table slot is a single long holding the
+ * MurmurHash3 fingerprint of the key in the upper 32 bits and id + 1 in the
+ * lower 32 bits, so probing compares keys only when fingerprints match and
+ * rehashing never touches the keys. No objects are allocated per key.
+ * <p>
+ * Lookups take no locks and never wait. Inserts reserve an empty slot by
+ * CAS, write the key and then publish the id; concurrent lookups treat a
+ * reserved slot as absent. Inserts share a read lock that a resize takes
+ * exclusively, so many threads can load a table in parallel.
+ * <p>
+ * <code>size()</code> counts the ids handed out, including those whose key
+ * is still being written; <code>get()</code> of such an id waits for its
+ * insert to finish.
+ *
  * Created by prince on 2017/10/29.
  */
-public class ProbingIntegerArrayIndex {
+public class ProbingIntegerArrayIndex implements IntegerArrayIndex {
+
+    private static final int SEED = 0x3c074a61;
+
+    private static final int ARENA_PAGE_BITS = 20;
+    private static final int ARENA_PAGE_SIZE = 1 << ARENA_PAGE_BITS;
+    private static final int ARENA_PAGE_MASK = ARENA_PAGE_SIZE - 1;
+    private static final int MAX_ARENA_PAGES = 1 << 15;
+
+    private static final int OFFSET_PAGE_BITS = 16;
+    private static final int OFFSET_PAGE_SIZE = 1 << OFFSET_PAGE_BITS;
+    private static final int OFFSET_PAGE_MASK = OFFSET_PAGE_SIZE - 1;
+    private static final int MAX_OFFSET_PAGES = 1 << (31 - OFFSET_PAGE_BITS);
+
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+    private static final int TABLE_FULL = -2;
+
+    private volatile AtomicLongArray table;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Arena position of the next free int: page << ARENA_PAGE_BITS | offset
+    private final AtomicLong arenaEnd = new AtomicLong();
+    private final AtomicReferenceArray<int[]> arena = new AtomicReferenceArray<>(MAX_ARENA_PAGES);
+
+    // id -> arena position of the key + 1, or 0 until the key is written
+    private final AtomicReferenceArray<AtomicLongArray> offsets = new AtomicReferenceArray<>(MAX_OFFSET_PAGES);
+
+    private final StampedLock resizeLock = new StampedLock();
+
+    public ProbingIntegerArrayIndex() {
+        this(1024);
+    }
+
+    /**
+     * @param initialCapacity expected number of keys
+     */
+    public ProbingIntegerArrayIndex(int initialCapacity) {
+        int tableSize = 16;
+        while (tableSize < MAX_TABLE_SIZE && maxSize(tableSize) < initialCapacity) tableSize <<= 1;
+        this.table = new AtomicLongArray(tableSize);
+    }
+
+    /**
+     * Resize when the table is more than 3/4 full.
+     */
+    private static int maxSize(int tableSize) {
+        return (tableSize >>> 2) * 3;
+    }
+
+    /**
+     * Fingerprint of a key. Never 0, so that a reserved slot is never 0L.
+     */
+    private static int fingerprint(int[] key, int from, int to) {
+        final int h = MurmurHash3.hash32(key, from, to - from, SEED);
+        return h == 0 ? 1 : h;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public int indexOf(int[] key, int from, int to) {
+        final int h = fingerprint(key, from, to);
+        final AtomicLongArray t = table;
+        final int mask = t.length() - 1;
+        for (int i = h & mask, n = 0; n <= mask; i = (i + 1) & mask, ++n) {
+            final long slot = t.get(i);
+            if (slot == 0L) return UNKNOWN_ID;
+            if ((int) (slot >>> 32) == h) {
+                final int id = (int) slot - 1;
+                if (id >= 0 && keyEquals(id, key, from, to)) return id;
+            }
+        }
+        return UNKNOWN_ID;
+    }
+
+    @Override
+    public int add(int[] key, int from, int to) {
+        int id = indexOf(key, from, to);
+        if (id != UNKNOWN_ID) return id;
+        // Fail before reserving a slot that would never be published
+        if (to - from + 1 > ARENA_PAGE_SIZE) throw new IllegalArgumentException("Key too long: " + (to - from));
+        final int h = fingerprint(key, from, to);
+        while (true) {
+            final AtomicLongArray t;
+            final long stamp = resizeLock.readLock();
+            try {
+                t = table;
+                id = insert(t, h, key, from, to);
+            } finally {
+                resizeLock.unlockRead(stamp);
+            }
+            if (id != TABLE_FULL) {
+                if (size.get() > maxSize(t.length())) resize(t);
+                return id;
+            }
+            resize(t);
+        }
+    }
+
+    /**
+     * Insert a key under the shared resize lock.
+     *
+     * @return the id of the key, or TABLE_FULL if every slot was probed.
+     */
+    private int insert(AtomicLongArray t, int h, int[] key, int from, int to) {
+        final int mask = t.length() - 1;
+        final long reserved = (long) h << 32;
+        for (int i = h & mask, n = 0; n <= mask; i = (i + 1) & mask, ++n) {
+            long slot = t.get(i);
+            if (slot == 0L) {
+                if (t.compareAndSet(i, 0L, reserved)) {
+                    final long position = store(key, from, to);
+                    final int id = size.getAndIncrement();
+                    if (id == Integer.MAX_VALUE) throw new IllegalStateException("Index is full");
+                    setOffset(id, position);
+                    t.set(i, reserved | (id + 1));
+                    return id;
+                }
+                slot = t.get(i);
+            }
+            if ((int) (slot >>> 32) == h) {
+                // Wait for a concurrent insert of a key with the same fingerprint
+                while ((int) slot == 0) {
+                    Thread.yield();
+                    slot = t.get(i);
+                }
+                final int id = (int) slot - 1;
+                if (keyEquals(id, key, from, to)) return id;
+            }
+        }
+        return TABLE_FULL;
+    }
+
+    private void resize(AtomicLongArray old) {
+        final long stamp = resizeLock.writeLock();
+        try {
+            if (table != old) return;
+            if (old.length() == MAX_TABLE_SIZE) {
+                throw new IllegalStateException("Index table cannot grow beyond " + MAX_TABLE_SIZE);
+            }
+            // Inserts are excluded, so no slot is reserved
+            final AtomicLongArray t = new AtomicLongArray(old.length() << 1);
+            final int mask = t.length() - 1;
+            for (int j = 0, sz = old.length(); j < sz; ++j) {
+                final long slot = old.get(j);
+                if (slot == 0L) continue;
+                int i = (int) (slot >>> 32) & mask;
+                while (t.get(i) != 0L) i = (i + 1) & mask;
+                t.lazySet(i, slot);
+            }
+            table = t;
+        } finally {
+            resizeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy a key into the arena.
+     *
+     * @return the arena position of the key.
+     */
+    private long store(int[] key, int from, int to) {
+        final int length = to - from;
+        final int n = length + 1;
+        long position;
+        while (true) {
+            final long end = arenaEnd.get();
+            final int offset = (int) end & ARENA_PAGE_MASK;
+            position = offset + n <= ARENA_PAGE_SIZE ? end : ((end >>> ARENA_PAGE_BITS) + 1) << ARENA_PAGE_BITS;
+            if (arenaEnd.compareAndSet(end, position + n)) break;
+        }
+        final int pageIndex = (int) (position >>> ARENA_PAGE_BITS);
+        if (pageIndex >= MAX_ARENA_PAGES) throw new IllegalStateException("Key arena is full");
+        int[] page = arena.get(pageIndex);
+        if (page == null) {
+            arena.compareAndSet(pageIndex, null, new int[ARENA_PAGE_SIZE]);
+            page = arena.get(pageIndex);
+        }
+        final int offset = (int) position & ARENA_PAGE_MASK;
+        page[offset] = length;
+        System.arraycopy(key, from, page, offset + 1, length);
+        return position;
+    }
+
+    /**
+     * Publish the arena position of a key after the key is written.
+     */
+    private void setOffset(int id, long position) {
+        final int pageIndex = id >>> OFFSET_PAGE_BITS;
+        AtomicLongArray page = offsets.get(pageIndex);
+        if (page == null) {
+            offsets.compareAndSet(pageIndex, null, new AtomicLongArray(OFFSET_PAGE_SIZE));
+            page = offsets.get(pageIndex);
+        }
+        page.set(id & OFFSET_PAGE_MASK, position + 1);
+    }
+
+    /**
+     * @return the arena position of a key whose id was read from the table,
+     * which is published after its offset.
+     */
+    private long offsetOf(int id) {
+        return offsets.get(id >>> OFFSET_PAGE_BITS).get(id & OFFSET_PAGE_MASK) - 1;
+    }
+
+    /**
+     * @return the arena position of any id below <code>size()</code>,
+     * waiting for a concurrent insert to publish it.
+     */
+    private long awaitOffset(int id) {
+        final int pageIndex = id >>> OFFSET_PAGE_BITS;
+        AtomicLongArray page;
+        while ((page = offsets.get(pageIndex)) == null) Thread.yield();
+        long offset;
+        while ((offset = page.get(id & OFFSET_PAGE_MASK)) == 0) Thread.yield();
+        return offset - 1;
+    }
+
+    private boolean keyEquals(int id, int[] key, int from, int to) {
+        final long position = offsetOf(id);
+        final int[] page = arena.get((int) (position >>> ARENA_PAGE_BITS));
+        int p = (int) position & ARENA_PAGE_MASK;
+        if (page[p++] != to - from) return false;
+        for (int i = from; i < to; ++i, ++p) {
+            if (page[p] != key[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int[] get(int id) {
+        if (id < 0 || id >= size.get()) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Index: %d Size: %d", id, size.get()));
+        }
+        final long position = awaitOffset(id);
+        final int[] page = arena.get((int) (position >>> ARENA_PAGE_BITS));
+        final int offset = (int) position & ARENA_PAGE_MASK;
+        final int[] key = new int[page[offset]];
+        System.arraycopy(page, offset + 1, key, 0, key.length);
+        return key;
+    }
 }
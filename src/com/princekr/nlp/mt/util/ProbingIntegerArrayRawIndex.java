@@ -1,7 +1,147 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
 /**
+ * Thread-safe linear-probing index that identifies <code>int[]</code> keys
+ * by their 64-bit MurmurHash3 value and does not store them. Use it where
+ * the keys are never read back, e.g. n-gram or rule counting.
+ * <p>
+ * Concurrency follows <code>ProbingIntegerArrayIndex</code>: lock-free
+ * lookups, CAS inserts and an exclusive lock only for resizing.
+ *
  * Created by prince on 2017/10/29.
  */
-public class ProbingIntegerArrayRawIndex {
+public class ProbingIntegerArrayRawIndex implements IntegerArrayRawIndex {
+
+    private static final int SEED = 0x6b43a9b5;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+    private static final int TABLE_FULL = -2;
+
+    /**
+     * Parallel arrays: hash of the key (never 0L) and id + 1 (0 while the
+     * insert is in progress).
+     */
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicIntegerArray ids;
+
+        Table(int size) {
+            keys = new AtomicLongArray(size);
+            ids = new AtomicIntegerArray(size);
+        }
+    }
+
+    private volatile Table table;
+    private final AtomicInteger size = new AtomicInteger();
+    private final StampedLock resizeLock = new StampedLock();
+
+    public ProbingIntegerArrayRawIndex() {
+        this(1024);
+    }
+
+    /**
+     * @param initialCapacity expected number of keys
+     */
+    public ProbingIntegerArrayRawIndex(int initialCapacity) {
+        int tableSize = 16;
+        while (tableSize < MAX_TABLE_SIZE && maxSize(tableSize) < initialCapacity) tableSize <<= 1;
+        this.table = new Table(tableSize);
+    }
+
+    private static int maxSize(int tableSize) {
+        return (tableSize >>> 2) * 3;
+    }
+
+    private static long hash(int[] key) {
+        final long h = MurmurHash3.hash64(key, 0, key.length, SEED);
+        return h == 0L ? 1L : h;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public int indexOf(int[] key) {
+        final long h = hash(key);
+        final Table t = table;
+        final int mask = t.keys.length() - 1;
+        for (int i = (int) h & mask, n = 0; n <= mask; i = (i + 1) & mask, ++n) {
+            final long k = t.keys.get(i);
+            if (k == 0L) return UNKNOWN_ID;
+            if (k == h) return t.ids.get(i) - 1;
+        }
+        return UNKNOWN_ID;
+    }
+
+    @Override
+    public int add(int[] key) {
+        final long h = hash(key);
+        while (true) {
+            final Table t;
+            final int id;
+            final long stamp = resizeLock.readLock();
+            try {
+                t = table;
+                id = insert(t, h);
+            } finally {
+                resizeLock.unlockRead(stamp);
+            }
+            if (id != TABLE_FULL) {
+                if (size.get() > maxSize(t.keys.length())) resize(t);
+                return id;
+            }
+            resize(t);
+        }
+    }
+
+    private int insert(Table t, long h) {
+        final int mask = t.keys.length() - 1;
+        for (int i = (int) h & mask, n = 0; n <= mask; i = (i + 1) & mask, ++n) {
+            long k = t.keys.get(i);
+            if (k == 0L) {
+                if (t.keys.compareAndSet(i, 0L, h)) {
+                    final int id = size.getAndIncrement();
+                    if (id == Integer.MAX_VALUE) throw new IllegalStateException("Index is full");
+                    t.ids.set(i, id + 1);
+                    return id;
+                }
+                k = t.keys.get(i);
+            }
+            if (k == h) {
+                int idPlusOne;
+                while ((idPlusOne = t.ids.get(i)) == 0) Thread.yield();
+                return idPlusOne - 1;
+            }
+        }
+        return TABLE_FULL;
+    }
+
+    private void resize(Table old) {
+        final long stamp = resizeLock.writeLock();
+        try {
+            if (table != old) return;
+            if (old.keys.length() == MAX_TABLE_SIZE) {
+                throw new IllegalStateException("Index table cannot grow beyond " + MAX_TABLE_SIZE);
+            }
+            final Table t = new Table(old.keys.length() << 1);
+            final int mask = t.keys.length() - 1;
+            for (int j = 0, sz = old.keys.length(); j < sz; ++j) {
+                final long k = old.keys.get(j);
+                if (k == 0L) continue;
+                int i = (int) k & mask;
+                while (t.keys.get(i) != 0L) i = (i + 1) & mask;
+                t.keys.lazySet(i, k);
+                t.ids.lazySet(i, old.ids.get(j));
+            }
+            table = t;
+        } finally {
+            resizeLock.unlockWrite(stamp);
+        }
+    }
 }
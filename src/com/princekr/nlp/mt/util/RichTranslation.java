@@ -1,9 +1,59 @@
 package com.princekr.nlp.mt.util;
 
+import java.util.List;
+
 /**
  * A full hypothesis with various fields extracted from the featurizable
  * for convenience. Includes the featurizable for traversal through the
  * translation lattice.
  */
 public class RichTranslation<TK, FV> {
+
+    public final Sequence<TK> source;
+    public final Sequence<TK> translation;
+    public final double score;
+    // Word alignment, links packed as in ParallelCorpus.link
+    public final int[] alignment;
+    // Values of the features of the model, whose dot product with the
+    // weights is the score
+    public final List<FeatureValue<FV>> features;
+
+    public RichTranslation(Sequence<TK> source, Sequence<TK> translation, double score, int[] alignment,
+                           List<FeatureValue<FV>> features) {
+        this.source = source;
+        this.translation = translation;
+        this.score = score;
+        this.alignment = alignment;
+        this.features = features;
+    }
+
+    /**
+     * @return the alignment as "source-target" pairs separated by spaces.
+     */
+    public String alignmentString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int link : alignment) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(ParallelCorpus.linkSource(link)).append('-').append(ParallelCorpus.linkTarget(link));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the features as "name: value" pairs separated by spaces, as
+     * in n-best lists.
+     */
+    public String featureString() {
+        final StringBuilder sb = new StringBuilder();
+        for (FeatureValue<FV> feature : features) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(feature.name).append(": ").append(String.format("%.6f", feature.value));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return translation.toString();
+    }
 }
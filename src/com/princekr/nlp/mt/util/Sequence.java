@@ -10,5 +10,86 @@ package com.princekr.nlp.mt.util;
  * java.util.Collection or java.util.list. However, right now this would bring
  * with it a lot of methods that aren't really useful given how sequences are used.
  */
-public interface Sequence<T> {
+public interface Sequence<T> extends Iterable<T>, Comparable<Sequence<T>> {
+
+    /**
+     * Return the element at position i.
+     *
+     * @param i
+     * @return
+     */
+    T get(int i);
+
+    /**
+     * Number of elements in the sequence.
+     *
+     * @return
+     */
+    int size();
+
+    /**
+     * @return true if the sequence has no elements.
+     */
+    boolean isEmpty();
+
+    /**
+     * Return the subsequence [start, end).
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    Sequence<T> subsequence(int start, int end);
+
+    /**
+     * Return a new sequence with this sequence followed by other.
+     *
+     * @param other
+     * @return
+     */
+    Sequence<T> concat(Sequence<T> other);
+
+    /**
+     * Return a new sequence with element appended.
+     *
+     * @param element
+     * @return
+     */
+    Sequence<T> append(T element);
+
+    /**
+     * Return a new sequence with element prepended.
+     *
+     * @param element
+     * @return
+     */
+    Sequence<T> prepend(T element);
+
+    /**
+     * @param prefix
+     * @return true if prefix is a prefix of this sequence.
+     */
+    boolean startsWith(Sequence<T> prefix);
+
+    /**
+     * @param subsequence
+     * @return true if subsequence occurs contiguously in this sequence.
+     */
+    boolean contains(Sequence<T> subsequence);
+
+    /**
+     * A 64-bit hash code. Equal sequences have equal hash codes, regardless
+     * of implementation.
+     *
+     * @return
+     */
+    long longHashCode();
+
+    /**
+     * Return the elements separated by delimiter.
+     *
+     * @param delimiter
+     * @return
+     */
+    String toString(String delimiter);
 }
@@ -1,7 +1,124 @@
 package com.princekr.nlp.mt.util;
 
 /**
- * Created by prince on 2017/10/29.
+ * Utility functions for working with sequences.
+ * <p>
+ * Sequence hash codes use a rolling polynomial over element hash codes,
+ * <code>h(e_1..e_n) = e_1 * M^(n-1) + ... + e_n</code> in 64-bit arithmetic,
+ * so the hash of a concatenation is computed from the hashes of its parts.
  */
-public class Sequences {
+public final class Sequences {
+
+    private Sequences() {
+    }
+
+    /**
+     * Odd multiplier of the rolling hash.
+     */
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private static final int NUM_POWERS = 256;
+    private static final long[] POWERS = new long[NUM_POWERS];
+
+    static {
+        POWERS[0] = 1L;
+        for (int i = 1; i < NUM_POWERS; ++i) {
+            POWERS[i] = POWERS[i - 1] * HASH_MULTIPLIER;
+        }
+    }
+
+    /**
+     * Extend a rolling hash by one element.
+     *
+     * @param h       rolling hash of the prefix
+     * @param element hash code of the next element
+     * @return
+     */
+    public static long rollingHash(long h, int element) {
+        return h * HASH_MULTIPLIER + element;
+    }
+
+    /**
+     * Rolling hash of ids[from, to).
+     */
+    public static long rollingHash(int[] ids, int from, int to) {
+        long h = 0L;
+        for (int i = from; i < to; ++i) {
+            h = h * HASH_MULTIPLIER + ids[i];
+        }
+        return h;
+    }
+
+    /**
+     * Rolling hash of the concatenation of two sequences.
+     *
+     * @param prefixHash   rolling hash of the first sequence
+     * @param suffixHash   rolling hash of the second sequence
+     * @param suffixLength length of the second sequence
+     * @return
+     */
+    public static long concatHash(long prefixHash, long suffixHash, int suffixLength) {
+        return prefixHash * power(suffixLength) + suffixHash;
+    }
+
+    private static long power(int n) {
+        if (n < NUM_POWERS) return POWERS[n];
+        long result = 1L;
+        long base = HASH_MULTIPLIER;
+        for (; n > 0; n >>= 1) {
+            if ((n & 1) != 0) result *= base;
+            base *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Convert a rolling hash to the value returned by
+     * <code>Sequence.longHashCode()</code>. Mixing in the length separates
+     * sequences whose rolling hashes coincide, e.g. runs of id 0.
+     */
+    public static long finishHash(long rollingHash, int size) {
+        long h = rollingHash ^ ((long) size * 0xc6a4a7935bd1e995L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the empty sequence.
+     */
+    public static Sequence<IString> emptySequence() {
+        return ArraySequence.EMPTY;
+    }
+
+    /**
+     * Concatenate two sequences.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static Sequence<IString> concatenate(Sequence<IString> a, Sequence<IString> b) {
+        return a.concat(b);
+    }
+
+    /**
+     * Return the system vocabulary ids of a sequence.
+     *
+     * @param sequence
+     * @return
+     */
+    public static int[] toIntArray(Sequence<IString> sequence) {
+        if (sequence instanceof ArraySequence) {
+            return ((ArraySequence) sequence).toIntArray();
+        }
+        final int[] ids = new int[sequence.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = sequence.get(i).id;
+        }
+        return ids;
+    }
 }
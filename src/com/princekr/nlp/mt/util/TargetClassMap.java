@@ -1,7 +1,19 @@
 package com.princekr.nlp.mt.util;
 
 /**
+ * Word classes of the target language, shared by the featurizers and
+ * language models that work on classes.
+ *
  * Created by prince on 2017/10/29.
  */
-public class TargetClassMap {
+public class TargetClassMap extends AbstractWordClassMap {
+
+    private static final TargetClassMap INSTANCE = new TargetClassMap();
+
+    private TargetClassMap() {
+    }
+
+    public static TargetClassMap getInstance() {
+        return INSTANCE;
+    }
 }
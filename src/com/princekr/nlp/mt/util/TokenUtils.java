@@ -0,0 +1,16 @@
+package com.princekr.nlp.mt.util;
+
+/**
+ * Special tokens.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public final class TokenUtils {
+
+    private TokenUtils() {
+    }
+
+    public static final IString START_TOKEN = new IString("<s>");
+    public static final IString END_TOKEN = new IString("</s>");
+    public static final IString UNK_TOKEN = new IString("<unk>");
+}
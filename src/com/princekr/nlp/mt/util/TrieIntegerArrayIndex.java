@@ -1,7 +1,435 @@
 package com.princekr.nlp.mt.util;
 
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+
+import java.util.Arrays;
+
 /**
+ * Read-only double-array trie over <code>int[]</code> keys.
+ * <p>
+ * A transition from node s on label c goes to t = base[s] + c and is valid
+ * iff check[t] == s, so each step is a few array reads and no key is ever
+ * hashed. <code>PrefixIterator</code> walks a sentence from one position and
+ * returns every key that is a prefix of the remaining words, stopping as
+ * soon as no longer key exists. Querying all spans of a sentence therefore
+ * takes one walk per start position.
+ * <p>
+ * Key elements are renumbered by descending frequency before placement, so
+ * the frequent words that fan out from most nodes get small labels and the
+ * arrays stay dense even for a large vocabulary.
+ * <p>
+ * The trie is built once from the keys of another index and keeps their
+ * ids. Threadsafe for reads.
+ *
  * Created by prince on 2017/10/29.
  */
-public class TrieIntegerArrayIndex {
+public class TrieIntegerArrayIndex implements IntegerArrayIndex {
+
+    private static final int ROOT = 0;
+    private static final int FREE = -1;
+    private static final int NO_PARENT = -2;
+
+    private final int[] base;
+    private final int[] check;
+    // node -> key id, or UNKNOWN_ID
+    private final int[] value;
+    // key id -> node
+    private final int[] nodes;
+    // key element -> label, or -1 if the element occurs in no key
+    private final int[] labels;
+    // label -> key element
+    private final int[] elements;
+
+    /**
+     * Build a trie with the keys of an index. Keys keep their ids.
+     *
+     * @param index
+     */
+    public TrieIntegerArrayIndex(IntegerArrayIndex index) {
+        this(keysOf(index));
+    }
+
+    /**
+     * Build a trie in which keys[i] has id i.
+     *
+     * @param keys
+     */
+    public TrieIntegerArrayIndex(int[][] keys) {
+        final Builder builder = new Builder(keys);
+        this.base = builder.base;
+        this.check = builder.check;
+        this.value = builder.value;
+        this.nodes = builder.nodes;
+        this.labels = builder.labels;
+        this.elements = builder.elements;
+    }
+
+    private static int[][] keysOf(IntegerArrayIndex index) {
+        final int[][] keys = new int[index.size()][];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = index.get(i);
+        }
+        return keys;
+    }
+
+    /**
+     * Follow the transition from node on a key element.
+     *
+     * @param node
+     * @param element
+     * @return the child node, or -1 if there is none.
+     */
+    public int child(int node, int element) {
+        if (element < 0 || element >= labels.length) return -1;
+        final int label = labels[element];
+        if (label < 0) return -1;
+        final int t = base[node] + label;
+        return t >= 0 && t < check.length && check[t] == node ? t : -1;
+    }
+
+    /**
+     * @return the root node.
+     */
+    public int root() {
+        return ROOT;
+    }
+
+    /**
+     * @param node
+     * @return the id of the key ending at node, or UNKNOWN_ID.
+     */
+    public int value(int node) {
+        return value[node];
+    }
+
+    @Override
+    public int indexOf(int[] key, int from, int to) {
+        int node = ROOT;
+        for (int i = from; i < to; ++i) {
+            node = child(node, key[i]);
+            if (node < 0) return UNKNOWN_ID;
+        }
+        return value[node];
+    }
+
+    @Override
+    public int add(int[] key, int from, int to) {
+        final int id = indexOf(key, from, to);
+        if (id == UNKNOWN_ID) {
+            throw new UnsupportedOperationException("TrieIntegerArrayIndex is read-only");
+        }
+        return id;
+    }
+
+    @Override
+    public int[] get(int id) {
+        if (id < 0 || id >= nodes.length || nodes[id] < 0) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Index: %d Size: %d", id, nodes.length));
+        }
+        int length = 0;
+        for (int node = nodes[id]; node != ROOT; node = check[node]) ++length;
+        final int[] key = new int[length];
+        for (int node = nodes[id]; node != ROOT; node = check[node]) {
+            key[--length] = elements[node - base[check[node]]];
+        }
+        return key;
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return the number of array cells, a measure of memory use.
+     */
+    public int numCells() {
+        return check.length;
+    }
+
+    /**
+     * Enumerates the keys that are prefixes of key[from, to), shortest
+     * first. Reusable; not threadsafe.
+     */
+    public final class PrefixIterator {
+        private int[] key;
+        private int position;
+        private int end;
+        private int node;
+        private int id;
+
+        /**
+         * Start a new walk.
+         *
+         * @return this iterator.
+         */
+        public PrefixIterator reset(int[] key, int from, int to) {
+            this.key = key;
+            this.position = from;
+            this.end = to;
+            this.node = ROOT;
+            this.id = UNKNOWN_ID;
+            return this;
+        }
+
+        /**
+         * Advance to the next matching prefix.
+         *
+         * @return false if no longer key exists.
+         */
+        public boolean next() {
+            while (position < end) {
+                node = child(node, key[position++]);
+                if (node < 0) {
+                    position = end;
+                    break;
+                }
+                if (value[node] != UNKNOWN_ID) {
+                    id = value[node];
+                    return true;
+                }
+            }
+            id = UNKNOWN_ID;
+            return false;
+        }
+
+        /**
+         * @return the id of the current prefix.
+         */
+        public int id() {
+            return id;
+        }
+
+        /**
+         * @return the exclusive end position of the current prefix.
+         */
+        public int end() {
+            return position;
+        }
+    }
+
+    public PrefixIterator prefixIterator() {
+        return new PrefixIterator();
+    }
+
+    /**
+     * Breadth-first double-array construction. Cells are placed first-fit
+     * using a doubly-linked list of free cells. A free cell that has been
+     * rejected as a candidate too often is dropped from the list, which
+     * bounds the search for nodes with several children. Nodes with a single
+     * child, the large majority below the first levels, take the lowest free
+     * cell instead, so dropped cells are still filled.
+     */
+    private static final class Builder {
+        private int[] base;
+        private int[] check;
+        private int[] value;
+        private final int[] nodes;
+        private final int[] labels;
+        private final int[] elements;
+
+        private static final int MAX_MISSES = 8;
+
+        private int[] nextFree;
+        private int[] prevFree;
+        private byte[] misses;
+        private int freeHead = -1;
+        // No cell below firstFree is free
+        private int firstFree;
+        private int freeTail = -1;
+        private int maxUsed;
+
+        Builder(int[][] originalKeys) {
+            nodes = new int[originalKeys.length];
+            Arrays.fill(nodes, -1);
+
+            // Renumber elements by descending frequency
+            int maxElement = -1;
+            for (int[] key : originalKeys) {
+                for (int e : key) {
+                    if (e < 0) throw new IllegalArgumentException("Negative key element: " + e);
+                    if (e > maxElement) maxElement = e;
+                }
+            }
+            final int[] counts = new int[maxElement + 1];
+            for (int[] key : originalKeys) {
+                for (int e : key) ++counts[e];
+            }
+            int numElements = 0;
+            for (int count : counts) {
+                if (count > 0) ++numElements;
+            }
+            final Integer[] byCount = new Integer[numElements];
+            for (int e = 0, i = 0; e < counts.length; ++e) {
+                if (counts[e] > 0) byCount[i++] = e;
+            }
+            Arrays.sort(byCount, (a, b) -> Integer.compare(counts[b], counts[a]));
+            labels = new int[counts.length];
+            Arrays.fill(labels, -1);
+            elements = new int[numElements];
+            for (int label = 0; label < numElements; ++label) {
+                elements[label] = byCount[label];
+                labels[byCount[label]] = label;
+            }
+            final int[][] keys = new int[originalKeys.length][];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = new int[originalKeys[i].length];
+                for (int j = 0; j < keys[i].length; ++j) keys[i][j] = labels[originalKeys[i][j]];
+            }
+
+            final Integer[] order = new Integer[keys.length];
+            for (int i = 0; i < order.length; ++i) order[i] = i;
+            Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+            final int[] sorted = new int[order.length];
+            for (int i = 0; i < order.length; ++i) sorted[i] = order[i];
+
+            allocate(Math.max(1024, keys.length));
+            claim(ROOT);
+            check[ROOT] = NO_PARENT;
+
+            // Work items: node, first key, last key (exclusive), depth
+            final IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+            enqueue(queue, ROOT, 0, sorted.length, 0);
+            int[] childLabels = new int[16];
+            int[] groupStart = new int[17];
+            while (!queue.isEmpty()) {
+                final int node = queue.dequeueInt();
+                int lo = queue.dequeueInt();
+                final int hi = queue.dequeueInt();
+                final int depth = queue.dequeueInt();
+                // Duplicate keys keep the first id
+                while (lo < hi && keys[sorted[lo]].length == depth) {
+                    if (value[node] == UNKNOWN_ID) value[node] = sorted[lo];
+                    nodes[sorted[lo]] = node;
+                    ++lo;
+                }
+                if (lo == hi) continue;
+
+                int numLabels = 0;
+                for (int k = lo; k < hi; ++k) {
+                    final int label = keys[sorted[k]][depth];
+                    if (numLabels == 0 || childLabels[numLabels - 1] != label) {
+                        if (numLabels == childLabels.length) {
+                            childLabels = Arrays.copyOf(childLabels, 2 * numLabels);
+                            groupStart = Arrays.copyOf(groupStart, 2 * numLabels + 1);
+                        }
+                        groupStart[numLabels] = k;
+                        childLabels[numLabels++] = label;
+                    }
+                }
+                groupStart[numLabels] = hi;
+
+                final int b = findBase(childLabels, numLabels);
+                base[node] = b;
+                for (int k = 0; k < numLabels; ++k) {
+                    final int t = b + childLabels[k];
+                    claim(t);
+                    check[t] = node;
+                }
+                for (int k = 0; k < numLabels; ++k) {
+                    enqueue(queue, b + childLabels[k], groupStart[k], groupStart[k + 1], depth + 1);
+                }
+            }
+            for (int node : nodes) {
+                if (node < 0) throw new IllegalStateException("Key was not placed");
+            }
+
+            final int numCells = maxUsed + 1;
+            base = Arrays.copyOf(base, numCells);
+            check = Arrays.copyOf(check, numCells);
+            value = Arrays.copyOf(value, numCells);
+            nextFree = null;
+            prevFree = null;
+            misses = null;
+        }
+
+        private static void enqueue(IntArrayFIFOQueue queue, int node, int lo, int hi, int depth) {
+            queue.enqueue(node);
+            queue.enqueue(lo);
+            queue.enqueue(hi);
+            queue.enqueue(depth);
+        }
+
+        private static int compare(int[] a, int[] b) {
+            final int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; ++i) {
+                if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+            }
+            return Integer.compare(a.length, b.length);
+        }
+
+        /**
+         * Find b such that b + label is a free cell for every label.
+         */
+        private int findBase(int[] childLabels, int numLabels) {
+            final int first = childLabels[0];
+            if (numLabels == 1) {
+                while (firstFree < check.length && check[firstFree] != FREE) ++firstFree;
+                if (firstFree == check.length) allocate(2 * check.length);
+                return firstFree - first;
+            }
+            int p = freeHead;
+            while (true) {
+                if (p < 0) {
+                    p = check.length;
+                    allocate(2 * check.length);
+                }
+                final int b = p - first;
+                final int last = b + childLabels[numLabels - 1];
+                if (last >= check.length) {
+                    allocate(Math.max(2 * check.length, last + 1));
+                }
+                boolean fits = true;
+                for (int k = 1; k < numLabels; ++k) {
+                    if (check[b + childLabels[k]] != FREE) {
+                        fits = false;
+                        break;
+                    }
+                }
+                if (fits) return b;
+                final int next = nextFree[p];
+                if (++misses[p] == MAX_MISSES) unlink(p);
+                p = next;
+            }
+        }
+
+        /**
+         * Grow the arrays to newSize cells and add the new cells to the end
+         * of the free list.
+         */
+        private void allocate(int newSize) {
+            final int oldSize = base == null ? 0 : base.length;
+            if (newSize <= oldSize) return;
+            base = base == null ? new int[newSize] : Arrays.copyOf(base, newSize);
+            check = check == null ? new int[newSize] : Arrays.copyOf(check, newSize);
+            value = value == null ? new int[newSize] : Arrays.copyOf(value, newSize);
+            nextFree = nextFree == null ? new int[newSize] : Arrays.copyOf(nextFree, newSize);
+            prevFree = prevFree == null ? new int[newSize] : Arrays.copyOf(prevFree, newSize);
+            misses = misses == null ? new byte[newSize] : Arrays.copyOf(misses, newSize);
+            Arrays.fill(check, oldSize, newSize, FREE);
+            Arrays.fill(value, oldSize, newSize, UNKNOWN_ID);
+            for (int i = oldSize; i < newSize; ++i) {
+                prevFree[i] = freeTail;
+                nextFree[i] = -1;
+                if (freeTail >= 0) nextFree[freeTail] = i;
+                else freeHead = i;
+                freeTail = i;
+            }
+        }
+
+        private void claim(int t) {
+            if (misses[t] < MAX_MISSES) unlink(t);
+            check[t] = NO_PARENT;
+            if (t > maxUsed) maxUsed = t;
+        }
+
+        private void unlink(int t) {
+            final int prev = prevFree[t];
+            final int next = nextFree[t];
+            if (prev >= 0) nextFree[prev] = next;
+            else freeHead = next;
+            if (next >= 0) prevFree[next] = prev;
+            else freeTail = prev;
+        }
+    }
 }
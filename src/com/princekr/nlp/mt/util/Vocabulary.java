@@ -9,30 +9,156 @@ import edu.stanford.nlp.util.concurrent.ConcurrentHashIndex;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
+ * Mapping from strings to integer ids. The static system index backs
+ * <code>IString</code> and is shared by all decoder threads; instances
+ * hold per-model vocabularies.
+ *
  * Created by prince on 2017/10/28.
  */
 public class Vocabulary implements Serializable, KryoSerializable {
 
+    private static final long serialVersionUID = 5124110481914822964L;
+
     public static final Logger logger = LogManager.getLogger(Vocabulary.class.getName());
 
     private static final int INITIAL_SYSTEM_CAPACITY = 1000000;
-    private static Index<String> systemIndex = new ConcurrentHashIndex<String>(INITIAL_SYSTEM_CAPACITY);
-    private static final int UNKNOWN_ID = ConcurrentHashIndex.UNKNOWN_ID;
+    private static volatile PackedStringIndex systemIndex = new PackedStringIndex(INITIAL_SYSTEM_CAPACITY);
+    public static final int UNKNOWN_ID = ConcurrentHashIndex.UNKNOWN_ID;
 
     private static final int INITIAL_CAPACITY = 10000;
     protected Index<String> index;
 
+    public Vocabulary() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public Vocabulary(int initialCapacity) {
+        this.index = new ConcurrentHashIndex<>(initialCapacity);
+    }
+
+    /**
+     * Add a word to this vocabulary.
+     *
+     * @param word
+     * @return the id of the word.
+     */
+    public int add(String word) {
+        return index.addToIndex(word);
+    }
+
+    /**
+     * @param word
+     * @return the id of the word, or UNKNOWN_ID.
+     */
+    public int indexOf(String word) {
+        return index.indexOf(word);
+    }
+
+    public String get(int i) {
+        return index.get(i);
+    }
+
+    public boolean contains(String word) {
+        return index.contains(word);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Add a word to the system vocabulary.
+     *
+     * @param word
+     * @return the system id of the word.
+     */
+    public static int systemAdd(String word) {
+        return systemIndex.add(word);
+    }
+
+    /**
+     * Lookup a word in the system vocabulary without adding it.
+     *
+     * @param word
+     * @return the system id of the word, or UNKNOWN_ID.
+     */
+    public static int systemIndexOf(String word) {
+        return systemIndex.indexOf(word);
+    }
+
+    public static String systemGet(int i) {
+        return systemIndex.get(i);
+    }
+
+    public static boolean systemContains(String word) {
+        return systemIndex.contains(word);
+    }
+
+    public static int systemSize() {
+        return systemIndex.size();
+    }
+
+    /**
+     * Replace the system vocabulary with a memory-mapped snapshot written by
+     * <code>systemSave()</code>. Words that already have ids must have the
+     * same ids in the snapshot. Call this before decoder threads start.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public static synchronized void systemLoad(String filename) throws IOException {
+        final long startTime = System.nanoTime();
+        final PackedStringIndex snapshot = PackedStringIndex.map(Paths.get(filename), INITIAL_SYSTEM_CAPACITY);
+        final PackedStringIndex current = systemIndex;
+        final int numAssigned = current.size();
+        if (numAssigned > snapshot.size()) {
+            throw new IllegalStateException(String.format("System vocabulary has %d words but %s has only %d",
+                    numAssigned, filename, snapshot.size()));
+        }
+        for (int i = 0; i < numAssigned; ++i) {
+            if (!current.get(i).equals(snapshot.get(i))) {
+                throw new IllegalStateException(String.format("Id %d is assigned to a different word in %s", i, filename));
+            }
+        }
+        systemIndex = snapshot;
+        logger.info("Mapped {} words from {} in {}ms", snapshot.size(), filename,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+
+    /**
+     * Write a snapshot of the system vocabulary that can be loaded with
+     * <code>systemLoad()</code>.
+     *
+     * @param filename
+     * @throws IOException
+     */
+    public static void systemSave(String filename) throws IOException {
+        final Path path = Paths.get(filename);
+        systemIndex.save(path);
+        logger.info("Wrote {} words to {}", systemIndex.size(), filename);
+    }
 
     @Override
     public void write(Kryo kryo, Output output) {
-
+        final int size = index.size();
+        output.writeInt(size, true);
+        for (int i = 0; i < size; ++i) {
+            output.writeString(index.get(i));
+        }
     }
 
     @Override
     public void read(Kryo kryo, Input input) {
-
+        final int size = input.readInt(true);
+        index = new ConcurrentHashIndex<>(Math.max(size, INITIAL_CAPACITY));
+        for (int i = 0; i < size; ++i) {
+            index.addToIndex(input.readString());
+        }
     }
 }
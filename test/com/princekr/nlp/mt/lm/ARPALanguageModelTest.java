@@ -0,0 +1,130 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scores of the quantized, bit-packed <code>NGramTrie</code> against the
+ * values in the ARPA text.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class ARPALanguageModelTest {
+
+    private static final int ORDER = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RandomARPA arpa = new RandomARPA(ORDER, 60, 400, 11);
+
+    private String writeARPA() throws IOException {
+        final File file = folder.newFile("test.arpa");
+        arpa.write(file);
+        return file.getPath();
+    }
+
+    /**
+     * Sentences that follow the n-grams of the model, and sentences of
+     * random words including words outside the model.
+     */
+    private List<String[]> testSentences() {
+        final Random random = new Random(5);
+        final List<String[]> sentences = new ArrayList<>();
+        for (int s = 0; s < 300; ++s) sentences.add(arpa.sentence(random, 1 + random.nextInt(15)));
+        for (int s = 0; s < 100; ++s) {
+            final String[] sentence = arpa.sentence(random, 1 + random.nextInt(15));
+            for (int i = 1; i < sentence.length - 1; ++i) {
+                if (random.nextInt(5) == 0) sentence[i] = "oov" + random.nextInt(3);
+            }
+            sentences.add(sentence);
+        }
+        return sentences;
+    }
+
+    private static Sequence<IString> toSequence(String[] tokens) {
+        final IString[] elements = new IString[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) elements[i] = new IString(tokens[i]);
+        return new ArraySequence(elements);
+    }
+
+    /**
+     * Score each sentence after &lt;s&gt; word by word and as a whole, and
+     * compare with the reference.
+     *
+     * @return the largest error of a word score.
+     */
+    private double maxError(LanguageModel<IString> lm) {
+        double maxError = 0.0;
+        for (String[] tokens : testSentences()) {
+            final Sequence<IString> sequence = toSequence(tokens);
+            final float[] scores = new float[tokens.length];
+            final LMState start = lm.score(sequence.subsequence(0, 1), 1, null);
+            lm.scorePhrase(sequence, 1, tokens.length, start, scores, 0);
+            double expected = 0.0;
+            for (int i = 1; i < tokens.length; ++i) {
+                final double reference = arpa.score(tokens, i);
+                expected += reference;
+                maxError = Math.max(maxError, Math.abs(scores[i - 1] - reference));
+            }
+            final double total = lm.score(sequence, 1, null).getScore();
+            Assert.assertEquals(expected, total, (tokens.length - 1) * (maxError + 1e-4));
+            // Continuing from a state scores like scoring the whole sentence
+            final int split = 1 + (tokens.length - 1) / 2;
+            final LMState left = lm.score(sequence.subsequence(0, split), 1, null);
+            final LMState right = lm.score(sequence.subsequence(split, tokens.length), 0, left);
+            Assert.assertEquals(total, left.getScore() + right.getScore(), 1e-3);
+        }
+        return maxError;
+    }
+
+    @Test
+    public void testFinePrecision() throws IOException {
+        final ARPALanguageModel lm = new ARPALanguageModel(writeARPA(), 24, 24);
+        Assert.assertEquals(ORDER, lm.order());
+        Assert.assertTrue(maxError(lm) < 1e-3);
+    }
+
+    @Test
+    public void testDefaultQuantization() throws IOException {
+        final ARPALanguageModel lm = new ARPALanguageModel(writeARPA());
+        // 8 bits over a probability range of 5 and a backoff range of 1 (log10)
+        Assert.assertTrue(maxError(lm) < ORDER * 0.02 * ARPALanguageModel.LOG10_TO_LN);
+    }
+
+    @Test
+    public void testSaveAndMap() throws IOException {
+        final ARPALanguageModel parsed = new ARPALanguageModel(writeARPA(), 12, 10);
+        final String binary = new File(folder.getRoot(), "test.bin").getPath();
+        parsed.save(binary);
+        Assert.assertTrue(ARPALanguageModel.isBinary(binary));
+        final ARPALanguageModel mapped = ARPALanguageModel.load(binary);
+        Assert.assertTrue(mapped.isMapped());
+        for (String[] tokens : testSentences()) {
+            final Sequence<IString> sequence = toSequence(tokens);
+            final LMState expected = parsed.score(sequence, 1, null);
+            final LMState actual = mapped.score(sequence, 1, null);
+            Assert.assertEquals(expected.getScore(), actual.getScore(), 0.0);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testKnownWords() throws IOException {
+        final ARPALanguageModel lm = new ARPALanguageModel(writeARPA());
+        Assert.assertTrue(lm.isKnown("w0"));
+        Assert.assertTrue(lm.isKnown(RandomARPA.UNK));
+        Assert.assertFalse(lm.isKnown("oov0"));
+    }
+}
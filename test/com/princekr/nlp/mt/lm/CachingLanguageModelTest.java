@@ -0,0 +1,127 @@
+package com.princekr.nlp.mt.lm;
+
+import com.princekr.nlp.mt.util.ArraySequence;
+import com.princekr.nlp.mt.util.IString;
+import com.princekr.nlp.mt.util.Sequence;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>CachingLanguageModel</code> must score like the model it wraps,
+ * whatever it evicts and whichever thread asks.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class CachingLanguageModelTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static RandomARPA arpa;
+    private static ARPALanguageModel lm;
+
+    @BeforeClass
+    public static void loadModel() throws IOException {
+        arpa = new RandomARPA(4, 40, 300, 17);
+        final File file = folder.newFile("test.arpa");
+        arpa.write(file);
+        lm = new ARPALanguageModel(file.getPath());
+    }
+
+    private static Sequence<IString> toSequence(String[] tokens) {
+        final IString[] elements = new IString[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) elements[i] = new IString(tokens[i]);
+        return new ArraySequence(elements);
+    }
+
+    /**
+     * Score sentences phrase by phrase the way the decoder extends
+     * hypotheses: the same sentences with different segmentations, so that
+     * queries repeat after the same states and also go on differently.
+     *
+     * @return the number of mismatches.
+     */
+    private static int compare(CachingLanguageModel cached, long seed) {
+        final Random random = new Random(seed);
+        final List<String[]> sentences = new ArrayList<>();
+        for (int s = 0; s < 30; ++s) {
+            final String[] sentence = arpa.sentence(random, 1 + random.nextInt(15));
+            if (random.nextInt(4) == 0) sentence[1] = "oov";
+            sentences.add(sentence);
+        }
+        int errors = 0;
+        for (int pass = 0; pass < 20; ++pass) {
+            for (String[] tokens : sentences) {
+                final Sequence<IString> sequence = toSequence(tokens);
+                LMState expected = lm.score(sequence.subsequence(0, 1), 1, null);
+                LMState actual = cached.score(sequence.subsequence(0, 1), 1, null);
+                for (int from = 1; from < tokens.length; ) {
+                    final int to = Math.min(tokens.length, from + 1 + random.nextInt(4));
+                    final float[] expectedScores = new float[to - from];
+                    final float[] actualScores = new float[to - from + 1];
+                    expected = lm.scorePhrase(sequence, from, to, expected, expectedScores, 0);
+                    actual = cached.scorePhrase(sequence, from, to, actual, actualScores, 1);
+                    for (int i = 0; i < expectedScores.length; ++i) {
+                        if (expectedScores[i] != actualScores[i + 1]) ++errors;
+                    }
+                    if (Math.abs(expected.getScore() - actual.getScore()) > 1e-4
+                            || expected.hashCode() != actual.hashCode() || expected.length() != actual.length()) {
+                        ++errors;
+                    }
+                    from = to;
+                }
+                final int start = 1 + random.nextInt(tokens.length - 1);
+                if (Math.abs(lm.score(sequence, start, null).getScore()
+                        - cached.score(sequence, start, null).getScore()) > 1e-4) {
+                    ++errors;
+                }
+            }
+        }
+        return errors;
+    }
+
+    @Test
+    public void testMatchesUncached() {
+        final CachingLanguageModel cached = new CachingLanguageModel(lm, 1 << 16);
+        Assert.assertEquals(0, compare(cached, 1));
+        Assert.assertTrue(cached.hits() > cached.misses());
+        Assert.assertSame(lm, cached.getLanguageModel());
+        Assert.assertEquals(lm.order(), cached.order());
+    }
+
+    @Test
+    public void testEvictions() {
+        for (int size : new int[]{1, 3, 64}) {
+            Assert.assertEquals("size " + size, 0, compare(new CachingLanguageModel(lm, size), size));
+        }
+    }
+
+    @Test
+    public void testConcurrentThreads() throws InterruptedException {
+        final CachingLanguageModel cached = new CachingLanguageModel(lm, 256);
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final long seed = t % 2;
+            threads[t] = new Thread(() -> errors.addAndGet(compare(cached, seed)));
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        Assert.assertEquals(0, errors.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new CachingLanguageModel(lm, 0);
+    }
+}
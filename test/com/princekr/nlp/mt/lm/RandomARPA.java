@@ -0,0 +1,154 @@
+package com.princekr.nlp.mt.lm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Random backoff model written as an ARPA file, with a reference scorer
+ * that reads the text values and applies the backoff recursion directly.
+ * <p>
+ * The n-grams are those of random sentences, so every n-gram has its
+ * prefix and suffix, as in the output of real estimators.
+ *
+ * Created by prince on 2017/10/29.
+ */
+class RandomARPA {
+
+    static final String START = "<s>";
+    static final String END = "</s>";
+    static final String UNK = "<unk>";
+
+    final int order;
+    final List<String> words = new ArrayList<>();
+    // orders.get(n - 1): n-gram -> {log10 prob, log10 backoff}
+    private final List<Map<String, float[]>> orders = new ArrayList<>();
+
+    /**
+     * @param order
+     * @param vocabularySize number of words besides &lt;s&gt;, &lt;/s&gt;
+     *                       and &lt;unk&gt;
+     * @param numSentences   number of sentences whose n-grams are listed
+     * @param seed
+     */
+    RandomARPA(int order, int vocabularySize, int numSentences, long seed) {
+        this.order = order;
+        final Random random = new Random(seed);
+        for (int n = 1; n <= order; ++n) orders.add(new LinkedHashMap<>());
+        for (int i = 0; i < vocabularySize; ++i) words.add("w" + i);
+        addNGram(random, UNK);
+        addNGram(random, END);
+        addNGram(random, START)[0] = -99.0f;
+        for (String word : words) addNGram(random, word);
+        for (int s = 0; s < numSentences; ++s) {
+            final String[] sentence = sentence(random, 1 + random.nextInt(12));
+            for (int n = 2; n <= order; ++n) {
+                for (int i = 0; i + n <= sentence.length; ++i) {
+                    addNGram(random, String.join(" ", Arrays.copyOfRange(sentence, i, i + n)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an n-gram with random values unless it is listed already.
+     *
+     * @return its {log10 prob, log10 backoff}.
+     */
+    private float[] addNGram(Random random, String ngram) {
+        final int n = ngram.split(" ").length;
+        final Map<String, float[]> ngrams = orders.get(n - 1);
+        float[] values = ngrams.get(ngram);
+        if (values == null) {
+            // Backoffs of zero are left out of the file
+            final float backoff = n == order || random.nextInt(4) == 0 ? 0.0f : -random.nextFloat();
+            values = new float[]{-0.1f - 5.0f * random.nextFloat(), backoff};
+            ngrams.put(ngram, values);
+        }
+        return values;
+    }
+
+    /**
+     * Random sentence with Zipf-like word frequencies, between &lt;s&gt; and
+     * &lt;/s&gt;.
+     *
+     * @param random
+     * @param length number of words besides &lt;s&gt; and &lt;/s&gt;
+     * @return the tokens.
+     */
+    String[] sentence(Random random, int length) {
+        final String[] sentence = new String[length + 2];
+        sentence[0] = START;
+        for (int i = 1; i <= length; ++i) {
+            final double u = random.nextDouble();
+            sentence[i] = words.get((int) (words.size() * u * u * u));
+        }
+        sentence[length + 1] = END;
+        return sentence;
+    }
+
+    /**
+     * Write the model as an ARPA file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println("\\data\\");
+            for (int n = 1; n <= order; ++n) out.println("ngram " + n + "=" + orders.get(n - 1).size());
+            for (int n = 1; n <= order; ++n) {
+                out.println();
+                out.println("\\" + n + "-grams:");
+                for (Map.Entry<String, float[]> e : orders.get(n - 1).entrySet()) {
+                    final float[] values = e.getValue();
+                    if (values[1] != 0.0f) {
+                        out.println(values[0] + "\t" + e.getKey() + "\t" + values[1]);
+                    } else {
+                        out.println(values[0] + "\t" + e.getKey());
+                    }
+                }
+            }
+            out.println();
+            out.println("\\end\\");
+        }
+    }
+
+    /**
+     * Natural log probability of tokens[i] given the tokens before it,
+     * mapping words outside the model to &lt;unk&gt;.
+     *
+     * @param tokens
+     * @param i
+     * @return the score.
+     */
+    double score(String[] tokens, int i) {
+        final int from = Math.max(0, i - order + 1);
+        final String[] ngram = new String[i + 1 - from];
+        for (int j = from; j <= i; ++j) {
+            ngram[j - from] = orders.get(0).containsKey(tokens[j]) ? tokens[j] : UNK;
+        }
+        return backoffScore(ngram, 0) * ARPALanguageModel.LOG10_TO_LN;
+    }
+
+    private double backoffScore(String[] ngram, int from) {
+        final int n = ngram.length - from;
+        final float[] values = orders.get(n - 1).get(join(ngram, from, ngram.length));
+        if (values != null) return values[0];
+        final float[] context = orders.get(n - 2).get(join(ngram, from, ngram.length - 1));
+        return (context == null ? 0.0 : context[1]) + backoffScore(ngram, from + 1);
+    }
+
+    private static String join(String[] tokens, int from, int to) {
+        final StringBuilder sb = new StringBuilder(tokens[from]);
+        for (int i = from + 1; i < to; ++i) sb.append(' ').append(tokens[i]);
+        return sb.toString();
+    }
+}
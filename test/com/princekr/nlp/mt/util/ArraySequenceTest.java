@@ -0,0 +1,200 @@
+package com.princekr.nlp.mt.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Views, hashes and in-place extension of <code>ArraySequence</code>.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class ArraySequenceTest {
+
+    /**
+     * Sequence that computes its hash element by element, as a reference for
+     * the cached and concatenated hashes of <code>ArraySequence</code>.
+     */
+    private static class IdSequence extends AbstractSequence<IString> {
+        private final int[] ids;
+
+        private IdSequence(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public IString get(int i) {
+            return new IString(ids[i]);
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public Sequence<IString> subsequence(int start, int end) {
+            return new IdSequence(Arrays.copyOfRange(ids, start, end));
+        }
+
+        @Override
+        public Sequence<IString> concat(Sequence<IString> other) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Sequence<IString> append(IString element) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Sequence<IString> prepend(IString element) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static int[] randomIds(Random random, int length) {
+        final int[] ids = new int[length];
+        for (int i = 0; i < length; ++i) ids[i] = random.nextInt(1000);
+        return ids;
+    }
+
+    /**
+     * Check that a sequence holds exactly the given ids and hashes like a
+     * sequence that never shared or extended a backing array.
+     */
+    private static void assertSequence(int[] expected, Sequence<IString> actual) {
+        Assert.assertEquals(expected.length, actual.size());
+        Assert.assertArrayEquals(expected, Sequences.toIntArray(actual));
+        final IdSequence reference = new IdSequence(expected);
+        Assert.assertEquals(reference.longHashCode(), actual.longHashCode());
+        Assert.assertEquals(reference.hashCode(), actual.hashCode());
+        Assert.assertEquals(new ArraySequence(expected.clone()), actual);
+        Assert.assertEquals(actual, new ArraySequence(expected.clone()));
+        Assert.assertEquals(actual, reference);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        final int[] ids = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ids, a.length, b.length);
+        return ids;
+    }
+
+    @Test
+    public void testSubsequences() {
+        final Random random = new Random(1);
+        final int[] ids = randomIds(random, 20);
+        final ArraySequence sequence = new ArraySequence(ids.clone());
+        assertSequence(ids, sequence);
+        for (int start = 0; start <= ids.length; ++start) {
+            for (int end = start; end <= ids.length; ++end) {
+                final ArraySequence view = sequence.subsequence(start, end);
+                assertSequence(Arrays.copyOfRange(ids, start, end), view);
+                final int[] prefix = Arrays.copyOf(ids, end - start);
+                Assert.assertEquals(Arrays.equals(prefix, view.toIntArray()), sequence.startsWith(view));
+                Assert.assertTrue(sequence.contains(view));
+            }
+        }
+        Assert.assertSame(sequence, sequence.subsequence(0, ids.length));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testViewBounds() {
+        new ArraySequence(new int[]{1, 2, 3, 4}).subsequence(1, 3).getId(2);
+    }
+
+    @Test
+    public void testConcatHashes() {
+        final Random random = new Random(2);
+        for (int trial = 0; trial < 200; ++trial) {
+            final int[] a = randomIds(random, random.nextInt(12));
+            final int[] b = randomIds(random, random.nextInt(12));
+            final int[] ab = concat(a, b);
+            assertSequence(ab, new ArraySequence(a.clone()).concat(new ArraySequence(b.clone())));
+            assertSequence(ab, new ArraySequence(a.clone()).concat(new IdSequence(b)));
+            // Views of a longer backing array on both sides
+            final int[] padded = concat(concat(randomIds(random, 3), ab), randomIds(random, 3));
+            final ArraySequence backing = new ArraySequence(padded);
+            final Sequence<IString> left = backing.subsequence(3, 3 + a.length);
+            final Sequence<IString> right = backing.subsequence(3 + a.length, 3 + ab.length);
+            assertSequence(ab, left.concat(right));
+            if (a.length > 0) {
+                final int[] prepended = concat(new int[]{a[0]}, b);
+                assertSequence(prepended, new ArraySequence(b.clone()).prepend(new IString(a[0])));
+                final int[] appended = concat(b, new int[]{a[0]});
+                assertSequence(appended, new ArraySequence(b.clone()).append(new IString(a[0])));
+            }
+        }
+    }
+
+    @Test
+    public void testSpareCapacity() {
+        // The first extension of a copied sequence claims its spare slots
+        final Sequence<IString> root = new ArraySequence(new int[]{1, 2, 3}).append(new IString(4));
+        final Sequence<IString> first = root.append(new IString(5));
+        final Sequence<IString> second = root.append(new IString(6));
+        final Sequence<IString> third = root.concat(new ArraySequence(new int[]{7, 8}));
+        assertSequence(new int[]{1, 2, 3, 4}, root);
+        assertSequence(new int[]{1, 2, 3, 4, 5}, first);
+        assertSequence(new int[]{1, 2, 3, 4, 6}, second);
+        assertSequence(new int[]{1, 2, 3, 4, 7, 8}, third);
+        // Extending a view in the middle of a backing array never overwrites
+        final Sequence<IString> prefix = first.subsequence(0, 2);
+        assertSequence(new int[]{1, 2, 9}, prefix.append(new IString(9)));
+        assertSequence(new int[]{1, 2, 3, 4, 5}, first);
+        // Growing one phrase at a time keeps every intermediate sequence
+        final List<Sequence<IString>> chain = new ArrayList<>();
+        Sequence<IString> s = root;
+        for (int i = 0; i < 100; ++i) {
+            s = (i % 3 == 0) ? s.concat(new ArraySequence(new int[]{i, -i})) : s.append(new IString(i));
+            chain.add(s);
+        }
+        for (int k = 0; k < chain.size(); ++k) {
+            final int[] expected = Sequences.toIntArray(chain.get(k));
+            Assert.assertArrayEquals(expected, Sequences.toIntArray(chain.get(chain.size() - 1).subsequence(0,
+                    expected.length)));
+        }
+    }
+
+    @Test
+    public void testConcurrentExtensions() throws InterruptedException {
+        final int numThreads = 4;
+        final int rounds = 2000;
+        final AtomicInteger errors = new AtomicInteger();
+        for (int round = 0; round < rounds; ++round) {
+            final Sequence<IString> root = new ArraySequence(new int[]{1, 2, 3}).append(new IString(4));
+            final Thread[] threads = new Thread[numThreads];
+            final List<Sequence<IString>> results = new ArrayList<>();
+            for (int t = 0; t < numThreads; ++t) results.add(null);
+            for (int t = 0; t < numThreads; ++t) {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    Sequence<IString> s = root;
+                    for (int i = 0; i < 5; ++i) s = s.append(new IString(100 * id + i));
+                    synchronized (results) {
+                        results.set(id, s);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            for (int t = 0; t < numThreads; ++t) {
+                final int[] expected = {1, 2, 3, 4, 100 * t, 100 * t + 1, 100 * t + 2, 100 * t + 3, 100 * t + 4};
+                final Sequence<IString> s;
+                synchronized (results) {
+                    s = results.get(t);
+                }
+                if (!Arrays.equals(expected, Sequences.toIntArray(s))
+                        || s.longHashCode() != new IdSequence(expected).longHashCode()) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+        Assert.assertEquals(0, errors.get());
+    }
+}
@@ -0,0 +1,119 @@
+package com.princekr.nlp.mt.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshots of <code>PackedStringIndex</code> mapped back with
+ * <code>MappedStringIndex</code>, with strings appended on the heap.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class MappedStringIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> words(int n, long seed) {
+        final Random random = new Random(seed);
+        final List<String> words = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            final StringBuilder sb = new StringBuilder("w").append(i).append('_');
+            final int length = random.nextInt(10) == 0 ? 100 + random.nextInt(200) : 1 + random.nextInt(8);
+            for (int j = 0; j < length; ++j) {
+                switch (random.nextInt(5)) {
+                    case 0:
+                        sb.append((char) (0x4e00 + random.nextInt(500)));
+                        break;
+                    case 1:
+                        sb.appendCodePoint(0x1f600 + random.nextInt(50));
+                        break;
+                    default:
+                        sb.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            words.add(sb.toString());
+        }
+        return words;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final List<String> words = words(5000, 1);
+        final PackedStringIndex index = new PackedStringIndex(16);
+        for (String word : words) index.add(word);
+        final Path path = folder.newFile("vocab.bin").toPath();
+        index.save(path);
+
+        final PackedStringIndex mapped = PackedStringIndex.map(path, 16);
+        Assert.assertEquals(words.size(), mapped.size());
+        for (int id = 0; id < words.size(); ++id) {
+            Assert.assertEquals(id, mapped.indexOf(words.get(id)));
+            Assert.assertEquals(words.get(id), mapped.get(id));
+        }
+        Assert.assertEquals(PackedStringIndex.UNKNOWN_ID, mapped.indexOf("not in the snapshot"));
+        Assert.assertEquals(PackedStringIndex.UNKNOWN_ID, mapped.indexOf(words.get(0) + "x"));
+    }
+
+    @Test
+    public void testHeapAppends() throws Exception {
+        final List<String> words = words(3000, 2);
+        final List<String> more = words(3000, 3);
+        final PackedStringIndex index = new PackedStringIndex();
+        for (String word : words) index.add(word);
+        final Path path = folder.newFile("vocab.bin").toPath();
+        index.save(path);
+
+        final PackedStringIndex mapped = PackedStringIndex.map(path, 16);
+        for (int i = 0; i < more.size(); ++i) {
+            final String word = more.get(i) + "+";
+            Assert.assertEquals(words.size() + i, mapped.add(word));
+        }
+        for (int id = 0; id < words.size(); ++id) Assert.assertEquals(id, mapped.add(words.get(id)));
+        Assert.assertEquals(words.size() + more.size(), mapped.size());
+
+        // A snapshot of a mapped index with appends keeps every id
+        final Path again = folder.newFile("vocab2.bin").toPath();
+        mapped.save(again);
+        final PackedStringIndex remapped = PackedStringIndex.map(again, 16);
+        Assert.assertEquals(mapped.size(), remapped.size());
+        for (int id = 0; id < mapped.size(); ++id) {
+            Assert.assertEquals(mapped.get(id), remapped.get(id));
+            Assert.assertEquals(id, remapped.indexOf(mapped.get(id)));
+        }
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final List<String> words = words(2000, 4);
+        final PackedStringIndex index = new PackedStringIndex();
+        for (String word : words) index.add(word);
+        final Path path = folder.newFile("vocab.bin").toPath();
+        index.save(path);
+        final PackedStringIndex mapped = PackedStringIndex.map(path, 16);
+
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < 50000; ++i) {
+                    final int id = random.nextInt(words.size());
+                    if (mapped.indexOf(words.get(id)) != id) errors.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        Assert.assertEquals(0, errors.get());
+    }
+}
@@ -0,0 +1,190 @@
+package com.princekr.nlp.mt.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sequential and concurrent use of <code>PackedStringIndex</code>, and its
+ * UTF-8 comparison.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class PackedStringIndexTest {
+
+    private static String randomString(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = random.nextInt(12);
+        for (int i = 0; i < length; ++i) {
+            switch (random.nextInt(8)) {
+                case 0:
+                    sb.append((char) (0x4e00 + random.nextInt(200)));
+                    break;
+                case 1:
+                    sb.appendCodePoint(0x1f600 + random.nextInt(50));
+                    break;
+                case 2:
+                    sb.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 3:
+                    // Unpaired surrogate
+                    sb.append((char) (0xd800 + random.nextInt(0x800)));
+                    break;
+                case 4:
+                    sb.append('?');
+                    break;
+                default:
+                    sb.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String decoded(String s) {
+        return new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testUtf8Equals() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100000; ++i) {
+            final String s = randomString(random);
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            final byte[] padded = new byte[bytes.length + 4];
+            System.arraycopy(bytes, 0, padded, 2, bytes.length);
+            Assert.assertTrue(s, PackedStringIndex.utf8Equals(s, padded, 2, bytes.length));
+
+            final String t = randomString(random);
+            final boolean same = Arrays.equals(bytes, t.getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(s + " " + t, same, PackedStringIndex.utf8Equals(t, bytes, 0, bytes.length));
+            if (bytes.length > 0) {
+                Assert.assertFalse(PackedStringIndex.utf8Equals(s, bytes, 0, bytes.length - 1));
+                bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+                Assert.assertFalse(PackedStringIndex.utf8Equals(s, bytes, 0, bytes.length));
+            }
+        }
+    }
+
+    @Test
+    public void testSurrogates() {
+        final PackedStringIndex index = new PackedStringIndex();
+        final String unpaired = "x\ud800y";
+        final String reversed = "x\udc00\ud800";
+        final String paired = "x😀";
+        final int unpairedId = index.add(unpaired);
+        final int reversedId = index.add(reversed);
+        final int pairedId = index.add(paired);
+        Assert.assertEquals(unpairedId, index.indexOf(unpaired));
+        Assert.assertEquals(reversedId, index.indexOf(reversed));
+        Assert.assertEquals(pairedId, index.indexOf(paired));
+        // Stored as String.getBytes() encodes them
+        Assert.assertEquals("x?y", index.get(unpairedId));
+        Assert.assertEquals("x??", index.get(reversedId));
+        Assert.assertEquals(paired, index.get(pairedId));
+    }
+
+    @Test
+    public void testAddIndexOfGet() {
+        final PackedStringIndex index = new PackedStringIndex(4);
+        final Random random = new Random(2);
+        final List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 50000; ++i) {
+            final String s = i + randomString(random);
+            Assert.assertEquals(i, index.add(s));
+            strings.add(s);
+        }
+        Assert.assertEquals(strings.size(), index.size());
+        for (int id = 0; id < strings.size(); ++id) {
+            Assert.assertEquals(id, index.indexOf(strings.get(id)));
+            Assert.assertEquals(id, index.add(strings.get(id)));
+            Assert.assertEquals(decoded(strings.get(id)), index.get(id));
+        }
+        Assert.assertEquals(PackedStringIndex.UNKNOWN_ID, index.indexOf("-1"));
+        Assert.assertFalse(index.contains("-1"));
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final PackedStringIndex index = new PackedStringIndex(16);
+        final int numStrings = 30011;
+        final int numThreads = 4;
+        final int[][] ids = new int[numThreads][numStrings];
+        final Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                // Each thread adds every string, in its own order
+                for (int i = 0; i < numStrings; ++i) {
+                    final int k = (int) ((long) i * (2 * thread + 1) % numStrings);
+                    ids[thread][k] = index.add("s" + k + "é");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        Assert.assertEquals(numStrings, index.size());
+        final boolean[] seen = new boolean[numStrings];
+        for (int k = 0; k < numStrings; ++k) {
+            final int id = ids[0][k];
+            for (int t = 1; t < numThreads; ++t) Assert.assertEquals(id, ids[t][k]);
+            Assert.assertFalse(seen[id]);
+            seen[id] = true;
+            Assert.assertEquals("s" + k + "é", index.get(id));
+        }
+    }
+
+    /**
+     * Readers look up strings that are already present while writers add
+     * enough strings to rehash the table several times: no lookup may miss.
+     */
+    @Test
+    public void testRehashUnderReaders() throws Exception {
+        final PackedStringIndex index = new PackedStringIndex(16);
+        final int numPresent = 1000;
+        for (int i = 0; i < numPresent; ++i) index.add("present" + i);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger numLookups = new AtomicInteger();
+
+        final Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; ++t) {
+            final int seed = t;
+            readers[t] = new Thread(() -> {
+                final Random random = new Random(seed);
+                while (!done.get()) {
+                    final int i = random.nextInt(numPresent);
+                    if (index.indexOf("present" + i) != i) errors.incrementAndGet();
+                    final int size = index.size();
+                    final int id = random.nextInt(size);
+                    final String s = index.get(id);
+                    if (index.indexOf(s) != id) errors.incrementAndGet();
+                    numLookups.incrementAndGet();
+                }
+            });
+            readers[t].start();
+        }
+        final Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; ++t) {
+            final int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; ++i) index.add("new" + writer + "_" + i);
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+
+        Assert.assertEquals(0, errors.get());
+        Assert.assertTrue(numLookups.get() > 0);
+        Assert.assertEquals(numPresent + 200000, index.size());
+    }
+}
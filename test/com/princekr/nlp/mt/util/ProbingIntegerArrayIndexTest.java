@@ -0,0 +1,166 @@
+package com.princekr.nlp.mt.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sequential and concurrent use of <code>ProbingIntegerArrayIndex</code>.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class ProbingIntegerArrayIndexTest {
+
+    /**
+     * Key number k: its length and contents depend on k only, and distinct
+     * numbers give distinct keys.
+     */
+    private static int[] key(int k) {
+        final int[] key = new int[1 + k % 7];
+        key[0] = k;
+        for (int i = 1; i < key.length; ++i) key[i] = k * 31 + i;
+        return key;
+    }
+
+    @Test
+    public void testAddGetIndexOf() {
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex(4);
+        final int n = 50000;
+        for (int k = 0; k < n; ++k) Assert.assertEquals(k, index.add(key(k)));
+        Assert.assertEquals(n, index.size());
+        for (int k = 0; k < n; ++k) {
+            Assert.assertEquals(k, index.add(key(k)));
+            Assert.assertEquals(k, index.indexOf(key(k)));
+            Assert.assertArrayEquals(key(k), index.get(k));
+        }
+        Assert.assertEquals(n, index.size());
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, index.indexOf(new int[]{-1, -2}));
+    }
+
+    @Test
+    public void testRanges() {
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex();
+        final int[] sentence = {5, 6, 7, 8, 9};
+        final int id = index.add(sentence, 1, 4);
+        Assert.assertArrayEquals(new int[]{6, 7, 8}, index.get(id));
+        Assert.assertEquals(id, index.indexOf(new int[]{6, 7, 8}));
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, index.indexOf(sentence, 1, 3));
+        final int empty = index.add(sentence, 2, 2);
+        Assert.assertEquals(0, index.get(empty).length);
+        Assert.assertEquals(empty, index.indexOf(new int[0]));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testGetUnassigned() {
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex();
+        index.add(key(1));
+        index.get(1);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex(16);
+        // Prime, so that each thread's order is a permutation
+        final int numKeys = 20011;
+        final int numThreads = 4;
+        final int[][] ids = new int[numThreads][numKeys];
+        final Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                // Each thread adds every key, in its own order
+                for (int i = 0; i < numKeys; ++i) {
+                    final int k = (i * (2 * thread + 1)) % numKeys;
+                    ids[thread][k] = index.add(key(k));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        Assert.assertEquals(numKeys, index.size());
+        final boolean[] seen = new boolean[numKeys];
+        for (int k = 0; k < numKeys; ++k) {
+            final int id = ids[0][k];
+            for (int t = 1; t < numThreads; ++t) Assert.assertEquals(id, ids[t][k]);
+            Assert.assertFalse(seen[id]);
+            seen[id] = true;
+            Assert.assertArrayEquals(key(k), index.get(id));
+        }
+    }
+
+    /**
+     * Readers call get() on every id below size() while writers add: every
+     * id must be readable as soon as size() covers it, and must always read
+     * as the key it is finally mapped to.
+     */
+    @Test
+    public void testGetWhileAdding() throws Exception {
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex(16);
+        final int numKeys = 200000;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Map<Integer, int[]> read = new ConcurrentHashMap<>();
+        final AtomicInteger errors = new AtomicInteger();
+
+        final Thread[] writers = new Thread[3];
+        for (int t = 0; t < writers.length; ++t) {
+            writers[t] = new Thread(() -> {
+                for (int k; (k = next.getAndIncrement()) < numKeys; ) index.add(key(k));
+            });
+        }
+        final Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; ++t) {
+            final int seed = t;
+            readers[t] = new Thread(() -> {
+                final Random random = new Random(seed);
+                while (!done.get()) {
+                    final int size = index.size();
+                    if (size == 0) continue;
+                    // The newest ids are the ones an insert may still be writing
+                    for (int id = Math.max(0, size - 64); id < size; ++id) check(index, id, read, errors);
+                    check(index, random.nextInt(size), read, errors);
+                }
+            });
+        }
+        for (Thread reader : readers) reader.start();
+        for (Thread writer : writers) writer.start();
+        for (Thread writer : writers) writer.join();
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(numKeys, index.size());
+        final Map<Integer, Integer> idsOfKeys = new HashMap<>();
+        for (int id = 0; id < numKeys; ++id) {
+            final int[] key = index.get(id);
+            Assert.assertArrayEquals(key(key[0]), key);
+            Assert.assertEquals(id, index.indexOf(key));
+            Assert.assertNull(idsOfKeys.put(key[0], id));
+            final int[] earlier = read.get(id);
+            if (earlier != null) Assert.assertArrayEquals(key, earlier);
+        }
+    }
+
+    private static void check(ProbingIntegerArrayIndex index, int id, Map<Integer, int[]> read,
+                              AtomicInteger errors) {
+        try {
+            final int[] key = index.get(id);
+            if (key.length == 0 || !Arrays.equals(key(key[0]), key)) {
+                errors.incrementAndGet();
+                return;
+            }
+            final int[] earlier = read.putIfAbsent(id, key);
+            if (earlier != null && !Arrays.equals(earlier, key)) errors.incrementAndGet();
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.princekr.nlp.mt.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <code>TrieIntegerArrayIndex</code> against the index it is built from.
+ *
+ * Created by prince on 2017/10/29.
+ */
+public class TrieIntegerArrayIndexTest {
+
+    /**
+     * Random keys over a Zipf-like vocabulary, including prefixes of each
+     * other, as the source sides of a phrase table.
+     */
+    private static ProbingIntegerArrayIndex randomKeys(int n, long seed) {
+        final Random random = new Random(seed);
+        final ProbingIntegerArrayIndex index = new ProbingIntegerArrayIndex();
+        while (index.size() < n) {
+            final int[] key = new int[1 + random.nextInt(5)];
+            for (int i = 0; i < key.length; ++i) key[i] = (int) Math.pow(5000, random.nextDouble());
+            for (int length = 1; length <= key.length; ++length) index.add(key, 0, length);
+        }
+        return index;
+    }
+
+    @Test
+    public void testSameIds() {
+        final ProbingIntegerArrayIndex source = randomKeys(20000, 1);
+        final TrieIntegerArrayIndex trie = new TrieIntegerArrayIndex(source);
+        Assert.assertEquals(source.size(), trie.size());
+        for (int id = 0; id < source.size(); ++id) {
+            final int[] key = source.get(id);
+            Assert.assertEquals(id, trie.indexOf(key));
+            Assert.assertArrayEquals(key, trie.get(id));
+            Assert.assertEquals(id, trie.add(key));
+        }
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, trie.indexOf(new int[]{5001}));
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, trie.indexOf(new int[]{-3}));
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, trie.indexOf(new int[0]));
+    }
+
+    @Test
+    public void testDuplicatesKeepFirstId() {
+        final TrieIntegerArrayIndex trie = new TrieIntegerArrayIndex(new int[][]{{1, 2}, {3}, {1, 2}, {}});
+        Assert.assertEquals(0, trie.indexOf(new int[]{1, 2}));
+        Assert.assertEquals(1, trie.indexOf(new int[]{3}));
+        Assert.assertEquals(3, trie.indexOf(new int[0]));
+        Assert.assertArrayEquals(new int[]{1, 2}, trie.get(2));
+        Assert.assertEquals(IntegerArrayIndex.UNKNOWN_ID, trie.indexOf(new int[]{1}));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() {
+        new TrieIntegerArrayIndex(new int[][]{{1}}).add(new int[]{2});
+    }
+
+    @Test
+    public void testPrefixIterator() {
+        final ProbingIntegerArrayIndex source = randomKeys(20000, 2);
+        final TrieIntegerArrayIndex trie = new TrieIntegerArrayIndex(source);
+        final TrieIntegerArrayIndex.PrefixIterator prefixes = trie.prefixIterator();
+        final Random random = new Random(3);
+        for (int s = 0; s < 500; ++s) {
+            final int[] sentence = new int[1 + random.nextInt(20)];
+            for (int i = 0; i < sentence.length; ++i) sentence[i] = (int) Math.pow(5000, random.nextDouble());
+            for (int from = 0; from < sentence.length; ++from) {
+                final List<int[]> expected = new ArrayList<>();
+                for (int to = from + 1; to <= sentence.length; ++to) {
+                    final int id = source.indexOf(sentence, from, to);
+                    if (id != IntegerArrayIndex.UNKNOWN_ID) expected.add(new int[]{id, to});
+                }
+                final List<int[]> actual = new ArrayList<>();
+                prefixes.reset(sentence, from, sentence.length);
+                while (prefixes.next()) actual.add(new int[]{prefixes.id(), prefixes.end()});
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i) Assert.assertArrayEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+}